@@ -158,6 +158,24 @@ public abstract class Folder<T extends Message> {
         return true;
     }
 
+    /**
+     * @return The highest mod-sequence reported by the server when the folder was opened, or {@code -1} if the
+     *         server doesn't keep track of mod-sequences for this folder.
+     */
+    public long getHighestModSeq() {
+        return -1L;
+    }
+
+    /**
+     * Get the messages whose flags changed after the given mod-sequence. The returned messages only have their
+     * flags populated.
+     *
+     * @see #getHighestModSeq()
+     */
+    public List<T> getMessagesWithChangedFlags(long modSeq) throws MessagingException {
+        throw new MessagingException("K-9 does not support mod-sequences on this folder type");
+    }
+
     @Override
     public String toString() {
         return getName();
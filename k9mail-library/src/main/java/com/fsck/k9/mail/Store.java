@@ -43,6 +43,14 @@ public abstract class Store {
         return true;
     }
 
+    /**
+     * @return The number of folders that may be synchronized at the same time. Every sync uses its own connection, so
+     *         this is the connection budget for mail checks.
+     */
+    public int getMaxConcurrentFolderSyncs() {
+        return 1;
+    }
+
     public void sendMessages(List<? extends Message> messages) throws MessagingException { }
 
     public Pusher getPusher(PushReceiver receiver) {
@@ -0,0 +1,103 @@
+package com.fsck.k9.mail.internet;
+
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import android.util.Log;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+
+import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
+
+
+/**
+ * The encoded form of a message, written to a temp file.
+ * <p>
+ * {@link Message#calculateSize()} serializes the whole MIME tree, including encoding all attachments, only to throw
+ * the result away. Code that needs the size of a message before sending it (e.g. for {@code APPEND} or to check the
+ * {@code SIZE} limit of an SMTP server) should spool the message instead. That way the message is encoded once and the
+ * same bytes are used for the size and for sending.
+ * </p><p>
+ * Line endings are converted to CRLF. The temp file is deleted by {@link #close()}.
+ * </p>
+ */
+public class SpooledMessage implements Closeable {
+    private static final int BUFFER_SIZE = 8192;
+
+
+    private final File file;
+    private final long size;
+
+
+    public static SpooledMessage spool(Message message) throws IOException, MessagingException {
+        File file = File.createTempFile("spool", null, BinaryTempFileBody.getTempDirectory());
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+            try {
+                EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
+                message.writeTo(eolOut);
+                eolOut.flush();
+            } finally {
+                out.close();
+            }
+
+            return new SpooledMessage(file);
+        } catch (IOException | MessagingException | RuntimeException e) {
+            deleteFile(file);
+            throw e;
+        }
+    }
+
+    private SpooledMessage(File file) {
+        this.file = file;
+        this.size = file.length();
+    }
+
+    /**
+     * @return The size of the encoded message in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Writes the encoded message to {@code out}. Can be called any number of times until the spooled message is
+     * closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            WritableByteChannel target = Channels.newChannel(out);
+
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        deleteFile(file);
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            Log.w(LOG_TAG, "Couldn't delete spooled message " + file);
+        }
+    }
+}
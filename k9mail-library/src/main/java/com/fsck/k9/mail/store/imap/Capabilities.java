@@ -11,4 +11,7 @@ class Capabilities {
     public static final String COMPRESS_DEFLATE = "COMPRESS=DEFLATE";
     public static final String STARTTLS = "STARTTLS";
     public static final String SPECIAL_USE = "SPECIAL-USE";
+    public static final String CONDSTORE = "CONDSTORE";
+    public static final String NOTIFY = "NOTIFY";
+    public static final String BINARY = "BINARY";
 }
@@ -12,4 +12,5 @@ class Commands {
     public static final String LOGIN = "LOGIN";
     public static final String LIST = "LIST";
     public static final String NOOP = "NOOP";
+    public static final String NOTIFY_SET = "NOTIFY SET";
 }
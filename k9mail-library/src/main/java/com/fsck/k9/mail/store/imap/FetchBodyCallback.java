@@ -25,6 +25,12 @@ class FetchBodyCallback implements ImapResponseCallback {
             String uid = fetchList.getKeyedString("UID");
 
             ImapMessage message = (ImapMessage) mMessageMap.get(uid);
+            if (message == null) {
+                // UID not (yet) known, e.g. when the server sends the literal before the UID data item. Let the
+                // parser buffer the literal so the caller can handle it.
+                return null;
+            }
+
             message.parse(literal);
 
             // Return placeholder object
@@ -0,0 +1,57 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.fsck.k9.mail.filter.FixedLengthInputStream;
+
+
+/**
+ * Copies the literal of a ranged part FETCH to an {@link OutputStream}.
+ * <p>
+ * Keeps track of the number of bytes written, so a download interrupted in the middle of a literal can be resumed
+ * right after the last byte that was stored.
+ * </p>
+ */
+class FetchPartRangeCallback implements ImapResponseCallback {
+    private static final int BUFFER_SIZE = 8192;
+
+
+    private final OutputStream outputStream;
+    private int bytesWritten = 0;
+
+
+    FetchPartRangeCallback(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    @Override
+    public Object foundLiteral(ImapResponse response, FixedLengthInputStream literal) throws IOException {
+        if (response.getTag() != null || !ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+            return null;
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = literal.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, count);
+            bytesWritten += count;
+        }
+
+        return bytesWritten;
+    }
+
+    /**
+     * Writes data the server returned as a quoted string instead of a literal.
+     */
+    void write(String data) throws IOException {
+        byte[] bytes = data.getBytes("ISO-8859-1");
+        outputStream.write(bytes);
+        bytesWritten += bytes.length;
+    }
+
+    int getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,96 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.nio.charset.Charset;
+
+
+/**
+ * Shared {@code String} instances for atoms that appear in almost every IMAP response.
+ * <p>
+ * {@link ImapResponseParser} looks up every atom it reads in this table before creating a new {@code String}. This
+ * saves an allocation per token for the keywords of large {@code FETCH} responses. Only exact matches are shared, so
+ * the parsed tokens are the same as without the table.
+ * </p>
+ */
+class ImapAtoms {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final String[] COMMON_ATOMS = {
+            Responses.OK, Responses.NO, Responses.BAD, Responses.BYE, Responses.PREAUTH,
+            Responses.CAPABILITY, Responses.LIST, Responses.LSUB, Responses.SEARCH,
+            Responses.EXISTS, Responses.EXPUNGE, Responses.PERMANENTFLAGS, Responses.COPYUID,
+            "FETCH", "RECENT", "UID", "FLAGS", "MODSEQ", "INTERNALDATE", "RFC822.SIZE", "BODY", "BODYSTRUCTURE",
+            "ENVELOPE", "HEADER", "HEADER.FIELDS", "TEXT", "MIME", "NIL", "UIDNEXT", "UIDVALIDITY", "UNSEEN",
+            "HIGHESTMODSEQ", "READ-WRITE", "READ-ONLY", "VANISHED", "EARLIER",
+            "\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft", "\\Recent", "\\*",
+            "$Forwarded", "$MDNSent", "$Junk", "$NotJunk"
+    };
+
+    private static final int MAX_ATOM_LENGTH;
+    private static final byte[][][] ATOM_BYTES_BY_LENGTH;
+    private static final String[][] ATOMS_BY_LENGTH;
+
+    static {
+        int maxLength = 0;
+        for (String atom : COMMON_ATOMS) {
+            maxLength = Math.max(maxLength, atom.length());
+        }
+
+        int[] countByLength = new int[maxLength + 1];
+        for (String atom : COMMON_ATOMS) {
+            countByLength[atom.length()]++;
+        }
+
+        byte[][][] atomBytesByLength = new byte[maxLength + 1][][];
+        String[][] atomsByLength = new String[maxLength + 1][];
+        for (int length = 0; length <= maxLength; length++) {
+            atomBytesByLength[length] = new byte[countByLength[length]][];
+            atomsByLength[length] = new String[countByLength[length]];
+        }
+
+        int[] indexByLength = new int[maxLength + 1];
+        for (String atom : COMMON_ATOMS) {
+            int length = atom.length();
+            int index = indexByLength[length]++;
+            atomBytesByLength[length][index] = atom.getBytes(US_ASCII);
+            atomsByLength[length][index] = atom;
+        }
+
+        MAX_ATOM_LENGTH = maxLength;
+        ATOM_BYTES_BY_LENGTH = atomBytesByLength;
+        ATOMS_BY_LENGTH = atomsByLength;
+    }
+
+
+    private ImapAtoms() {
+    }
+
+    /**
+     * @return The shared instance if the first {@code length} bytes of {@code buffer} are one of the common atoms,
+     *         {@code null} otherwise.
+     */
+    static String lookup(byte[] buffer, int length) {
+        if (length == 0 || length > MAX_ATOM_LENGTH) {
+            return null;
+        }
+
+        byte[][] candidates = ATOM_BYTES_BY_LENGTH[length];
+        for (int i = 0, end = candidates.length; i < end; i++) {
+            if (equals(candidates[i], buffer, length)) {
+                return ATOMS_BY_LENGTH[length][i];
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean equals(byte[] atom, byte[] buffer, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (atom[i] != buffer[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
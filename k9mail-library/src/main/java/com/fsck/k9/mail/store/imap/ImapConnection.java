@@ -1,7 +1,6 @@
 package com.fsck.k9.mail.store.imap;
 
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -17,10 +16,15 @@ import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.security.cert.CertificateException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.zip.Inflater;
@@ -58,6 +62,7 @@ import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
  */
 class ImapConnection {
     private static final int BUFFER_SIZE = 1024;
+    static final int MAX_COMMANDS_IN_FLIGHT = 4;
 
 
     private final ConnectivityManager connectivityManager;
@@ -74,6 +79,7 @@ class ImapConnection {
     private ImapSettings settings;
     private Exception stacktraceForClose;
     private boolean open = false;
+    private SelectedFolderState selectedFolderState;
 
 
     public ImapConnection(ImapSettings settings, TrustedSocketFactory socketFactory,
@@ -229,7 +235,7 @@ class ImapConnection {
     }
 
     private void setUpStreamsAndParser(InputStream input, OutputStream output) {
-        inputStream = new PeekableInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+        inputStream = new PeekableInputStream(input, BUFFER_SIZE);
         responseParser = new ImapResponseParser(inputStream);
         outputStream = new BufferedOutputStream(output, BUFFER_SIZE);
     }
@@ -590,6 +596,7 @@ class ImapConnection {
     public void close() {
         open = false;
         stacktraceForClose = new Exception();
+        selectedFolderState = null;
 
         IOUtils.closeQuietly(inputStream);
         IOUtils.closeQuietly(outputStream);
@@ -600,6 +607,18 @@ class ImapConnection {
         socket = null;
     }
 
+    /**
+     * @return The state of the mailbox that was left selected by the last {@code ImapFolder} that used this
+     *         connection, or {@code null} if the selected mailbox is unknown.
+     */
+    SelectedFolderState getSelectedFolderState() {
+        return selectedFolderState;
+    }
+
+    void setSelectedFolderState(SelectedFolderState selectedFolderState) {
+        this.selectedFolderState = selectedFolderState;
+    }
+
     public OutputStream getOutputStream() {
         return outputStream;
     }
@@ -630,6 +649,91 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Executes {@code command} and passes untagged responses to {@code streamHandler} as soon as they have been read.
+     *
+     * @return The untagged responses not consumed by {@code streamHandler}, followed by the tagged response.
+     */
+    public List<ImapResponse> executeStreamingCommand(String command, ImapResponseStreamHandler streamHandler)
+            throws IOException, MessagingException {
+        String tag = sendCommand(command, false);
+
+        try {
+            return responseParser.readStatusResponse(tag, command, getLogId(), null, streamHandler);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Send multiple commands without waiting for the tagged response of the previous one.
+     *
+     * <p>
+     * At most {@link #MAX_COMMANDS_IN_FLIGHT} commands are outstanding at any time. A new command is sent as soon as
+     * the tagged response of an earlier one has been received. Untagged responses are attributed to the oldest
+     * command still in flight. Commands must not require continuation requests (e.g. synchronizing literals).
+     * </p>
+     *
+     * @return The responses of each command, in the order the commands were passed in. The last response of each
+     *         list is the tagged response.
+     *
+     * @throws NegativeImapResponseException
+     *         If one of the commands failed. This is only thrown after the responses to all commands have been
+     *         read, so the connection can still be used.
+     */
+    public List<List<ImapResponse>> executePipelinedCommands(List<String> commands) throws IOException,
+            MessagingException {
+        int commandCount = commands.size();
+        List<List<ImapResponse>> responsesPerCommand = new ArrayList<>(commandCount);
+        for (int i = 0; i < commandCount; i++) {
+            responsesPerCommand.add(new ArrayList<ImapResponse>());
+        }
+
+        Map<String, Integer> commandIndexByTag = new HashMap<>();
+        Deque<String> tagsInFlight = new ArrayDeque<>();
+        NegativeImapResponseException firstFailure = null;
+
+        int nextCommand = 0;
+        while (nextCommand < commandCount || !tagsInFlight.isEmpty()) {
+            while (nextCommand < commandCount && tagsInFlight.size() < MAX_COMMANDS_IN_FLIGHT) {
+                String tag = sendCommand(commands.get(nextCommand), false);
+                commandIndexByTag.put(tag, nextCommand);
+                tagsInFlight.add(tag);
+                nextCommand++;
+            }
+
+            ImapResponse response = readResponse();
+
+            if (!response.isTagged()) {
+                int commandIndex = commandIndexByTag.get(tagsInFlight.peek());
+                responsesPerCommand.get(commandIndex).add(response);
+                continue;
+            }
+
+            String tag = response.getTag();
+            Integer commandIndex = commandIndexByTag.remove(tag);
+            if (commandIndex == null) {
+                Log.w(LOG_TAG, "Got tagged response for unknown command " + response + " for " + getLogId());
+                continue;
+            }
+
+            tagsInFlight.remove(tag);
+            responsesPerCommand.get(commandIndex).add(response);
+
+            if (firstFailure == null && (response.size() < 1 || !equalsIgnoreCase(response.get(0), Responses.OK))) {
+                firstFailure = new NegativeImapResponseException("Command: " + commands.get(commandIndex) +
+                        "; response: " + response.toString(), response.getAlertText());
+            }
+        }
+
+        if (firstFailure != null) {
+            throw firstFailure;
+        }
+
+        return responsesPerCommand;
+    }
+
     public List<ImapResponse> readStatusResponse(String tag, String commandToLog, UntaggedHandler untaggedHandler)
             throws IOException, NegativeImapResponseException {
         return responseParser.readStatusResponse(tag, commandToLog, getLogId(), untaggedHandler);
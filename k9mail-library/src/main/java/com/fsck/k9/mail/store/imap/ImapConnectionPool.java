@@ -0,0 +1,198 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.util.Log;
+
+import com.fsck.k9.mail.K9MailLib;
+
+import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
+
+
+/**
+ * Idle {@link ImapConnection}s of one {@link ImapStore}.
+ * <p>
+ * Connections that still have a mailbox selected are handed out preferably to an {@link ImapFolder} for that mailbox,
+ * which then doesn't need to SELECT it again. The number of idle connections is capped and connections that have
+ * been idle for too long are closed without probing them, since the server or a NAT gateway has most likely dropped
+ * them already.
+ * </p>
+ */
+class ImapConnectionPool {
+    static final int MAX_IDLE_CONNECTIONS = 4;
+    static final long MAX_IDLE_TIME = 5 * 60 * 1000L;
+
+
+    private final Deque<IdleConnection> idleConnections = new LinkedList<IdleConnection>();
+    private final int maxIdleConnections;
+    private final long maxIdleTime;
+
+    private int selectedFolderHits = 0;
+    private int selectedFolderMisses = 0;
+    private int connectionsReused = 0;
+    private int connectionsCreated = 0;
+    private int connectionsEvicted = 0;
+
+
+    ImapConnectionPool() {
+        this(MAX_IDLE_CONNECTIONS, MAX_IDLE_TIME);
+    }
+
+    ImapConnectionPool(int maxIdleConnections, long maxIdleTime) {
+        this.maxIdleConnections = maxIdleConnections;
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Takes an idle connection, preferring one that doesn't have a mailbox selected.
+     * <p>
+     * The returned connection is no longer associated with a selected mailbox. The caller is responsible for checking
+     * that it is still alive.
+     * </p>
+     *
+     * @return An idle connection or {@code null} if there is none.
+     */
+    synchronized ImapConnection poll() {
+        evictExpiredConnections();
+
+        IdleConnection idleConnection = null;
+        for (IdleConnection candidate : idleConnections) {
+            if (candidate.connection.getSelectedFolderState() == null) {
+                idleConnection = candidate;
+                break;
+            }
+        }
+
+        if (idleConnection == null) {
+            idleConnection = idleConnections.peekFirst();
+            if (idleConnection == null) {
+                return null;
+            }
+        }
+
+        idleConnections.remove(idleConnection);
+        connectionsReused++;
+
+        ImapConnection connection = idleConnection.connection;
+        connection.setSelectedFolderState(null);
+
+        return connection;
+    }
+
+    /**
+     * Takes an idle connection that was released with the given mailbox selected in the given mode.
+     *
+     * @return The connection or {@code null} if there is none. The selected folder state of the connection is left
+     *         intact.
+     */
+    synchronized ImapConnection pollWithSelectedFolder(String folderName, int mode) {
+        evictExpiredConnections();
+
+        Iterator<IdleConnection> iterator = idleConnections.descendingIterator();
+        while (iterator.hasNext()) {
+            ImapConnection connection = iterator.next().connection;
+            SelectedFolderState selectedFolderState = connection.getSelectedFolderState();
+            if (selectedFolderState != null && selectedFolderState.matches(folderName, mode)) {
+                iterator.remove();
+                selectedFolderHits++;
+                connectionsReused++;
+                return connection;
+            }
+        }
+
+        selectedFolderMisses++;
+        return null;
+    }
+
+    synchronized void offer(ImapConnection connection) {
+        if (connection == null || !connection.isConnected()) {
+            return;
+        }
+
+        evictExpiredConnections();
+
+        if (idleConnections.size() >= maxIdleConnections) {
+            IdleConnection oldest = idleConnections.pollFirst();
+            evict(oldest.connection, "pool is full");
+        }
+
+        idleConnections.offerLast(new IdleConnection(connection, currentTimeMillis()));
+    }
+
+    synchronized void connectionCreated() {
+        connectionsCreated++;
+    }
+
+    synchronized int getIdleConnectionCount() {
+        return idleConnections.size();
+    }
+
+    synchronized int getSelectedFolderHits() {
+        return selectedFolderHits;
+    }
+
+    synchronized int getSelectedFolderMisses() {
+        return selectedFolderMisses;
+    }
+
+    synchronized int getConnectionsReused() {
+        return connectionsReused;
+    }
+
+    synchronized int getConnectionsCreated() {
+        return connectionsCreated;
+    }
+
+    synchronized int getConnectionsEvicted() {
+        return connectionsEvicted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImapConnectionPool{idle=" + idleConnections.size() +
+                ", selectHits=" + selectedFolderHits +
+                ", selectMisses=" + selectedFolderMisses +
+                ", reused=" + connectionsReused +
+                ", created=" + connectionsCreated +
+                ", evicted=" + connectionsEvicted + "}";
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private void evictExpiredConnections() {
+        long now = currentTimeMillis();
+        Iterator<IdleConnection> iterator = idleConnections.iterator();
+        while (iterator.hasNext()) {
+            IdleConnection idleConnection = iterator.next();
+            if (now - idleConnection.idleSince > maxIdleTime) {
+                iterator.remove();
+                evict(idleConnection.connection, "idle for too long");
+            }
+        }
+    }
+
+    private void evict(ImapConnection connection, String reason) {
+        if (K9MailLib.isDebug()) {
+            Log.d(LOG_TAG, "Closing idle connection " + connection.getLogId() + ": " + reason);
+        }
+
+        connection.close();
+        connectionsEvicted++;
+    }
+
+
+    private static class IdleConnection {
+        final ImapConnection connection;
+        final long idleSince;
+
+        IdleConnection(ImapConnection connection, long idleSince) {
+            this.connection = connection;
+            this.idleSince = idleSince;
+        }
+    }
+}
@@ -2,10 +2,13 @@ package com.fsck.k9.mail.store.imap;
 
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -20,6 +23,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.BodyPart;
 import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
@@ -27,13 +31,18 @@ import com.fsck.k9.mail.K9MailLib;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.Multipart;
 import com.fsck.k9.mail.Part;
-import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import com.fsck.k9.mail.filter.Base64OutputStream;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
+import com.fsck.k9.mail.internet.BinaryTempFileMessageBody;
 import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.MimeMessageHelper;
 import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.MimeUtility;
+import com.fsck.k9.mail.internet.SpooledMessage;
+import org.apache.james.mime4j.util.MimeUtil;
 
 import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
 import static com.fsck.k9.mail.store.imap.ImapUtility.getLastResponse;
@@ -48,10 +57,14 @@ class ImapFolder extends Folder<ImapMessage> {
     };
     private static final int MORE_MESSAGES_WINDOW_SIZE = 500;
     private static final int FETCH_WINDOW_SIZE = 100;
+    static final int STORE_WINDOW_SIZE = 500;
+    static final int PART_FETCH_CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_PART_FETCH_ATTEMPTS = 3;
 
 
     protected volatile int messageCount = -1;
     protected volatile long uidNext = -1L;
+    protected volatile long highestModSeq = -1L;
     protected volatile ImapConnection connection;
     protected ImapStore store = null;
     protected Map<Long, String> msgSeqUidMap = new ConcurrentHashMap<Long, String>();
@@ -105,10 +118,22 @@ class ImapFolder extends Folder<ImapMessage> {
         return prefixedName;
     }
 
+    /**
+     * @return The name of this folder as it has to be sent to the server, i.e. prefixed and encoded but not quoted.
+     */
+    String getEncodedName() throws MessagingException {
+        return folderNameCodec.encode(getPrefixedName());
+    }
+
     private List<ImapResponse> executeSimpleCommand(String command) throws MessagingException, IOException {
         return handleUntaggedResponses(connection.executeSimpleCommand(command));
     }
 
+    private List<ImapResponse> executeStreamingCommand(String command, ImapResponseStreamHandler streamHandler)
+            throws MessagingException, IOException {
+        return handleUntaggedResponses(connection.executeStreamingCommand(command, streamHandler));
+    }
+
     @Override
     public void open(int mode) throws MessagingException {
         internalOpen(mode);
@@ -131,17 +156,27 @@ class ImapFolder extends Folder<ImapMessage> {
 
         store.releaseConnection(connection);
 
+        List<ImapResponse> resumeResponses = resumeSelectedFolder(mode);
+        if (resumeResponses != null) {
+            return resumeResponses;
+        }
+
         synchronized (this) {
             connection = store.getConnection();
         }
 
         try {
             msgSeqUidMap.clear();
+            highestModSeq = -1L;
 
             String openCommand = mode == OPEN_MODE_RW ? "SELECT" : "EXAMINE";
             String encodedFolderName = folderNameCodec.encode(getPrefixedName());
             String escapedFolderName = ImapUtility.encodeString(encodedFolderName);
             String command = String.format("%s %s", openCommand, escapedFolderName);
+            if (connection.hasCapability(Capabilities.CONDSTORE)) {
+                // Make sure the server reports HIGHESTMODSEQ (RFC 7162)
+                command += " (CONDSTORE)";
+            }
             List<ImapResponse> responses = executeSimpleCommand(command);
 
             /*
@@ -167,6 +202,51 @@ class ImapFolder extends Folder<ImapMessage> {
         }
     }
 
+    /**
+     * Tries to reuse an idle connection that still has this folder selected, which saves the SELECT/EXAMINE round
+     * trip.
+     *
+     * @return The responses to the NOOP that was used to check the connection and to pick up changes since the
+     *         connection was released, or {@code null} if no such connection was available.
+     */
+    private List<ImapResponse> resumeSelectedFolder(int mode) throws MessagingException {
+        ImapConnection selectedConnection = store.getConnectionWithSelectedFolder(name, mode);
+        if (selectedConnection == null) {
+            return null;
+        }
+
+        SelectedFolderState state = selectedConnection.getSelectedFolderState();
+        selectedConnection.setSelectedFolderState(null);
+        if (state == null) {
+            store.releaseConnection(selectedConnection);
+            return null;
+        }
+
+        synchronized (this) {
+            connection = selectedConnection;
+        }
+
+        msgSeqUidMap.clear();
+        this.mode = state.mode;
+        messageCount = state.messageCount;
+        uidNext = state.uidNext;
+        highestModSeq = state.highestModSeq;
+        canCreateKeywords = state.canCreateKeywords;
+
+        try {
+            // Servers send unsolicited FETCH responses with MODSEQ for flag changes (RFC 7162) and may send
+            // OK [HIGHESTMODSEQ]. Both are picked up by handleUntaggedResponse(), so there's no need for a STATUS
+            // command on the selected mailbox. A remembered value that is too low only means some flags are
+            // fetched again.
+            List<ImapResponse> responses = executeSimpleCommand(Commands.NOOP);
+            exists = true;
+            return responses;
+        } catch (IOException ioe) {
+            /* don't throw */ ioExceptionHandler(selectedConnection, ioe);
+            return null;
+        }
+    }
+
     private void handlePermanentFlags(ImapResponse response) {
         PermanentFlagsResponse permanentFlagsResponse = PermanentFlagsResponse.parse(response);
         if (permanentFlagsResponse == null) {
@@ -202,6 +282,7 @@ class ImapFolder extends Folder<ImapMessage> {
 
     @Override
     public void close() {
+        int lastMessageCount = messageCount;
         messageCount = -1;
 
         if (!isOpen()) {
@@ -214,6 +295,10 @@ class ImapFolder extends Folder<ImapMessage> {
                 Log.i(LOG_TAG, "IMAP search was aborted, shutting down connection.");
                 connection.close();
             } else {
+                if (lastMessageCount != -1) {
+                    connection.setSelectedFolderState(new SelectedFolderState(name, mode, lastMessageCount, uidNext,
+                            highestModSeq, canCreateKeywords));
+                }
                 store.releaseConnection(connection);
             }
 
@@ -436,19 +521,24 @@ class ImapFolder extends Folder<ImapMessage> {
         checkOpen();
 
         try {
-            int count = 0;
             int start = 1;
 
+            // Only the number of results is needed, so don't keep them in memory
+            final int[] count = { 0 };
             String command = String.format(Locale.US, "SEARCH %d:* %s", start, criteria);
-            List<ImapResponse> responses = executeSimpleCommand(command);
+            executeStreamingCommand(command, new ImapResponseStreamHandler() {
+                @Override
+                public void onSearchResult(long number) {
+                    count[0]++;
+                }
 
-            for (ImapResponse response : responses) {
-                if (ImapResponseParser.equalsIgnoreCase(response.get(0), "SEARCH")) {
-                    count += response.size() - 1;
+                @Override
+                public boolean onUntaggedResponse(ImapResponse response) {
+                    return false;
                 }
-            }
+            });
 
-            return count;
+            return count[0];
         } catch (IOException ioe) {
             throw ioExceptionHandler(connection, ioe);
         }
@@ -466,12 +556,21 @@ class ImapFolder extends Folder<ImapMessage> {
 
     protected long getHighestUid() throws MessagingException {
         try {
+            final long[] highestUid = { -1L };
             String command = "UID SEARCH *:*";
-            List<ImapResponse> responses = executeSimpleCommand(command);
+            executeStreamingCommand(command, new ImapResponseStreamHandler() {
+                @Override
+                public void onSearchResult(long number) {
+                    highestUid[0] = Math.max(highestUid[0], number);
+                }
 
-            SearchResponse searchResponse = SearchResponse.parse(responses);
+                @Override
+                public boolean onUntaggedResponse(ImapResponse response) {
+                    return false;
+                }
+            });
 
-            return extractHighestUid(searchResponse);
+            return highestUid[0];
         } catch (NegativeImapResponseException e) {
             return -1L;
         } catch (IOException ioe) {
@@ -479,21 +578,6 @@ class ImapFolder extends Folder<ImapMessage> {
         }
     }
 
-    private long extractHighestUid(SearchResponse searchResponse) {
-        List<Long> uids = searchResponse.getNumbers();
-        if (uids.isEmpty()) {
-            return -1L;
-        }
-
-        if (uids.size() == 1) {
-            return uids.get(0);
-        }
-
-        Collections.sort(uids, Collections.reverseOrder());
-
-        return uids.get(0);
-    }
-
     @Override
     public void delete(boolean recurse) throws MessagingException {
         throw new Error("ImapStore.delete() not yet implemented");
@@ -522,11 +606,12 @@ class ImapFolder extends Folder<ImapMessage> {
 
         ImapSearcher searcher = new ImapSearcher() {
             @Override
-            public List<ImapResponse> search() throws IOException, MessagingException {
+            public List<ImapResponse> search(ImapResponseStreamHandler streamHandler)
+                    throws IOException, MessagingException {
                 String command = String.format(Locale.US, "UID SEARCH %d:%d%s%s", start, end, dateSearchString,
                         includeDeleted ? "" : " NOT DELETED");
 
-                return executeSimpleCommand(command);
+                return executeStreamingCommand(command, streamHandler);
             }
         };
 
@@ -588,11 +673,12 @@ class ImapFolder extends Folder<ImapMessage> {
             final MessageRetrievalListener<ImapMessage> listener) throws MessagingException {
         ImapSearcher searcher = new ImapSearcher() {
             @Override
-            public List<ImapResponse> search() throws IOException, MessagingException {
+            public List<ImapResponse> search(ImapResponseStreamHandler streamHandler)
+                    throws IOException, MessagingException {
                 String command = String.format("UID SEARCH %s%s", combine(mesgSeqs.toArray(), ','),
                         includeDeleted ? "" : " NOT DELETED");
 
-                return executeSimpleCommand(command);
+                return executeStreamingCommand(command, streamHandler);
             }
         };
 
@@ -602,26 +688,97 @@ class ImapFolder extends Folder<ImapMessage> {
     protected List<ImapMessage> getMessagesFromUids(final List<String> mesgUids) throws MessagingException {
         ImapSearcher searcher = new ImapSearcher() {
             @Override
-            public List<ImapResponse> search() throws IOException, MessagingException {
+            public List<ImapResponse> search(ImapResponseStreamHandler streamHandler)
+                    throws IOException, MessagingException {
                 String command = String.format("UID SEARCH UID %s", combine(mesgUids.toArray(), ','));
 
-                return executeSimpleCommand(command);
+                return executeStreamingCommand(command, streamHandler);
             }
         };
 
         return search(searcher, null);
     }
 
+    @Override
+    public long getHighestModSeq() {
+        return highestModSeq;
+    }
+
+    /**
+     * Fetch the flags of all messages whose mod-sequence is higher than {@code modSeq} using
+     * {@code CHANGEDSINCE} (RFC 7162).
+     */
+    @Override
+    public List<ImapMessage> getMessagesWithChangedFlags(long modSeq) throws MessagingException {
+        checkOpen();
+
+        if (highestModSeq == -1L) {
+            throw new MessagingException("Server doesn't support CONDSTORE for " + getLogId());
+        }
+
+        final List<ImapMessage> messages = new ArrayList<>();
+        final MessagingException[] failure = { null };
+        try {
+            // Turn the FETCH responses into messages as they arrive instead of collecting all of them first
+            String command = String.format(Locale.US, "UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE %d)", modSeq);
+            executeStreamingCommand(command, new ImapResponseStreamHandler() {
+                @Override
+                public void onSearchResult(long number) {
+                    // Not a SEARCH command
+                }
+
+                @Override
+                public boolean onUntaggedResponse(ImapResponse response) {
+                    if (!ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                        return false;
+                    }
+
+                    ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+                    String uid = fetchList.getKeyedString("UID");
+                    if (uid != null) {
+                        ImapMessage message = new ImapMessage(uid, ImapFolder.this);
+                        try {
+                            handleFetchResponse(message, fetchList);
+                        } catch (MessagingException e) {
+                            // Keep reading so the connection stays usable, report the error afterwards
+                            failure[0] = e;
+                        }
+                        messages.add(message);
+                    }
+
+                    return true;
+                }
+            });
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(connection, ioe);
+        }
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        return messages;
+    }
+
     private List<ImapMessage> search(ImapSearcher searcher, MessageRetrievalListener<ImapMessage> listener)
             throws MessagingException {
         checkOpen();
 
         List<ImapMessage> messages = new ArrayList<>();
         try {
-            List<ImapResponse> responses = searcher.search();
+            // Collect the UIDs as they are read instead of building a token for every number
+            final List<Long> uids = new ArrayList<>();
+            searcher.search(new ImapResponseStreamHandler() {
+                @Override
+                public void onSearchResult(long number) {
+                    uids.add(number);
+                }
 
-            SearchResponse searchResponse = SearchResponse.parse(responses);
-            List<Long> uids = searchResponse.getNumbers();
+                @Override
+                public boolean onUntaggedResponse(ImapResponse response) {
+                    return false;
+                }
+            });
 
             // Sort the uids in numerically decreasing order
             // By doing it in decreasing order, we ensure newest messages are dealt with first
@@ -699,84 +856,97 @@ class ImapFolder extends Folder<ImapMessage> {
 
         String spaceSeparatedFetchFields = combine(fetchFields.toArray(new String[fetchFields.size()]), ' ');
 
-        for (int windowStart = 0; windowStart < messages.size(); windowStart += (FETCH_WINDOW_SIZE)) {
-            int windowEnd = Math.min(windowStart + FETCH_WINDOW_SIZE, messages.size());
-            List<String> uidWindow = uids.subList(windowStart, windowEnd);
+        // Stream every body literal (including the header literal of ENVELOPE) straight into the MIME parser instead
+        // of buffering it as a String first
+        ImapResponseCallback callback = null;
+        if (fetchProfile.contains(FetchProfile.Item.ENVELOPE) ||
+                fetchProfile.contains(FetchProfile.Item.BODY) ||
+                fetchProfile.contains(FetchProfile.Item.BODY_SANE)) {
+            callback = new FetchBodyCallback(messageMap);
+        }
 
-            try {
-                String commaSeparatedUids = combine(uidWindow.toArray(new String[uidWindow.size()]), ',');
-                String command = String.format("UID FETCH %s (%s)", commaSeparatedUids, spaceSeparatedFetchFields);
-                connection.sendCommand(command, false);
+        // Keep several windows in flight so the round trip time is only paid once instead of once per window
+        int messageCount = messages.size();
+        int windowStart = 0;
+        int windowsInFlight = 0;
+        int messageNumber = 0;
+        try {
+            do {
+                while (windowStart < messageCount && windowsInFlight < ImapConnection.MAX_COMMANDS_IN_FLIGHT) {
+                    int windowEnd = Math.min(windowStart + FETCH_WINDOW_SIZE, messageCount);
+                    List<String> uidWindow = uids.subList(windowStart, windowEnd);
 
-                ImapResponse response;
-                int messageNumber = 0;
+                    String commaSeparatedUids = combine(uidWindow.toArray(new String[uidWindow.size()]), ',');
+                    String command = String.format("UID FETCH %s (%s)", commaSeparatedUids,
+                            spaceSeparatedFetchFields);
+                    connection.sendCommand(command, false);
 
-                ImapResponseCallback callback = null;
-                if (fetchProfile.contains(FetchProfile.Item.BODY) ||
-                        fetchProfile.contains(FetchProfile.Item.BODY_SANE)) {
-                    callback = new FetchBodyCallback(messageMap);
+                    windowStart = windowEnd;
+                    windowsInFlight++;
                 }
 
-                do {
-                    response = connection.readResponse(callback);
-
-                    if (response.getTag() == null && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
-                        ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
-                        String uid = fetchList.getKeyedString("UID");
-                        long msgSeq = response.getLong(0);
-                        if (uid != null) {
-                            try {
-                                msgSeqUidMap.put(msgSeq, uid);
-                                if (K9MailLib.isDebug()) {
-                                    Log.v(LOG_TAG, "Stored uid '" + uid + "' for msgSeq " + msgSeq + " into map");
-                                }
-                            } catch (Exception e) {
-                                Log.e(LOG_TAG, "Unable to store uid '" + uid + "' for msgSeq " + msgSeq);
-                            }
-                        }
+                ImapResponse response = connection.readResponse(callback);
+
+                if (response.isTagged()) {
+                    windowsInFlight--;
+                }
 
-                        Message message = messageMap.get(uid);
-                        if (message == null) {
+                if (response.getTag() == null && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                    ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+                    String uid = fetchList.getKeyedString("UID");
+                    long msgSeq = response.getLong(0);
+                    if (uid != null) {
+                        try {
+                            msgSeqUidMap.put(msgSeq, uid);
                             if (K9MailLib.isDebug()) {
-                                Log.d(LOG_TAG, "Do not have message in messageMap for UID " + uid + " for " +
-                                        getLogId());
+                                Log.v(LOG_TAG, "Stored uid '" + uid + "' for msgSeq " + msgSeq + " into map");
                             }
-
-                            handleUntaggedResponse(response);
-                            continue;
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "Unable to store uid '" + uid + "' for msgSeq " + msgSeq);
                         }
+                    }
 
-                        if (listener != null) {
-                            listener.messageStarted(uid, messageNumber++, messageMap.size());
+                    Message message = messageMap.get(uid);
+                    if (message == null) {
+                        if (K9MailLib.isDebug()) {
+                            Log.d(LOG_TAG, "Do not have message in messageMap for UID " + uid + " for " +
+                                    getLogId());
                         }
 
-                        ImapMessage imapMessage = (ImapMessage) message;
-                        Object literal = handleFetchResponse(imapMessage, fetchList);
-
-                        if (literal != null) {
-                            if (literal instanceof String) {
-                                String bodyString = (String) literal;
-                                InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
-                                imapMessage.parse(bodyStream);
-                            } else if (literal instanceof Integer) {
-                                // All the work was done in FetchBodyCallback.foundLiteral()
-                            } else {
-                                // This shouldn't happen
-                                throw new MessagingException("Got FETCH response with bogus parameters");
-                            }
-                        }
+                        handleUntaggedResponse(response);
+                        continue;
+                    }
+
+                    if (listener != null) {
+                        listener.messageStarted(uid, messageNumber++, messageMap.size());
+                    }
+
+                    ImapMessage imapMessage = (ImapMessage) message;
+                    Object literal = handleFetchResponse(imapMessage, fetchList);
 
-                        if (listener != null) {
-                            listener.messageFinished(imapMessage, messageNumber, messageMap.size());
+                    if (literal != null) {
+                        if (literal instanceof String) {
+                            String bodyString = (String) literal;
+                            InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
+                            imapMessage.parse(bodyStream);
+                        } else if (literal instanceof Integer) {
+                            // All the work was done in FetchBodyCallback.foundLiteral()
+                        } else {
+                            // This shouldn't happen
+                            throw new MessagingException("Got FETCH response with bogus parameters");
                         }
-                    } else {
-                        handleUntaggedResponse(response);
                     }
 
-                } while (response.getTag() == null);
-            } catch (IOException ioe) {
-                throw ioExceptionHandler(connection, ioe);
-            }
+                    if (listener != null) {
+                        listener.messageFinished(imapMessage, messageNumber, messageMap.size());
+                    }
+                } else {
+                    handleUntaggedResponse(response);
+                }
+
+            } while (windowsInFlight > 0 || windowStart < messageCount);
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(connection, ioe);
         }
     }
 
@@ -787,14 +957,17 @@ class ImapFolder extends Folder<ImapMessage> {
 
         String partId = part.getServerExtra();
 
-        String fetch;
         if ("TEXT".equalsIgnoreCase(partId)) {
             int maximumAutoDownloadMessageSize = store.getStoreConfig().getMaximumAutoDownloadMessageSize();
-            fetch = String.format(Locale.US, "BODY.PEEK[TEXT]<0.%d>", maximumAutoDownloadMessageSize);
+            String fetch = String.format(Locale.US, "BODY.PEEK[TEXT]<0.%d>", maximumAutoDownloadMessageSize);
+            fetchPartWithSingleCommand(message, part, listener, fetch);
         } else {
-            fetch = String.format("BODY.PEEK[%s]", partId);
+            fetchPartInRanges(message, part, listener);
         }
+    }
 
+    private void fetchPartWithSingleCommand(Message message, Part part, MessageRetrievalListener<Message> listener,
+            String fetch) throws MessagingException {
         try {
             String command = String.format("UID FETCH %s (UID %s)", message.getUid(), fetch);
             connection.sendCommand(command, false);
@@ -860,6 +1033,243 @@ class ImapFolder extends Folder<ImapMessage> {
         }
     }
 
+    /**
+     * Downloads a body part in chunks of {@link #PART_FETCH_CHUNK_SIZE} bytes.
+     * <p>
+     * If the connection breaks, the folder is opened on a new connection and the download continues after the last
+     * byte that was received. Base64-encoded parts are fetched decoded via the BINARY extension (RFC 3516) if the
+     * server supports it, saving the encoding overhead on the wire. They are encoded again while being stored.
+     * </p>
+     */
+    private void fetchPartInRanges(Message message, Part part, MessageRetrievalListener<Message> listener)
+            throws MessagingException {
+        String uid = message.getUid();
+        String partId = part.getServerExtra();
+        String contentTransferEncoding = getFirstHeader(part, MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+        String contentType = getFirstHeader(part, MimeHeader.HEADER_CONTENT_TYPE);
+
+        if (listener != null) {
+            listener.messageStarted(uid, 0, 1);
+        }
+
+        Body body = null;
+        boolean fetched = false;
+        if (canFetchDecoded(part, contentTransferEncoding)) {
+            try {
+                body = downloadPart(uid, partId, contentTransferEncoding, contentType, true);
+                fetched = true;
+            } catch (NegativeImapResponseException e) {
+                // E.g. [UNKNOWN-CTE] if the server can't decode the part. Fetch it as it is.
+                if (K9MailLib.isDebug()) {
+                    Log.d(LOG_TAG, "BINARY fetch of part " + partId + " failed for " + getLogId(), e);
+                }
+            }
+        }
+
+        if (!fetched) {
+            body = downloadPart(uid, partId, contentTransferEncoding, contentType, false);
+        }
+
+        if (body != null) {
+            MimeMessageHelper.setBody(part, body);
+        }
+
+        if (listener != null) {
+            listener.messageFinished(message, 1, 1);
+        }
+    }
+
+    /**
+     * Only base64 can be encoded again exactly as the server would have returned it, and parts of signed or
+     * encrypted messages need to be stored exactly as they are.
+     */
+    private boolean canFetchDecoded(Part part, String contentTransferEncoding) {
+        if (!connection.hasCapability(Capabilities.BINARY) || contentTransferEncoding == null ||
+                !MimeUtil.ENC_BASE64.equalsIgnoreCase(MimeUtility.getHeaderParameter(contentTransferEncoding, null))) {
+            return false;
+        }
+
+        Part ancestor = part;
+        while (ancestor instanceof BodyPart) {
+            Multipart multipart = ((BodyPart) ancestor).getParent();
+            if (multipart == null) {
+                break;
+            }
+            ancestor = multipart.getParent();
+            if (ancestor == null) {
+                break;
+            }
+
+            String mimeType = ancestor.getMimeType();
+            if (MimeUtility.isSameMimeType(mimeType, "multipart/signed") ||
+                    MimeUtility.isSameMimeType(mimeType, "multipart/encrypted")) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The downloaded body, or {@code null} if the server didn't return the part.
+     */
+    private Body downloadPart(String uid, String partId, String contentTransferEncoding, String contentType,
+            boolean decoded) throws MessagingException {
+        String encoding = (contentTransferEncoding != null) ?
+                MimeUtility.getHeaderParameter(contentTransferEncoding, null) : null;
+        String mimeType = (contentType != null) ? MimeUtility.getHeaderParameter(contentType, null) : null;
+        BinaryTempFileBody body = MimeUtility.isMessage(mimeType) ?
+                new BinaryTempFileMessageBody(encoding) : new BinaryTempFileBody(encoding);
+
+        boolean found = false;
+        try {
+            OutputStream outputStream = body.getOutputStream();
+            if (decoded) {
+                outputStream = new Base64OutputStream(outputStream);
+            }
+
+            try {
+                found = fetchRanges(uid, partId, decoded, outputStream);
+            } finally {
+                outputStream.close();
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Couldn't store part " + partId, e);
+        } finally {
+            if (!found) {
+                deleteTempFile(body.getFile());
+            }
+        }
+
+        return found ? body : null;
+    }
+
+    private boolean fetchRanges(String uid, String partId, boolean decoded, OutputStream outputStream)
+            throws MessagingException {
+        String section = decoded ? "BINARY.PEEK" : "BODY.PEEK";
+        long offset = 0;
+        int failedAttempts = 0;
+
+        while (true) {
+            String command = String.format(Locale.US, "UID FETCH %s (UID %s[%s]<%d.%d>)",
+                    uid, section, partId, offset, PART_FETCH_CHUNK_SIZE);
+            FetchPartRangeCallback callback = new FetchPartRangeCallback(outputStream);
+
+            boolean found;
+            try {
+                found = fetchRange(uid, command, callback);
+            } catch (IOException e) {
+                int bytesWritten = callback.getBytesWritten();
+                offset += bytesWritten;
+                failedAttempts = (bytesWritten > 0) ? 1 : failedAttempts + 1;
+                if (failedAttempts > MAX_PART_FETCH_ATTEMPTS) {
+                    throw ioExceptionHandler(connection, e);
+                }
+
+                Log.w(LOG_TAG, "Fetching part " + partId + " was interrupted at byte " + offset + ", resuming for " +
+                        getLogId(), e);
+                reopen();
+                continue;
+            }
+
+            if (!found) {
+                if (offset == 0) {
+                    return false;
+                }
+                throw new MessagingException("Message " + uid + " disappeared while fetching part " + partId);
+            }
+
+            int bytesWritten = callback.getBytesWritten();
+            offset += bytesWritten;
+            failedAttempts = 0;
+            if (bytesWritten < PART_FETCH_CHUNK_SIZE) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the server returned a FETCH response for the message.
+     */
+    private boolean fetchRange(String uid, String command, FetchPartRangeCallback callback)
+            throws IOException, MessagingException {
+        connection.sendCommand(command, false);
+
+        boolean found = false;
+        ImapResponse response;
+        do {
+            response = connection.readResponse(callback);
+
+            if (response.getTag() == null && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+                if (!uid.equals(fetchList.getKeyedString("UID"))) {
+                    handleUntaggedResponse(response);
+                    continue;
+                }
+
+                found = true;
+                Object data = getSectionData(fetchList);
+                if (data instanceof String && !"NIL".equalsIgnoreCase((String) data)) {
+                    callback.write((String) data);
+                }
+            } else {
+                handleUntaggedResponse(response);
+            }
+        } while (response.getTag() == null);
+
+        if (response.size() < 1 || !ImapResponseParser.equalsIgnoreCase(response.get(0), Responses.OK)) {
+            throw new NegativeImapResponseException("Command: " + command + "; response: " + response,
+                    response.getAlertText());
+        }
+
+        return found;
+    }
+
+    private void reopen() throws MessagingException {
+        int openMode = mode;
+        if (connection != null) {
+            connection.close();
+        }
+        close();
+        open(openMode);
+    }
+
+    private static String getFirstHeader(Part part, String name) throws MessagingException {
+        String[] values = part.getHeader(name);
+        return (values != null && values.length > 0) ? values[0] : null;
+    }
+
+    private static void deleteTempFile(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            Log.w(LOG_TAG, "Couldn't delete temporary file " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return The data of the {@code BODY[...]} or {@code BINARY[...]} item of a FETCH response.
+     */
+    private static Object getSectionData(ImapList fetchList) {
+        String key = fetchList.containsKey("BINARY") ? "BINARY" : "BODY";
+        if (!fetchList.containsKey(key)) {
+            return null;
+        }
+
+        int index = fetchList.getKeyIndex(key) + 2;
+        int size = fetchList.size();
+        if (index >= size) {
+            return null;
+        }
+
+        Object result = fetchList.getObject(index);
+
+        // Skip the origin octet
+        if (result instanceof String && ((String) result).startsWith("<") && (index + 1) < size) {
+            result = fetchList.getObject(index + 1);
+        }
+
+        return result;
+    }
+
     // Returns value of body field
     private Object handleFetchResponse(ImapMessage message, ImapList fetchList) throws MessagingException {
         Object result = null;
@@ -958,6 +1368,35 @@ class ImapFolder extends Folder<ImapMessage> {
         }
     }
 
+    private void handlePossibleHighestModSeq(ImapResponse response) {
+        if (ImapResponseParser.equalsIgnoreCase(response.get(0), "OK") && response.isList(1)) {
+            ImapList bracketed = response.getList(1);
+            if (bracketed.size() > 1 && ImapResponseParser.equalsIgnoreCase(bracketed.get(0), "HIGHESTMODSEQ")) {
+                highestModSeq = bracketed.getLong(1);
+                if (K9MailLib.isDebug()) {
+                    Log.d(LOG_TAG, "Got HighestModSeq = " + highestModSeq + " for " + getLogId());
+                }
+            } else if (bracketed.size() > 0 && ImapResponseParser.equalsIgnoreCase(bracketed.get(0), "NOMODSEQ")) {
+                highestModSeq = -1L;
+            }
+        }
+    }
+
+    private void handlePossibleFetchModSeq(ImapResponse response) {
+        if (highestModSeq == -1L || !ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH") ||
+                !response.isList(2)) {
+            return;
+        }
+
+        Object modSeqObj = response.getList(2).getKeyedValue("MODSEQ");
+        if (modSeqObj instanceof ImapList && !((ImapList) modSeqObj).isEmpty()) {
+            long modSeq = ((ImapList) modSeqObj).getLong(0);
+            if (modSeq > highestModSeq) {
+                highestModSeq = modSeq;
+            }
+        }
+    }
+
     /**
      * Handle an untagged response that the caller doesn't care to handle themselves.
      */
@@ -971,6 +1410,8 @@ class ImapFolder extends Folder<ImapMessage> {
             }
 
             handlePossibleUidNext(response);
+            handlePossibleHighestModSeq(response);
+            handlePossibleFetchModSeq(response);
 
             if (ImapResponseParser.equalsIgnoreCase(response.get(1), "EXPUNGE") && messageCount > 0) {
                 messageCount--;
@@ -1150,28 +1591,32 @@ class ImapFolder extends Folder<ImapMessage> {
         try {
             Map<String, String> uidMap = new HashMap<>();
             for (Message message : messages) {
-                long messageSize = message.calculateSize();
-
-                String encodeFolderName = folderNameCodec.encode(getPrefixedName());
-                String escapedFolderName = ImapUtility.encodeString(encodeFolderName);
-                String command = String.format(Locale.US, "APPEND %s (%s) {%d}", escapedFolderName,
-                        combineFlags(message.getFlags()), messageSize);
-                connection.sendCommand(command, false);
-
+                // Encode the message only once, for both the literal size and the upload
                 ImapResponse response;
-                do {
-                    response = connection.readResponse();
+                SpooledMessage spooledMessage = SpooledMessage.spool(message);
+                try {
+                    String encodeFolderName = folderNameCodec.encode(getPrefixedName());
+                    String escapedFolderName = ImapUtility.encodeString(encodeFolderName);
+                    String command = String.format(Locale.US, "APPEND %s (%s) {%d}", escapedFolderName,
+                            combineFlags(message.getFlags()), spooledMessage.getSize());
+                    connection.sendCommand(command, false);
 
-                    handleUntaggedResponse(response);
+                    do {
+                        response = connection.readResponse();
 
-                    if (response.isContinuationRequested()) {
-                        EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(connection.getOutputStream());
-                        message.writeTo(eolOut);
-                        eolOut.write('\r');
-                        eolOut.write('\n');
-                        eolOut.flush();
-                    }
-                } while (response.getTag() == null);
+                        handleUntaggedResponse(response);
+
+                        if (response.isContinuationRequested()) {
+                            OutputStream out = connection.getOutputStream();
+                            spooledMessage.writeTo(out);
+                            out.write('\r');
+                            out.write('\n');
+                            out.flush();
+                        }
+                    } while (response.getTag() == null);
+                } finally {
+                    spooledMessage.close();
+                }
 
                 if (response.size() > 1) {
                     /*
@@ -1339,10 +1784,24 @@ class ImapFolder extends Folder<ImapMessage> {
             uids[i] = messages.get(i).getUid();
         }
 
+        String flagChange = String.format("%sFLAGS.SILENT (%s)", value ? "+" : "-", combineFlags(flags));
         try {
-            String command = String.format("UID STORE %s %sFLAGS.SILENT (%s)", combine(uids, ','), value ? "+" : "-",
-                    combineFlags(flags));
-            executeSimpleCommand(command);
+            if (uids.length <= STORE_WINDOW_SIZE) {
+                executeSimpleCommand(String.format("UID STORE %s %s", combine(uids, ','), flagChange));
+                return;
+            }
+
+            // Keep the command lines short and overlap the round trips of the individual windows
+            List<String> commands = new ArrayList<String>();
+            for (int windowStart = 0; windowStart < uids.length; windowStart += STORE_WINDOW_SIZE) {
+                int windowEnd = Math.min(windowStart + STORE_WINDOW_SIZE, uids.length);
+                String[] uidWindow = Arrays.copyOfRange(uids, windowStart, windowEnd);
+                commands.add(String.format("UID STORE %s %s", combine(uidWindow, ','), flagChange));
+            }
+
+            for (List<ImapResponse> responses : connection.executePipelinedCommands(commands)) {
+                handleUntaggedResponses(responses);
+            }
         } catch (IOException ioe) {
             throw ioExceptionHandler(connection, ioe);
         }
@@ -1413,7 +1872,8 @@ class ImapFolder extends Folder<ImapMessage> {
         // Setup the searcher
         final ImapSearcher searcher = new ImapSearcher() {
             @Override
-            public List<ImapResponse> search() throws IOException, MessagingException {
+            public List<ImapResponse> search(ImapResponseStreamHandler streamHandler)
+                    throws IOException, MessagingException {
                 String imapQuery = "UID SEARCH ";
                 if (requiredFlags != null) {
                     for (Flag flag : requiredFlags) {
@@ -1490,7 +1950,7 @@ class ImapFolder extends Folder<ImapMessage> {
                     imapQuery += "OR SUBJECT " + encodedQuery + " FROM " + encodedQuery;
                 }
 
-                return executeSimpleCommand(imapQuery);
+                return executeStreamingCommand(imapQuery, streamHandler);
             }
         };
 
@@ -0,0 +1,502 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.fsck.k9.mail.AuthenticationFailedException;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.K9MailLib;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.PushReceiver;
+import com.fsck.k9.mail.power.TracingPowerManager;
+import com.fsck.k9.mail.power.TracingPowerManager.TracingWakeLock;
+
+import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
+import static com.fsck.k9.mail.K9MailLib.PUSH_WAKE_LOCK_TIMEOUT;
+import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
+
+
+/**
+ * Watches several folders over a single connection using the IMAP NOTIFY extension (RFC 5465).
+ * <p>
+ * {@link ImapFolderPusher} needs a thread and a connection for every folder it pushes. If the server supports NOTIFY,
+ * all push folders of an account are watched by one instance of this class instead. Its connection doesn't select a
+ * mailbox. While it is idling, the server reports new and expunged messages and flag changes in any of the folders as
+ * untagged {@code STATUS} responses, and the affected folders are then synchronized.
+ * </p><p>
+ * If the server turns out not to support NOTIFY after all, the {@link ImapPusher} is asked to fall back to one
+ * {@link ImapFolderPusher} per folder.
+ * </p>
+ */
+class ImapNotifyPusher {
+    private static final int IDLE_READ_TIMEOUT_INCREMENT = 5 * 60 * 1000;
+    private static final int IDLE_FAILURE_COUNT_LIMIT = 10;
+    private static final int MAX_DELAY_TIME = 5 * 60 * 1000; // 5 minutes
+    private static final int NORMAL_DELAY_TIME = 5000;
+    private static final String NOTIFICATION_OVERFLOW = "NOTIFICATIONOVERFLOW";
+
+
+    private final ImapStore store;
+    private final ImapPusher imapPusher;
+    private final List<String> folderNames;
+    private final PushReceiver pushReceiver;
+    private final Object threadLock = new Object();
+    private final IdleStopper idleStopper = new IdleStopper();
+    private final TracingWakeLock wakeLock;
+    private final Set<String> changedFolderNames = new LinkedHashSet<String>();
+    private Thread listeningThread;
+    private volatile ImapConnection connection;
+    private volatile boolean stop = false;
+    private volatile boolean idling = false;
+
+
+    public ImapNotifyPusher(ImapStore store, ImapPusher imapPusher, List<String> folderNames,
+            PushReceiver pushReceiver) {
+        this.store = store;
+        this.imapPusher = imapPusher;
+        this.folderNames = new ArrayList<String>(folderNames);
+        this.pushReceiver = pushReceiver;
+
+        Context context = pushReceiver.getContext();
+        TracingPowerManager powerManager = TracingPowerManager.getPowerManager(context);
+        String tag = "ImapNotifyPusher " + store.getStoreConfig().toString();
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag);
+        wakeLock.setReferenceCounted(false);
+    }
+
+    public List<String> getFolderNames() {
+        return folderNames;
+    }
+
+    public void start() {
+        synchronized (threadLock) {
+            if (listeningThread != null) {
+                throw new IllegalStateException("start() called twice");
+            }
+
+            listeningThread = new Thread(new PushRunnable());
+            listeningThread.start();
+        }
+    }
+
+    public void refresh() throws IOException, MessagingException {
+        if (idling) {
+            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+            idleStopper.stopIdle();
+        }
+    }
+
+    public void stop() {
+        synchronized (threadLock) {
+            if (listeningThread == null) {
+                throw new IllegalStateException("stop() called twice");
+            }
+
+            stop = true;
+
+            listeningThread.interrupt();
+            listeningThread = null;
+        }
+
+        ImapConnection conn = connection;
+        if (conn != null) {
+            if (K9MailLib.isDebug()) {
+                Log.v(LOG_TAG, "Closing connection to stop pushing for " + getLogId());
+            }
+
+            conn.close();
+        }
+    }
+
+    /**
+     * Builds the {@code NOTIFY SET} command that asks for notifications when messages are added to or expunged from
+     * any of the given mailboxes, or when their flags change.
+     */
+    static String createNotifyCommand(List<String> encodedMailboxNames) {
+        StringBuilder sb = new StringBuilder(Commands.NOTIFY_SET);
+        sb.append(" (mailboxes (");
+        for (int i = 0, end = encodedMailboxNames.size(); i < end; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(ImapUtility.encodeString(encodedMailboxNames.get(i)));
+        }
+        sb.append(") (MessageNew MessageExpunge FlagChange))");
+
+        return sb.toString();
+    }
+
+    /**
+     * @return The encoded name of the mailbox a {@code STATUS} response is about, or {@code null} if
+     *         {@code response} is not a {@code STATUS} response.
+     */
+    static String getStatusMailboxName(ImapResponse response) {
+        if (response.getTag() != null || response.size() < 2 || !equalsIgnoreCase(response.get(0), Responses.STATUS) ||
+                !response.isString(1)) {
+            return null;
+        }
+
+        return response.getString(1);
+    }
+
+    /**
+     * @return {@code true} if {@code response} is an untagged {@code FETCH} response, e.g. reporting changed flags.
+     */
+    static boolean isFetchResponse(ImapResponse response) {
+        return response.getTag() == null && response.size() > 1 && equalsIgnoreCase(response.get(1), Responses.FETCH);
+    }
+
+    static boolean isNotificationOverflow(ImapResponse response) {
+        return response.getTag() == null && response.size() > 1 && response.isList(1) &&
+                response.getList(1).size() > 0 && equalsIgnoreCase(response.getList(1).get(0), NOTIFICATION_OVERFLOW);
+    }
+
+    private String getLogId() {
+        String logId = store.getStoreConfig().toString() + ":NOTIFY/" + Thread.currentThread().getName();
+        ImapConnection conn = connection;
+        if (conn != null) {
+            logId += "/" + conn.getLogId();
+        }
+
+        return logId;
+    }
+
+
+    private class PushRunnable implements Runnable, UntaggedHandler {
+        private final Map<String, String> folderNamesByMailbox = new HashMap<String, String>();
+        private int delayTime = NORMAL_DELAY_TIME;
+        private int idleFailureCount = 0;
+        private boolean needsPoll = false;
+        private boolean reconnectAfterIdle = false;
+
+        @Override
+        public void run() {
+            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+
+            if (K9MailLib.isDebug()) {
+                Log.i(LOG_TAG, "NOTIFY pusher starting for " + folderNames.size() + " folders on " + getLogId());
+            }
+
+            while (!stop) {
+                try {
+                    boolean openedNewConnection = openConnectionIfNecessary();
+
+                    if (stop) {
+                        break;
+                    }
+
+                    if (openedNewConnection) {
+                        if (!enableNotifications()) {
+                            fallBackToFolderPushers();
+                            break;
+                        }
+
+                        needsPoll |= store.getStoreConfig().isPushPollOnConnect();
+                    }
+
+                    if (needsPoll) {
+                        needsPoll = false;
+                        markAllFoldersChanged();
+                    }
+
+                    syncChangedFolders();
+
+                    if (stop) {
+                        break;
+                    }
+
+                    if (K9MailLib.isDebug()) {
+                        Log.i(LOG_TAG, "About to IDLE for " + getLogId());
+                    }
+
+                    prepareForIdle();
+
+                    ImapConnection conn = connection;
+                    setReadTimeoutForIdle(conn);
+                    sendIdle(conn);
+
+                    returnFromIdle();
+
+                    if (reconnectAfterIdle) {
+                        reconnectAfterIdle = false;
+                        closeConnection();
+                    }
+                } catch (AuthenticationFailedException e) {
+                    reacquireWakeLockAndCleanUp();
+
+                    if (K9MailLib.isDebug()) {
+                        Log.e(LOG_TAG, "Authentication failed. Stopping ImapNotifyPusher.", e);
+                    }
+
+                    pushReceiver.authenticationFailed();
+                    stop = true;
+                } catch (Exception e) {
+                    reacquireWakeLockAndCleanUp();
+
+                    if (stop) {
+                        Log.i(LOG_TAG, "Got exception while idling, but stop is set for " + getLogId());
+                    } else {
+                        pushReceiver.pushError("Push error for " + folderNames, e);
+                        Log.e(LOG_TAG, "Got exception while idling for " + getLogId(), e);
+
+                        pushReceiver.sleep(wakeLock, delayTime);
+
+                        delayTime *= 2;
+                        if (delayTime > MAX_DELAY_TIME) {
+                            delayTime = MAX_DELAY_TIME;
+                        }
+
+                        idleFailureCount++;
+                        if (idleFailureCount > IDLE_FAILURE_COUNT_LIMIT) {
+                            Log.e(LOG_TAG, "Disabling pusher for " + getLogId() + " after " + idleFailureCount +
+                                    " consecutive errors");
+                            pushReceiver.pushError("Push disabled for " + folderNames + " after " +
+                                    idleFailureCount + " consecutive errors", e);
+                            stop = true;
+                        }
+                    }
+                }
+            }
+
+            setPushActive(false);
+
+            try {
+                if (K9MailLib.isDebug()) {
+                    Log.i(LOG_TAG, "NOTIFY pusher for " + getLogId() + " is exiting");
+                }
+
+                closeConnection();
+            } finally {
+                wakeLock.release();
+            }
+        }
+
+        private boolean openConnectionIfNecessary() throws MessagingException, IOException {
+            ImapConnection conn = connection;
+            if (conn != null && conn.isConnected()) {
+                return false;
+            }
+
+            conn = store.createImapConnection();
+            connection = conn;
+            conn.open();
+
+            return true;
+        }
+
+        /**
+         * @return {@code false} if the server doesn't support NOTIFY or refused to watch the folders.
+         */
+        private boolean enableNotifications() throws MessagingException, IOException {
+            ImapConnection conn = connection;
+            if (!conn.isIdleCapable() || !conn.hasCapability(Capabilities.NOTIFY)) {
+                Log.i(LOG_TAG, "Server doesn't support IDLE and NOTIFY: " + conn);
+                return false;
+            }
+
+            folderNamesByMailbox.clear();
+            List<String> mailboxNames = new ArrayList<String>(folderNames.size());
+            for (String folderName : folderNames) {
+                String mailboxName = new ImapFolder(store, folderName).getEncodedName();
+                mailboxNames.add(mailboxName);
+                folderNamesByMailbox.put(normalizeMailboxName(mailboxName), folderName);
+            }
+
+            try {
+                List<ImapResponse> responses = conn.executeSimpleCommand(createNotifyCommand(mailboxNames));
+                handleUntaggedResponses(responses);
+            } catch (NegativeImapResponseException e) {
+                Log.w(LOG_TAG, "Server refused NOTIFY for " + getLogId(), e);
+                return false;
+            }
+
+            return true;
+        }
+
+        private void fallBackToFolderPushers() {
+            closeConnection();
+            stop = true;
+
+            imapPusher.fallBackToFolderPushers(ImapNotifyPusher.this);
+        }
+
+        private void reacquireWakeLockAndCleanUp() {
+            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+
+            idling = false;
+            setPushActive(false);
+            closeConnection();
+        }
+
+        private void closeConnection() {
+            ImapConnection conn = connection;
+            connection = null;
+
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Got exception while closing for " + getLogId(), e);
+                }
+            }
+        }
+
+        private void prepareForIdle() {
+            setPushActive(true);
+            idling = true;
+        }
+
+        private void setPushActive(boolean enabled) {
+            for (String folderName : folderNames) {
+                pushReceiver.setPushActive(folderName, enabled);
+            }
+        }
+
+        private void sendIdle(ImapConnection conn) throws MessagingException, IOException {
+            String tag = conn.sendCommand(Commands.IDLE, false);
+
+            List<ImapResponse> responses;
+            try {
+                try {
+                    responses = conn.readStatusResponse(tag, Commands.IDLE, this);
+                } finally {
+                    idleStopper.stopAcceptingDoneContinuation();
+                }
+            } catch (IOException e) {
+                conn.close();
+                throw e;
+            }
+
+            handleUntaggedResponses(responses);
+        }
+
+        private void returnFromIdle() {
+            idling = false;
+            delayTime = NORMAL_DELAY_TIME;
+            idleFailureCount = 0;
+        }
+
+        private void setReadTimeoutForIdle(ImapConnection conn) throws IOException {
+            int idleRefreshTimeout = store.getStoreConfig().getIdleRefreshMinutes() * 60 * 1000;
+            conn.setReadTimeout(idleRefreshTimeout + IDLE_READ_TIMEOUT_INCREMENT);
+        }
+
+        @Override
+        public void handleAsyncUntaggedResponse(ImapResponse response) {
+            if (K9MailLib.isDebug()) {
+                Log.v(LOG_TAG, "Got async response: " + response);
+            }
+
+            if (stop) {
+                idleStopper.stopIdle();
+            } else if (response.isContinuationRequested()) {
+                if (K9MailLib.isDebug()) {
+                    Log.d(LOG_TAG, "Idling " + getLogId());
+                }
+
+                idleStopper.startAcceptingDoneContinuation(connection);
+                wakeLock.release();
+            } else if (handleUntaggedResponse(response)) {
+                wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+
+                if (K9MailLib.isDebug()) {
+                    Log.d(LOG_TAG, "Got useful async untagged response: " + response + " for " + getLogId());
+                }
+
+                idleStopper.stopIdle();
+            }
+        }
+
+        private void handleUntaggedResponses(List<ImapResponse> responses) {
+            for (ImapResponse response : responses) {
+                handleUntaggedResponse(response);
+            }
+        }
+
+        /**
+         * @return {@code true} if a folder needs to be synchronized because of the response.
+         */
+        private boolean handleUntaggedResponse(ImapResponse response) {
+            if (isNotificationOverflow(response)) {
+                // The server stopped sending notifications. Reconnecting will set them up again.
+                Log.w(LOG_TAG, "Server dropped notifications for " + getLogId());
+                needsPoll = true;
+                reconnectAfterIdle = true;
+                return true;
+            }
+
+            if (isFetchResponse(response)) {
+                // Flag changes are reported as FETCH responses for the selected mailbox. This connection doesn't
+                // select one, but if a server sends them anyway, there's no telling which folder they are about.
+                markAllFoldersChanged();
+                return true;
+            }
+
+            String mailboxName = getStatusMailboxName(response);
+            if (mailboxName == null) {
+                return false;
+            }
+
+            String folderName = folderNamesByMailbox.get(normalizeMailboxName(mailboxName));
+            if (folderName == null) {
+                return false;
+            }
+
+            synchronized (changedFolderNames) {
+                changedFolderNames.add(folderName);
+            }
+
+            return true;
+        }
+
+        private void markAllFoldersChanged() {
+            synchronized (changedFolderNames) {
+                changedFolderNames.addAll(folderNames);
+            }
+        }
+
+        private void syncChangedFolders() throws MessagingException {
+            while (!stop) {
+                String folderName;
+                synchronized (changedFolderNames) {
+                    if (changedFolderNames.isEmpty()) {
+                        break;
+                    }
+
+                    folderName = changedFolderNames.iterator().next();
+                    changedFolderNames.remove(folderName);
+                }
+
+                syncFolder(folderName);
+            }
+        }
+
+        private void syncFolder(String folderName) throws MessagingException {
+            if (K9MailLib.isDebug()) {
+                Log.i(LOG_TAG, "Synchronizing " + folderName + " after notification on " + getLogId());
+            }
+
+            ImapFolder folder = new ImapFolder(store, folderName);
+            try {
+                folder.open(Folder.OPEN_MODE_RO);
+                pushReceiver.syncFolder(folder);
+            } finally {
+                folder.close();
+            }
+        }
+
+        private String normalizeMailboxName(String mailboxName) {
+            return "INBOX".equalsIgnoreCase(mailboxName) ? "INBOX" : mailboxName;
+        }
+    }
+}
@@ -13,11 +13,20 @@ import com.fsck.k9.mail.Pusher;
 import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
 
 
+/**
+ * Pushes changes of an account's folders.
+ * <p>
+ * If the server is known to support NOTIFY, all folders are watched over a single connection by an
+ * {@link ImapNotifyPusher}. Otherwise an {@link ImapFolderPusher} with its own thread and connection is started for
+ * every folder.
+ * </p>
+ */
 class ImapPusher implements Pusher {
     private final ImapStore store;
     private final PushReceiver pushReceiver;
 
     private final List<ImapFolderPusher> folderPushers = new ArrayList<>();
+    private ImapNotifyPusher notifyPusher;
 
     private long lastRefresh = -1;
 
@@ -34,18 +43,58 @@ class ImapPusher implements Pusher {
 
             setLastRefresh(currentTimeMillis());
 
-            for (String folderName : folderNames) {
-                ImapFolderPusher pusher = createImapFolderPusher(folderName);
-                folderPushers.add(pusher);
+            if (folderNames.size() > 1 && store.isNotifyCapable()) {
+                notifyPusher = createImapNotifyPusher(folderNames);
+                notifyPusher.start();
+                store.setPushConnectionCount(1);
+            } else {
+                startFolderPushers(folderNames);
+            }
+        }
+    }
+
+    /**
+     * Called by an {@link ImapNotifyPusher} that found out the server doesn't support NOTIFY.
+     */
+    void fallBackToFolderPushers(ImapNotifyPusher pusher) {
+        synchronized (folderPushers) {
+            store.setNotifyCapable(false);
+
+            if (notifyPusher != pusher) {
+                return;
+            }
 
-                pusher.start();
+            if (K9MailLib.isDebug()) {
+                Log.i(LOG_TAG, "Falling back to one IMAP folderPusher per folder");
             }
+
+            notifyPusher = null;
+            startFolderPushers(pusher.getFolderNames());
+        }
+    }
+
+    private void startFolderPushers(List<String> folderNames) {
+        for (String folderName : folderNames) {
+            ImapFolderPusher pusher = createImapFolderPusher(folderName);
+            folderPushers.add(pusher);
+
+            pusher.start();
         }
+
+        store.setPushConnectionCount(folderPushers.size());
     }
 
     @Override
     public void refresh() {
         synchronized (folderPushers) {
+            if (notifyPusher != null) {
+                try {
+                    notifyPusher.refresh();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Got exception while refreshing NOTIFY pusher", e);
+                }
+            }
+
             for (ImapFolderPusher folderPusher : folderPushers) {
                 try {
                     folderPusher.refresh();
@@ -63,6 +112,16 @@ class ImapPusher implements Pusher {
         }
 
         synchronized (folderPushers) {
+            if (notifyPusher != null) {
+                try {
+                    notifyPusher.stop();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Got exception while stopping NOTIFY pusher", e);
+                }
+
+                notifyPusher = null;
+            }
+
             for (ImapFolderPusher folderPusher : folderPushers) {
                 try {
                     if (K9MailLib.isDebug()) {
@@ -76,6 +135,7 @@ class ImapPusher implements Pusher {
             }
 
             folderPushers.clear();
+            store.setPushConnectionCount(0);
         }
     }
 
@@ -98,6 +158,10 @@ class ImapPusher implements Pusher {
         return new ImapFolderPusher(store, folderName, pushReceiver);
     }
 
+    ImapNotifyPusher createImapNotifyPusher(List<String> folderNames) {
+        return new ImapNotifyPusher(store, this, folderNames, pushReceiver);
+    }
+
     long currentTimeMillis() {
         return System.currentTimeMillis();
     }
@@ -2,6 +2,7 @@ package com.fsck.k9.mail.store.imap;
 
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -17,9 +18,23 @@ import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
 
 
 class ImapResponseParser {
+    /**
+     * Maps every byte to the char with the same value, like the parser always did for atoms and quoted strings.
+     */
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int INITIAL_TOKEN_BUFFER_SIZE = 256;
+
+
     private PeekableInputStream inputStream;
     private ImapResponse response;
     private Exception exception;
+    private ImapResponseStreamHandler streamHandler;
+
+    /**
+     * Holds the bytes of the token that is currently being read. Reused for all tokens.
+     */
+    private byte[] tokenBuffer = new byte[INITIAL_TOKEN_BUFFER_SIZE];
+    private int tokenLength;
 
 
     public ImapResponseParser(PeekableInputStream in) {
@@ -80,12 +95,30 @@ class ImapResponseParser {
 
     List<ImapResponse> readStatusResponse(String tag, String commandToLog, String logId,
             UntaggedHandler untaggedHandler) throws IOException, NegativeImapResponseException {
+        return readStatusResponse(tag, commandToLog, logId, untaggedHandler, null);
+    }
+
+    /**
+     * Reads responses until the tagged response for {@code tag} arrives.
+     *
+     * @param streamHandler
+     *         If not {@code null}, untagged responses are passed to this handler as soon as they have been read.
+     *         Responses consumed by the handler aren't part of the returned list.
+     */
+    List<ImapResponse> readStatusResponse(String tag, String commandToLog, String logId,
+            UntaggedHandler untaggedHandler, ImapResponseStreamHandler streamHandler)
+            throws IOException, NegativeImapResponseException {
 
         List<ImapResponse> responses = new ArrayList<ImapResponse>();
 
         ImapResponse response;
         do {
-            response = readResponse();
+            this.streamHandler = streamHandler;
+            try {
+                response = readResponse();
+            } finally {
+                this.streamHandler = null;
+            }
 
             if (K9MailLib.isDebug() && DEBUG_PROTOCOL_IMAP) {
                 Log.v(LOG_TAG, logId + "<<<" + response);
@@ -113,6 +146,10 @@ class ImapResponseParser {
                 untaggedHandler.handleAsyncUntaggedResponse(response);
             }
 
+            if (streamHandler != null && !response.isTagged() && isConsumedByStreamHandler(response, streamHandler)) {
+                continue;
+            }
+
             responses.add(response);
         } while (response == null || response.getTag() == null);
 
@@ -124,6 +161,15 @@ class ImapResponseParser {
         return responses;
     }
 
+    private boolean isConsumedByStreamHandler(ImapResponse response, ImapResponseStreamHandler streamHandler) {
+        if (equalsIgnoreCase(response.get(0), Responses.SEARCH)) {
+            // The numbers have already been passed to the handler. Only keep responses with additional data.
+            return response.size() == 1;
+        }
+
+        return streamHandler.onUntaggedResponse(response);
+    }
+
     private void readTokens(ImapResponse response) throws IOException {
         response.clear();
 
@@ -138,6 +184,8 @@ class ImapResponseParser {
             parseResponseText(response);
         } else if (equalsIgnoreCase(symbol, Responses.LIST) || equalsIgnoreCase(symbol, Responses.LSUB)) {
             parseListResponse(response);
+        } else if (streamHandler != null && !response.isTagged() && equalsIgnoreCase(symbol, Responses.SEARCH)) {
+            parseSearchResults(response);
         } else {
             Object token;
             while ((token = readToken(response)) != null) {
@@ -148,6 +196,48 @@ class ImapResponseParser {
         }
     }
 
+    /**
+     * Passes the numbers of a {@code SEARCH} response to {@link #streamHandler} without creating tokens.
+     * <p>
+     * Anything following the numbers, e.g. the {@code (MODSEQ ...)} part added by CONDSTORE, is parsed as regular
+     * tokens and added to {@code response}.
+     * </p>
+     */
+    private void parseSearchResults(ImapResponse response) throws IOException {
+        while (true) {
+            int ch = inputStream.peek();
+            if (ch == ' ') {
+                expect(' ');
+            } else if (ch >= '0' && ch <= '9') {
+                streamHandler.onSearchResult(parseNumber());
+            } else {
+                break;
+            }
+        }
+
+        Object token;
+        while ((token = readToken(response)) != null) {
+            if (!(token instanceof ImapList)) {
+                response.add(token);
+            }
+        }
+    }
+
+    private long parseNumber() throws IOException {
+        long number = 0;
+        int ch;
+        while ((ch = inputStream.peek()) >= '0' && ch <= '9') {
+            inputStream.read();
+            number = number * 10 + (ch - '0');
+        }
+
+        if (ch != ' ' && ch != '\r' && ch != '\n') {
+            throw new IOException(String.format("parseNumber(): unexpected character (%04x %c)", ch, ch));
+        }
+
+        return number;
+    }
+
     /**
      * Parse {@code resp-text} tokens
      * <p>
@@ -245,6 +335,8 @@ class ImapResponseParser {
                 return parseQuoted();
             } else if (ch == '{') {
                 return parseLiteral();
+            } else if (ch == '~') {
+                return parseLiteral8OrBareString();
             } else if (ch == ' ') {
                 expect(' ');
             } else if (ch == '\r') {
@@ -311,9 +403,26 @@ class ImapResponseParser {
         return list;
     }
 
+    /**
+     * A "~" starts a literal8 as returned for BINARY fetches (RFC 3516). Outside of those it's just part of an atom.
+     */
+    private Object parseLiteral8OrBareString() throws IOException {
+        expect('~');
+        if (inputStream.peek() == '{') {
+            return parseLiteral();
+        }
+
+        tokenLength = 0;
+        appendToToken('~');
+        return readBareString(true);
+    }
+
     private String parseBareString(boolean allowBrackets) throws IOException {
-        StringBuilder sb = new StringBuilder();
+        tokenLength = 0;
+        return readBareString(allowBrackets);
+    }
 
+    private String readBareString(boolean allowBrackets) throws IOException {
         int ch;
         while (true) {
             ch = inputStream.peek();
@@ -325,13 +434,14 @@ class ImapResponseParser {
                     ch == '{' || ch == ' ' || ch == '"' ||
                     (ch >= 0x00 && ch <= 0x1f) || ch == 0x7f) {
 
-                if (sb.length() == 0) {
+                if (tokenLength == 0) {
                     throw new IOException(String.format("parseBareString(): (%04x %c)", ch, ch));
                 }
 
-                return sb.toString();
+                String atom = ImapAtoms.lookup(tokenBuffer, tokenLength);
+                return (atom != null) ? atom : tokenToString();
             } else {
-                sb.append((char) inputStream.read());
+                appendToToken(inputStream.read());
             }
         }
     }
@@ -394,7 +504,7 @@ class ImapResponseParser {
     private String parseQuoted() throws IOException {
         expect('"');
 
-        StringBuilder sb = new StringBuilder();
+        tokenLength = 0;
         int ch;
         boolean escape = false;
         while ((ch = inputStream.read()) != -1) {
@@ -402,9 +512,9 @@ class ImapResponseParser {
                 // Found the escape character
                 escape = true;
             } else if (!escape && ch == '"') {
-                return sb.toString();
+                return tokenToString();
             } else {
-                sb.append((char) ch);
+                appendToToken(ch);
                 escape = false;
             }
         }
@@ -412,20 +522,34 @@ class ImapResponseParser {
     }
 
     private String readStringUntil(char end) throws IOException {
-        StringBuilder sb = new StringBuilder();
+        tokenLength = 0;
 
         int ch;
         while ((ch = inputStream.read()) != -1) {
             if (ch == end) {
-                return sb.toString();
+                return tokenToString();
             } else {
-                sb.append((char) ch);
+                appendToToken(ch);
             }
         }
 
         throw new IOException("readStringUntil(): end of stream reached");
     }
 
+    private void appendToToken(int ch) {
+        if (tokenLength == tokenBuffer.length) {
+            byte[] newBuffer = new byte[tokenBuffer.length * 2];
+            System.arraycopy(tokenBuffer, 0, newBuffer, 0, tokenLength);
+            tokenBuffer = newBuffer;
+        }
+
+        tokenBuffer[tokenLength++] = (byte) ch;
+    }
+
+    private String tokenToString() {
+        return new String(tokenBuffer, 0, tokenLength, ISO_8859_1);
+    }
+
     private String readStringUntilEndOfLine() throws IOException {
         String rest = readStringUntil('\r');
         expect('\n');
@@ -0,0 +1,30 @@
+package com.fsck.k9.mail.store.imap;
+
+
+/**
+ * Consumes the untagged responses of a command while they are being read.
+ * <p>
+ * Commands like {@code SEARCH} or {@code FETCH (UID FLAGS)} on a large mailbox can return tens of thousands of
+ * untagged responses. With a stream handler those don't have to be kept in memory until the tagged response arrives.
+ * </p>
+ *
+ * @see ImapConnection#executeStreamingCommand(String, ImapResponseStreamHandler)
+ */
+interface ImapResponseStreamHandler {
+    /**
+     * Called for every number of a {@code SEARCH} response.
+     * <p>
+     * The numbers are parsed directly from the input. No tokens are created for them and the {@code SEARCH}
+     * response itself isn't returned by the command.
+     * </p>
+     */
+    void onSearchResult(long number);
+
+    /**
+     * Called for every untagged response other than {@code SEARCH}.
+     *
+     * @return {@code true} if the response has been consumed and can be dropped. {@code false} if it should be
+     *         returned by the command.
+     */
+    boolean onUntaggedResponse(ImapResponse response);
+}
@@ -8,5 +8,5 @@ import com.fsck.k9.mail.MessagingException;
 
 
 interface ImapSearcher {
-    List<ImapResponse> search() throws IOException, MessagingException;
+    List<ImapResponse> search(ImapResponseStreamHandler streamHandler) throws IOException, MessagingException;
 }
@@ -0,0 +1,68 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+
+/**
+ * Connection budget shared by all {@link ImapStore}s that log in to the same server as the same user.
+ * <p>
+ * Servers limit the number of simultaneous connections per user, often also per client IP (e.g. Dovecot allows 10
+ * by default, Courier 4 per IP). Push connections are held open all the time, so they are subtracted from the budget
+ * first. The remaining connections are split between the accounts using that login.
+ * </p>
+ */
+class ImapServerConnections {
+    static final int MAX_CONNECTIONS_PER_SERVER = 5;
+
+    private static final Map<String, ImapServerConnections> SERVERS = new HashMap<String, ImapServerConnections>();
+
+
+    private final Set<ImapStore> stores = Collections.newSetFromMap(new WeakHashMap<ImapStore, Boolean>());
+
+
+    static ImapServerConnections register(ImapStore store, String host, int port, String username) {
+        String key = String.format(Locale.US, "%s:%d:%s", String.valueOf(host).toLowerCase(Locale.US), port,
+                username);
+
+        ImapServerConnections server;
+        synchronized (SERVERS) {
+            server = SERVERS.get(key);
+            if (server == null) {
+                server = new ImapServerConnections();
+                SERVERS.put(key, server);
+            }
+        }
+
+        server.addStore(store);
+
+        return server;
+    }
+
+    /**
+     * Stores are only weakly referenced, so accounts that were removed or changed stop counting once their store is
+     * garbage collected.
+     */
+    synchronized void addStore(ImapStore store) {
+        stores.add(store);
+    }
+
+    /**
+     * @return The number of connections a store may use for anything but push, at least {@code 1}.
+     */
+    synchronized int getAvailableConnections() {
+        int pushConnections = 0;
+        for (ImapStore store : stores) {
+            pushConnections += store.getPushConnectionCount();
+        }
+
+        int availableConnections = (MAX_CONNECTIONS_PER_SERVER - pushConnections) / Math.max(1, stores.size());
+
+        return Math.max(1, availableConnections);
+    }
+}
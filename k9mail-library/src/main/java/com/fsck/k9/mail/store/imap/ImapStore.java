@@ -5,11 +5,9 @@ import java.io.IOException;
 import java.nio.charset.CharacterCodingException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -40,6 +38,8 @@ import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
  * </pre>
  */
 public class ImapStore extends RemoteStore {
+    static final int MAX_CONCURRENT_FOLDER_SYNCS = ImapConnectionPool.MAX_IDLE_CONNECTIONS - 1;
+
     private Set<Flag> permanentFlagsIndex = EnumSet.noneOf(Flag.class);
     private ConnectivityManager connectivityManager;
 
@@ -53,8 +53,16 @@ public class ImapStore extends RemoteStore {
     private String pathPrefix;
     private String combinedPrefix = null;
     private String pathDelimiter = null;
-    private final Deque<ImapConnection> connections = new LinkedList<ImapConnection>();
+    private final ImapConnectionPool connectionPool = new ImapConnectionPool();
     private FolderNameCodec folderNameCodec;
+    /**
+     * Starts out {@code true}, so the first push start already tries NOTIFY. {@link ImapNotifyPusher} checks the
+     * capabilities of its connection and falls back to one pusher per folder if NOTIFY isn't supported.
+     */
+    private volatile boolean notifyCapable = true;
+    private volatile boolean notifyDisabled = false;
+    private volatile int pushConnectionCount = 0;
+    private final ImapServerConnections serverConnections;
 
     /**
      * Cache of ImapFolder objects. ImapFolders are attached to a given folder on the server
@@ -99,6 +107,7 @@ public class ImapStore extends RemoteStore {
         pathPrefix = (settings.autoDetectNamespace) ? null : settings.pathPrefix;
 
         folderNameCodec = FolderNameCodec.newInstance();
+        serverConnections = ImapServerConnections.register(this, host, port, username);
     }
 
     @Override
@@ -309,7 +318,7 @@ public class ImapStore extends RemoteStore {
 
     ImapConnection getConnection() throws MessagingException {
         ImapConnection connection;
-        while ((connection = pollConnection()) != null) {
+        while ((connection = connectionPool.poll()) != null) {
             try {
                 connection.executeSimpleCommand(Commands.NOOP);
                 break;
@@ -320,23 +329,59 @@ public class ImapStore extends RemoteStore {
 
         if (connection == null) {
             connection = createImapConnection();
+            connectionPool.connectionCreated();
         }
 
         return connection;
     }
 
-    private ImapConnection pollConnection() {
-        synchronized (connections) {
-            return connections.poll();
+    /**
+     * Returns an idle connection that still has the given folder selected in the given mode.
+     * <p>
+     * The caller has to restore the folder state from {@link ImapConnection#getSelectedFolderState()} and is
+     * responsible for checking that the connection is still alive.
+     * </p>
+     *
+     * @return The connection or {@code null} if there is none.
+     */
+    ImapConnection getConnectionWithSelectedFolder(String folderName, int mode) {
+        ImapConnection connection = connectionPool.pollWithSelectedFolder(folderName, mode);
+
+        if (K9MailLib.isDebug()) {
+            Log.d(LOG_TAG, (connection != null ? "Reusing" : "No") + " connection with " + folderName +
+                    " selected; " + connectionPool);
         }
+
+        return connection;
     }
 
     void releaseConnection(ImapConnection connection) {
-        if (connection != null && connection.isConnected()) {
-            synchronized (connections) {
-                connections.offer(connection);
-            }
+        if (connection != null && connection.isConnected() && !notifyDisabled) {
+            notifyCapable = connection.hasCapability(Capabilities.NOTIFY);
         }
+
+        connectionPool.offer(connection);
+    }
+
+    /**
+     * @return {@code false} if the last connection returned to the pool didn't advertise the NOTIFY extension, or if
+     *         NOTIFY has been disabled. {@code true} if it's worth trying NOTIFY.
+     */
+    boolean isNotifyCapable() {
+        return notifyCapable;
+    }
+
+    /**
+     * Setting this to {@code false}, e.g. because the server refused a {@code NOTIFY} command, is permanent. Connections
+     * returned to the pool don't enable NOTIFY again.
+     */
+    void setNotifyCapable(boolean notifyCapable) {
+        this.notifyCapable = notifyCapable;
+        this.notifyDisabled = !notifyCapable;
+    }
+
+    ImapConnectionPool getConnectionPool() {
+        return connectionPool;
     }
 
     ImapConnection createImapConnection() {
@@ -373,6 +418,27 @@ public class ImapStore extends RemoteStore {
         return true;
     }
 
+    /**
+     * Stays below the number of idle connections kept in the pool, so every sync can reuse a pooled connection. The
+     * push connections and other accounts using the same login are taken into account via
+     * {@link ImapServerConnections}.
+     */
+    @Override
+    public int getMaxConcurrentFolderSyncs() {
+        return Math.min(MAX_CONCURRENT_FOLDER_SYNCS, serverConnections.getAvailableConnections());
+    }
+
+    int getPushConnectionCount() {
+        return pushConnectionCount;
+    }
+
+    /**
+     * Called by {@link ImapPusher} whenever the number of connections it keeps open changes.
+     */
+    void setPushConnectionCount(int pushConnectionCount) {
+        this.pushConnectionCount = pushConnectionCount;
+    }
+
     @Override
     public boolean isExpungeCapable() {
         return true;
@@ -16,4 +16,6 @@ class Responses {
     public static final String PERMANENTFLAGS = "PERMANENTFLAGS";
     public static final String COPYUID = "COPYUID";
     public static final String SEARCH = "SEARCH";
+    public static final String STATUS = "STATUS";
+    public static final String FETCH = "FETCH";
 }
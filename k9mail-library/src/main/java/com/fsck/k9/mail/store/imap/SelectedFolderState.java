@@ -0,0 +1,34 @@
+package com.fsck.k9.mail.store.imap;
+
+
+/**
+ * What an {@link ImapFolder} knew about its mailbox when it handed its connection back to the pool.
+ * <p>
+ * The mailbox stays selected on the server, so an {@code ImapFolder} that gets the same connection back can restore
+ * this state instead of sending another SELECT/EXAMINE. Changes that happened in the meantime are reported by the
+ * server in response to the next command.
+ * </p>
+ */
+class SelectedFolderState {
+    final String folderName;
+    final int mode;
+    final int messageCount;
+    final long uidNext;
+    final long highestModSeq;
+    final boolean canCreateKeywords;
+
+
+    SelectedFolderState(String folderName, int mode, int messageCount, long uidNext, long highestModSeq,
+            boolean canCreateKeywords) {
+        this.folderName = folderName;
+        this.mode = mode;
+        this.messageCount = messageCount;
+        this.uidNext = uidNext;
+        this.highestModSeq = highestModSeq;
+        this.canCreateKeywords = canCreateKeywords;
+    }
+
+    boolean matches(String folderName, int mode) {
+        return this.mode == mode && this.folderName.equals(folderName);
+    }
+}
@@ -30,6 +30,7 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -60,11 +61,17 @@ public class Pop3Store extends RemoteStore {
     private static final String STLS_CAPABILITY = "STLS";
     private static final String UIDL_CAPABILITY = "UIDL";
     private static final String TOP_CAPABILITY = "TOP";
+    private static final String PIPELINING_CAPABILITY = "PIPELINING";
     private static final String SASL_CAPABILITY = "SASL";
     private static final String AUTH_PLAIN_CAPABILITY = "PLAIN";
     private static final String AUTH_CRAM_MD5_CAPABILITY = "CRAM-MD5";
     private static final String AUTH_EXTERNAL_CAPABILITY = "EXTERNAL";
 
+    /**
+     * Maximum number of commands sent before reading their responses when the server supports PIPELINING.
+     */
+    private static final int MAX_PIPELINED_COMMANDS = 20;
+
     /**
      * Decodes a Pop3Store URI.
      *
@@ -296,6 +303,12 @@ public class Pop3Store extends RemoteStore {
         @SuppressLint("UseSparseArrays")
         private Map<Integer, Pop3Message> mMsgNumToMsgMap = new HashMap<Integer, Pop3Message>();
         private Map<String, Integer> mUidToMsgNumMap = new HashMap<String, Integer>();
+        /*
+         * mUidToMsgNumMap and mMsgNumToUidMap are kept when the folder is closed. Messages are only ever removed from
+         * or appended to a POP3 maildrop, so after reconnecting the index is still valid if the highest indexed
+         * message number still has the same UID. See validateUidIndex().
+         */
+        private Map<Integer, String> mMsgNumToUidMap = new HashMap<Integer, String>();
         private String mName;
         private int mMessageCount;
 
@@ -417,7 +430,78 @@ public class Pop3Store extends RemoteStore {
 
             mUidToMsgMap.clear();
             mMsgNumToMsgMap.clear();
-            mUidToMsgNumMap.clear();
+            validateUidIndex();
+        }
+
+        /**
+         * Checks whether the UID index from the previous connection can still be used.
+         * <p>
+         * If a message with a lower number had been deleted in the meantime, the highest indexed message number would
+         * now belong to a different message. So if its UID is unchanged, all lower message numbers are unchanged as
+         * well. Otherwise the index is discarded.
+         * </p>
+         */
+        private void validateUidIndex() throws MessagingException {
+            int highestMsgNum = 0;
+            for (int msgNum : mMsgNumToUidMap.keySet()) {
+                if (msgNum <= mMessageCount && msgNum > highestMsgNum) {
+                    highestMsgNum = msgNum;
+                }
+            }
+
+            String expectedUid = mMsgNumToUidMap.get(highestMsgNum);
+            if (expectedUid == null || !expectedUid.equals(fetchUid(highestMsgNum))) {
+                if (K9MailLib.isDebug() && DEBUG_PROTOCOL_POP3 && !mMsgNumToUidMap.isEmpty()) {
+                    Log.d(LOG_TAG, "Discarding UID index of " + mMsgNumToUidMap.size() + " messages");
+                }
+
+                mMsgNumToUidMap.clear();
+                mUidToMsgNumMap.clear();
+                return;
+            }
+
+            Iterator<Map.Entry<Integer, String>> iterator = mMsgNumToUidMap.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, String> entry = iterator.next();
+                if (entry.getKey() > highestMsgNum) {
+                    mUidToMsgNumMap.remove(entry.getValue());
+                    iterator.remove();
+                }
+            }
+
+            if (K9MailLib.isDebug() && DEBUG_PROTOCOL_POP3) {
+                Log.d(LOG_TAG, "Reusing UID index of " + mMsgNumToUidMap.size() + " messages");
+            }
+        }
+
+        /**
+         * @return The UID of the given message or {@code null} if it couldn't be retrieved.
+         */
+        private String fetchUid(int msgNum) throws MessagingException {
+            if (msgNum < 1) {
+                return null;
+            }
+
+            try {
+                return parseUidResponse(executeSimpleCommand(UIDL_COMMAND + " " + msgNum));
+            } catch (Pop3ErrorResponse e) {
+                return null;
+            }
+        }
+
+        /**
+         * @param response A response to {@code UIDL msgNum}, i.e. "+OK msgNum msgUid".
+         *
+         * @return The UID or {@code null} if the response is malformed.
+         */
+        private String parseUidResponse(String response) {
+            String[] uidParts = response.split(" +");
+            if (uidParts.length < 3 || !"+OK".equals(uidParts[0])) {
+                Log.e(LOG_TAG, "ERR response: " + response);
+                return null;
+            }
+
+            return uidParts[2];
         }
 
         private void login() throws MessagingException {
@@ -643,34 +727,40 @@ public class Pop3Store extends RemoteStore {
          */
         private void indexMsgNums(int start, int end)
         throws MessagingException, IOException {
-            int unindexedMessageCount = 0;
+            open(Folder.OPEN_MODE_RW);
+
+            List<Integer> unindexedMsgNums = new ArrayList<Integer>();
             for (int msgNum = start; msgNum <= end; msgNum++) {
                 if (mMsgNumToMsgMap.get(msgNum) == null) {
-                    unindexedMessageCount++;
+                    String msgUid = mMsgNumToUidMap.get(msgNum);
+                    if (msgUid != null) {
+                        indexMessage(msgNum, new Pop3Message(msgUid, this));
+                    } else {
+                        unindexedMsgNums.add(msgNum);
+                    }
                 }
             }
-            if (unindexedMessageCount == 0) {
+            if (unindexedMsgNums.isEmpty()) {
                 return;
             }
-            if (unindexedMessageCount < 50 && mMessageCount > 5000) {
+            if (unindexedMsgNums.size() < 50 && (mMessageCount > 5000 || mCapabilities.pipelining)) {
                 /*
                  * In extreme cases we'll do a UIDL command per message instead of a bulk
                  * download.
                  */
-                for (int msgNum = start; msgNum <= end; msgNum++) {
-                    Pop3Message message = mMsgNumToMsgMap.get(msgNum);
-                    if (message == null) {
-                        String response = executeSimpleCommand(UIDL_COMMAND + " " + msgNum);
-                        // response = "+OK msgNum msgUid"
-                        String[] uidParts = response.split(" +");
-                        if (uidParts.length < 3 || !"+OK".equals(uidParts[0])) {
-                            Log.e(LOG_TAG, "ERR response: " + response);
-                            return;
-                        }
-                        String msgUid = uidParts[2];
-                        message = new Pop3Message(msgUid, this);
-                        indexMessage(msgNum, message);
+                List<String> commands = new ArrayList<String>(unindexedMsgNums.size());
+                for (int msgNum : unindexedMsgNums) {
+                    commands.add(UIDL_COMMAND + " " + msgNum);
+                }
+
+                List<String> responses = executeSimpleCommands(commands);
+                for (int i = 0, count = responses.size(); i < count; i++) {
+                    String msgUid = parseUidResponse(responses.get(i));
+                    if (msgUid == null) {
+                        return;
                     }
+                    Pop3Message message = new Pop3Message(msgUid, this);
+                    indexMessage(unindexedMsgNums.get(i), message);
                 }
             } else {
                 String response = executeSimpleCommand(UIDL_COMMAND);
@@ -711,6 +801,8 @@ public class Pop3Store extends RemoteStore {
                                 message = new Pop3Message(msgUid, this);
                                 indexMessage(msgNum, message);
                             }
+                        } else {
+                            indexUid(msgNum, msgUid);
                         }
                     }
                 }
@@ -719,9 +811,17 @@ public class Pop3Store extends RemoteStore {
 
         private void indexUids(List<String> uids)
         throws MessagingException, IOException {
+            open(Folder.OPEN_MODE_RW);
+
             Set<String> unindexedUids = new HashSet<String>();
             for (String uid : uids) {
                 if (mUidToMsgMap.get(uid) == null) {
+                    Integer msgNum = mUidToMsgNumMap.get(uid);
+                    if (msgNum != null) {
+                        indexMessage(msgNum, new Pop3Message(uid, this));
+                        continue;
+                    }
+
                     if (K9MailLib.isDebug() && DEBUG_PROTOCOL_POP3) {
                         Log.d(LOG_TAG, "Need to index UID " + uid);
                     }
@@ -757,6 +857,8 @@ public class Pop3Store extends RemoteStore {
                             message = new Pop3Message(msgUid, this);
                         }
                         indexMessage(msgNum, message);
+                    } else {
+                        indexUid(msgNum, msgUid);
                     }
                 }
             }
@@ -768,7 +870,12 @@ public class Pop3Store extends RemoteStore {
             }
             mMsgNumToMsgMap.put(msgNum, message);
             mUidToMsgMap.put(message.getUid(), message);
-            mUidToMsgNumMap.put(message.getUid(), msgNum);
+            indexUid(msgNum, message.getUid());
+        }
+
+        private void indexUid(int msgNum, String uid) {
+            mUidToMsgNumMap.put(uid, msgNum);
+            mMsgNumToUidMap.put(msgNum, uid);
         }
 
         /**
@@ -806,24 +913,34 @@ public class Pop3Store extends RemoteStore {
             } catch (IOException ioe) {
                 throw new MessagingException("fetch", ioe);
             }
+            int lines = -1;
+            if (!fp.contains(FetchProfile.Item.BODY) && fp.contains(FetchProfile.Item.BODY_SANE) &&
+                    mStoreConfig.getMaximumAutoDownloadMessageSize() > 0) {
+                /*
+                 * To convert the suggested download size we take the size
+                 * divided by the maximum line size (76).
+                 */
+                lines = mStoreConfig.getMaximumAutoDownloadMessageSize() / 76;
+            }
+            boolean fetchBody = fp.contains(FetchProfile.Item.BODY) || fp.contains(FetchProfile.Item.BODY_SANE);
+            int pipelinedUntil = 0;
+
             for (int i = 0, count = messages.size(); i < count; i++) {
                 Pop3Message pop3Message = messages.get(i);
                 try {
                     if (listener != null && !fp.contains(FetchProfile.Item.ENVELOPE)) {
                         listener.messageStarted(pop3Message.getUid(), i, count);
                     }
-                    if (fp.contains(FetchProfile.Item.BODY)) {
-                        fetchBody(pop3Message, -1);
-                    } else if (fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        /*
-                         * To convert the suggested download size we take the size
-                         * divided by the maximum line size (76).
-                         */
-                        if (mStoreConfig.getMaximumAutoDownloadMessageSize() > 0) {
-                            fetchBody(pop3Message,
-                                      (mStoreConfig.getMaximumAutoDownloadMessageSize() / 76));
+                    if (fetchBody) {
+                        if (i >= pipelinedUntil && canPipelineBodyCommands(lines)) {
+                            pipelinedUntil = Math.min(count, i + MAX_PIPELINED_COMMANDS);
+                            sendBodyCommands(messages.subList(i, pipelinedUntil), lines);
+                        }
+
+                        if (i < pipelinedUntil) {
+                            readPipelinedBody(messages.subList(i, pipelinedUntil), lines);
                         } else {
-                            fetchBody(pop3Message, -1);
+                            fetchBody(pop3Message, lines);
                         }
                     } else if (fp.contains(FetchProfile.Item.STRUCTURE)) {
                         /*
@@ -857,13 +974,19 @@ public class Pop3Store extends RemoteStore {
                  * In extreme cases we'll do a command per message instead of a bulk request
                  * to hopefully save some time and bandwidth.
                  */
+                List<String> commands = new ArrayList<String>(messages.size());
+                for (Pop3Message message : messages) {
+                    commands.add(String.format(Locale.US, LIST_COMMAND + " %d",
+                                 mUidToMsgNumMap.get(message.getUid())));
+                }
+                List<String> responses = executeSimpleCommands(commands);
+
                 for (int i = 0, count = messages.size(); i < count; i++) {
                     Pop3Message message = messages.get(i);
                     if (listener != null) {
                         listener.messageStarted(message.getUid(), i, count);
                     }
-                    String response = executeSimpleCommand(String.format(Locale.US, LIST_COMMAND + " %d",
-                                                           mUidToMsgNumMap.get(message.getUid())));
+                    String response = responses.get(i);
                     String[] listParts = response.split(" ");
                     //int msgNum = Integer.parseInt(listParts[1]);
                     int msgSize = Integer.parseInt(listParts[2]);
@@ -947,8 +1070,13 @@ public class Pop3Store extends RemoteStore {
                                      mUidToMsgNumMap.get(message.getUid())));
             }
 
+            parseBody(message, lines);
+        }
+
+        private void parseBody(Pop3Message message, int lines) throws IOException, MessagingException {
+            Pop3ResponseInputStream in = new Pop3ResponseInputStream(mIn);
             try {
-                message.parse(new Pop3ResponseInputStream(mIn));
+                message.parse(in);
 
                 // TODO: if we've received fewer lines than requested we also have the complete message.
                 if (lines == -1 || !mCapabilities.top) {
@@ -964,6 +1092,68 @@ public class Pop3Store extends RemoteStore {
                 if (lines == -1) {
                     throw me;
                 }
+            } finally {
+                // Make sure the next response is read from the right position
+                in.skipRemaining();
+            }
+        }
+
+        /**
+         * Body commands can only be pipelined once we know whether TOP or RETR is going to be used.
+         */
+        private boolean canPipelineBodyCommands(int lines) {
+            return mCapabilities.pipelining && (lines == -1 || mCapabilities.top || mTopNotSupported);
+        }
+
+        /**
+         * Sends TOP or RETR commands for all given messages without waiting for the responses. The responses have to
+         * be read with {@link #readPipelinedBody(List, int)}.
+         */
+        private void sendBodyCommands(List<Pop3Message> messages, int lines) throws MessagingException {
+            try {
+                for (Pop3Message message : messages) {
+                    Integer msgNum = mUidToMsgNumMap.get(message.getUid());
+                    if (lines != -1 && mCapabilities.top) {
+                        sendCommand(String.format(Locale.US, TOP_COMMAND + " %d %d", msgNum, lines), false);
+                    } else {
+                        sendCommand(String.format(Locale.US, RETR_COMMAND + " %d", msgNum), false);
+                    }
+                }
+                mOut.flush();
+            } catch (IOException e) {
+                closeIO();
+                throw new MessagingException("Unable to execute POP3 command", e);
+            }
+        }
+
+        /**
+         * Reads the response to the body command for the first of {@code pendingMessages}. If the server returned
+         * an error, the responses for the other pending messages are skipped before the error is thrown.
+         */
+        private void readPipelinedBody(List<Pop3Message> pendingMessages, int lines)
+                throws IOException, MessagingException {
+            try {
+                try {
+                    readStatusResponse();
+                } catch (Pop3ErrorResponse e) {
+                    for (int i = 1, count = pendingMessages.size(); i < count; i++) {
+                        try {
+                            readStatusResponse();
+                            new Pop3ResponseInputStream(mIn).skipRemaining();
+                        } catch (Pop3ErrorResponse ignored) {
+                            // Single line response; nothing to skip
+                        }
+                    }
+                    throw e;
+                }
+
+                parseBody(pendingMessages.get(0), lines);
+            } catch (IOException | MessagingException | RuntimeException e) {
+                if (!(e instanceof Pop3ErrorResponse) && pendingMessages.size() > 1) {
+                    // We don't know where the remaining responses start
+                    closeIO();
+                }
+                throw e;
             }
         }
 
@@ -1010,6 +1200,7 @@ public class Pop3Store extends RemoteStore {
             } catch (IOException ioe) {
                 throw new MessagingException("Could not get message number for uid " + uids, ioe);
             }
+            List<String> commands = new ArrayList<String>(messages.size());
             for (Message message : messages) {
 
                 Integer msgNum = mUidToMsgNumMap.get(message.getUid());
@@ -1019,8 +1210,9 @@ public class Pop3Store extends RemoteStore {
                     me.setPermanentFailure(true);
                     throw me;
                 }
-                executeSimpleCommand(String.format(DELE_COMMAND + " %s", msgNum));
+                commands.add(String.format(DELE_COMMAND + " %s", msgNum));
             }
+            executeSimpleCommands(commands);
         }
 
         private String readLine() throws IOException {
@@ -1046,10 +1238,14 @@ public class Pop3Store extends RemoteStore {
         }
 
         private void writeLine(String s) throws IOException {
+            writeLineWithoutFlush(s);
+            mOut.flush();
+        }
+
+        private void writeLineWithoutFlush(String s) throws IOException {
             mOut.write(s.getBytes());
             mOut.write('\r');
             mOut.write('\n');
-            mOut.flush();
         }
 
         private Pop3Capabilities getCapabilities() throws IOException {
@@ -1096,6 +1292,8 @@ public class Pop3Store extends RemoteStore {
                         capabilities.uidl = true;
                     } else if (response.equals(TOP_CAPABILITY)) {
                         capabilities.top = true;
+                    } else if (response.equals(PIPELINING_CAPABILITY)) {
+                        capabilities.pipelining = true;
                     } else if (response.startsWith(SASL_CAPABILITY)) {
                         List<String> saslAuthMechanisms = Arrays.asList(response.split(" "));
                         if (saslAuthMechanisms.contains(AUTH_PLAIN_CAPABILITY)) {
@@ -1132,24 +1330,11 @@ public class Pop3Store extends RemoteStore {
                 open(Folder.OPEN_MODE_RW);
 
                 if (command != null) {
-                    if (K9MailLib.isDebug() && DEBUG_PROTOCOL_POP3) {
-                        if (sensitive && !K9MailLib.isDebugSensitive()) {
-                            Log.d(LOG_TAG, ">>> "
-                                  + "[Command Hidden, Enable Sensitive Debug Logging To Show]");
-                        } else {
-                            Log.d(LOG_TAG, ">>> " + command);
-                        }
-                    }
-
-                    writeLine(command);
-                }
-
-                String response = readLine();
-                if (response.length() == 0 || response.charAt(0) != '+') {
-                    throw new Pop3ErrorResponse(response);
+                    sendCommand(command, sensitive);
+                    mOut.flush();
                 }
 
-                return response;
+                return readStatusResponse();
             } catch (MessagingException me) {
                 throw me;
             } catch (Exception e) {
@@ -1158,6 +1343,81 @@ public class Pop3Store extends RemoteStore {
             }
         }
 
+        /**
+         * Executes commands with single-line responses.
+         * <p>
+         * If the server supports PIPELINING, the commands are sent in batches without waiting for each response.
+         * All responses are read before the first error response is thrown, so some of the commands may have
+         * succeeded. Otherwise the commands are executed one by one and the first error response is thrown right away.
+         * </p>
+         *
+         * @return The responses in the order of {@code commands}.
+         */
+        private List<String> executeSimpleCommands(List<String> commands) throws MessagingException {
+            open(Folder.OPEN_MODE_RW);
+
+            List<String> responses = new ArrayList<String>(commands.size());
+            if (!mCapabilities.pipelining || commands.size() < 2) {
+                for (String command : commands) {
+                    responses.add(executeSimpleCommand(command));
+                }
+                return responses;
+            }
+
+            Pop3ErrorResponse firstError = null;
+            try {
+                for (int start = 0, count = commands.size(); start < count; start += MAX_PIPELINED_COMMANDS) {
+                    int end = Math.min(count, start + MAX_PIPELINED_COMMANDS);
+                    for (String command : commands.subList(start, end)) {
+                        sendCommand(command, false);
+                    }
+                    mOut.flush();
+
+                    for (int i = start; i < end; i++) {
+                        try {
+                            responses.add(readStatusResponse());
+                        } catch (Pop3ErrorResponse e) {
+                            if (firstError == null) {
+                                firstError = e;
+                            }
+                            responses.add(null);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                closeIO();
+                throw new MessagingException("Unable to execute POP3 command", e);
+            }
+
+            if (firstError != null) {
+                throw firstError;
+            }
+
+            return responses;
+        }
+
+        private void sendCommand(String command, boolean sensitive) throws IOException {
+            if (K9MailLib.isDebug() && DEBUG_PROTOCOL_POP3) {
+                if (sensitive && !K9MailLib.isDebugSensitive()) {
+                    Log.d(LOG_TAG, ">>> "
+                          + "[Command Hidden, Enable Sensitive Debug Logging To Show]");
+                } else {
+                    Log.d(LOG_TAG, ">>> " + command);
+                }
+            }
+
+            writeLineWithoutFlush(command);
+        }
+
+        private String readStatusResponse() throws IOException, Pop3ErrorResponse {
+            String response = readLine();
+            if (response.length() == 0 || response.charAt(0) != '+') {
+                throw new Pop3ErrorResponse(response);
+            }
+
+            return response;
+        }
+
         @Override
         public boolean isFlagSupported(Flag flag) {
             return (flag == Flag.DELETED);
@@ -1221,16 +1481,18 @@ public class Pop3Store extends RemoteStore {
         public boolean top;
         public boolean uidl;
         public boolean external;
+        public boolean pipelining;
 
         @Override
         public String toString() {
-            return String.format("CRAM-MD5 %b, PLAIN %b, STLS %b, TOP %b, UIDL %b, EXTERNAL %b",
+            return String.format("CRAM-MD5 %b, PLAIN %b, STLS %b, TOP %b, UIDL %b, EXTERNAL %b, PIPELINING %b",
                                  cramMD5,
                                  authPlain,
                                  stls,
                                  top,
                                  uidl,
-                                 external);
+                                 external,
+                                 pipelining);
         }
     }
 
@@ -1262,6 +1524,17 @@ public class Pop3Store extends RemoteStore {
 
             return d;
         }
+
+        /**
+         * Reads up to and including the terminating line, e.g. after the parser stopped early.
+         */
+        public void skipRemaining() throws IOException {
+            while (!mFinished) {
+                if (read() == -1 && !mFinished) {
+                    throw new IOException("End of stream reached while skipping response.");
+                }
+            }
+        }
     }
 
     /**
@@ -11,13 +11,13 @@ import com.fsck.k9.mail.filter.LineWrapOutputStream;
 import com.fsck.k9.mail.filter.PeekableInputStream;
 import com.fsck.k9.mail.filter.SmtpDataStuffing;
 import com.fsck.k9.mail.internet.CharsetSupport;
+import com.fsck.k9.mail.internet.SpooledMessage;
 import com.fsck.k9.mail.CertificateValidationException;
 import com.fsck.k9.mail.ssl.TrustedSocketFactory;
 import com.fsck.k9.mail.store.StoreConfig;
 
 import javax.net.ssl.SSLException;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -30,6 +30,17 @@ import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
 import static com.fsck.k9.mail.CertificateValidationException.Reason.MissingCapability;
 
 public class SmtpTransport extends Transport {
+    /**
+     * Size of the chunks sent with {@code BDAT} (RFC 3030).
+     */
+    private static final int BDAT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of {@code BDAT} replies we don't wait for when the server supports pipelining.
+     */
+    private static final int MAX_PENDING_BDAT_REPLIES = 8;
+
+
     private TrustedSocketFactory mTrustedSocketFactory;
 
     /**
@@ -182,7 +193,10 @@ public class SmtpTransport extends Transport {
     private PeekableInputStream mIn;
     private OutputStream mOut;
     private boolean m8bitEncodingAllowed;
+    private boolean mPipeliningSupported;
+    private boolean mChunkingSupported;
     private int mLargestAcceptableMessage;
+    private boolean mSessionUsed;
 
     public SmtpTransport(StoreConfig storeConfig, TrustedSocketFactory trustedSocketFactory)
             throws MessagingException {
@@ -234,8 +248,9 @@ public class SmtpTransport extends Transport {
             // RFC 1047
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
 
-            mIn = new PeekableInputStream(new BufferedInputStream(mSocket.getInputStream(), 1024));
+            mIn = new PeekableInputStream(mSocket.getInputStream(), 1024);
             mOut = new BufferedOutputStream(mSocket.getOutputStream(), 1024);
+            mSessionUsed = false;
 
             // Eat the banner
             executeSimpleCommand(null);
@@ -274,8 +289,7 @@ public class SmtpTransport extends Transport {
                             mPort,
                             mClientCertificateAlias);
 
-                    mIn = new PeekableInputStream(new BufferedInputStream(mSocket.getInputStream(),
-                                                  1024));
+                    mIn = new PeekableInputStream(mSocket.getInputStream(), 1024);
                     mOut = new BufferedOutputStream(mSocket.getOutputStream(), 1024);
                     /*
                      * Now resend the EHLO. Required by RFC2487 Sec. 5.2, and more specifically,
@@ -308,6 +322,8 @@ public class SmtpTransport extends Transport {
                 authExternalSupported = saslMech.contains("EXTERNAL");
             }
             parseOptionalSizeValue(extensions);
+            mPipeliningSupported = extensions.containsKey("PIPELINING");
+            mChunkingSupported = extensions.containsKey("CHUNKING");
 
             if (mUsername != null
                     && mUsername.length() > 0
@@ -499,16 +515,19 @@ public class SmtpTransport extends Transport {
     private void sendMessageTo(List<String> addresses, Message message)
     throws MessagingException {
 
-        close();
-        open();
+        openOrResetSession();
 
         if (!m8bitEncodingAllowed) {
             message.setUsing7bitTransport();
         }
         // If the message has attachments and our server has told us about a limit on
-        // the size of messages, count the message's size before sending it
+        // the size of messages, count the message's size before sending it. The message
+        // is spooled, so the attachments don't have to be encoded a second time for sending.
+        SpooledMessage spooledMessage = null;
         if (mLargestAcceptableMessage > 0 && message.hasAttachments()) {
-            if (message.calculateSize() > mLargestAcceptableMessage) {
+            spooledMessage = spoolMessage(message);
+            if (spooledMessage.getSize() > mLargestAcceptableMessage) {
+                spooledMessage.close();
                 throw new MessagingException("Message too large for server", true);
             }
         }
@@ -516,34 +535,143 @@ public class SmtpTransport extends Transport {
         boolean entireMessageSent = false;
         Address[] from = message.getFrom();
         try {
-            executeSimpleCommand("MAIL FROM:" + "<" + from[0].getAddress() + ">"
-                    + (m8bitEncodingAllowed ? " BODY=8BITMIME" : ""));
-            for (String address : addresses) {
-                executeSimpleCommand("RCPT TO:" + "<" + address + ">");
-            }
-            executeSimpleCommand("DATA");
+            mSessionUsed = true;
+            sendEnvelope(from[0].getAddress(), addresses);
 
-            EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
-                    new LineWrapOutputStream(new SmtpDataStuffing(mOut), 1000));
+            if (mChunkingSupported) {
+                BdatOutputStream bdatOut = new BdatOutputStream();
+                writeMessage(message, spooledMessage, bdatOut);
 
-            message.writeTo(msgOut);
+                entireMessageSent = true; // After the last chunk is attempted, we may have sent the message
+                bdatOut.sendLastChunk();
+            } else {
+                executeSimpleCommand("DATA");
 
-            // We use BufferedOutputStream. So make sure to call flush() !
-            msgOut.flush();
+                writeMessage(message, spooledMessage, new SmtpDataStuffing(mOut));
 
-            entireMessageSent = true; // After the "\r\n." is attempted, we may have sent the message
-            executeSimpleCommand("\r\n.");
+                entireMessageSent = true; // After the "\r\n." is attempted, we may have sent the message
+                executeSimpleCommand("\r\n.");
+            }
         } catch (NegativeSmtpReplyException e) {
+            // All replies have been read, so the session can still be used after a RSET
             throw e;
         } catch (Exception e) {
+            close();
+
             MessagingException me = new MessagingException("Unable to send message", e);
             me.setPermanentFailure(entireMessageSent);
 
             throw me;
         } finally {
+            if (spooledMessage != null) {
+                spooledMessage.close();
+            }
+        }
+    }
+
+    private SpooledMessage spoolMessage(Message message) throws MessagingException {
+        try {
+            return SpooledMessage.spool(message);
+        } catch (IOException e) {
+            throw new MessagingException("Unable to spool message", e);
+        }
+    }
+
+    private void writeMessage(Message message, SpooledMessage spooledMessage, OutputStream out)
+            throws IOException, MessagingException {
+        LineWrapOutputStream lineWrapOut = new LineWrapOutputStream(out, 1000);
+        if (spooledMessage != null) {
+            // Line endings have already been converted when spooling
+            spooledMessage.writeTo(lineWrapOut);
+        } else {
+            EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(lineWrapOut);
+            message.writeTo(eolOut);
+            eolOut.flush();
+        }
+
+        // We use BufferedOutputStream. So make sure to call flush() !
+        lineWrapOut.flush();
+    }
+
+    /**
+     * Makes sure there's a session that is ready for a new mail transaction.
+     * <p>
+     * The session is kept open after a message has been sent, so the next message doesn't have to pay for connecting,
+     * TLS, EHLO, and authentication again. An existing session is reset with {@code RSET}. If that fails, e.g.
+     * because the server closed an idle connection, we reconnect.
+     * </p>
+     */
+    private void openOrResetSession() throws MessagingException {
+        if (mSocket == null || mSocket.isClosed()) {
+            openSession();
+            return;
+        }
+
+        if (!mSessionUsed) {
+            return;
+        }
+
+        try {
+            executeSimpleCommand("RSET");
+            mSessionUsed = false;
+        } catch (Exception e) {
+            if (K9MailLib.isDebug()) {
+                Log.d(LOG_TAG, "Couldn't reset SMTP session. Reconnecting.", e);
+            }
+
             close();
+            openSession();
+        }
+    }
+
+    private void openSession() throws MessagingException {
+        try {
+            open();
+        } catch (MessagingException e) {
+            // Don't leave a half-initialized session around for the next message
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends {@code MAIL FROM} and the {@code RCPT TO} commands.
+     * <p>
+     * If the server supports {@code PIPELINING} (RFC 2920) all commands are sent at once and the replies are read
+     * afterwards. All replies are read even if one of them is negative, so the session stays usable.
+     * </p>
+     */
+    private void sendEnvelope(String from, List<String> addresses) throws IOException, MessagingException {
+        String mailFrom = "MAIL FROM:" + "<" + from + ">" + (m8bitEncodingAllowed ? " BODY=8BITMIME" : "");
+
+        if (!mPipeliningSupported) {
+            executeSimpleCommand(mailFrom);
+            for (String address : addresses) {
+                executeSimpleCommand("RCPT TO:" + "<" + address + ">");
+            }
+            return;
+        }
+
+        writeLineWithoutFlush(mailFrom, false);
+        for (String address : addresses) {
+            writeLineWithoutFlush("RCPT TO:" + "<" + address + ">", false);
+        }
+        mOut.flush();
+
+        NegativeSmtpReplyException firstFailure = null;
+        for (int i = 0, count = addresses.size() + 1; i < count; i++) {
+            try {
+                readCommandResponse();
+            } catch (NegativeSmtpReplyException e) {
+                if (firstFailure == null) {
+                    firstFailure = e;
+                }
+            }
         }
 
+        if (firstFailure != null) {
+            throw firstFailure;
+        }
     }
 
     @Override
@@ -593,6 +721,11 @@ public class SmtpTransport extends Transport {
     }
 
     private void writeLine(String s, boolean sensitive) throws IOException {
+        writeLineWithoutFlush(s, sensitive);
+        mOut.flush();
+    }
+
+    private void writeLineWithoutFlush(String s, boolean sensitive) throws IOException {
         if (K9MailLib.isDebug() && DEBUG_PROTOCOL_SMTP) {
             final String commandToLog;
             if (sensitive && !K9MailLib.isDebugSensitive()) {
@@ -612,7 +745,6 @@ public class SmtpTransport extends Transport {
          * See issue 799.
          */
         mOut.write(data);
-        mOut.flush();
     }
 
     private void checkLine(String line) throws MessagingException {
@@ -647,11 +779,16 @@ public class SmtpTransport extends Transport {
 
     private List<String> executeSimpleCommand(String command, boolean sensitive)
     throws IOException, MessagingException {
-        List<String> results = new ArrayList<String>();
         if (command != null) {
             writeLine(command, sensitive);
         }
 
+        return readCommandResponse();
+    }
+
+    private List<String> readCommandResponse() throws IOException, MessagingException {
+        List<String> results = new ArrayList<String>();
+
         /*
          * Read lines as long as the length is 4 or larger, e.g. "220-banner text here".
          * Shorter lines are either errors of contain only a reply code. Those cases will
@@ -763,6 +900,84 @@ public class SmtpTransport extends Transport {
                         Base64.encode(username)), false);
     }
 
+    /**
+     * Sends the data written to it in {@code BDAT} chunks (RFC 3030).
+     * <p>
+     * Unlike {@code DATA} no dot-stuffing is necessary. If the server supports pipelining we don't wait for the reply
+     * to a chunk before sending the next one. Once a chunk has been rejected the remaining data is discarded, since
+     * RFC 3030 doesn't allow sending further chunks. The failure is reported by {@link #sendLastChunk()}.
+     * </p>
+     */
+    private class BdatOutputStream extends OutputStream {
+        private final byte[] buffer = new byte[BDAT_CHUNK_SIZE];
+        private int count;
+        private int pendingReplies;
+        private NegativeSmtpReplyException failure;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (count == buffer.length) {
+                sendChunk(false);
+            }
+            buffer[count++] = (byte) oneByte;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    sendChunk(false);
+                }
+
+                int copyLength = Math.min(length, buffer.length - count);
+                System.arraycopy(data, offset, buffer, count, copyLength);
+                count += copyLength;
+                offset += copyLength;
+                length -= copyLength;
+            }
+        }
+
+        void sendLastChunk() throws IOException, MessagingException {
+            sendChunk(true);
+
+            while (pendingReplies > 0) {
+                readReply();
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void sendChunk(boolean last) throws IOException {
+            if (failure == null) {
+                writeLineWithoutFlush("BDAT " + count + (last ? " LAST" : ""), false);
+                mOut.write(buffer, 0, count);
+                mOut.flush();
+                pendingReplies++;
+            }
+            count = 0;
+
+            int maxPendingReplies = (mPipeliningSupported && !last) ? MAX_PENDING_BDAT_REPLIES : 0;
+            while (pendingReplies > maxPendingReplies) {
+                readReply();
+            }
+        }
+
+        private void readReply() throws IOException {
+            pendingReplies--;
+            try {
+                readCommandResponse();
+            } catch (NegativeSmtpReplyException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            } catch (MessagingException e) {
+                throw new IOException("Invalid reply to BDAT command", e);
+            }
+        }
+    }
+
     /**
      * Exception that is thrown when the server sends a negative reply (reply codes 4xx or 5xx).
      */
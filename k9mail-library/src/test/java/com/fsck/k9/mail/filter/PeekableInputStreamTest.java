@@ -0,0 +1,89 @@
+package com.fsck.k9.mail.filter;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+public class PeekableInputStreamTest {
+    private static final byte[] DATA = "0123456789".getBytes();
+
+
+    @Test
+    public void peek_shouldNotConsumeByte() throws Exception {
+        PeekableInputStream stream = createStream(4);
+
+        assertEquals('0', stream.peek());
+        assertEquals('0', stream.peek());
+        assertEquals('0', stream.read());
+        assertEquals('1', stream.peek());
+    }
+
+    @Test
+    public void read_acrossBufferBoundary_shouldReturnAllBytes() throws Exception {
+        PeekableInputStream stream = createStream(4);
+
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = stream.read()) != -1) {
+            sb.append((char) b);
+        }
+
+        assertEquals("0123456789", sb.toString());
+        assertEquals(-1, stream.peek());
+    }
+
+    @Test
+    public void readArray_afterPeek_shouldIncludePeekedByte() throws Exception {
+        PeekableInputStream stream = createStream(4);
+        stream.read();
+        stream.peek();
+
+        byte[] buffer = new byte[9];
+        int count = readFully(stream, buffer);
+
+        assertEquals(9, count);
+        assertArrayEquals("123456789".getBytes(), buffer);
+    }
+
+    @Test
+    public void readArray_largerThanBuffer_shouldReturnAllBytes() throws Exception {
+        PeekableInputStream stream = createStream(2);
+
+        byte[] buffer = new byte[10];
+        int count = readFully(stream, buffer);
+
+        assertEquals(10, count);
+        assertArrayEquals(DATA, buffer);
+        assertEquals(-1, stream.read(buffer, 0, 1));
+    }
+
+    @Test
+    public void skip_shouldSkipBufferedBytes() throws Exception {
+        PeekableInputStream stream = createStream(4);
+        stream.peek();
+
+        long skipped = stream.skip(2);
+
+        assertEquals(2, skipped);
+        assertEquals('2', stream.read());
+    }
+
+    private PeekableInputStream createStream(int bufferSize) {
+        return new PeekableInputStream(new ByteArrayInputStream(DATA), bufferSize);
+    }
+
+    private int readFully(PeekableInputStream stream, byte[] buffer) throws IOException {
+        int offset = 0;
+        int count;
+        while (offset < buffer.length && (count = stream.read(buffer, offset, buffer.length - offset)) != -1) {
+            offset += count;
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,119 @@
+package com.fsck.k9.mail.internet;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 21)
+public class SpooledMessageTest {
+    private File tempDirectory;
+
+
+    @Before
+    public void setUp() throws Exception {
+        tempDirectory = new File(System.getProperty("java.io.tmpdir"), "spooled-message-test");
+        tempDirectory.mkdirs();
+        BinaryTempFileBody.setTempDirectory(tempDirectory);
+    }
+
+    @Test
+    public void spool_shouldConvertLineEndings() throws Exception {
+        MimeMessage message = parseMessage("Subject: test\n\nline one\nline two\n");
+
+        SpooledMessage spooledMessage = SpooledMessage.spool(message);
+        try {
+            String result = writeToString(spooledMessage);
+
+            assertTrue(result.endsWith("\r\n\r\nline one\r\nline two\r\n"));
+            assertFalse(result.replace("\r\n", "").contains("\n"));
+        } finally {
+            spooledMessage.close();
+        }
+    }
+
+    @Test
+    public void getSize_shouldMatchCalculateSize() throws Exception {
+        String data = "From: <adam@example.org>\r\n" +
+                "To: <eva@example.org>\r\n" +
+                "Subject: Testmail\r\n" +
+                "MIME-Version: 1.0\r\n" +
+                "Content-type: text/plain\r\n" +
+                "Content-Transfer-Encoding: 7bit\r\n" +
+                "\r\n" +
+                "this is some test text.";
+        // The body of a parsed message can only be written once
+        long expectedSize = parseMessage(data).calculateSize();
+
+        SpooledMessage spooledMessage = SpooledMessage.spool(parseMessage(data));
+        try {
+            assertEquals(expectedSize, spooledMessage.getSize());
+        } finally {
+            spooledMessage.close();
+        }
+    }
+
+    @Test
+    public void writeTo_calledTwice_shouldWriteSameData() throws Exception {
+        MimeMessage message = parseMessage("Subject: test\r\n\r\nbody\r\n");
+
+        SpooledMessage spooledMessage = SpooledMessage.spool(message);
+        try {
+            String first = writeToString(spooledMessage);
+            String second = writeToString(spooledMessage);
+
+            assertEquals(first, second);
+            assertEquals(spooledMessage.getSize(), first.length());
+        } finally {
+            spooledMessage.close();
+        }
+    }
+
+    @Test
+    public void close_shouldDeleteTempFile() throws Exception {
+        MimeMessage message = parseMessage("Subject: test\r\n\r\nbody\r\n");
+        int filesBefore = countSpoolFiles();
+
+        SpooledMessage spooledMessage = SpooledMessage.spool(message);
+        assertTrue(countSpoolFiles() > filesBefore);
+        spooledMessage.close();
+
+        assertEquals(filesBefore, countSpoolFiles());
+    }
+
+    private MimeMessage parseMessage(String data) throws Exception {
+        return new MimeMessage(new ByteArrayInputStream(data.getBytes("US-ASCII")), false);
+    }
+
+    private String writeToString(SpooledMessage spooledMessage) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        spooledMessage.writeTo(out);
+        return out.toString("US-ASCII");
+    }
+
+    /**
+     * Only counts spool files. Writing a parsed message deletes the temp files of its bodies.
+     */
+    private int countSpoolFiles() {
+        String[] files = tempDirectory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("spool");
+            }
+        });
+        return files == null ? 0 : files.length;
+    }
+}
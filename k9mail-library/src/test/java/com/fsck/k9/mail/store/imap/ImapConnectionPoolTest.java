@@ -0,0 +1,148 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.fsck.k9.mail.Folder.OPEN_MODE_RO;
+import static com.fsck.k9.mail.Folder.OPEN_MODE_RW;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class ImapConnectionPoolTest {
+    private static final long MAX_IDLE_TIME = 1000L;
+
+
+    private TestImapConnectionPool pool;
+
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new TestImapConnectionPool(2, MAX_IDLE_TIME);
+    }
+
+    @Test
+    public void poll_withEmptyPool_shouldReturnNull() throws Exception {
+        assertNull(pool.poll());
+    }
+
+    @Test
+    public void offer_withClosedConnection_shouldNotPoolConnection() throws Exception {
+        ImapConnection connection = mock(ImapConnection.class);
+        when(connection.isConnected()).thenReturn(false);
+
+        pool.offer(connection);
+
+        assertEquals(0, pool.getIdleConnectionCount());
+    }
+
+    @Test
+    public void poll_shouldPreferConnectionWithoutSelectedFolder() throws Exception {
+        ImapConnection selected = createConnection("INBOX", OPEN_MODE_RW);
+        ImapConnection unselected = createConnection(null, OPEN_MODE_RW);
+        pool.offer(selected);
+        pool.offer(unselected);
+
+        ImapConnection result = pool.poll();
+
+        assertSame(unselected, result);
+        verify(unselected).setSelectedFolderState(null);
+    }
+
+    @Test
+    public void poll_withOnlySelectedConnections_shouldForgetSelectedFolder() throws Exception {
+        ImapConnection selected = createConnection("INBOX", OPEN_MODE_RW);
+        pool.offer(selected);
+
+        ImapConnection result = pool.poll();
+
+        assertSame(selected, result);
+        verify(selected).setSelectedFolderState(null);
+    }
+
+    @Test
+    public void pollWithSelectedFolder_shouldReturnMatchingConnectionAndCountHit() throws Exception {
+        ImapConnection inbox = createConnection("INBOX", OPEN_MODE_RW);
+        ImapConnection sent = createConnection("Sent", OPEN_MODE_RW);
+        pool.offer(inbox);
+        pool.offer(sent);
+
+        ImapConnection result = pool.pollWithSelectedFolder("Sent", OPEN_MODE_RW);
+
+        assertSame(sent, result);
+        assertEquals(1, pool.getSelectedFolderHits());
+        assertEquals(0, pool.getSelectedFolderMisses());
+        assertEquals(1, pool.getIdleConnectionCount());
+    }
+
+    @Test
+    public void pollWithSelectedFolder_withDifferentMode_shouldCountMiss() throws Exception {
+        pool.offer(createConnection("INBOX", OPEN_MODE_RW));
+
+        ImapConnection result = pool.pollWithSelectedFolder("INBOX", OPEN_MODE_RO);
+
+        assertNull(result);
+        assertEquals(0, pool.getSelectedFolderHits());
+        assertEquals(1, pool.getSelectedFolderMisses());
+    }
+
+    @Test
+    public void offer_withFullPool_shouldCloseOldestConnection() throws Exception {
+        ImapConnection first = createConnection(null, OPEN_MODE_RW);
+        ImapConnection second = createConnection(null, OPEN_MODE_RW);
+        ImapConnection third = createConnection(null, OPEN_MODE_RW);
+        pool.offer(first);
+        pool.offer(second);
+
+        pool.offer(third);
+
+        verify(first).close();
+        verify(second, never()).close();
+        assertEquals(2, pool.getIdleConnectionCount());
+        assertEquals(1, pool.getConnectionsEvicted());
+    }
+
+    @Test
+    public void poll_withConnectionIdleForTooLong_shouldCloseConnection() throws Exception {
+        ImapConnection connection = createConnection(null, OPEN_MODE_RW);
+        pool.offer(connection);
+        pool.time += MAX_IDLE_TIME + 1;
+
+        ImapConnection result = pool.poll();
+
+        assertNull(result);
+        verify(connection).close();
+        assertEquals(1, pool.getConnectionsEvicted());
+    }
+
+    private ImapConnection createConnection(String selectedFolder, int mode) {
+        ImapConnection connection = mock(ImapConnection.class);
+        when(connection.isConnected()).thenReturn(true);
+        if (selectedFolder != null) {
+            SelectedFolderState state = new SelectedFolderState(selectedFolder, mode, 10, 100L, -1L, false);
+            when(connection.getSelectedFolderState()).thenReturn(state);
+        }
+
+        return connection;
+    }
+
+
+    static class TestImapConnectionPool extends ImapConnectionPool {
+        long time = 0L;
+
+        TestImapConnectionPool(int maxIdleConnections, long maxIdleTime) {
+            super(maxIdleConnections, maxIdleTime);
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return time;
+        }
+    }
+}
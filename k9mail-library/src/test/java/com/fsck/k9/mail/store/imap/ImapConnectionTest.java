@@ -9,6 +9,7 @@ import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.List;
 
 import android.annotation.SuppressLint;
 import android.net.ConnectivityManager;
@@ -34,6 +35,7 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLog;
 
+import static java.util.Arrays.asList;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -630,6 +632,56 @@ public class ImapConnectionTest {
         server.verifyInteractionCompleted();
     }
 
+    @Test
+    public void executePipelinedCommands_shouldReturnResponsesPerCommand() throws Exception {
+        MockImapServer server = new MockImapServer();
+        simpleOpenDialog(server, "");
+        server.expect("4 STATUS \"INBOX\" (UIDNEXT)");
+        server.expect("5 STATUS \"Sent\" (UIDNEXT)");
+        server.output("* STATUS \"INBOX\" (UIDNEXT 23)");
+        server.output("4 OK STATUS completed");
+        server.output("* STATUS \"Sent\" (UIDNEXT 42)");
+        server.output("5 OK STATUS completed");
+        ImapConnection imapConnection = startServerAndCreateImapConnection(server);
+        imapConnection.open();
+
+        List<List<ImapResponse>> responses = imapConnection.executePipelinedCommands(asList(
+                "STATUS \"INBOX\" (UIDNEXT)", "STATUS \"Sent\" (UIDNEXT)"));
+
+        assertEquals(2, responses.size());
+        assertEquals(2, responses.get(0).size());
+        assertEquals("INBOX", responses.get(0).get(0).getString(1));
+        assertEquals("4", responses.get(0).get(1).getTag());
+        assertEquals(2, responses.get(1).size());
+        assertEquals("Sent", responses.get(1).get(0).getString(1));
+        assertEquals("5", responses.get(1).get(1).getTag());
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void executePipelinedCommands_withNegativeResponse_shouldReadAllResponsesAndThrow() throws Exception {
+        MockImapServer server = new MockImapServer();
+        simpleOpenDialog(server, "");
+        server.expect("4 UID STORE 1 +FLAGS.SILENT (\\Seen)");
+        server.expect("5 UID STORE 2 +FLAGS.SILENT (\\Seen)");
+        server.output("4 NO STORE failed");
+        server.output("5 OK STORE completed");
+        ImapConnection imapConnection = startServerAndCreateImapConnection(server);
+        imapConnection.open();
+
+        try {
+            imapConnection.executePipelinedCommands(asList(
+                    "UID STORE 1 +FLAGS.SILENT (\\Seen)", "UID STORE 2 +FLAGS.SILENT (\\Seen)"));
+            fail("Expected exception");
+        } catch (NegativeImapResponseException e) {
+            assertThat(e.getMessage(), containsString("UID STORE 1"));
+        }
+
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+    }
+
     private ImapConnection createImapConnection(ImapSettings settings, TrustedSocketFactory socketFactory,
             ConnectivityManager connectivityManager) {
         return new ImapConnection(settings, socketFactory, connectivityManager, SOCKET_CONNECT_TIMEOUT,
@@ -1,7 +1,9 @@
 package com.fsck.k9.mail.store.imap;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -11,6 +13,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 
+import com.fsck.k9.mail.Body;
 import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.FetchProfile.Item;
 import com.fsck.k9.mail.Flag;
@@ -20,10 +23,20 @@ import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Part;
+import com.fsck.k9.mail.filter.FixedLengthInputStream;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
+import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.store.StoreConfig;
+import org.apache.commons.io.IOUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
@@ -40,8 +53,14 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -53,6 +72,9 @@ import static org.mockito.internal.util.collections.Sets.newSet;
 @RunWith(RobolectricTestRunner.class)
 @Config(manifest = Config.NONE, sdk = 21)
 public class ImapFolderTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private ImapStore imapStore;
     private ImapConnection imapConnection;
     private StoreConfig storeConfig;
@@ -67,6 +89,8 @@ public class ImapFolderTest {
         when(imapStore.getStoreConfig()).thenReturn(storeConfig);
 
         imapConnection = mock(ImapConnection.class);
+
+        BinaryTempFileBody.setTempDirectory(temporaryFolder.getRoot());
     }
 
     @Test
@@ -210,6 +234,101 @@ public class ImapFolderTest {
         assertFalse(imapFolder.isOpen());
     }
 
+    @Test
+    public void close_shouldRememberSelectedFolderStateOnConnection() throws Exception {
+        ImapFolder imapFolder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RW);
+        imapFolder.open(OPEN_MODE_RW);
+
+        imapFolder.close();
+
+        ArgumentCaptor<SelectedFolderState> stateCaptor = ArgumentCaptor.forClass(SelectedFolderState.class);
+        verify(imapConnection).setSelectedFolderState(stateCaptor.capture());
+        verify(imapStore).releaseConnection(imapConnection);
+        SelectedFolderState state = stateCaptor.getValue();
+        assertTrue(state.matches("Folder", OPEN_MODE_RW));
+        assertEquals(23, state.messageCount);
+        assertEquals(57576L, state.uidNext);
+    }
+
+    @Test
+    public void open_withConnectionHavingFolderSelected_shouldNotSelectAgain() throws Exception {
+        ImapFolder imapFolder = createFolder("Folder");
+        when(imapStore.getConnectionWithSelectedFolder("Folder", OPEN_MODE_RW)).thenReturn(imapConnection);
+        when(imapConnection.getSelectedFolderState())
+                .thenReturn(new SelectedFolderState("Folder", OPEN_MODE_RW, 23, 57576L, -1L, false));
+        when(imapConnection.executeSimpleCommand(Commands.NOOP))
+                .thenReturn(singletonList(createImapResponse("* 25 EXISTS")));
+
+        imapFolder.open(OPEN_MODE_RW);
+
+        verify(imapConnection, never()).executeSimpleCommand("SELECT \"Folder\"");
+        verify(imapStore, never()).getConnection();
+        assertEquals(25, imapFolder.getMessageCount());
+        assertEquals(57576L, imapFolder.uidNext);
+    }
+
+    @Test
+    public void open_withConnectionHavingFolderSelectedWithModSeq_shouldNotSendStatus() throws Exception {
+        ImapFolder imapFolder = createFolder("Folder");
+        when(imapStore.getConnectionWithSelectedFolder("Folder", OPEN_MODE_RW)).thenReturn(imapConnection);
+        when(imapConnection.getSelectedFolderState())
+                .thenReturn(new SelectedFolderState("Folder", OPEN_MODE_RW, 23, 57576L, 1000L, false));
+
+        imapFolder.open(OPEN_MODE_RW);
+
+        verify(imapConnection, never()).executeSimpleCommand("STATUS \"Folder\" (HIGHESTMODSEQ)");
+        assertEquals(1000L, imapFolder.getHighestModSeq());
+    }
+
+    @Test
+    public void open_withConnectionHavingFolderSelectedAndFetchWithModSeq_shouldUpdateHighestModSeq()
+            throws Exception {
+        ImapFolder imapFolder = createFolder("Folder");
+        when(imapStore.getConnectionWithSelectedFolder("Folder", OPEN_MODE_RW)).thenReturn(imapConnection);
+        when(imapConnection.getSelectedFolderState())
+                .thenReturn(new SelectedFolderState("Folder", OPEN_MODE_RW, 23, 57576L, 1000L, false));
+        when(imapConnection.executeSimpleCommand(Commands.NOOP)).thenReturn(asList(
+                createImapResponse("* 3 FETCH (FLAGS (\\Seen) MODSEQ (1234))"),
+                createImapResponse("* 5 FETCH (FLAGS () MODSEQ (1100))")));
+
+        imapFolder.open(OPEN_MODE_RW);
+
+        assertEquals(1234L, imapFolder.getHighestModSeq());
+    }
+
+    @Test
+    public void open_withConnectionHavingFolderSelectedAndOkHighestModSeq_shouldUpdateHighestModSeq()
+            throws Exception {
+        ImapFolder imapFolder = createFolder("Folder");
+        when(imapStore.getConnectionWithSelectedFolder("Folder", OPEN_MODE_RW)).thenReturn(imapConnection);
+        when(imapConnection.getSelectedFolderState())
+                .thenReturn(new SelectedFolderState("Folder", OPEN_MODE_RW, 23, 57576L, 1000L, false));
+        when(imapConnection.executeSimpleCommand(Commands.NOOP))
+                .thenReturn(singletonList(createImapResponse("* OK [HIGHESTMODSEQ 1500] Highest")));
+
+        imapFolder.open(OPEN_MODE_RW);
+
+        assertEquals(1500L, imapFolder.getHighestModSeq());
+    }
+
+    @Test
+    public void open_withDeadConnectionHavingFolderSelected_shouldSelectOnNewConnection() throws Exception {
+        ImapFolder imapFolder = createFolder("Folder");
+        ImapConnection deadConnection = mock(ImapConnection.class);
+        when(imapStore.getConnectionWithSelectedFolder("Folder", OPEN_MODE_RW)).thenReturn(deadConnection);
+        when(deadConnection.getSelectedFolderState())
+                .thenReturn(new SelectedFolderState("Folder", OPEN_MODE_RW, 23, 57576L, -1L, false));
+        doThrow(IOException.class).when(deadConnection).executeSimpleCommand(Commands.NOOP);
+        prepareImapFolderForOpen(OPEN_MODE_RW);
+
+        imapFolder.open(OPEN_MODE_RW);
+
+        verify(deadConnection).close();
+        verify(imapConnection).executeSimpleCommand("SELECT \"Folder\"");
+        assertEquals(23, imapFolder.getMessageCount());
+    }
+
     @Test
     public void exists_withClosedFolder_shouldOpenConnectionAndIssueStatusCommand() throws Exception {
         ImapFolder imapFolder = createFolder("Folder");
@@ -456,7 +575,7 @@ public class ImapFolderTest {
         ImapFolder folder = createFolder("Folder");
         prepareImapFolderForOpen(OPEN_MODE_RW);
         List<ImapResponse> imapResponses = singletonList(createImapResponse("* SEARCH 1 2 3"));
-        when(imapConnection.executeSimpleCommand("SEARCH 1:* UNSEEN NOT DELETED")).thenReturn(imapResponses);
+        stubStreamingCommand("SEARCH 1:* UNSEEN NOT DELETED", imapResponses);
         folder.open(OPEN_MODE_RW);
 
         int result = folder.getUnreadMessageCount();
@@ -485,7 +604,7 @@ public class ImapFolderTest {
                 createImapResponse("* SEARCH 1 2"),
                 createImapResponse("* SEARCH 23 42")
         );
-        when(imapConnection.executeSimpleCommand("SEARCH 1:* FLAGGED NOT DELETED")).thenReturn(imapResponses);
+        stubStreamingCommand("SEARCH 1:* FLAGGED NOT DELETED", imapResponses);
         folder.open(OPEN_MODE_RW);
 
         int result = folder.getFlaggedMessageCount();
@@ -498,7 +617,7 @@ public class ImapFolderTest {
         ImapFolder folder = createFolder("Folder");
         prepareImapFolderForOpen(OPEN_MODE_RW);
         List<ImapResponse> imapResponses = singletonList(createImapResponse("* SEARCH 42"));
-        when(imapConnection.executeSimpleCommand("UID SEARCH *:*")).thenReturn(imapResponses);
+        stubStreamingCommand("UID SEARCH *:*", imapResponses);
         folder.open(OPEN_MODE_RW);
 
         long result = folder.getHighestUid();
@@ -506,6 +625,62 @@ public class ImapFolderTest {
         assertEquals(42L, result);
     }
 
+    @Test
+    public void open_withCondstoreCapability_shouldRequestAndStoreHighestModSeq() throws Exception {
+        ImapFolder imapFolder = createFolder("Folder");
+        when(imapStore.getConnection()).thenReturn(imapConnection);
+        when(imapConnection.hasCapability(Capabilities.CONDSTORE)).thenReturn(true);
+        List<ImapResponse> selectResponses = asList(
+                createImapResponse("* 23 EXISTS"),
+                createImapResponse("* OK [HIGHESTMODSEQ 715194045007] Highest"),
+                createImapResponse("2 OK [READ-WRITE] Select completed.")
+        );
+        when(imapConnection.executeSimpleCommand("SELECT \"Folder\" (CONDSTORE)")).thenReturn(selectResponses);
+
+        imapFolder.open(OPEN_MODE_RW);
+
+        assertEquals(715194045007L, imapFolder.getHighestModSeq());
+    }
+
+    @Test
+    public void open_withoutHighestModSeq_shouldReturnMinusOne() throws Exception {
+        ImapFolder imapFolder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RW);
+
+        imapFolder.open(OPEN_MODE_RW);
+
+        assertEquals(-1L, imapFolder.getHighestModSeq());
+    }
+
+    @Test
+    public void getMessagesWithChangedFlags_shouldIssueChangedSinceFetchAndSetFlags() throws Exception {
+        ImapFolder imapFolder = createFolder("Folder");
+        when(imapStore.getConnection()).thenReturn(imapConnection);
+        when(imapConnection.hasCapability(Capabilities.CONDSTORE)).thenReturn(true);
+        List<ImapResponse> selectResponses = asList(
+                createImapResponse("* 23 EXISTS"),
+                createImapResponse("* OK [HIGHESTMODSEQ 20] Highest"),
+                createImapResponse("2 OK [READ-WRITE] Select completed.")
+        );
+        when(imapConnection.executeSimpleCommand("SELECT \"Folder\" (CONDSTORE)")).thenReturn(selectResponses);
+        List<ImapResponse> fetchResponses = asList(
+                createImapResponse("* 3 FETCH (UID 7 FLAGS (\\Seen \\Flagged) MODSEQ (18))"),
+                createImapResponse("* 5 FETCH (UID 9 FLAGS () MODSEQ (20))"),
+                createImapResponse("3 OK Fetch completed.")
+        );
+        stubStreamingCommand("UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE 12)", fetchResponses);
+        imapFolder.open(OPEN_MODE_RW);
+
+        List<ImapMessage> messages = imapFolder.getMessagesWithChangedFlags(12);
+
+        assertEquals(2, messages.size());
+        assertEquals("7", messages.get(0).getUid());
+        assertTrue(messages.get(0).isSet(Flag.SEEN));
+        assertTrue(messages.get(0).isSet(Flag.FLAGGED));
+        assertEquals("9", messages.get(1).getUid());
+        assertFalse(messages.get(1).isSet(Flag.SEEN));
+    }
+
     @Test
     public void getMessages_withoutDateConstraint() throws Exception {
         ImapFolder folder = createFolder("Folder");
@@ -515,7 +690,7 @@ public class ImapFolderTest {
                 createImapResponse("* SEARCH 5"),
                 createImapResponse("* SEARCH 6")
         );
-        when(imapConnection.executeSimpleCommand("UID SEARCH 1:10 NOT DELETED")).thenReturn(imapResponses);
+        stubStreamingCommand("UID SEARCH 1:10 NOT DELETED", imapResponses);
         folder.open(OPEN_MODE_RW);
 
         List<ImapMessage> messages = folder.getMessages(1, 10, null, null);
@@ -533,7 +708,7 @@ public class ImapFolderTest {
                 createImapResponse("* SEARCH 47"),
                 createImapResponse("* SEARCH 18")
         );
-        when(imapConnection.executeSimpleCommand("UID SEARCH 1:10 SINCE 06-Feb-2016 NOT DELETED")).thenReturn(imapResponses);
+        stubStreamingCommand("UID SEARCH 1:10 SINCE 06-Feb-2016 NOT DELETED", imapResponses);
         folder.open(OPEN_MODE_RW);
 
         List<ImapMessage> messages = folder.getMessages(1, 10, new Date(1454719826000L), null);
@@ -547,7 +722,7 @@ public class ImapFolderTest {
         ImapFolder folder = createFolder("Folder");
         prepareImapFolderForOpen(OPEN_MODE_RW);
         List<ImapResponse> imapResponses = singletonList(createImapResponse("* SEARCH 99"));
-        when(imapConnection.executeSimpleCommand("UID SEARCH 1:10 NOT DELETED")).thenReturn(imapResponses);
+        stubStreamingCommand("UID SEARCH 1:10 NOT DELETED", imapResponses);
         folder.open(OPEN_MODE_RW);
         MessageRetrievalListener<ImapMessage> listener = createMessageRetrievalListener();
 
@@ -630,7 +805,7 @@ public class ImapFolderTest {
                 createImapResponse("* SEARCH 18"),
                 createImapResponse("* SEARCH 49")
         );
-        when(imapConnection.executeSimpleCommand("UID SEARCH 1,2,5 NOT DELETED")).thenReturn(imapResponses);
+        stubStreamingCommand("UID SEARCH 1,2,5 NOT DELETED", imapResponses);
         folder.open(OPEN_MODE_RW);
 
         List<ImapMessage> messages = folder.getMessages(asList(1L, 2L, 5L), false, null);
@@ -644,7 +819,7 @@ public class ImapFolderTest {
         ImapFolder folder = createFolder("Folder");
         prepareImapFolderForOpen(OPEN_MODE_RW);
         List<ImapResponse> imapResponses = singletonList(createImapResponse("* SEARCH 99"));
-        when(imapConnection.executeSimpleCommand("UID SEARCH 1")).thenReturn(imapResponses);
+        stubStreamingCommand("UID SEARCH 1", imapResponses);
         folder.open(OPEN_MODE_RW);
         MessageRetrievalListener<ImapMessage> listener = createMessageRetrievalListener();
 
@@ -678,7 +853,7 @@ public class ImapFolderTest {
                 createImapResponse("* SEARCH 22"),
                 createImapResponse("* SEARCH 25")
         );
-        when(imapConnection.executeSimpleCommand("UID SEARCH UID 11,22,25")).thenReturn(imapResponses);
+        stubStreamingCommand("UID SEARCH UID 11,22,25", imapResponses);
         folder.open(OPEN_MODE_RW);
 
         List<ImapMessage> messages = folder.getMessagesFromUids(asList("11", "22", "25"));
@@ -787,6 +962,20 @@ public class ImapFolderTest {
                 ")", false);
     }
 
+    @Test
+    public void fetch_withEnvelopeFetchProfile_shouldStreamHeaderLiteralThroughCallback() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RO);
+        folder.open(OPEN_MODE_RO);
+        when(imapConnection.readResponse(any(ImapResponseCallback.class))).thenReturn(createImapResponse("x OK"));
+        List<ImapMessage> messages = createImapMessages("1");
+        FetchProfile fetchProfile = createFetchProfile(Item.ENVELOPE);
+
+        folder.fetch(messages, fetchProfile, null);
+
+        verify(imapConnection).readResponse(isA(FetchBodyCallback.class));
+    }
+
     @Test
     public void fetch_withStructureFetchProfile_shouldIssueRespectiveCommand() throws Exception {
         ImapFolder folder = createFolder("Folder");
@@ -888,7 +1077,85 @@ public class ImapFolderTest {
 
         folder.fetchPart(message, part, null);
 
-        verify(imapConnection).sendCommand("UID FETCH 1 (UID BODY.PEEK[1.1])", false);
+        verify(imapConnection).sendCommand("UID FETCH 1 (UID BODY.PEEK[1.1]<0.1048576>)", false);
+    }
+
+    @Test
+    public void fetchPart_withBase64PartAndBinaryCapability_shouldIssueBinaryCommand() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RO);
+        when(imapConnection.hasCapability(Capabilities.BINARY)).thenReturn(true);
+        folder.open(OPEN_MODE_RO);
+        ImapMessage message = createImapMessage("1");
+        Part part = createPart("2");
+        when(part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)).thenReturn(new String[] { "base64" });
+        when(imapConnection.readResponse(any(ImapResponseCallback.class))).thenReturn(createImapResponse("x OK"));
+
+        folder.fetchPart(message, part, null);
+
+        verify(imapConnection).sendCommand("UID FETCH 1 (UID BINARY.PEEK[2]<0.1048576>)", false);
+    }
+
+    @Test
+    public void fetchPart_withConnectionFailingInTheMiddleOfARange_shouldResumeAfterLastByteReceived()
+            throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RO);
+        folder.open(OPEN_MODE_RO);
+        ImapMessage message = createImapMessage("1");
+        Part part = createPart("1");
+        final ImapResponse fetchResponse = createImapResponse("* 1 FETCH (UID 1)");
+        when(imapConnection.readResponse(any(ImapResponseCallback.class))).thenAnswer(new Answer<ImapResponse>() {
+            private int call = 0;
+
+            @Override
+            public ImapResponse answer(InvocationOnMock invocation) throws Throwable {
+                ImapResponseCallback callback = (ImapResponseCallback) invocation.getArguments()[0];
+                switch (call++) {
+                    case 0: {
+                        callback.foundLiteral(fetchResponse, new FixedLengthInputStream(
+                                createInterruptedStream("Hello"), "Hello, world".length()));
+                        throw new AssertionError("Expected IOException");
+                    }
+                    case 1: {
+                        callback.foundLiteral(fetchResponse, new FixedLengthInputStream(
+                                new ByteArrayInputStream(", world".getBytes()), ", world".length()));
+                        return fetchResponse;
+                    }
+                    default: {
+                        return createImapResponse("x OK");
+                    }
+                }
+            }
+        });
+
+        folder.fetchPart(message, part, null);
+
+        InOrder inOrder = inOrder(imapConnection);
+        inOrder.verify(imapConnection).sendCommand("UID FETCH 1 (UID BODY.PEEK[1]<0.1048576>)", false);
+        inOrder.verify(imapConnection).executeSimpleCommand("EXAMINE \"Folder\"");
+        inOrder.verify(imapConnection).sendCommand("UID FETCH 1 (UID BODY.PEEK[1]<5.1048576>)", false);
+        assertEquals("Hello, world", readBody(part));
+    }
+
+    @Test
+    public void fetchPart_withConnectionFailingRepeatedlyWithoutProgress_shouldThrow() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RO);
+        folder.open(OPEN_MODE_RO);
+        ImapMessage message = createImapMessage("1");
+        Part part = createPart("1");
+        when(imapConnection.readResponse(any(ImapResponseCallback.class))).thenThrow(new IOException());
+
+        try {
+            folder.fetchPart(message, part, null);
+            fail("Expected exception");
+        } catch (MessagingException e) {
+            assertEquals("IO Error", e.getMessage());
+        }
+
+        verify(imapConnection, times(4)).sendCommand("UID FETCH 1 (UID BODY.PEEK[1]<0.1048576>)", false);
+        verify(part, never()).setBody(any(Body.class));
     }
 
     @Test
@@ -963,6 +1230,41 @@ public class ImapFolderTest {
         verify(imapConnection).executeSimpleCommand("UID STORE 1:* +FLAGS.SILENT (\\Seen)");
     }
 
+    @Test
+    public void setFlags_withMessages_shouldIssueUidStoreCommand() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RW);
+        List<ImapMessage> messages = createImapMessages("1", "2");
+
+        folder.setFlags(messages, newSet(Flag.SEEN), false);
+
+        verify(imapConnection).executeSimpleCommand("UID STORE 1,2 -FLAGS.SILENT (\\Seen)");
+    }
+
+    @Test
+    public void setFlags_withMoreMessagesThanStoreWindow_shouldPipelineUidStoreCommands() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RW);
+        List<ImapMessage> messages = new ArrayList<>();
+        StringBuilder firstWindow = new StringBuilder();
+        for (int uid = 1; uid <= ImapFolder.STORE_WINDOW_SIZE + 1; uid++) {
+            messages.add(createImapMessage(Integer.toString(uid)));
+            if (uid <= ImapFolder.STORE_WINDOW_SIZE) {
+                firstWindow.append(uid == 1 ? "" : ",").append(uid);
+            }
+        }
+        List<ImapResponse> storeResponses = singletonList(createImapResponse("x OK Success"));
+        when(imapConnection.executePipelinedCommands(any(List.class)))
+                .thenReturn(asList(storeResponses, storeResponses));
+
+        folder.setFlags(messages, newSet(Flag.SEEN), true);
+
+        verify(imapConnection).executePipelinedCommands(asList(
+                "UID STORE " + firstWindow + " +FLAGS.SILENT (\\Seen)",
+                "UID STORE " + (ImapFolder.STORE_WINDOW_SIZE + 1) + " +FLAGS.SILENT (\\Seen)"));
+        verify(imapConnection, never()).executeSimpleCommand(startsWith("UID STORE"));
+    }
+
     @Test
     public void getNewPushState_withNewerUid_shouldReturnNewPushState() throws Exception {
         ImapFolder folder = createFolder("Folder");
@@ -994,7 +1296,8 @@ public class ImapFolderTest {
 
         folder.search("query", newSet(Flag.SEEN), Collections.<Flag>emptySet());
 
-        verify(imapConnection).executeSimpleCommand("UID SEARCH SEEN TEXT \"query\"");
+        verify(imapConnection).executeStreamingCommand(eq("UID SEARCH SEEN TEXT \"query\""),
+                any(ImapResponseStreamHandler.class));
     }
 
     @Test
@@ -1006,7 +1309,8 @@ public class ImapFolderTest {
 
         folder.search("query", Collections.<Flag>emptySet(), Collections.<Flag>emptySet());
 
-        verify(imapConnection).executeSimpleCommand("UID SEARCH OR SUBJECT \"query\" FROM \"query\"");
+        verify(imapConnection).executeStreamingCommand(eq("UID SEARCH OR SUBJECT \"query\" FROM \"query\""),
+                any(ImapResponseStreamHandler.class));
     }
 
     @Test
@@ -1060,6 +1364,39 @@ public class ImapFolderTest {
         return part;
     }
 
+    private String readBody(Part part) throws Exception {
+        ArgumentCaptor<Body> bodyCaptor = ArgumentCaptor.forClass(Body.class);
+        verify(part).setBody(bodyCaptor.capture());
+
+        return IOUtils.toString(bodyCaptor.getValue().getInputStream());
+    }
+
+    /**
+     * @return A stream that returns {@code data} and then fails like a broken connection.
+     */
+    private InputStream createInterruptedStream(String data) {
+        final InputStream dataStream = new ByteArrayInputStream(data.getBytes());
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                int result = dataStream.read();
+                if (result == -1) {
+                    throw new IOException("Connection reset");
+                }
+                return result;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int result = dataStream.read(buffer, offset, length);
+                if (result == -1) {
+                    throw new IOException("Connection reset");
+                }
+                return result;
+            }
+        };
+    }
+
     private FetchProfile createFetchProfile(Item... items) {
         FetchProfile fetchProfile = new FetchProfile();
         Collections.addAll(fetchProfile, items);
@@ -1072,6 +1409,30 @@ public class ImapFolderTest {
         return mock(MessageRetrievalListener.class);
     }
 
+    private void stubStreamingCommand(String command, final List<ImapResponse> responses) throws Exception {
+        doAnswer(new Answer<List<ImapResponse>>() {
+            @Override
+            public List<ImapResponse> answer(InvocationOnMock invocation) throws Throwable {
+                ImapResponseStreamHandler streamHandler = (ImapResponseStreamHandler) invocation.getArguments()[1];
+
+                List<ImapResponse> result = new ArrayList<>();
+                for (ImapResponse response : responses) {
+                    if (response.isTagged()) {
+                        result.add(response);
+                    } else if (ImapResponseParser.equalsIgnoreCase(response.get(0), Responses.SEARCH)) {
+                        for (int i = 1, end = response.size(); i < end; i++) {
+                            streamHandler.onSearchResult(Long.parseLong(response.getString(i)));
+                        }
+                    } else if (!streamHandler.onUntaggedResponse(response)) {
+                        result.add(response);
+                    }
+                }
+
+                return result;
+            }
+        }).when(imapConnection).executeStreamingCommand(eq(command), any(ImapResponseStreamHandler.class));
+    }
+
     private void prepareImapFolderForOpen(int openMode) throws MessagingException, IOException {
         when(imapStore.getConnection()).thenReturn(imapConnection);
         List<ImapResponse> imapResponses = asList(
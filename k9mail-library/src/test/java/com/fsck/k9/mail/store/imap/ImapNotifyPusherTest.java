@@ -0,0 +1,84 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 21)
+public class ImapNotifyPusherTest {
+
+    @Test
+    public void createNotifyCommand_shouldListAllMailboxes() throws Exception {
+        String command = ImapNotifyPusher.createNotifyCommand(Arrays.asList("INBOX", "Sent Items"));
+
+        assertEquals("NOTIFY SET (mailboxes (\"INBOX\" \"Sent Items\") (MessageNew MessageExpunge FlagChange))",
+                command);
+    }
+
+    @Test
+    public void getStatusMailboxName_withStatusResponse_shouldReturnMailboxName() throws Exception {
+        ImapResponse response = createImapResponse("* STATUS \"Sent Items\" (MESSAGES 3 UIDNEXT 42)");
+
+        String mailboxName = ImapNotifyPusher.getStatusMailboxName(response);
+
+        assertEquals("Sent Items", mailboxName);
+    }
+
+    @Test
+    public void getStatusMailboxName_withOtherResponse_shouldReturnNull() throws Exception {
+        ImapResponse response = createImapResponse("* 23 EXISTS");
+
+        String mailboxName = ImapNotifyPusher.getStatusMailboxName(response);
+
+        assertNull(mailboxName);
+    }
+
+    @Test
+    public void getStatusMailboxName_withTaggedResponse_shouldReturnNull() throws Exception {
+        ImapResponse response = createImapResponse("x STATUS completed");
+
+        String mailboxName = ImapNotifyPusher.getStatusMailboxName(response);
+
+        assertNull(mailboxName);
+    }
+
+    @Test
+    public void isFetchResponse_withFlagsFetchResponse_shouldReturnTrue() throws Exception {
+        ImapResponse response = createImapResponse("* 3 FETCH (UID 42 FLAGS (\\Seen))");
+
+        assertTrue(ImapNotifyPusher.isFetchResponse(response));
+    }
+
+    @Test
+    public void isFetchResponse_withStatusResponse_shouldReturnFalse() throws Exception {
+        ImapResponse response = createImapResponse("* STATUS \"INBOX\" (MESSAGES 3)");
+
+        assertFalse(ImapNotifyPusher.isFetchResponse(response));
+    }
+
+    @Test
+    public void isNotificationOverflow_withOverflowResponse_shouldReturnTrue() throws Exception {
+        ImapResponse response = createImapResponse("* NO [NOTIFICATIONOVERFLOW] Too many notifications");
+
+        assertTrue(ImapNotifyPusher.isNotificationOverflow(response));
+    }
+
+    @Test
+    public void isNotificationOverflow_withOtherResponseCode_shouldReturnFalse() throws Exception {
+        ImapResponse response = createImapResponse("* OK [ALERT] Hello");
+
+        assertFalse(ImapNotifyPusher.isNotificationOverflow(response));
+    }
+}
@@ -17,6 +17,7 @@ import org.robolectric.annotation.Config;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -81,6 +82,73 @@ public class ImapPusherTest {
         verify(imapFolderPusherTwo).start();
     }
 
+    @Test
+    public void start_withTwoFolderNamesAndNotifyCapableStore_shouldStartSingleImapNotifyPusher() throws Exception {
+        when(imapStore.isNotifyCapable()).thenReturn(true);
+        List<String> folderNames = Arrays.asList("INBOX", "Drafts");
+
+        imapPusher.start(folderNames);
+
+        assertEquals(0, imapPusher.getImapFolderPushers().size());
+        assertEquals(1, imapPusher.getImapNotifyPushers().size());
+        verify(imapPusher.getImapNotifyPushers().get(0)).start();
+    }
+
+    @Test
+    public void start_withSingleFolderNameAndNotifyCapableStore_shouldStartImapFolderPusher() throws Exception {
+        when(imapStore.isNotifyCapable()).thenReturn(true);
+
+        imapPusher.start(Collections.singletonList("INBOX"));
+
+        assertEquals(1, imapPusher.getImapFolderPushers().size());
+        assertEquals(0, imapPusher.getImapNotifyPushers().size());
+    }
+
+    @Test
+    public void fallBackToFolderPushers_shouldStartImapFolderPusherForEveryFolder() throws Exception {
+        when(imapStore.isNotifyCapable()).thenReturn(true);
+        List<String> folderNames = Arrays.asList("INBOX", "Drafts");
+        imapPusher.start(folderNames);
+        ImapNotifyPusher imapNotifyPusher = imapPusher.getImapNotifyPushers().get(0);
+        when(imapNotifyPusher.getFolderNames()).thenReturn(folderNames);
+
+        imapPusher.fallBackToFolderPushers(imapNotifyPusher);
+
+        verify(imapStore).setNotifyCapable(false);
+        List<ImapFolderPusher> imapFolderPushers = imapPusher.getImapFolderPushers();
+        assertEquals(2, imapFolderPushers.size());
+        verify(imapFolderPushers.get(0)).start();
+        verify(imapFolderPushers.get(1)).start();
+    }
+
+    @Test
+    public void fallBackToFolderPushers_afterStop_shouldNotStartImapFolderPushers() throws Exception {
+        when(imapStore.isNotifyCapable()).thenReturn(true);
+        imapPusher.start(Arrays.asList("INBOX", "Drafts"));
+        ImapNotifyPusher imapNotifyPusher = imapPusher.getImapNotifyPushers().get(0);
+        imapPusher.stop();
+
+        imapPusher.fallBackToFolderPushers(imapNotifyPusher);
+
+        assertEquals(0, imapPusher.getImapFolderPushers().size());
+    }
+
+    @Test
+    public void start_withTwoFolderNames_shouldReportTwoPushConnections() throws Exception {
+        imapPusher.start(Arrays.asList("Important", "Drafts"));
+
+        verify(imapStore).setPushConnectionCount(2);
+    }
+
+    @Test
+    public void start_withTwoFolderNamesAndNotifyCapableStore_shouldReportOnePushConnection() throws Exception {
+        when(imapStore.isNotifyCapable()).thenReturn(true);
+
+        imapPusher.start(Arrays.asList("INBOX", "Drafts"));
+
+        verify(imapStore).setPushConnectionCount(1);
+    }
+
     @Test
     public void stop_withoutStartBeingCalled_shouldNotCreateAnyImapFolderPushers() throws Exception {
         imapPusher.stop();
@@ -102,6 +170,16 @@ public class ImapPusherTest {
         verify(imapFolderPusher).stop();
     }
 
+    @Test
+    public void stop_afterStart_shouldReportNoPushConnections() throws Exception {
+        imapPusher.start(Collections.singletonList("Archive"));
+
+        imapPusher.stop();
+
+        verify(imapStore).setPushConnectionCount(1);
+        verify(imapStore, times(2)).setPushConnectionCount(0);
+    }
+
     @Test
     public void stop_withImapFolderPusherThrowing_shouldNotThrow() throws Exception {
         List<String> folderNames = Collections.singletonList("Archive");
@@ -125,6 +203,26 @@ public class ImapPusherTest {
         verify(imapFolderPusher).refresh();
     }
 
+    @Test
+    public void refresh_shouldCallRefreshOnStartedImapNotifyPusher() throws Exception {
+        when(imapStore.isNotifyCapable()).thenReturn(true);
+        imapPusher.start(Arrays.asList("INBOX", "Drafts"));
+
+        imapPusher.refresh();
+
+        verify(imapPusher.getImapNotifyPushers().get(0)).refresh();
+    }
+
+    @Test
+    public void stop_afterStartWithNotifyCapableStore_shouldStopImapNotifyPusher() throws Exception {
+        when(imapStore.isNotifyCapable()).thenReturn(true);
+        imapPusher.start(Arrays.asList("INBOX", "Drafts"));
+
+        imapPusher.stop();
+
+        verify(imapPusher.getImapNotifyPushers().get(0)).stop();
+    }
+
     @Test
     public void refresh_withImapFolderPusherThrowing_shouldNotThrow() throws Exception {
         List<String> folderNames = Collections.singletonList("Folder");
@@ -159,6 +257,7 @@ public class ImapPusherTest {
 
 
         private final List<ImapFolderPusher> imapFolderPushers = new ArrayList<>();
+        private final List<ImapNotifyPusher> imapNotifyPushers = new ArrayList<>();
 
 
         public TestImapPusher(ImapStore store, PushReceiver receiver) {
@@ -176,6 +275,17 @@ public class ImapPusherTest {
             return imapFolderPushers;
         }
 
+        @Override
+        ImapNotifyPusher createImapNotifyPusher(List<String> folderNames) {
+            ImapNotifyPusher imapNotifyPusher = mock(ImapNotifyPusher.class);
+            imapNotifyPushers.add(imapNotifyPusher);
+            return imapNotifyPusher;
+        }
+
+        public List<ImapNotifyPusher> getImapNotifyPushers() {
+            return imapNotifyPushers;
+        }
+
         @Override
         long currentTimeMillis() {
             return CURRENT_TIME_MILLIS;
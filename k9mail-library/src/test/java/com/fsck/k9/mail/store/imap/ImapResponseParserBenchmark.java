@@ -0,0 +1,161 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Locale;
+
+import com.fsck.k9.mail.filter.PeekableInputStream;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Measures how long {@link ImapResponseParser} takes to read the responses of commands on a large mailbox.
+ * <p>
+ * Each response is read once into {@link ImapResponse} trees and once through an {@link ImapResponseStreamHandler}.
+ * The responses are modeled on the ones used by {@link ImapResponseParserTest}. Not run by default. Remove the
+ * {@link Ignore} annotation to run it. It fails if streaming takes more than twice as long as building the trees.
+ * </p>
+ */
+@Ignore("Benchmark")
+public class ImapResponseParserBenchmark {
+    private static final int[] MESSAGE_COUNTS = { 1000, 10000, 100000 };
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int ITERATIONS = 10;
+
+
+    @Test
+    public void benchmark() throws Exception {
+        for (int messageCount : MESSAGE_COUNTS) {
+            benchmark("SEARCH", buildSearchResponse(messageCount), messageCount);
+            benchmark("FETCH (UID FLAGS)", buildFlagsFetchResponse(messageCount), messageCount);
+            benchmark("FETCH (ENVELOPE)", buildHeaderFetchResponse(messageCount), messageCount);
+        }
+    }
+
+    private static void benchmark(String name, byte[] response, int messageCount) throws Exception {
+        ParserRun treeRun = new ParserRun(response, false);
+        ParserRun streamingRun = new ParserRun(response, true);
+        long treeNanos = measure(treeRun);
+        long streamingNanos = measure(streamingRun);
+
+        assertEquals(messageCount, treeRun.resultCount);
+        assertEquals(messageCount, streamingRun.resultCount);
+        assertTrue(String.format(Locale.US, "%s, %d messages: tree %.1f ms, streaming %.1f ms", name, messageCount,
+                treeNanos / 1e6, streamingNanos / 1e6), streamingNanos < 2 * treeNanos);
+    }
+
+    private static long measure(ParserRun run) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            run.run();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            run.run();
+        }
+
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static byte[] buildSearchResponse(int messageCount) {
+        StringBuilder sb = new StringBuilder("* SEARCH");
+        for (int uid = 1; uid <= messageCount; uid++) {
+            sb.append(' ').append(uid);
+        }
+        sb.append("\r\n1 OK SEARCH completed\r\n");
+
+        return sb.toString().getBytes();
+    }
+
+    private static byte[] buildFlagsFetchResponse(int messageCount) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= messageCount; i++) {
+            sb.append("* ").append(i).append(" FETCH (UID ").append(1000 + i).append(" FLAGS (\\Seen")
+                    .append((i % 7 == 0) ? " \\Flagged" : "").append((i % 3 == 0) ? " $Forwarded" : "")
+                    .append(") MODSEQ (").append(50000 + i).append("))\r\n");
+        }
+        sb.append("1 OK FETCH completed\r\n");
+
+        return sb.toString().getBytes();
+    }
+
+    private static byte[] buildHeaderFetchResponse(int messageCount) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= messageCount; i++) {
+            String header = "Date: Mon, 7 Feb 1994 21:52:25 -0800\r\n" +
+                    "From: Fred Foobar <foobar@example.org>\r\n" +
+                    "Subject: afternoon meeting " + i + "\r\n" +
+                    "To: mooch@example.org\r\n" +
+                    "Message-Id: <B27397-" + i + "@example.org>\r\n" +
+                    "Content-Type: text/plain; charset=us-ascii\r\n\r\n";
+            sb.append("* ").append(i).append(" FETCH (UID ").append(1000 + i)
+                    .append(" RFC822.SIZE 4286 INTERNALDATE \"17-Jul-1996 02:44:25 -0700\" FLAGS (\\Seen)")
+                    .append(" BODY[HEADER.FIELDS (date subject from to message-id content-type)] {")
+                    .append(header.length()).append("}\r\n").append(header).append(")\r\n");
+        }
+        sb.append("1 OK FETCH completed\r\n");
+
+        return sb.toString().getBytes();
+    }
+
+
+    private static class ParserRun {
+        private final byte[] response;
+        private final boolean streaming;
+        int resultCount;
+
+        ParserRun(byte[] response, boolean streaming) {
+            this.response = response;
+            this.streaming = streaming;
+        }
+
+        void run() throws Exception {
+            PeekableInputStream inputStream = new PeekableInputStream(new ByteArrayInputStream(response));
+            ImapResponseParser parser = new ImapResponseParser(inputStream);
+            if (streaming) {
+                CountingStreamHandler streamHandler = new CountingStreamHandler();
+                parser.readStatusResponse("1", "benchmark", "benchmark", null, streamHandler);
+                resultCount = streamHandler.count;
+            } else {
+                List<ImapResponse> responses = parser.readStatusResponse("1", "benchmark", "benchmark", null);
+                resultCount = countResults(responses);
+            }
+        }
+
+        private static int countResults(List<ImapResponse> responses) {
+            int count = 0;
+            for (ImapResponse response : responses) {
+                if (response.isTagged()) {
+                    continue;
+                }
+
+                if (ImapResponseParser.equalsIgnoreCase(response.get(0), Responses.SEARCH)) {
+                    count += response.size() - 1;
+                } else {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static class CountingStreamHandler implements ImapResponseStreamHandler {
+        int count;
+
+        @Override
+        public void onSearchResult(long number) {
+            count++;
+        }
+
+        @Override
+        public boolean onUntaggedResponse(ImapResponse response) {
+            count++;
+            return true;
+        }
+    }
+}
@@ -16,6 +16,7 @@ import org.robolectric.annotation.Config;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -180,6 +181,26 @@ public class ImapResponseParserTest {
         assertEquals("test", response.getString(0));
     }
 
+    @Test
+    public void testParseLiteral8() throws Exception {
+        ImapResponseParser parser = createParser("* ~{4}\r\ntest\r\n");
+
+        ImapResponse response = parser.readResponse();
+
+        assertEquals(1, response.size());
+        assertEquals("test", response.getString(0));
+    }
+
+    @Test
+    public void testParseBareStringStartingWithTilde() throws Exception {
+        ImapResponseParser parser = createParser("* LIST () \"/\" ~user\r\n");
+
+        ImapResponse response = parser.readResponse();
+
+        assertEquals(4, response.size());
+        assertEquals("~user", response.getString(3));
+    }
+
     @Test
     public void testParseLiteralWithEmptyString() throws Exception {
         ImapResponseParser parser = createParser("* {0}\r\n\r\n");
@@ -358,12 +379,142 @@ public class ImapResponseParserTest {
         assertEquals("\\Seen", response.getList(2).getList(10).getString(0));
     }
 
+    @Test
+    public void readStatusResponse_withStreamHandler_shouldPassSearchNumbersToHandler() throws Exception {
+        ImapResponseParser parser = createParser("* SEARCH 1 2 3\r\n" +
+                "* SEARCH 23 42\r\n" +
+                "TAG OK SEARCH completed\r\n");
+        RecordingStreamHandler streamHandler = new RecordingStreamHandler(false);
+
+        List<ImapResponse> responses = parser.readStatusResponse("TAG", "SEARCH", "log", null, streamHandler);
+
+        assertEquals(asList(1L, 2L, 3L, 23L, 42L), streamHandler.searchResults);
+        assertEquals(1, responses.size());
+        assertEquals("TAG", responses.get(0).getTag());
+    }
+
+    @Test
+    public void readStatusResponse_withStreamHandlerAndModSeq_shouldReturnSearchResponseWithoutNumbers()
+            throws Exception {
+        ImapResponseParser parser = createParser("* SEARCH 2 5 (MODSEQ 917162500)\r\n" +
+                "TAG OK SEARCH completed\r\n");
+        RecordingStreamHandler streamHandler = new RecordingStreamHandler(false);
+
+        List<ImapResponse> responses = parser.readStatusResponse("TAG", "SEARCH", "log", null, streamHandler);
+
+        assertEquals(asList(2L, 5L), streamHandler.searchResults);
+        assertEquals(2, responses.size());
+        assertEquals(2, responses.get(0).size());
+        assertEquals("SEARCH", responses.get(0).getString(0));
+        assertEquals("MODSEQ", responses.get(0).getList(1).getString(0));
+        assertEquals("917162500", responses.get(0).getList(1).getString(1));
+    }
+
+    @Test
+    public void readStatusResponse_withStreamHandlerConsumingResponses_shouldOnlyReturnTaggedResponse()
+            throws Exception {
+        ImapResponseParser parser = createParser("* 1 FETCH (UID 23 FLAGS (\\Seen))\r\n" +
+                "* 2 FETCH (UID 24 FLAGS ())\r\n" +
+                "TAG OK FETCH completed\r\n");
+        RecordingStreamHandler streamHandler = new RecordingStreamHandler(true);
+
+        List<ImapResponse> responses = parser.readStatusResponse("TAG", "FETCH", "log", null, streamHandler);
+
+        assertEquals(2, streamHandler.untaggedResponses.size());
+        assertEquals(23, streamHandler.untaggedResponses.get(0).getList(2).getNumber(1));
+        assertEquals(24, streamHandler.untaggedResponses.get(1).getList(2).getNumber(1));
+        assertEquals(1, responses.size());
+        assertEquals("TAG", responses.get(0).getTag());
+    }
+
+    @Test
+    public void readStatusResponse_withStreamHandlerNotConsumingResponses_shouldReturnResponses() throws Exception {
+        ImapResponseParser parser = createParser("* 1 EXISTS\r\n" +
+                "TAG OK NOOP completed\r\n");
+        RecordingStreamHandler streamHandler = new RecordingStreamHandler(false);
+
+        List<ImapResponse> responses = parser.readStatusResponse("TAG", "NOOP", "log", null, streamHandler);
+
+        assertEquals(1, streamHandler.untaggedResponses.size());
+        assertEquals(2, responses.size());
+        assertEquals("EXISTS", responses.get(0).getString(1));
+    }
+
+    @Test
+    public void readStatusResponse_withoutStreamHandler_shouldReturnSearchNumbersAsTokens() throws Exception {
+        ImapResponseParser parser = createParser("* SEARCH 1 2\r\n" +
+                "TAG OK SEARCH completed\r\n");
+
+        List<ImapResponse> responses = parser.readStatusResponse("TAG", "SEARCH", "log", null);
+
+        assertEquals(2, responses.size());
+        assertEquals(3, responses.get(0).size());
+        assertEquals("1", responses.get(0).getString(1));
+        assertEquals("2", responses.get(0).getString(2));
+    }
+
+    @Test
+    public void readResponse_shouldShareInstancesOfCommonAtoms() throws Exception {
+        ImapResponseParser parser = createParser("* 1 FETCH (UID 23 FLAGS (\\Seen))\r\n");
+
+        ImapResponse response = parser.readResponse();
+
+        assertSame("FETCH", response.getString(1));
+        assertSame("UID", response.getList(2).getString(0));
+        assertSame("FLAGS", response.getList(2).getString(2));
+        assertSame("\\Seen", response.getList(2).getList(3).getString(0));
+    }
+
+    @Test
+    public void readResponse_withAtomLongerThanTokenBuffer() throws Exception {
+        String longAtom = repeat('a', 1000);
+        String longQuoted = repeat('b', 700);
+        ImapResponseParser parser = createParser("* OK [" + longAtom + "] text\r\n" +
+                "* 1 FETCH (BODY[TEXT] \"" + longQuoted + "\")\r\n");
+
+        ImapResponse firstResponse = parser.readResponse();
+        ImapResponse secondResponse = parser.readResponse();
+
+        assertEquals(longAtom, firstResponse.getList(1).getString(0));
+        assertEquals(longQuoted, secondResponse.getList(2).getString(2));
+    }
+
     private ImapResponseParser createParser(String response) {
         ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(response.getBytes());
         PeekableInputStream peekableInputStream = new PeekableInputStream(byteArrayInputStream);
         return new ImapResponseParser(peekableInputStream);
     }
 
+    private String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+
+    private static class RecordingStreamHandler implements ImapResponseStreamHandler {
+        private final boolean consumeResponses;
+        final List<Long> searchResults = new ArrayList<>();
+        final List<ImapResponse> untaggedResponses = new ArrayList<>();
+
+        RecordingStreamHandler(boolean consumeResponses) {
+            this.consumeResponses = consumeResponses;
+        }
+
+        @Override
+        public void onSearchResult(long number) {
+            searchResults.add(number);
+        }
+
+        @Override
+        public boolean onUntaggedResponse(ImapResponse response) {
+            untaggedResponses.add(response);
+            return consumeResponses;
+        }
+    }
+
 
     private class TestImapResponseCallback implements ImapResponseCallback {
         private final int readNumberOfBytes;
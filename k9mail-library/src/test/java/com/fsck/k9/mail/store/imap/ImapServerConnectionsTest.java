@@ -0,0 +1,57 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class ImapServerConnectionsTest {
+    @Test
+    public void getAvailableConnections_withoutPush_shouldReturnServerLimit() throws Exception {
+        ImapServerConnections serverConnections = new ImapServerConnections();
+        ImapStore store = createStore(0);
+        serverConnections.addStore(store);
+
+        assertEquals(ImapServerConnections.MAX_CONNECTIONS_PER_SERVER, serverConnections.getAvailableConnections());
+    }
+
+    @Test
+    public void getAvailableConnections_withPushConnections_shouldSubtractThem() throws Exception {
+        ImapServerConnections serverConnections = new ImapServerConnections();
+        ImapStore store = createStore(3);
+        serverConnections.addStore(store);
+
+        assertEquals(ImapServerConnections.MAX_CONNECTIONS_PER_SERVER - 3,
+                serverConnections.getAvailableConnections());
+    }
+
+    @Test
+    public void getAvailableConnections_withTwoStores_shouldSplitRemainingConnections() throws Exception {
+        ImapServerConnections serverConnections = new ImapServerConnections();
+        ImapStore store = createStore(1);
+        ImapStore otherStore = createStore(0);
+        serverConnections.addStore(store);
+        serverConnections.addStore(otherStore);
+
+        assertEquals((ImapServerConnections.MAX_CONNECTIONS_PER_SERVER - 1) / 2,
+                serverConnections.getAvailableConnections());
+    }
+
+    @Test
+    public void getAvailableConnections_withMorePushConnectionsThanLimit_shouldReturnOne() throws Exception {
+        ImapServerConnections serverConnections = new ImapServerConnections();
+        ImapStore store = createStore(ImapServerConnections.MAX_CONNECTIONS_PER_SERVER + 2);
+        serverConnections.addStore(store);
+
+        assertEquals(1, serverConnections.getAvailableConnections());
+    }
+
+    private ImapStore createStore(int pushConnectionCount) {
+        ImapStore store = mock(ImapStore.class);
+        when(store.getPushConnectionCount()).thenReturn(pushConnectionCount);
+        return store;
+    }
+}
@@ -22,8 +22,10 @@ import org.mockito.internal.util.collections.Sets;
 
 import static com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponse;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.atLeastOnce;
@@ -291,6 +293,46 @@ public class ImapStoreTest {
         assertSame(imapConnectionTwo, result);
     }
 
+    @Test
+    public void isNotifyCapable_beforeAnyConnectionWasReleased_shouldReturnTrue() throws Exception {
+        assertTrue(imapStore.isNotifyCapable());
+    }
+
+    @Test
+    public void releaseConnection_withConnectionWithoutNotify_shouldMakeStoreNotNotifyCapable() throws Exception {
+        ImapConnection imapConnection = mock(ImapConnection.class);
+        when(imapConnection.isConnected()).thenReturn(true);
+        when(imapConnection.hasCapability(Capabilities.NOTIFY)).thenReturn(false);
+
+        imapStore.releaseConnection(imapConnection);
+
+        assertFalse(imapStore.isNotifyCapable());
+    }
+
+    @Test
+    public void releaseConnection_withNotifyCapableConnection_shouldMakeStoreNotifyCapable() throws Exception {
+        ImapConnection imapConnection = mock(ImapConnection.class);
+        when(imapConnection.isConnected()).thenReturn(true);
+        when(imapConnection.hasCapability(Capabilities.NOTIFY)).thenReturn(true);
+
+        imapStore.releaseConnection(imapConnection);
+
+        assertTrue(imapStore.isNotifyCapable());
+    }
+
+    @Test
+    public void releaseConnection_afterNotifyWasDisabled_shouldNotEnableNotifyAgain() throws Exception {
+        ImapConnection imapConnection = mock(ImapConnection.class);
+        when(imapConnection.isConnected()).thenReturn(true);
+        when(imapConnection.hasCapability(Capabilities.NOTIFY)).thenReturn(true);
+        imapStore.releaseConnection(imapConnection);
+
+        imapStore.setNotifyCapable(false);
+        imapStore.releaseConnection(imapConnection);
+
+        assertFalse(imapStore.isNotifyCapable());
+    }
+
     private StoreConfig createStoreConfig() {
         StoreConfig storeConfig = mock(StoreConfig.class);
         when(storeConfig.getInboxFolderName()).thenReturn("INBOX");
@@ -5,17 +5,24 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.Arrays;
 import java.util.List;
 
 import com.fsck.k9.mail.AuthenticationFailedException;
 import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.filter.Base64;
 import com.fsck.k9.mail.ssl.TrustedSocketFactory;
+import com.fsck.k9.mail.store.pop3.Pop3Store.Pop3Message;
 import com.fsck.k9.mail.store.StoreConfig;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -26,6 +33,8 @@ import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 21)
 public class Pop3StoreTest {
     private static final String INITIAL_RESPONSE = "+OK POP3 server greeting\r\n";
     private static final String AUTH = "AUTH\r\n";
@@ -46,6 +55,15 @@ public class Pop3StoreTest {
     private static final String AUTH_PLAIN_FAILED_RESPONSE = "+OK\r\n" + "Plain authentication failure";
     private static final String STAT = "STAT\r\n";
     private static final String STAT_RESPONSE = "+OK 20 0\r\n";
+    private static final String CAPA_WITH_PIPELINING_RESPONSE = "+OK Capability list follows\r\n" +
+            "PIPELINING\r\n" +
+            "UIDL\r\n" +
+            ".\r\n";
+    private static final String LOGIN_WITH_PIPELINING = INITIAL_RESPONSE +
+            AUTH_HANDLE_RESPONSE +
+            CAPA_WITH_PIPELINING_RESPONSE +
+            AUTH_PLAIN_AUTHENTICATED_RESPONSE;
+    private static final String LOGIN_COMMANDS = AUTH + CAPA + AUTH_PLAIN_WITH_LOGIN;
 
 
     private Pop3Store store;
@@ -190,4 +208,134 @@ public class Pop3StoreTest {
 
         folder.open(Folder.OPEN_MODE_RW);
     }
+
+    @Test
+    public void getMessages_withPipeliningServer_shouldSendUidlCommandsTogether() throws Exception {
+        ByteArrayOutputStream output = setUpSession(LOGIN_WITH_PIPELINING + STAT_RESPONSE +
+                "+OK 19 uid19\r\n" +
+                "+OK 20 uid20\r\n");
+        Folder<Pop3Message> folder = openInbox();
+
+        List<Pop3Message> messages = folder.getMessages(19, 20, null, null);
+
+        assertEquals(2, messages.size());
+        assertEquals("uid19", messages.get(0).getUid());
+        assertEquals("uid20", messages.get(1).getUid());
+        assertEquals(LOGIN_COMMANDS + STAT + "UIDL 19\r\nUIDL 20\r\n", output.toString("UTF-8"));
+    }
+
+    @Test
+    public void delete_withPipeliningServer_shouldSendAllDeleCommands() throws Exception {
+        ByteArrayOutputStream output = setUpSession(LOGIN_WITH_PIPELINING + STAT_RESPONSE +
+                "+OK 19 uid19\r\n" +
+                "+OK 20 uid20\r\n" +
+                "+OK message 19 deleted\r\n" +
+                "+OK message 20 deleted\r\n");
+        Folder<Pop3Message> folder = openInbox();
+        List<Pop3Message> messages = folder.getMessages(19, 20, null, null);
+
+        folder.delete(messages, "Trash");
+
+        assertEquals(LOGIN_COMMANDS + STAT + "UIDL 19\r\nUIDL 20\r\nDELE 19\r\nDELE 20\r\n",
+                output.toString("UTF-8"));
+    }
+
+    @Test(expected = MessagingException.class)
+    public void delete_withPipeliningServerRejectingFirstDele_shouldThrowAfterReadingAllResponses() throws Exception {
+        setUpSession(LOGIN_WITH_PIPELINING + STAT_RESPONSE +
+                "+OK 19 uid19\r\n" +
+                "+OK 20 uid20\r\n" +
+                "-ERR message 19 already deleted\r\n" +
+                "+OK message 20 deleted\r\n");
+        Folder<Pop3Message> folder = openInbox();
+        List<Pop3Message> messages = folder.getMessages(19, 20, null, null);
+
+        folder.delete(messages, "Trash");
+    }
+
+    @Test
+    public void fetch_withPipeliningServer_shouldSendAllRetrCommandsTogether() throws Exception {
+        ByteArrayOutputStream output = setUpSession(LOGIN_WITH_PIPELINING + STAT_RESPONSE +
+                "+OK 19 uid19\r\n" +
+                "+OK 20 uid20\r\n" +
+                "+OK message follows\r\n" +
+                "Subject: first\r\n\r\nbody\r\n.\r\n" +
+                "+OK message follows\r\n" +
+                "Subject: second\r\n\r\n..dot-stuffed\r\n.\r\n");
+        Folder<Pop3Message> folder = openInbox();
+        List<Pop3Message> messages = folder.getMessages(19, 20, null, null);
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(FetchProfile.Item.BODY);
+
+        folder.fetch(messages, fetchProfile, null);
+
+        assertEquals("first", messages.get(0).getSubject());
+        assertEquals("second", messages.get(1).getSubject());
+        assertEquals(LOGIN_COMMANDS + STAT + "UIDL 19\r\nUIDL 20\r\nRETR 19\r\nRETR 20\r\n",
+                output.toString("UTF-8"));
+    }
+
+    @Test
+    public void open_afterCloseWithUnchangedMessages_shouldReuseUidIndex() throws Exception {
+        ByteArrayOutputStream firstOutput = setUpSession(LOGIN_WITH_PIPELINING + STAT_RESPONSE +
+                "+OK 19 uid19\r\n" +
+                "+OK 20 uid20\r\n" +
+                "+OK bye\r\n");
+        Folder<Pop3Message> folder = openInbox();
+        folder.getMessages(19, 20, null, null);
+        folder.close();
+        ByteArrayOutputStream secondOutput = setUpSession(LOGIN_WITH_PIPELINING + "+OK 21 0\r\n" +
+                "+OK 20 uid20\r\n" +
+                "+OK 21 uid21\r\n");
+
+        folder.open(Folder.OPEN_MODE_RW);
+        List<Pop3Message> messages = folder.getMessages(19, 21, null, null);
+
+        assertEquals(Arrays.asList("uid19", "uid20", "uid21"), getUids(messages));
+        assertEquals(LOGIN_COMMANDS + STAT + "UIDL 19\r\nUIDL 20\r\nQUIT\r\n", firstOutput.toString("UTF-8"));
+        assertEquals(LOGIN_COMMANDS + STAT + "UIDL 20\r\nUIDL 21\r\n", secondOutput.toString("UTF-8"));
+    }
+
+    @Test
+    public void open_afterCloseWithDeletedMessage_shouldDiscardUidIndex() throws Exception {
+        setUpSession(LOGIN_WITH_PIPELINING + STAT_RESPONSE +
+                "+OK 19 uid19\r\n" +
+                "+OK 20 uid20\r\n" +
+                "+OK bye\r\n");
+        Folder<Pop3Message> folder = openInbox();
+        folder.getMessages(19, 20, null, null);
+        folder.close();
+        ByteArrayOutputStream secondOutput = setUpSession(LOGIN_WITH_PIPELINING + "+OK 20 0\r\n" +
+                "+OK 20 uid21\r\n" +
+                "+OK 19 uid20\r\n" +
+                "+OK 20 uid21\r\n");
+
+        folder.open(Folder.OPEN_MODE_RW);
+        List<Pop3Message> messages = folder.getMessages(19, 20, null, null);
+
+        assertEquals(Arrays.asList("uid20", "uid21"), getUids(messages));
+        assertEquals(LOGIN_COMMANDS + STAT + "UIDL 20\r\nUIDL 19\r\nUIDL 20\r\n", secondOutput.toString("UTF-8"));
+    }
+
+    private ByteArrayOutputStream setUpSession(String response) throws Exception {
+        when(mockSocket.getInputStream()).thenReturn(new ByteArrayInputStream(response.getBytes("UTF-8")));
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        when(mockSocket.getOutputStream()).thenReturn(byteArrayOutputStream);
+        return byteArrayOutputStream;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Folder<Pop3Message> openInbox() throws Exception {
+        Folder<Pop3Message> folder = store.getFolder("Inbox");
+        folder.open(Folder.OPEN_MODE_RW);
+        return folder;
+    }
+
+    private List<String> getUids(List<? extends Message> messages) {
+        String[] uids = new String[messages.size()];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = messages.get(i).getUid();
+        }
+        return Arrays.asList(uids);
+    }
 }
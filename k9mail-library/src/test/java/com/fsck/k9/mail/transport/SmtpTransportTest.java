@@ -1,15 +1,38 @@
 package com.fsck.k9.mail.transport;
 
 
+import java.io.OutputStream;
+
+import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.AuthType;
 import com.fsck.k9.mail.ConnectionSecurity;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.Message.RecipientType;
 import com.fsck.k9.mail.ServerSettings;
+import com.fsck.k9.mail.ssl.TrustedSocketFactory;
+import com.fsck.k9.mail.store.StoreConfig;
+import com.fsck.k9.mail.store.imap.mockserver.MockImapServer;
+import com.fsck.k9.mail.transport.SmtpTransport.NegativeSmtpReplyException;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 21)
 public class SmtpTransportTest {
+    private static final String MESSAGE_BODY = "[message body]";
+
 
     @Test
     public void decodeUri_canDecodeAuthType() {
@@ -118,4 +141,162 @@ public class SmtpTransportTest {
 
         assertEquals("smtp://user:password:CRAM_MD5@server:123456", result);
     }
+
+    @Test
+    public void sendMessage_withTwoMessages_shouldReuseSession() throws Exception {
+        MockImapServer server = new MockImapServer();
+        helloDialog(server, "HELP");
+        simpleTransactionDialog(server);
+        server.expect("RSET");
+        server.output("250 OK");
+        simpleTransactionDialog(server);
+        quitDialog(server);
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        transport.sendMessage(createMessage(MESSAGE_BODY, "user2@localhost"));
+        transport.sendMessage(createMessage(MESSAGE_BODY, "user2@localhost"));
+        transport.close();
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessage_withPipelining_shouldSendEnvelopeWithoutWaitingForReplies() throws Exception {
+        MockImapServer server = new MockImapServer();
+        helloDialog(server, "PIPELINING");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.expect("RCPT TO:<user3@localhost>");
+        server.output("250 OK");
+        server.output("250 OK");
+        server.output("250 OK");
+        server.expect("DATA");
+        server.output("354 End data with <CR><LF>.<CR><LF>");
+        server.expect(MESSAGE_BODY);
+        server.expect(".");
+        server.output("250 OK: queued as 12345");
+        quitDialog(server);
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        transport.sendMessage(createMessage(MESSAGE_BODY, "user2@localhost", "user3@localhost"));
+        transport.close();
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessage_withPipeliningAndRejectedRecipient_shouldThrowAndKeepSessionUsable() throws Exception {
+        MockImapServer server = new MockImapServer();
+        helloDialog(server, "PIPELINING");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.expect("RCPT TO:<unknown@localhost>");
+        server.output("250 OK");
+        server.output("550 No such user");
+        server.expect("RSET");
+        server.output("250 OK");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.output("250 OK");
+        server.expect("DATA");
+        server.output("354 End data with <CR><LF>.<CR><LF>");
+        server.expect(MESSAGE_BODY);
+        server.expect(".");
+        server.output("250 OK: queued as 12345");
+        quitDialog(server);
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        try {
+            transport.sendMessage(createMessage(MESSAGE_BODY, "unknown@localhost"));
+            fail("Expected exception");
+        } catch (NegativeSmtpReplyException e) {
+            assertEquals(550, e.getReplyCode());
+        }
+        transport.sendMessage(createMessage(MESSAGE_BODY, "user2@localhost"));
+        transport.close();
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessage_withChunking_shouldSendMessageUsingBdat() throws Exception {
+        String body = MESSAGE_BODY + "\r\n";
+        MockImapServer server = new MockImapServer();
+        helloDialog(server, "CHUNKING");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.expect("BDAT " + body.length() + " LAST");
+        server.expect(MESSAGE_BODY);
+        server.output("250 OK: queued as 12345");
+        quitDialog(server);
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        transport.sendMessage(createMessage(body, "user2@localhost"));
+        transport.close();
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    private void helloDialog(MockImapServer server, String extension) {
+        server.output("220 localhost Simple Mail Transfer Service Ready");
+        server.expect("EHLO localhost");
+        server.output("250-localhost Hello client.localhost");
+        server.output("250 " + extension);
+    }
+
+    private void simpleTransactionDialog(MockImapServer server) {
+        server.expect("MAIL FROM:<user@localhost>");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.expect("DATA");
+        server.output("354 End data with <CR><LF>.<CR><LF>");
+        server.expect(MESSAGE_BODY);
+        server.expect(".");
+        server.output("250 OK: queued as 12345");
+    }
+
+    private void quitDialog(MockImapServer server) {
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+    }
+
+    private SmtpTransport startServerAndCreateSmtpTransport(MockImapServer server) throws Exception {
+        server.start();
+
+        StoreConfig storeConfig = mock(StoreConfig.class);
+        when(storeConfig.getTransportUri()).thenReturn("smtp://" + server.getHost() + ":" + server.getPort());
+
+        return new SmtpTransport(storeConfig, mock(TrustedSocketFactory.class));
+    }
+
+    private Message createMessage(final String content, String... recipients) throws Exception {
+        Address[] to = new Address[recipients.length];
+        for (int i = 0; i < recipients.length; i++) {
+            to[i] = new Address(recipients[i]);
+        }
+
+        Message message = mock(Message.class);
+        when(message.getFrom()).thenReturn(new Address[] { new Address("user@localhost") });
+        when(message.getRecipients(RecipientType.TO)).thenReturn(to);
+        when(message.getRecipients(RecipientType.CC)).thenReturn(new Address[0]);
+        when(message.getRecipients(RecipientType.BCC)).thenReturn(new Address[0]);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                OutputStream outputStream = (OutputStream) invocation.getArguments()[0];
+                outputStream.write(content.getBytes());
+                return null;
+            }
+        }).when(message).writeTo(any(OutputStream.class));
+
+        return message;
+    }
 }
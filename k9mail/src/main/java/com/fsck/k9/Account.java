@@ -1685,6 +1685,21 @@ public class Account implements BaseAccount, StoreConfig {
         return StorageManager.getInstance(context).isReady(localStorageProviderId);
     }
 
+    /**
+     * Checks {@link #isEnabled()} and {@link #isAvailable(Context)} of a stored account by reading only the two
+     * settings involved, instead of loading the account.
+     */
+    static boolean isEnabledAndAvailable(Storage storage, String uuid, Context context) {
+        if (!storage.getBoolean(uuid + ".enabled", true)) {
+            return false;
+        }
+
+        StorageManager storageManager = StorageManager.getInstance(context);
+        String localStorageProviderId = storage.getString(uuid + ".localStorageProvider",
+                storageManager.getDefaultProviderId());
+        return localStorageProviderId == null || storageManager.isReady(localStorageProviderId);
+    }
+
     public synchronized boolean isEnabled() {
         return mEnabled;
     }
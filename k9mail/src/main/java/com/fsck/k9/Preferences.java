@@ -5,13 +5,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 import android.content.Context;
 import android.util.Log;
 
+import com.fsck.k9.cache.RenderedMessageCache;
 import com.fsck.k9.mail.store.RemoteStore;
 import com.fsck.k9.mailstore.LocalStore;
 import com.fsck.k9.preferences.StorageEditor;
@@ -31,8 +31,12 @@ public class Preferences {
 
 
     private Storage mStorage;
+    /**
+     * Accounts that have been loaded so far. Loading an account reads many settings, so this is only done when an
+     * account is first accessed.
+     */
     private Map<String, Account> accounts = null;
-    private List<Account> accountsInOrder = null;
+    private List<String> accountUuidsInOrder = null;
     private Account newAccount;
     private Context mContext;
 
@@ -49,25 +53,31 @@ public class Preferences {
 
     public synchronized void loadAccounts() {
         accounts = new HashMap<String, Account>();
-        accountsInOrder = new LinkedList<Account>();
+        accountUuidsInOrder = new ArrayList<String>();
         String accountUuids = getStorage().getString("accountUuids", null);
         if ((accountUuids != null) && (accountUuids.length() != 0)) {
             String[] uuids = accountUuids.split(",");
-            for (String uuid : uuids) {
-                Account newAccount = new Account(this, uuid);
-                accounts.put(uuid, newAccount);
-                accountsInOrder.add(newAccount);
-            }
+            Collections.addAll(accountUuidsInOrder, uuids);
         }
         if ((newAccount != null) && newAccount.getAccountNumber() != -1) {
             accounts.put(newAccount.getUuid(), newAccount);
-            if (!accountsInOrder.contains(newAccount)) {
-                accountsInOrder.add(newAccount);
+            if (!accountUuidsInOrder.contains(newAccount.getUuid())) {
+                accountUuidsInOrder.add(newAccount.getUuid());
             }
             newAccount = null;
         }
     }
 
+    private Account getLoadedAccount(String uuid) {
+        Account account = accounts.get(uuid);
+        if (account == null) {
+            account = new Account(this, uuid);
+            accounts.put(uuid, account);
+        }
+
+        return account;
+    }
+
     /**
      * Returns an array of the accounts on the system. If no accounts are
      * registered the method returns an empty array.
@@ -79,7 +89,12 @@ public class Preferences {
             loadAccounts();
         }
 
-        return Collections.unmodifiableList(new ArrayList<Account>(accountsInOrder));
+        List<Account> accountsInOrder = new ArrayList<Account>(accountUuidsInOrder.size());
+        for (String uuid : accountUuidsInOrder) {
+            accountsInOrder.add(getLoadedAccount(uuid));
+        }
+
+        return Collections.unmodifiableList(accountsInOrder);
     }
 
     /**
@@ -90,7 +105,7 @@ public class Preferences {
      */
     public synchronized Collection<Account> getAvailableAccounts() {
         List<Account> allAccounts = getAccounts();
-        Collection<Account> retval = new ArrayList<Account>(accounts.size());
+        Collection<Account> retval = new ArrayList<Account>(allAccounts.size());
         for (Account account : allAccounts) {
             if (account.isEnabled() && account.isAvailable(mContext)) {
                 retval.add(account);
@@ -100,19 +115,42 @@ public class Preferences {
         return retval;
     }
 
+    /**
+     * Returns whether {@link #getAvailableAccounts()} would return at least one account, without loading accounts
+     * that haven't been accessed yet.
+     */
+    public synchronized boolean hasAvailableAccounts() {
+        if (accounts == null) {
+            loadAccounts();
+        }
+
+        for (String uuid : accountUuidsInOrder) {
+            Account account = accounts.get(uuid);
+            boolean available = (account != null) ? account.isEnabled() && account.isAvailable(mContext) :
+                    Account.isEnabledAndAvailable(getStorage(), uuid, mContext);
+            if (available) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     public synchronized Account getAccount(String uuid) {
         if (accounts == null) {
             loadAccounts();
         }
-        Account account = accounts.get(uuid);
+        if (!accountUuidsInOrder.contains(uuid)) {
+            return null;
+        }
 
-        return account;
+        return getLoadedAccount(uuid);
     }
 
     public synchronized Account newAccount() {
         newAccount = new Account(mContext);
         accounts.put(newAccount.getUuid(), newAccount);
-        accountsInOrder.add(newAccount);
+        accountUuidsInOrder.add(newAccount.getUuid());
 
         return newAccount;
     }
@@ -121,8 +159,8 @@ public class Preferences {
         if (accounts != null) {
             accounts.remove(account.getUuid());
         }
-        if (accountsInOrder != null) {
-            accountsInOrder.remove(account);
+        if (accountUuidsInOrder != null) {
+            accountUuidsInOrder.remove(account.getUuid());
         }
 
         try {
@@ -131,6 +169,7 @@ public class Preferences {
             Log.e(K9.LOG_TAG, "Failed to reset remote store for account " + account.getUuid(), e);
         }
         LocalStore.removeAccount(account);
+        RenderedMessageCache.getInstance(mContext).removeAccount(account.getUuid());
 
         account.deleteCertificates();
         account.delete(this);
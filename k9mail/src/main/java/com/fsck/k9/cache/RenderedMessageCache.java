@@ -0,0 +1,279 @@
+package com.fsck.k9.cache;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+
+
+/**
+ * Disk cache of message bodies that have been converted to HTML and sanitized for display.
+ * <p>
+ * Entries are stored per message container and carry a content version. The version describes everything the
+ * rendered HTML depends on, e.g. which parts have been downloaded and the display settings. An entry whose version
+ * doesn't match is treated as missing, so downloading more parts or a different crypto state never shows stale
+ * content. Decrypted content must never be passed to this cache.
+ * </p><p>
+ * SQLite reuses the IDs of deleted messages, so the entries of a message have to be removed when the message is
+ * deleted. See {@link #removeMessage(String, long, long)}, {@link #removeFolder(String, long)} and
+ * {@link #removeAccount(String)}.
+ * </p><p>
+ * The least recently used entries are removed when the cache grows beyond {@link #MAX_CACHE_SIZE} bytes.
+ * </p>
+ */
+public class RenderedMessageCache {
+    private static final String CACHE_DIRECTORY = "rendered_messages";
+    private static final long MAX_CACHE_SIZE = 8 * 1024 * 1024;
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    private static RenderedMessageCache sInstance;
+
+
+    public static synchronized RenderedMessageCache getInstance(Context context) {
+        if (sInstance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(), CACHE_DIRECTORY);
+            sInstance = new RenderedMessageCache(directory, MAX_CACHE_SIZE);
+        }
+
+        return sInstance;
+    }
+
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private long mSize = -1;
+
+
+    RenderedMessageCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return The cached entry, or {@code null} if there is none for this content version.
+     */
+    public synchronized RenderedHtml get(String key, String contentVersion) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FILE_FORMAT_VERSION || !contentVersion.equals(readString(in))) {
+                    return null;
+                }
+
+                String html = readString(in);
+                String sanitizedHtml = readString(in);
+
+                // Mark as recently used
+                file.setLastModified(System.currentTimeMillis());
+
+                return new RenderedHtml(html, sanitizedHtml);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(K9.LOG_TAG, "Couldn't read rendered message " + key, e);
+            deleteFile(file);
+            return null;
+        }
+    }
+
+    public synchronized void put(String key, String contentVersion, RenderedHtml renderedHtml) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(K9.LOG_TAG, "Couldn't create directory " + mDirectory.getAbsolutePath());
+            return;
+        }
+
+        // Measured before the temporary file exists, so it isn't counted
+        long size = getSize();
+
+        File file = getFile(key);
+        File tempFile = new File(mDirectory, key + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(FILE_FORMAT_VERSION);
+                writeString(out, contentVersion);
+                writeString(out, renderedHtml.html);
+                writeString(out, renderedHtml.sanitizedHtml);
+            } finally {
+                out.close();
+            }
+
+            size -= file.length();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Couldn't rename " + tempFile.getAbsolutePath());
+            }
+            mSize = size + file.length();
+        } catch (IOException e) {
+            Log.w(K9.LOG_TAG, "Couldn't write rendered message " + key, e);
+            if (tempFile.exists() && !tempFile.delete()) {
+                Log.w(K9.LOG_TAG, "Couldn't delete " + tempFile.getAbsolutePath());
+            }
+            return;
+        }
+
+        trimToSize();
+    }
+
+    /**
+     * Removes the entries of all containers of a message.
+     */
+    public synchronized void removeMessage(String accountUuid, long folderId, long messageId) {
+        removeEntries(getMessageKeyPrefix(accountUuid, folderId, messageId));
+    }
+
+    /**
+     * Removes the entries of all messages in a folder.
+     */
+    public synchronized void removeFolder(String accountUuid, long folderId) {
+        removeEntries(getFolderKeyPrefix(accountUuid, folderId));
+    }
+
+    /**
+     * Removes the entries of all messages of an account.
+     */
+    public synchronized void removeAccount(String accountUuid) {
+        removeEntries(getAccountKeyPrefix(accountUuid));
+    }
+
+    /**
+     * @return The key of the container at {@code containerIndex} of a message.
+     */
+    public static String createKey(String accountUuid, long folderId, long messageId, int containerIndex) {
+        return getMessageKeyPrefix(accountUuid, folderId, messageId) + containerIndex;
+    }
+
+    private static String getAccountKeyPrefix(String accountUuid) {
+        return accountUuid + "-";
+    }
+
+    private static String getFolderKeyPrefix(String accountUuid, long folderId) {
+        return getAccountKeyPrefix(accountUuid) + folderId + "-";
+    }
+
+    private static String getMessageKeyPrefix(String accountUuid, long folderId, long messageId) {
+        return getFolderKeyPrefix(accountUuid, folderId) + messageId + "-";
+    }
+
+    private void removeEntries(final String keyPrefix) {
+        File[] files = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File directory, String name) {
+                return name.startsWith(keyPrefix);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            deleteFile(file);
+        }
+    }
+
+    private long getSize() {
+        if (mSize == -1) {
+            long size = 0;
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    size += file.length();
+                }
+            }
+            mSize = size;
+        }
+
+        return mSize;
+    }
+
+    private void trimToSize() {
+        if (getSize() <= mMaxSize) {
+            return;
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File file, File other) {
+                long lastModified = file.lastModified();
+                long otherLastModified = other.lastModified();
+                return (lastModified < otherLastModified) ? -1 : ((lastModified == otherLastModified) ? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            if (mSize <= mMaxSize) {
+                break;
+            }
+
+            long length = file.length();
+            if (file.delete()) {
+                mSize -= length;
+            }
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, key);
+    }
+
+    private void deleteFile(File file) {
+        long length = file.length();
+        if (file.delete() && mSize != -1) {
+            mSize -= length;
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new String(data, "UTF-8");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] data = value.getBytes("UTF-8");
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+
+    public static class RenderedHtml {
+        /**
+         * The HTML extracted from the message, before it was wrapped in a document and sanitized.
+         */
+        public final String html;
+
+        /**
+         * The complete HTML document that can be displayed as it is.
+         */
+        public final String sanitizedHtml;
+
+
+        public RenderedHtml(String html, String sanitizedHtml) {
+            this.html = html;
+            this.sanitizedHtml = sanitizedHtml;
+        }
+    }
+}
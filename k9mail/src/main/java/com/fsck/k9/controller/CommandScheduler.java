@@ -0,0 +1,381 @@
+package com.fsck.k9.controller;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.controller.MessagingController.Command;
+
+
+/**
+ * Runs {@link Command}s on a small pool of worker threads.
+ * <p>
+ * Every account gets its own lane. Commands in a lane are run one at a time, foreground commands before background
+ * ones and otherwise in the order they were queued. Different lanes run concurrently, so a slow or unreachable server
+ * only holds up commands of its own account. Commands without an account share a global lane.
+ * </p><p>
+ * Commands that allow it (see {@link Command#maxConcurrentCommands}) may run alongside other such commands of their
+ * lane, e.g. folder syncs that each use their own server connection. A command that doesn't allow it waits until
+ * the lane is idle, and no further commands are started while it runs.
+ * </p>
+ */
+class CommandScheduler {
+    /**
+     * Caps how many commands run at the same time over all accounts. How many connections one server gets, including
+     * the ones held open for push, is decided by {@link com.fsck.k9.mail.Store#getMaxConcurrentFolderSyncs()}.
+     */
+    static final int DEFAULT_WORKER_THREADS = 6;
+    static final long UNAVAILABLE_ACCOUNT_RETRY_DELAY = 30 * 1000L;
+
+    private static final String GLOBAL_LANE = "";
+
+
+    interface CommandCompletionListener {
+        void commandCompleted(Command command, boolean moreCommandsPending);
+    }
+
+
+    private final Object lock = new Object();
+    private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService retryExecutor;
+    private final CommandCompletionListener completionListener;
+    private final long retryDelay;
+    private volatile boolean stopped = false;
+
+
+    CommandScheduler(CommandCompletionListener completionListener) {
+        this(DEFAULT_WORKER_THREADS, UNAVAILABLE_ACCOUNT_RETRY_DELAY, completionListener);
+    }
+
+    CommandScheduler(int workerThreads, long retryDelay, CommandCompletionListener completionListener) {
+        this.completionListener = completionListener;
+        this.retryDelay = retryDelay;
+
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new BackgroundThreadFactory("MessagingController"));
+        retryExecutor = Executors.newSingleThreadScheduledExecutor(
+                new BackgroundThreadFactory("MessagingController retry"));
+    }
+
+    void put(Command command) {
+        if (stopped) {
+            Log.w(K9.LOG_TAG, "Dropping command '" + command.description + "' after shutdown");
+            return;
+        }
+
+        synchronized (lock) {
+            Lane lane = getLane(command.accountUuid);
+            lane.queue.add(command);
+            startCommands(lane);
+        }
+    }
+
+    /**
+     * Hands commands at the head of the lane's queue to the worker pool as long as they can run alongside the
+     * commands that are already running. Must be called while holding {@link #lock}.
+     */
+    private void startCommands(Lane lane) {
+        Command next;
+        while ((next = lane.queue.peek()) != null && lane.canStart(next)) {
+            lane.queue.poll();
+            lane.running++;
+            if (next.maxConcurrentCommands <= 1) {
+                lane.exclusive = true;
+            }
+            workers.execute(new LaneTask(lane, next));
+        }
+    }
+
+    /**
+     * Queues {@code command} so it runs only after every command that is currently queued or running in any lane
+     * has completed.
+     */
+    void putAfterPendingCommands(Command command) {
+        synchronized (lock) {
+            List<Lane> activeLanes = new ArrayList<Lane>();
+            for (Lane lane : lanes.values()) {
+                if (lane.isActive()) {
+                    activeLanes.add(lane);
+                }
+            }
+
+            if (activeLanes.isEmpty()) {
+                put(command);
+                return;
+            }
+
+            Barrier barrier = new Barrier(command, activeLanes.size());
+            for (Lane lane : activeLanes) {
+                Command marker = new Command();
+                marker.accountUuid = lane.accountUuid;
+                marker.description = "Wait for pending commands before '" + command.description + "'";
+                marker.runnable = barrier;
+                marker.isForeground = false;
+                lane.queue.add(marker);
+            }
+        }
+    }
+
+    /**
+     * Removes all commands of the given account that have not been started yet.
+     *
+     * @return The number of commands that were removed.
+     */
+    int cancelPendingCommands(String accountUuid) {
+        int cancelled = 0;
+        synchronized (lock) {
+            Lane lane = lanes.get(laneKey(accountUuid));
+            if (lane == null) {
+                return 0;
+            }
+
+            Iterator<Command> iterator = lane.queue.iterator();
+            while (iterator.hasNext()) {
+                Command command = iterator.next();
+                // Barriers also wait for other lanes, so they have to stay
+                if (!(command.runnable instanceof Barrier)) {
+                    iterator.remove();
+                    cancelled++;
+                }
+            }
+        }
+
+        if (K9.DEBUG && cancelled > 0) {
+            Log.i(K9.LOG_TAG, "Cancelled " + cancelled + " pending commands for account " + accountUuid);
+        }
+
+        return cancelled;
+    }
+
+    /**
+     * @return The number of queued or running commands of the given account.
+     */
+    int getQueueDepth(String accountUuid) {
+        synchronized (lock) {
+            Lane lane = lanes.get(laneKey(accountUuid));
+            return (lane == null) ? 0 : lane.size();
+        }
+    }
+
+    /**
+     * @return The number of queued or running commands of all accounts.
+     */
+    int getQueueDepth() {
+        synchronized (lock) {
+            int depth = 0;
+            for (Lane lane : lanes.values()) {
+                depth += lane.size();
+            }
+            return depth;
+        }
+    }
+
+    boolean isBusy() {
+        synchronized (lock) {
+            for (Lane lane : lanes.values()) {
+                if (lane.isActive()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    void shutdown(long timeoutMillis) throws InterruptedException {
+        stopped = true;
+        retryExecutor.shutdownNow();
+        workers.shutdownNow();
+        workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private Lane getLane(String accountUuid) {
+        String key = laneKey(accountUuid);
+        Lane lane = lanes.get(key);
+        if (lane == null) {
+            lane = new Lane(accountUuid);
+            lanes.put(key, lane);
+        }
+        return lane;
+    }
+
+    private static String laneKey(String accountUuid) {
+        return (accountUuid == null) ? GLOBAL_LANE : accountUuid;
+    }
+
+    private void runCommand(Lane lane, Command command) {
+        boolean completed = false;
+        try {
+            if (K9.DEBUG) {
+                Log.i(K9.LOG_TAG, "Running " + (command.isForeground ? "Foreground" : "Background") +
+                        " command '" + command.description + "', seq = " + command.sequence);
+            }
+
+            try {
+                command.runnable.run();
+            } catch (UnavailableAccountException e) {
+                scheduleRetry(command);
+            }
+
+            if (K9.DEBUG) {
+                Log.i(K9.LOG_TAG, (command.isForeground ? "Foreground" : "Background") +
+                        " Command '" + command.description + "' completed");
+            }
+            completed = true;
+        } catch (Exception e) {
+            Log.e(K9.LOG_TAG, "Error running command '" + command.description + "'", e);
+        } finally {
+            boolean moreCommandsPending = finishCommand(lane, command);
+            if (completed && completionListener != null) {
+                completionListener.commandCompleted(command, moreCommandsPending);
+            }
+        }
+    }
+
+    /**
+     * Hands the next commands of the lane to the worker pool, or removes the lane if it is idle.
+     *
+     * @return {@code true} if there are other commands queued or running in any lane.
+     */
+    private boolean finishCommand(Lane lane, Command command) {
+        synchronized (lock) {
+            lane.running--;
+            if (command.maxConcurrentCommands <= 1) {
+                lane.exclusive = false;
+            }
+
+            if (!stopped) {
+                startCommands(lane);
+            }
+            if (!lane.isActive() && lane.queue.isEmpty()) {
+                lanes.remove(laneKey(lane.accountUuid));
+            }
+
+            for (Lane other : lanes.values()) {
+                if (other.isActive()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void scheduleRetry(final Command command) {
+        if (stopped) {
+            return;
+        }
+
+        retryExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                put(command);
+            }
+        }, retryDelay, TimeUnit.MILLISECONDS);
+    }
+
+
+    private static class Lane {
+        final String accountUuid;
+        final PriorityQueue<Command> queue = new PriorityQueue<Command>();
+        int running;
+        boolean exclusive;
+
+        Lane(String accountUuid) {
+            this.accountUuid = accountUuid;
+        }
+
+        boolean isActive() {
+            return running > 0;
+        }
+
+        boolean canStart(Command command) {
+            if (running == 0) {
+                return true;
+            }
+
+            return !exclusive && running < command.maxConcurrentCommands;
+        }
+
+        int size() {
+            return queue.size() + running;
+        }
+    }
+
+    /**
+     * Work item of the pool. Ordering these lets a foreground command of one account overtake background commands
+     * of other accounts that are still waiting for a free worker.
+     */
+    private class LaneTask implements Runnable, Comparable<LaneTask> {
+        private final Lane lane;
+        private final Command command;
+
+        LaneTask(Lane lane, Command command) {
+            this.lane = lane;
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            runCommand(lane, command);
+        }
+
+        @Override
+        public int compareTo(LaneTask other) {
+            return command.compareTo(other.command);
+        }
+    }
+
+    private class Barrier implements Runnable {
+        private final Command command;
+        private final AtomicInteger remainingLanes;
+
+        Barrier(Command command, int lanes) {
+            this.command = command;
+            this.remainingLanes = new AtomicInteger(lanes);
+        }
+
+        @Override
+        public void run() {
+            if (remainingLanes.decrementAndGet() == 0) {
+                put(command);
+            }
+        }
+    }
+
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        BackgroundThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            });
+            thread.setName(name + " #" + threadNumber.getAndIncrement());
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.fsck.k9.controller;
+
+
+import java.util.Comparator;
+
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Folder.FolderClass;
+
+
+/**
+ * Orders the folders of a mail check so the most important ones are synchronized first.
+ * <p>
+ * The Inbox comes first, then first class folders, then second class folders, then all others. Within each group the
+ * folder that was checked least recently comes first.
+ * </p>
+ */
+class FolderSyncComparator implements Comparator<Folder> {
+    private final String inboxFolderName;
+
+
+    FolderSyncComparator(String inboxFolderName) {
+        this.inboxFolderName = inboxFolderName;
+    }
+
+    @Override
+    public int compare(Folder folder, Folder other) {
+        int result = getRank(folder) - getRank(other);
+        if (result != 0) {
+            return result;
+        }
+
+        long lastChecked = folder.getLastChecked();
+        long otherLastChecked = other.getLastChecked();
+        if (lastChecked != otherLastChecked) {
+            return (lastChecked < otherLastChecked) ? -1 : 1;
+        }
+
+        return folder.getName().compareTo(other.getName());
+    }
+
+    private int getRank(Folder folder) {
+        if (folder.getName().equalsIgnoreCase(inboxFolderName)) {
+            return 0;
+        }
+
+        FolderClass displayClass = folder.getDisplayClass();
+        if (displayClass == FolderClass.FIRST_CLASS) {
+            return 1;
+        } else if (displayClass == FolderClass.SECOND_CLASS) {
+            return 2;
+        }
+
+        return 3;
+    }
+}
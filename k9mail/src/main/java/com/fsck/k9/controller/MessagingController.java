@@ -18,16 +18,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.annotation.SuppressLint;
 import android.content.ContentResolver;
@@ -38,8 +37,6 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.PowerManager;
-import android.os.Process;
-import android.os.SystemClock;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
@@ -55,6 +52,7 @@ import com.fsck.k9.R;
 import com.fsck.k9.activity.MessageReference;
 import com.fsck.k9.activity.setup.AccountSetupCheckSettings.CheckDirection;
 import com.fsck.k9.cache.EmailProviderCache;
+import com.fsck.k9.cache.RenderedMessageCache;
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.AuthenticationFailedException;
 import com.fsck.k9.mail.CertificateValidationException;
@@ -85,6 +83,7 @@ import com.fsck.k9.mailstore.LocalMessage;
 import com.fsck.k9.mailstore.LocalStore;
 import com.fsck.k9.mailstore.LocalStore.PendingCommand;
 import com.fsck.k9.mailstore.MessageRemovalListener;
+import com.fsck.k9.mailstore.MessageViewInfoExtractor;
 import com.fsck.k9.mailstore.UnavailableStorageException;
 import com.fsck.k9.notification.NotificationController;
 import com.fsck.k9.provider.EmailProvider;
@@ -97,9 +96,10 @@ import com.fsck.k9.search.SqlQueryBuilder;
 
 
 /**
- * Starts a long running (application) Thread that will run through commands
- * that require remote mailbox access. This class is used to serialize and
- * prioritize these commands. Each method that will submit a command requires a
+ * Runs commands that require remote mailbox access on a small pool of
+ * background threads. Commands of one account are serialized and prioritized,
+ * commands of different accounts may run concurrently (see
+ * {@link CommandScheduler}). Each method that will submit a command requires a
  * MessagingListener instance to be provided. It is expected that that listener
  * has also been added as a registered listener using addListener(). When a
  * command is to be executed, if the listener that was provided with the command
@@ -108,7 +108,7 @@ import com.fsck.k9.search.SqlQueryBuilder;
  * it removes itself. Thus, any commands that that activity submitted are
  * removed from the queue once the activity is no longer active.
  */
-public class MessagingController implements Runnable {
+public class MessagingController {
     public static final long INVALID_MESSAGE_ID = -1;
 
     /**
@@ -118,27 +118,44 @@ public class MessagingController implements Runnable {
 
     private static final String PENDING_COMMAND_MOVE_OR_COPY = "com.fsck.k9.MessagingController.moveOrCopy";
     private static final String PENDING_COMMAND_MOVE_OR_COPY_BULK = "com.fsck.k9.MessagingController.moveOrCopyBulk";
-    private static final String PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW = "com.fsck.k9.MessagingController.moveOrCopyBulkNew";
+    static final String PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW = "com.fsck.k9.MessagingController.moveOrCopyBulkNew";
     private static final String PENDING_COMMAND_EMPTY_TRASH = "com.fsck.k9.MessagingController.emptyTrash";
-    private static final String PENDING_COMMAND_SET_FLAG_BULK = "com.fsck.k9.MessagingController.setFlagBulk";
+    static final String PENDING_COMMAND_SET_FLAG_BULK = "com.fsck.k9.MessagingController.setFlagBulk";
     private static final String PENDING_COMMAND_SET_FLAG = "com.fsck.k9.MessagingController.setFlag";
-    private static final String PENDING_COMMAND_APPEND = "com.fsck.k9.MessagingController.append";
-    private static final String PENDING_COMMAND_MARK_ALL_AS_READ = "com.fsck.k9.MessagingController.markAllAsRead";
-    private static final String PENDING_COMMAND_EXPUNGE = "com.fsck.k9.MessagingController.expunge";
+    static final String PENDING_COMMAND_APPEND = "com.fsck.k9.MessagingController.append";
+    static final String PENDING_COMMAND_MARK_ALL_AS_READ = "com.fsck.k9.MessagingController.markAllAsRead";
+    static final String PENDING_COMMAND_EXPUNGE = "com.fsck.k9.MessagingController.expunge";
 
     /**
      * Maximum number of unsynced messages to store at once
      */
     private static final int UNSYNC_CHUNK_SIZE = 5;
 
+    /**
+     * Number of new unread messages per folder that are rendered in advance after a sync.
+     */
+    private static final int PREWARM_MESSAGE_COUNT = 5;
+
     private static MessagingController inst = null;
-    private BlockingQueue<Command> mCommands = new PriorityBlockingQueue<Command>();
+    private final CommandScheduler commandScheduler;
 
-    private Thread mThread;
     private Set<MessagingListener> mListeners = new CopyOnWriteArraySet<MessagingListener>();
 
     private final ConcurrentHashMap<String, AtomicInteger> sendCount = new ConcurrentHashMap<String, AtomicInteger>();
 
+    /**
+     * Folder syncs of one account may run concurrently. They all start by replaying the pending commands, which must
+     * only happen on one thread at a time.
+     */
+    private final ConcurrentHashMap<String, Object> pendingCommandLocks = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * A folder must only be synchronized on one thread at a time, e.g. when a manual refresh arrives while a mail
+     * check is synchronizing the same folder. Keyed by account UUID and folder name.
+     */
+    private final ConcurrentHashMap<String, ReentrantLock> folderSyncLocks =
+            new ConcurrentHashMap<String, ReentrantLock>();
+
     ConcurrentHashMap<Account, Pusher> pushers = new ConcurrentHashMap<Account, Pusher>();
 
     private final ExecutorService threadPool = Executors.newCachedThreadPool();
@@ -147,11 +164,8 @@ public class MessagingController implements Runnable {
 
     private MemorizingListener memorizingListener = new MemorizingListener();
 
-    private boolean mBusy;
-
     private final Context context;
     private final NotificationController notificationController;
-    private volatile boolean stopped = false;
 
     private static final Set<Flag> SYNC_FLAGS = EnumSet.of(Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED, Flag.FORWARDED);
 
@@ -212,9 +226,14 @@ public class MessagingController implements Runnable {
     MessagingController(Context context, NotificationController notificationController) {
         this.context = context;
         this.notificationController = notificationController;
-        mThread = new Thread(this);
-        mThread.setName("MessagingController");
-        mThread.start();
+        commandScheduler = new CommandScheduler(new CommandScheduler.CommandCompletionListener() {
+            @Override
+            public void commandCompleted(Command command, boolean moreCommandsPending) {
+                for (MessagingListener l : getListeners(command.listener)) {
+                    l.controllerCommandCompleted(moreCommandsPending);
+                }
+            }
+        });
         if (memorizingListener != null) {
             addListener(memorizingListener);
         }
@@ -222,9 +241,7 @@ public class MessagingController implements Runnable {
 
     @VisibleForTesting
     void stop() throws InterruptedException {
-        stopped = true;
-        mThread.interrupt();
-        mThread.join(1000L);
+        commandScheduler.shutdown(1000L);
     }
 
     public synchronized static MessagingController getInstance(Context context) {
@@ -237,84 +254,53 @@ public class MessagingController implements Runnable {
     }
 
     public boolean isBusy() {
-        return mBusy;
+        return commandScheduler.isBusy();
     }
 
-    @Override
-    public void run() {
-        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        while (!stopped) {
-            String commandDescription = null;
-            try {
-                final Command command = mCommands.take();
-
-                if (command != null) {
-                    commandDescription = command.description;
-
-                    if (K9.DEBUG)
-                        Log.i(K9.LOG_TAG, "Running " + (command.isForeground ? "Foreground" : "Background") + " command '" + command.description + "', seq = " + command.sequence);
-
-                    mBusy = true;
-                    try {
-                        command.runnable.run();
-                    } catch (UnavailableAccountException e) {
-                        // retry later
-                        new Thread() {
-                            @Override
-                            public void run() {
-                                try {
-                                    sleep(30 * 1000);
-                                    mCommands.put(command);
-                                } catch (InterruptedException e) {
-                                    Log.e(K9.LOG_TAG, "interrupted while putting a pending command for"
-                                          + " an unavailable account back into the queue."
-                                          + " THIS SHOULD NEVER HAPPEN.");
-                                }
-                            }
-                        } .start();
-                    }
+    /**
+     * @return The number of commands of the given account that are queued or running.
+     */
+    public int getPendingCommandCount(Account account) {
+        return commandScheduler.getQueueDepth(account.getUuid());
+    }
 
-                    if (K9.DEBUG)
-                        Log.i(K9.LOG_TAG, (command.isForeground ? "Foreground" : "Background") +
-                              " Command '" + command.description + "' completed");
+    private void put(String description, Account account, MessagingListener listener, Runnable runnable) {
+        commandScheduler.put(createCommand(description, account, listener, runnable, true));
+    }
 
-                    for (MessagingListener l : getListeners(command.listener)) {
-                        l.controllerCommandCompleted(!mCommands.isEmpty());
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(K9.LOG_TAG, "Error running command '" + commandDescription + "'", e);
-            }
-            mBusy = false;
-        }
+    private void putBackground(String description, Account account, MessagingListener listener, Runnable runnable) {
+        commandScheduler.put(createCommand(description, account, listener, runnable, false));
     }
 
-    private void put(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(mCommands, description, listener, runnable, true);
+    /**
+     * Queues a background command that may run concurrently with up to {@code maxConcurrentCommands - 1} other such
+     * commands of the same account.
+     */
+    private void putConcurrentBackground(String description, Account account, MessagingListener listener,
+            int maxConcurrentCommands, Runnable runnable) {
+        Command command = createCommand(description, account, listener, runnable, false);
+        command.maxConcurrentCommands = maxConcurrentCommands;
+        commandScheduler.put(command);
     }
 
-    private void putBackground(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(mCommands, description, listener, runnable, false);
+    /**
+     * Queues a background command that only runs once all commands that are currently pending, for any account,
+     * have completed.
+     */
+    private void putBackgroundAfterPendingCommands(String description, MessagingListener listener,
+            Runnable runnable) {
+        commandScheduler.putAfterPendingCommands(createCommand(description, null, listener, runnable, false));
     }
 
-    private void putCommand(BlockingQueue<Command> queue, String description, MessagingListener listener, Runnable runnable, boolean isForeground) {
-        int retries = 10;
-        Exception e = null;
-        while (retries-- > 0) {
-            try {
-                Command command = new Command();
-                command.listener = listener;
-                command.runnable = runnable;
-                command.description = description;
-                command.isForeground = isForeground;
-                queue.put(command);
-                return;
-            } catch (InterruptedException ie) {
-                SystemClock.sleep(200);
-                e = ie;
-            }
-        }
-        throw new Error(e);
+    private static Command createCommand(String description, Account account, MessagingListener listener,
+            Runnable runnable, boolean isForeground) {
+        Command command = new Command();
+        command.accountUuid = (account != null) ? account.getUuid() : null;
+        command.listener = listener;
+        command.runnable = runnable;
+        command.description = description;
+        command.isForeground = isForeground;
+        return command;
     }
 
     public void addListener(MessagingListener listener) {
@@ -424,7 +410,7 @@ public class MessagingController implements Runnable {
     }
 
     private void doRefreshRemote(final Account account, final MessagingListener listener) {
-        put("doRefreshRemote", listener, new Runnable() {
+        put("doRefreshRemote", account, listener, new Runnable() {
             @Override
             public void run() {
                 refreshRemoteSynchronous(account, listener);
@@ -751,7 +737,7 @@ public class MessagingController implements Runnable {
      * @param providedRemoteFolder TODO
      */
     public void synchronizeMailbox(final Account account, final String folder, final MessagingListener listener, final Folder providedRemoteFolder) {
-        putBackground("synchronizeMailbox", listener, new Runnable() {
+        putBackground("synchronizeMailbox", account, listener, new Runnable() {
             @Override
             public void run() {
                 synchronizeMailboxSynchronous(account, folder, listener, providedRemoteFolder);
@@ -771,6 +757,31 @@ public class MessagingController implements Runnable {
     @VisibleForTesting
     void synchronizeMailboxSynchronous(final Account account, final String folder, final MessagingListener listener,
             Folder providedRemoteFolder) {
+        // Wait for a sync of the same folder that is already running, then synchronize again
+        ReentrantLock syncLock = getFolderSyncLock(account, folder);
+        syncLock.lock();
+        try {
+            synchronizeMailboxSynchronousLocked(account, folder, listener, providedRemoteFolder);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private ReentrantLock getFolderSyncLock(Account account, String folder) {
+        String key = account.getUuid() + ":" + folder;
+        ReentrantLock lock = folderSyncLocks.get(key);
+        if (lock == null) {
+            ReentrantLock newLock = new ReentrantLock();
+            lock = folderSyncLocks.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    private void synchronizeMailboxSynchronousLocked(final Account account, final String folder,
+            final MessagingListener listener, Folder providedRemoteFolder) {
         Folder remoteFolder = null;
         LocalFolder tLocalFolder = null;
 
@@ -971,7 +982,7 @@ public class MessagingController implements Runnable {
             /*
              * Now we download the actual content of messages.
              */
-            int newMessages = downloadMessages(account, remoteFolder, localFolder, remoteMessages, false, true);
+            int newMessages = downloadMessages(account, remoteFolder, localFolder, remoteMessages, false, true, true);
 
             int unreadMessageCount = localFolder.getUnreadMessageCount();
             for (MessagingListener l : getListeners()) {
@@ -991,6 +1002,10 @@ public class MessagingController implements Runnable {
                 l.synchronizeMailboxFinished(account, folder, remoteMessageCount, newMessages);
             }
 
+            if (newMessages > 0) {
+                prewarmRenderedMessages(account, folder);
+            }
+
 
             if (commandException != null) {
                 String rootMessage = getRootCauseMessage(commandException);
@@ -1118,6 +1133,20 @@ public class MessagingController implements Runnable {
     private int downloadMessages(final Account account, final Folder remoteFolder,
             final LocalFolder localFolder, List<Message> inputMessages,
             boolean flagSyncOnly, boolean purgeToVisibleLimit) throws MessagingException {
+        return downloadMessages(account, remoteFolder, localFolder, inputMessages, flagSyncOnly, purgeToVisibleLimit,
+                false);
+    }
+
+    /**
+     * @param syncFlagsIncrementally
+     *         {@code true} if {@code inputMessages} contains all messages of the folder's sync window. In that case
+     *         only the flags of messages that changed since the last sync are fetched if the server supports
+     *         mod-sequences.
+     */
+    private int downloadMessages(final Account account, final Folder remoteFolder,
+            final LocalFolder localFolder, List<Message> inputMessages,
+            boolean flagSyncOnly, boolean purgeToVisibleLimit, boolean syncFlagsIncrementally)
+            throws MessagingException {
 
         final Date earliestDate = account.getEarliestPollDate();
         Date downloadStarted = new Date(); // now
@@ -1230,7 +1259,8 @@ public class MessagingController implements Runnable {
          * download.
          */
 
-        refreshLocalMessageFlags(account, remoteFolder, localFolder, syncFlagMessages, progress, todo);
+        refreshLocalMessageFlags(account, remoteFolder, localFolder, syncFlagMessages, progress, todo,
+                syncFlagsIncrementally);
 
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Synced remote messages for folder " + folder + ", " + newMessages.get() + " new messages");
@@ -1603,26 +1633,47 @@ public class MessagingController implements Runnable {
                                           final LocalFolder localFolder,
                                           List<Message> syncFlagMessages,
                                           final AtomicInteger progress,
-                                          final int todo
+                                          final int todo,
+                                          boolean syncFlagsIncrementally
                                          ) throws MessagingException {
 
         final String folder = remoteFolder.getName();
         if (remoteFolder.supportsFetchingFlags()) {
-            if (K9.DEBUG)
-                Log.d(K9.LOG_TAG, "SYNC: About to sync flags for "
-                      + syncFlagMessages.size() + " remote messages for folder " + folder);
+            long syncedModSeq = localFolder.getSyncedModSeq();
+            long highestModSeq = remoteFolder.getHighestModSeq();
+            if (syncFlagsIncrementally && highestModSeq > 0 && highestModSeq < syncedModSeq) {
+                // The server's mod-sequences went backwards (e.g. the mailbox was restored from a backup), so changes
+                // since the stored mod-sequence can't be trusted. Sync all flags and start over from the new value.
+                Log.w(K9.LOG_TAG, "SYNC: HIGHESTMODSEQ " + highestModSeq + " of folder " + folder + " is lower than " +
+                        "synced mod-sequence " + syncedModSeq + ", doing a full flag sync");
+                syncedModSeq = 0;
+            }
+
+            if (syncFlagsIncrementally && syncedModSeq > 0 && highestModSeq > 0) {
+                int messageCount = syncFlagMessages.size();
+                syncFlagMessages = fetchMessagesWithChangedFlags(remoteFolder, syncFlagMessages, syncedModSeq,
+                        highestModSeq);
+
+                // Messages that didn't change are already done
+                progress.addAndGet(messageCount - syncFlagMessages.size());
+            } else {
+                if (K9.DEBUG)
+                    Log.d(K9.LOG_TAG, "SYNC: About to sync flags for "
+                          + syncFlagMessages.size() + " remote messages for folder " + folder);
 
-            FetchProfile fp = new FetchProfile();
-            fp.add(FetchProfile.Item.FLAGS);
+                FetchProfile fp = new FetchProfile();
+                fp.add(FetchProfile.Item.FLAGS);
 
-            List<Message> undeletedMessages = new LinkedList<Message>();
-            for (Message message : syncFlagMessages) {
-                if (!message.isSet(Flag.DELETED)) {
-                    undeletedMessages.add(message);
+                List<Message> undeletedMessages = new LinkedList<Message>();
+                for (Message message : syncFlagMessages) {
+                    if (!message.isSet(Flag.DELETED)) {
+                        undeletedMessages.add(message);
+                    }
                 }
+
+                remoteFolder.fetch(undeletedMessages, fp, null);
             }
 
-            remoteFolder.fetch(undeletedMessages, fp, null);
             for (Message remoteMessage : syncFlagMessages) {
                 LocalMessage localMessage = localFolder.getMessage(remoteMessage.getUid());
                 boolean messageChanged = syncFlags(localMessage, remoteMessage);
@@ -1652,9 +1703,50 @@ public class MessagingController implements Runnable {
                     l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
                 }
             }
+
+            if (syncFlagsIncrementally && highestModSeq != syncedModSeq) {
+                localFolder.setSyncedModSeq(Math.max(highestModSeq, 0));
+            }
         }
     }
 
+    /**
+     * Only fetch the flags of messages that changed since the last sync using the server's mod-sequences.
+     *
+     * @return The subset of {@code syncFlagMessages} whose flags changed, with the current flags from the server.
+     */
+    private List<Message> fetchMessagesWithChangedFlags(Folder remoteFolder, List<Message> syncFlagMessages,
+            long syncedModSeq, long highestModSeq) throws MessagingException {
+
+        if (syncedModSeq == highestModSeq) {
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "SYNC: No flag changes since mod-sequence " + syncedModSeq + " for folder " +
+                        remoteFolder.getName());
+
+            return Collections.emptyList();
+        }
+
+        Map<String, Message> syncFlagMessagesByUid = new HashMap<String, Message>();
+        for (Message message : syncFlagMessages) {
+            syncFlagMessagesByUid.put(message.getUid(), message);
+        }
+
+        List<? extends Message> changedMessages = remoteFolder.getMessagesWithChangedFlags(syncedModSeq);
+
+        List<Message> result = new ArrayList<Message>();
+        for (Message changedMessage : changedMessages) {
+            if (syncFlagMessagesByUid.containsKey(changedMessage.getUid())) {
+                result.add(changedMessage);
+            }
+        }
+
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "SYNC: " + result.size() + " of " + syncFlagMessages.size() + " messages changed " +
+                    "since mod-sequence " + syncedModSeq + " for folder " + remoteFolder.getName());
+
+        return result;
+    }
+
     private boolean syncFlags(LocalMessage localMessage, Message remoteMessage) throws MessagingException {
         boolean messageChanged = false;
         if (localMessage == null || localMessage.isSet(Flag.DELETED)) {
@@ -1707,7 +1799,7 @@ public class MessagingController implements Runnable {
     }
 
     private void processPendingCommands(final Account account) {
-        putBackground("processPendingCommands", null, new Runnable() {
+        putBackground("processPendingCommands", account, null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -1730,9 +1822,36 @@ public class MessagingController implements Runnable {
     }
 
     private void processPendingCommandsSynchronous(Account account) throws MessagingException {
+        synchronized (getPendingCommandLock(account)) {
+            processPendingCommandsLocked(account);
+        }
+    }
+
+    private Object getPendingCommandLock(Account account) {
+        Object lock = pendingCommandLocks.get(account.getUuid());
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = pendingCommandLocks.putIfAbsent(account.getUuid(), newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    private void processPendingCommandsLocked(Account account) throws MessagingException {
         LocalStore localStore = account.getLocalStore();
         List<PendingCommand> commands = localStore.getPendingCommands();
 
+        List<PendingCommand> compactedCommands = PendingCommandCompactor.compact(commands);
+        if (compactedCommands != commands) {
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "Compacted " + commands.size() + " pending commands to " + compactedCommands.size());
+
+            localStore.replacePendingCommands(commands, compactedCommands);
+            commands = compactedCommands;
+        }
+
         int progress = 0;
         int todo = commands.size();
         if (todo == 0) {
@@ -2147,7 +2266,7 @@ public class MessagingController implements Runnable {
     }
 
     private void queueSetFlag(final Account account, final String folderName, final String newState, final String flag, final String[] uids) {
-        putBackground("queueSetFlag " + account.getDescription() + ":" + folderName, null, new Runnable() {
+        putBackground("queueSetFlag " + account.getDescription() + ":" + folderName, account, null, new Runnable() {
             @Override
             public void run() {
                 PendingCommand command = new PendingCommand();
@@ -2249,7 +2368,7 @@ public class MessagingController implements Runnable {
         }
     }
     private void queueExpunge(final Account account, final String folderName) {
-        putBackground("queueExpunge " + account.getDescription() + ":" + folderName, null, new Runnable() {
+        putBackground("queueExpunge " + account.getDescription() + ":" + folderName, account, null, new Runnable() {
             @Override
             public void run() {
                 PendingCommand command = new PendingCommand();
@@ -2490,6 +2609,36 @@ public class MessagingController implements Runnable {
         processPendingCommands(account);
     }
 
+    /**
+     * Renders the latest unread messages of a folder in the background, so they display quickly when opened.
+     */
+    private void prewarmRenderedMessages(final Account account, final String folderName) {
+        threadPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                LocalFolder localFolder = null;
+                try {
+                    localFolder = account.getLocalStore().getFolder(folderName);
+                    List<LocalMessage> messages = localFolder.getLatestUnreadMessages(PREWARM_MESSAGE_COUNT);
+
+                    FetchProfile fp = new FetchProfile();
+                    fp.add(FetchProfile.Item.BODY);
+                    localFolder.fetch(messages, fp, null);
+
+                    RenderedMessageCache renderedMessageCache = RenderedMessageCache.getInstance(context);
+                    for (LocalMessage message : messages) {
+                        MessageViewInfoExtractor.prewarmRenderedMessage(context, message, renderedMessageCache);
+                    }
+                } catch (Exception e) {
+                    Log.w(K9.LOG_TAG, "Couldn't render new messages of " + account.getDescription() + ":" +
+                            folderName, e);
+                } finally {
+                    closeFolder(localFolder);
+                }
+            }
+        });
+    }
+
     public void setFlag(final Account account, final List<Long> messageIds, final Flag flag,
             final boolean newState) {
 
@@ -2698,7 +2847,7 @@ public class MessagingController implements Runnable {
 
     public void loadMessagePartialForViewRemote(final Account account, final String folder,
             final String uid, final MessagingListener listener) {
-        put("loadMessageForViewRemote", listener, new Runnable() {
+        put("loadMessageForViewRemote", account, listener, new Runnable() {
             @Override
             public void run() {
                 loadMessageForViewRemoteSynchronous(account, folder, uid, listener, true);
@@ -2709,7 +2858,7 @@ public class MessagingController implements Runnable {
     //TODO: Fix the callback mess. See GH-782
     public void loadMessageForViewRemote(final Account account, final String folder,
                                          final String uid, final MessagingListener listener) {
-        put("loadMessageForViewRemote", listener, new Runnable() {
+        put("loadMessageForViewRemote", account, listener, new Runnable() {
             @Override
             public void run() {
                 loadMessageForViewRemoteSynchronous(account, folder, uid, listener, false);
@@ -2919,7 +3068,7 @@ public class MessagingController implements Runnable {
     public void loadAttachment(final Account account, final LocalMessage message, final Part part,
             final MessagingListener listener) {
 
-        put("loadAttachment", listener, new Runnable() {
+        put("loadAttachment", account, listener, new Runnable() {
             @Override
             public void run() {
                 Folder remoteFolder = null;
@@ -3007,7 +3156,7 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessages(final Account account,
                                     MessagingListener listener) {
-        putBackground("sendPendingMessages", listener, new Runnable() {
+        putBackground("sendPendingMessages", account, listener, new Runnable() {
             @Override
             public void run() {
                 if (!account.isAvailable(context)) {
@@ -3067,6 +3216,7 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessagesSynchronous(final Account account) {
         LocalFolder localFolder = null;
+        Transport transport = null;
         Exception lastFailure = null;
         boolean wasPermanentFailure = false;
         try {
@@ -3098,7 +3248,8 @@ public class MessagingController implements Runnable {
             if (K9.DEBUG)
                 Log.i(K9.LOG_TAG, "Scanning folder '" + account.getOutboxFolderName() + "' (" + localFolder.getId() + ") for messages to send");
 
-            Transport transport = Transport.getInstance(K9.app, account);
+            // The transport keeps its session open between messages, so it has to be closed when we're done
+            transport = Transport.getInstance(K9.app, account);
             for (LocalMessage message : localMessages) {
                 if (message.isSet(Flag.DELETED)) {
                     message.destroy();
@@ -3220,6 +3371,9 @@ public class MessagingController implements Runnable {
             addErrorMessage(account, null, e);
 
         } finally {
+            if (transport != null) {
+                transport.close();
+            }
             if (lastFailure == null) {
                 notificationController.clearSendFailedNotification(account);
             }
@@ -3369,7 +3523,7 @@ public class MessagingController implements Runnable {
         };
 
 
-        put("getFolderUnread:" + account.getDescription() + ":" + folderName, l, unreadRunnable);
+        put("getFolderUnread:" + account.getDescription() + ":" + folderName, account, l, unreadRunnable);
     }
 
 
@@ -3408,7 +3562,7 @@ public class MessagingController implements Runnable {
 
         suppressMessages(account, messages);
 
-        putBackground("moveMessages", null, new Runnable() {
+        putBackground("moveMessages", account, null, new Runnable() {
             @Override
             public void run() {
                 moveOrCopyMessageSynchronous(account, srcFolder, messages, destFolder, false,
@@ -3422,7 +3576,7 @@ public class MessagingController implements Runnable {
 
         suppressMessages(account, messages);
 
-        putBackground("moveMessagesInThread", null, new Runnable() {
+        putBackground("moveMessagesInThread", account, null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -3446,7 +3600,7 @@ public class MessagingController implements Runnable {
             final List<? extends Message> messages, final String destFolder,
             final MessagingListener listener) {
 
-        putBackground("copyMessages", null, new Runnable() {
+        putBackground("copyMessages", account, null, new Runnable() {
             @Override
             public void run() {
                 moveOrCopyMessageSynchronous(account, srcFolder, messages, destFolder, true,
@@ -3458,7 +3612,7 @@ public class MessagingController implements Runnable {
     public void copyMessagesInThread(final Account account, final String srcFolder,
             final List<? extends Message> messages, final String destFolder) {
 
-        putBackground("copyMessagesInThread", null, new Runnable() {
+        putBackground("copyMessagesInThread", account, null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -3574,7 +3728,7 @@ public class MessagingController implements Runnable {
     }
 
     public void expunge(final Account account, final String folder, final MessagingListener listener) {
-        putBackground("expunge", null, new Runnable() {
+        putBackground("expunge", account, null, new Runnable() {
             @Override
             public void run() {
                 queueExpunge(account, folder);
@@ -3611,7 +3765,7 @@ public class MessagingController implements Runnable {
 
                 suppressMessages(account, messages);
 
-                putBackground("deleteThreads", null, new Runnable() {
+                putBackground("deleteThreads", account, null, new Runnable() {
                     @Override
                     public void run() {
                         deleteThreadsSynchronous(account, folder.getName(), accountMessages);
@@ -3661,7 +3815,7 @@ public class MessagingController implements Runnable {
                     final List<Message> accountMessages) {
                 suppressMessages(account, messages);
 
-                putBackground("deleteMessages", null, new Runnable() {
+                putBackground("deleteMessages", account, null, new Runnable() {
                     @Override
                     public void run() {
                         deleteMessagesSynchronous(account, folder.getName(),
@@ -3680,7 +3834,7 @@ public class MessagingController implements Runnable {
             throw new AssertionError("method must only be used in debug build!");
         }
 
-        putBackground("debugClearLocalMessages", null, new Runnable() {
+        putBackground("debugClearLocalMessages", null, null, new Runnable() {
             @Override
             public void run() {
                 for (LocalMessage message : messages) {
@@ -3805,7 +3959,7 @@ public class MessagingController implements Runnable {
 
                 // When we empty trash, we need to actually synchronize the folder
                 // or local deletes will never get cleaned up
-                synchronizeFolder(account, remoteFolder, true, 0, null);
+                synchronizeFolder(account, remoteFolder, true, 0, 1, null);
                 compact(account, null);
 
 
@@ -3816,7 +3970,7 @@ public class MessagingController implements Runnable {
     }
 
     public void emptyTrash(final Account account, MessagingListener listener) {
-        putBackground("emptyTrash", listener, new Runnable() {
+        putBackground("emptyTrash", account, listener, new Runnable() {
             @Override
             public void run() {
                 LocalFolder localFolder = null;
@@ -3962,7 +4116,7 @@ public class MessagingController implements Runnable {
         for (MessagingListener l : getListeners()) {
             l.checkMailStarted(context, account);
         }
-        putBackground("checkMail", listener, new Runnable() {
+        putBackground("checkMail", account, listener, new Runnable() {
             @Override
             public void run() {
 
@@ -3987,7 +4141,7 @@ public class MessagingController implements Runnable {
                     Log.e(K9.LOG_TAG, "Unable to synchronize mail", e);
                     addErrorMessage(account, null, e);
                 }
-                putBackground("finalize sync", null, new Runnable() {
+                putBackgroundAfterPendingCommands("finalize sync", null, new Runnable() {
                     @Override
                     public void run() {
 
@@ -4039,6 +4193,7 @@ public class MessagingController implements Runnable {
             Account.FolderMode aSyncMode = account.getFolderSyncMode();
 
             Store localStore = account.getLocalStore();
+            List<Folder> foldersToSync = new ArrayList<Folder>();
             for (final Folder folder : localStore.getPersonalNamespaces(false)) {
                 folder.open(Folder.OPEN_MODE_RW);
 
@@ -4066,13 +4221,21 @@ public class MessagingController implements Runnable {
 
                     continue;
                 }
-                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, listener);
+                foldersToSync.add(folder);
+            }
+
+            // Folder syncs are queued in this order. Up to maxConcurrentSyncs of them run at the same time.
+            Collections.sort(foldersToSync, new FolderSyncComparator(account.getInboxFolderName()));
+            int maxConcurrentSyncs = getMaxConcurrentFolderSyncs(account);
+            for (Folder folder : foldersToSync) {
+                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, maxConcurrentSyncs,
+                        listener);
             }
         } catch (MessagingException e) {
             Log.e(K9.LOG_TAG, "Unable to synchronize account " + account.getName(), e);
             addErrorMessage(account, null, e);
         } finally {
-            putBackground("clear notification flag for " + account.getDescription(), null, new Runnable() {
+            putBackground("clear notification flag for " + account.getDescription(), account, null, new Runnable() {
                 @Override
                 public void run() {
                     if (K9.DEBUG)
@@ -4095,11 +4258,21 @@ public class MessagingController implements Runnable {
     }
 
 
+    private int getMaxConcurrentFolderSyncs(Account account) {
+        try {
+            return Math.max(1, account.getRemoteStore().getMaxConcurrentFolderSyncs());
+        } catch (MessagingException e) {
+            Log.w(K9.LOG_TAG, "Couldn't get remote store for account " + account.getDescription(), e);
+            return 1;
+        }
+    }
+
     private void synchronizeFolder(
         final Account account,
         final Folder folder,
         final boolean ignoreLastCheckedTime,
         final long accountInterval,
+        final int maxConcurrentSyncs,
         final MessagingListener listener) {
 
 
@@ -4116,9 +4289,19 @@ public class MessagingController implements Runnable {
 
             return;
         }
-        putBackground("sync" + folder.getName(), null, new Runnable() {
+        putConcurrentBackground("sync" + folder.getName(), account, null, maxConcurrentSyncs, new Runnable() {
             @Override
             public void run() {
+                // Commands of an account run concurrently. Skip this one if another thread is synchronizing the
+                // folder right now.
+                ReentrantLock syncLock = getFolderSyncLock(account, folder.getName());
+                if (!syncLock.tryLock()) {
+                    if (K9.DEBUG)
+                        Log.v(K9.LOG_TAG, "Not syncing folder " + folder.getName() +
+                                ", it is already being synchronized");
+                    return;
+                }
+
                 LocalFolder tLocalFolder = null;
                 try {
                     // In case multiple Commands get enqueued, don't run more than
@@ -4148,6 +4331,7 @@ public class MessagingController implements Runnable {
                     addErrorMessage(account, null, e);
                 } finally {
                     closeFolder(tLocalFolder);
+                    syncLock.unlock();
                 }
             }
         }
@@ -4170,7 +4354,7 @@ public class MessagingController implements Runnable {
 
 
     public void compact(final Account account, final MessagingListener ml) {
-        putBackground("compact:" + account.getDescription(), ml, new Runnable() {
+        putBackground("compact:" + account.getDescription(), account, ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4192,7 +4376,7 @@ public class MessagingController implements Runnable {
     }
 
     public void clear(final Account account, final MessagingListener ml) {
-        putBackground("clear:" + account.getDescription(), ml, new Runnable() {
+        putBackground("clear:" + account.getDescription(), account, ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4220,7 +4404,7 @@ public class MessagingController implements Runnable {
     }
 
     public void recreate(final Account account, final MessagingListener ml) {
-        putBackground("recreate:" + account.getDescription(), ml, new Runnable() {
+        putBackground("recreate:" + account.getDescription(), account, ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4321,6 +4505,7 @@ public class MessagingController implements Runnable {
     }
 
     public void deleteAccount(Context context, Account account) {
+        commandScheduler.cancelPendingCommands(account.getUuid());
         notificationController.clearNewMailNotifications(account);
         memorizingListener.removeAccount(account);
     }
@@ -4398,12 +4583,20 @@ public class MessagingController implements Runnable {
     static class Command implements Comparable<Command> {
         public Runnable runnable;
 
+        public String accountUuid;
+
         public MessagingListener listener;
 
         public String description;
 
         boolean isForeground;
 
+        /**
+         * The maximum number of commands of the same account that may run while this command is running. A value
+         * greater than 1 allows the command to run alongside other commands that allow it as well.
+         */
+        int maxConcurrentCommands = 1;
+
         int sequence = sequencing.getAndIncrement();
 
         @Override
@@ -4556,7 +4749,7 @@ public class MessagingController implements Runnable {
 
         final CountDownLatch latch = new CountDownLatch(1);
         putBackground("Push messageArrived of account " + account.getDescription()
-        + ", folder " + remoteFolder.getName(), null, new Runnable() {
+        + ", folder " + remoteFolder.getName(), account, null, new Runnable() {
             @Override
             public void run() {
                 LocalFolder localFolder = null;
@@ -4736,6 +4929,8 @@ public class MessagingController implements Runnable {
                 Memory syncStarted = null;
                 Memory sendStarted = null;
                 Memory processingStarted = null;
+                int syncCompleted = 0;
+                int syncTotal = 0;
 
                 for (Memory memory : memories.values()) {
 
@@ -4743,6 +4938,8 @@ public class MessagingController implements Runnable {
                         switch (memory.syncingState) {
                         case STARTED:
                             syncStarted = memory;
+                            syncCompleted += memory.folderCompleted;
+                            syncTotal += memory.folderTotal;
                             break;
                         case FINISHED:
                             other.synchronizeMailboxFinished(memory.account, memory.folderName,
@@ -4811,7 +5008,11 @@ public class MessagingController implements Runnable {
                     }
                     somethingStarted = processingStarted;
                 }
-                if (somethingStarted != null && somethingStarted.folderTotal > 0) {
+                if (somethingStarted != null && somethingStarted == syncStarted && syncTotal > 0) {
+                    // Several folders may be synchronized at the same time. Report their combined progress.
+                    other.synchronizeMailboxProgress(syncStarted.account, syncStarted.folderName,
+                            syncCompleted, syncTotal);
+                } else if (somethingStarted != null && somethingStarted.folderTotal > 0) {
                     other.synchronizeMailboxProgress(somethingStarted.account, somethingStarted.folderName, somethingStarted.folderCompleted, somethingStarted.folderTotal);
                 }
 
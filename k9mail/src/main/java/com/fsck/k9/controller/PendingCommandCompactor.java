@@ -0,0 +1,270 @@
+package com.fsck.k9.controller;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fsck.k9.mailstore.LocalStore.PendingCommand;
+
+import static com.fsck.k9.controller.MessagingController.PENDING_COMMAND_APPEND;
+import static com.fsck.k9.controller.MessagingController.PENDING_COMMAND_EXPUNGE;
+import static com.fsck.k9.controller.MessagingController.PENDING_COMMAND_MARK_ALL_AS_READ;
+import static com.fsck.k9.controller.MessagingController.PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW;
+import static com.fsck.k9.controller.MessagingController.PENDING_COMMAND_SET_FLAG_BULK;
+
+
+/**
+ * Merges pending commands before they are replayed against the server.
+ * <p>
+ * While offline, every flag change and every move is queued as a separate command. This class combines them so that
+ * a folder's changes are sent as a few bulk commands:
+ * </p>
+ * <ul>
+ * <li>All flag commands for the same folder and flag are combined. For every message only the last state counts, so
+ * a message that was marked as read and then as unread again is only sent once. The result is at most one command
+ * that sets the flag and one that clears it.</li>
+ * <li>Moves or copies with the same source and destination folder are combined into one command.</li>
+ * </ul>
+ * <p>
+ * Commands are only combined if no other command touching the same folder was queued in between, e.g. an expunge or
+ * a move out of the folder. That way the outcome on the server is the same as when replaying the commands one by one.
+ * The combined command takes the place of the first command of its group.
+ * </p>
+ */
+class PendingCommandCompactor {
+    private PendingCommandCompactor() {
+    }
+
+    /**
+     * @return The compacted list of commands. Combined commands are new instances without a database ID. If nothing
+     *         could be combined, {@code commands} is returned.
+     */
+    static List<PendingCommand> compact(List<PendingCommand> commands) {
+        List<Object> slots = new ArrayList<>(commands.size());
+        Map<String, CommandGroup> openGroups = new LinkedHashMap<>();
+        boolean combined = false;
+
+        for (PendingCommand command : commands) {
+            String groupKey = getGroupKey(command);
+            Set<String> folders = getAffectedFolders(command);
+
+            closeConflictingGroups(openGroups, command, groupKey, folders);
+
+            if (groupKey == null) {
+                slots.add(command);
+                continue;
+            }
+
+            CommandGroup group = openGroups.get(groupKey);
+            if (group == null) {
+                group = new CommandGroup(folders);
+                openGroups.put(groupKey, group);
+                slots.add(group);
+            } else {
+                combined = true;
+            }
+            group.commands.add(command);
+        }
+
+        if (!combined) {
+            return commands;
+        }
+
+        List<PendingCommand> result = new ArrayList<>(slots.size());
+        for (Object slot : slots) {
+            if (slot instanceof PendingCommand) {
+                result.add((PendingCommand) slot);
+            } else {
+                result.addAll(((CommandGroup) slot).merge());
+            }
+        }
+
+        return result;
+    }
+
+    private static void closeConflictingGroups(Map<String, CommandGroup> openGroups, PendingCommand command,
+            String groupKey, Set<String> folders) {
+        boolean isFlagCommand = PENDING_COMMAND_SET_FLAG_BULK.equals(command.command);
+
+        Iterator<Map.Entry<String, CommandGroup>> iterator = openGroups.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, CommandGroup> entry = iterator.next();
+            if (entry.getKey().equals(groupKey)) {
+                continue;
+            }
+
+            CommandGroup group = entry.getValue();
+
+            // Changes to different flags don't affect each other
+            if (isFlagCommand && group.isFlagGroup()) {
+                continue;
+            }
+
+            if (folders == null || !Collections.disjoint(folders, group.folders)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return A key that is the same for all commands that can be combined, or {@code null} if the command can't be
+     *         combined with others.
+     */
+    private static String getGroupKey(PendingCommand command) {
+        String[] arguments = command.arguments;
+        if (PENDING_COMMAND_SET_FLAG_BULK.equals(command.command) && arguments.length >= 3) {
+            // folder, flag
+            return join(command.command, arguments[0], arguments[2]);
+        } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW.equals(command.command) && arguments.length >= 4) {
+            // source folder, destination folder, isCopy, hasNewUids
+            return join(command.command, arguments[0], arguments[1], arguments[2], arguments[3]);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The names of the folders a command works on, or {@code null} if it might affect any folder.
+     */
+    private static Set<String> getAffectedFolders(PendingCommand command) {
+        String[] arguments = command.arguments;
+        if (arguments.length == 0) {
+            return null;
+        }
+
+        if (PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW.equals(command.command) && arguments.length >= 2) {
+            return new HashSet<>(Arrays.asList(arguments[0], arguments[1]));
+        } else if (PENDING_COMMAND_SET_FLAG_BULK.equals(command.command) ||
+                PENDING_COMMAND_APPEND.equals(command.command) ||
+                PENDING_COMMAND_MARK_ALL_AS_READ.equals(command.command) ||
+                PENDING_COMMAND_EXPUNGE.equals(command.command)) {
+            return Collections.singleton(arguments[0]);
+        }
+
+        return null;
+    }
+
+    private static String join(String... parts) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            sb.append(part).append('\u0000');
+        }
+        return sb.toString();
+    }
+
+
+    private static class CommandGroup {
+        final Set<String> folders;
+        final List<PendingCommand> commands = new ArrayList<>();
+
+        CommandGroup(Set<String> folders) {
+            this.folders = folders;
+        }
+
+        boolean isFlagGroup() {
+            return PENDING_COMMAND_SET_FLAG_BULK.equals(commands.get(0).command);
+        }
+
+        List<PendingCommand> merge() {
+            if (commands.size() == 1) {
+                return commands;
+            }
+
+            return isFlagGroup() ? mergeSetFlagCommands() : Collections.singletonList(mergeMoveOrCopyCommands());
+        }
+
+        /**
+         * Arguments: folder, newState, flag, uid...
+         */
+        private List<PendingCommand> mergeSetFlagCommands() {
+            PendingCommand first = commands.get(0);
+            String folder = first.arguments[0];
+            String flag = first.arguments[2];
+
+            Map<String, Boolean> states = new LinkedHashMap<>();
+            for (PendingCommand command : commands) {
+                Boolean newState = Boolean.valueOf(command.arguments[1]);
+                for (int i = 3; i < command.arguments.length; i++) {
+                    states.put(command.arguments[i], newState);
+                }
+            }
+
+            List<String> setUids = new ArrayList<>();
+            List<String> clearUids = new ArrayList<>();
+            for (Map.Entry<String, Boolean> entry : states.entrySet()) {
+                if (entry.getValue()) {
+                    setUids.add(entry.getKey());
+                } else {
+                    clearUids.add(entry.getKey());
+                }
+            }
+
+            List<PendingCommand> result = new ArrayList<>(2);
+            if (!setUids.isEmpty()) {
+                result.add(createSetFlagCommand(folder, true, flag, setUids));
+            }
+            if (!clearUids.isEmpty()) {
+                result.add(createSetFlagCommand(folder, false, flag, clearUids));
+            }
+
+            return result;
+        }
+
+        private PendingCommand createSetFlagCommand(String folder, boolean newState, String flag, List<String> uids) {
+            PendingCommand command = new PendingCommand();
+            command.command = PENDING_COMMAND_SET_FLAG_BULK;
+            command.arguments = new String[3 + uids.size()];
+            command.arguments[0] = folder;
+            command.arguments[1] = Boolean.toString(newState);
+            command.arguments[2] = flag;
+            for (int i = 0, end = uids.size(); i < end; i++) {
+                command.arguments[3 + i] = uids.get(i);
+            }
+
+            return command;
+        }
+
+        /**
+         * Arguments: srcFolder, destFolder, isCopy, hasNewUids, uid... [, newUid...]
+         * <p>
+         * If {@code hasNewUids} is {@code true} the first half of the UIDs are the remote UIDs in the source folder and
+         * the second half the corresponding local UIDs in the destination folder.
+         * </p>
+         */
+        private PendingCommand mergeMoveOrCopyCommands() {
+            PendingCommand first = commands.get(0);
+            boolean hasNewUids = Boolean.parseBoolean(first.arguments[3]);
+
+            List<String> uids = new ArrayList<>();
+            List<String> newUids = new ArrayList<>();
+            for (PendingCommand command : commands) {
+                String[] arguments = command.arguments;
+                if (hasNewUids) {
+                    int count = (arguments.length - 4) / 2;
+                    uids.addAll(Arrays.asList(arguments).subList(4, 4 + count));
+                    newUids.addAll(Arrays.asList(arguments).subList(4 + count, 4 + 2 * count));
+                } else {
+                    uids.addAll(Arrays.asList(arguments).subList(4, arguments.length));
+                }
+            }
+
+            PendingCommand command = new PendingCommand();
+            command.command = PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW;
+
+            List<String> arguments = new ArrayList<>(4 + uids.size() + newUids.size());
+            arguments.addAll(Arrays.asList(first.arguments).subList(0, 4));
+            arguments.addAll(uids);
+            arguments.addAll(newUids);
+            command.arguments = arguments.toArray(new String[arguments.size()]);
+
+            return command;
+        }
+    }
+}
@@ -5,8 +5,6 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -56,6 +54,8 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.Window;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
@@ -81,16 +81,7 @@ import com.fsck.k9.activity.misc.ContactPictureLoader;
 import com.fsck.k9.cache.EmailProviderCache;
 import com.fsck.k9.controller.MessagingController;
 import com.fsck.k9.fragment.ConfirmationDialogFragment.ConfirmationDialogFragmentListener;
-import com.fsck.k9.fragment.MessageListFragmentComparators.ArrivalComparator;
-import com.fsck.k9.fragment.MessageListFragmentComparators.AttachmentComparator;
-import com.fsck.k9.fragment.MessageListFragmentComparators.ComparatorChain;
-import com.fsck.k9.fragment.MessageListFragmentComparators.DateComparator;
-import com.fsck.k9.fragment.MessageListFragmentComparators.FlaggedComparator;
-import com.fsck.k9.fragment.MessageListFragmentComparators.ReverseComparator;
-import com.fsck.k9.fragment.MessageListFragmentComparators.ReverseIdComparator;
-import com.fsck.k9.fragment.MessageListFragmentComparators.SenderComparator;
-import com.fsck.k9.fragment.MessageListFragmentComparators.SubjectComparator;
-import com.fsck.k9.fragment.MessageListFragmentComparators.UnreadComparator;
+import com.fsck.k9.fragment.MessageListFragmentComparators.MessageSortKeyReader;
 import com.fsck.k9.helper.ContactPicture;
 import com.fsck.k9.helper.MergeCursorWithUniqueId;
 import com.fsck.k9.helper.MessageHelper;
@@ -196,28 +187,17 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     private static final String STATE_ACTIVE_MESSAGE = "activeMessage";
     private static final String STATE_REMOTE_SEARCH_PERFORMED = "remoteSearchPerformed";
     private static final String STATE_MESSAGE_LIST = "listState";
+    private static final String STATE_LIST_LIMIT = "listLimit";
 
     /**
-     * Maps a {@link SortType} to a {@link Comparator} implementation.
+     * Number of messages per account that are loaded at once.
      */
-    private static final Map<SortType, Comparator<Cursor>> SORT_COMPARATORS;
+    private static final int PAGE_SIZE = 100;
 
-    static {
-        // fill the mapping at class time loading
-
-        final Map<SortType, Comparator<Cursor>> map =
-                new EnumMap<SortType, Comparator<Cursor>>(SortType.class);
-        map.put(SortType.SORT_ATTACHMENT, new AttachmentComparator());
-        map.put(SortType.SORT_DATE, new DateComparator());
-        map.put(SortType.SORT_ARRIVAL, new ArrivalComparator());
-        map.put(SortType.SORT_FLAGGED, new FlaggedComparator());
-        map.put(SortType.SORT_SUBJECT, new SubjectComparator());
-        map.put(SortType.SORT_SENDER, new SenderComparator());
-        map.put(SortType.SORT_UNREAD, new UnreadComparator());
-
-        // make it immutable to prevent accidental alteration (content is immutable already)
-        SORT_COMPARATORS = Collections.unmodifiableMap(map);
-    }
+    /**
+     * The next page is loaded when the user scrolls this close to the end of the list.
+     */
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
 
     private ListView mListView;
     private PullToRefreshListView mPullToRefreshView;
@@ -243,6 +223,19 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     private boolean[] mCursorValid;
     private int mUniqueIdColumn;
 
+    /**
+     * The maximum number of messages per account the cursor loaders query. Grows by
+     * {@link #PAGE_SIZE} whenever the user scrolls to the end of the list, and is lifted when all
+     * messages are selected.
+     */
+    private int mListLimit = PAGE_SIZE;
+
+    /**
+     * Set when "select all" has to wait until the whole message list has been loaded. Batch
+     * actions only operate on the loaded rows.
+     */
+    private boolean mSelectAllPending = false;
+
     /**
      * Stores the name of the folder that we want to open as soon as possible after load.
      */
@@ -461,36 +454,11 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     }
 
     /**
-     * @return The comparator to use to display messages in an ordered
+     * @return The sort key reader to use to display messages in an ordered
      *         fashion. Never {@code null}.
      */
-    protected Comparator<Cursor> getComparator() {
-        final List<Comparator<Cursor>> chain =
-                new ArrayList<Comparator<Cursor>>(3 /* we add 3 comparators at most */);
-
-        // Add the specified comparator
-        final Comparator<Cursor> comparator = SORT_COMPARATORS.get(mSortType);
-        if (mSortAscending) {
-            chain.add(comparator);
-        } else {
-            chain.add(new ReverseComparator<Cursor>(comparator));
-        }
-
-        // Add the date comparator if not already specified
-        if (mSortType != SortType.SORT_DATE && mSortType != SortType.SORT_ARRIVAL) {
-            final Comparator<Cursor> dateComparator = SORT_COMPARATORS.get(SortType.SORT_DATE);
-            if (mSortDateAscending) {
-                chain.add(dateComparator);
-            } else {
-                chain.add(new ReverseComparator<Cursor>(dateComparator));
-            }
-        }
-
-        // Add the id comparator
-        chain.add(new ReverseIdComparator());
-
-        // Build the comparator chain
-        return new ComparatorChain<Cursor>(chain);
+    protected MessageSortKeyReader getSortKeyReader() {
+        return new MessageSortKeyReader(mSortType, mSortAscending, mSortDateAscending);
     }
 
     private void folderLoading(String folder, boolean loading) {
@@ -722,6 +690,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         outState.putBoolean(STATE_REMOTE_SEARCH_PERFORMED, mRemoteSearchPerformed);
         outState.putParcelable(STATE_ACTIVE_MESSAGE, mActiveMessage);
+        outState.putInt(STATE_LIST_LIMIT, mListLimit);
     }
 
     /**
@@ -739,6 +708,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         mRemoteSearchPerformed = savedInstanceState.getBoolean(STATE_REMOTE_SEARCH_PERFORMED);
         mSavedListState = savedInstanceState.getParcelable(STATE_MESSAGE_LIST);
         mActiveMessage = savedInstanceState.getParcelable(STATE_ACTIVE_MESSAGE);
+        mListLimit = savedInstanceState.getInt(STATE_LIST_LIMIT, PAGE_SIZE);
     }
 
     /**
@@ -1022,9 +992,60 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         mListView.setScrollingCacheEnabled(false);
         mListView.setOnItemClickListener(this);
 
+        // PullToRefreshListView installs its own OnScrollListener on the list view and forwards
+        // the events to this one.
+        mPullToRefreshView.setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                // Do nothing
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (firstVisibleItem + visibleItemCount + PREFETCH_DISTANCE >= totalItemCount) {
+                    loadNextPage();
+                }
+            }
+        });
+
         registerForContextMenu(mListView);
     }
 
+    /**
+     * Increases the number of messages queried per account if at least one account has more
+     * messages than are currently loaded, or if the merged list doesn't show all loaded messages.
+     */
+    private void loadNextPage() {
+        if (!isLoadFinished() || !hasMoreMessages()) {
+            return;
+        }
+
+        mListLimit += PAGE_SIZE;
+        restartLoader();
+    }
+
+    private boolean hasMoreMessages() {
+        if (mIsThreadDisplay) {
+            return false;
+        }
+
+        int totalCount = 0;
+        for (Cursor cursor : mCursors) {
+            if (cursor != null) {
+                int count = cursor.getCount();
+                if (count >= mListLimit) {
+                    return true;
+                }
+                totalCount += count;
+            }
+        }
+
+        // The merged list of a unified view only shows mListLimit rows, even if the accounts
+        // together returned more than that.
+        return totalCount > mListLimit;
+    }
+
     public void onCompose() {
         if (!mSingleAccountMode) {
             /*
@@ -1131,6 +1152,9 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         Toast toast = Toast.makeText(getActivity(), toastString, Toast.LENGTH_SHORT);
         toast.show();
 
+        mListLimit = PAGE_SIZE;
+        mSelectAllPending = false;
+
         LoaderManager loaderManager = getLoaderManager();
         for (int i = 0, len = mAccountUuids.length; i < len; i++) {
             loaderManager.restartLoader(i, null, this);
@@ -2093,6 +2117,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
             updateActionModeTitle();
             computeSelectAllVisibility();
         } else {
+            mSelectAllPending = false;
             mSelected.clear();
             mSelectedCount = 0;
             if (mActionMode != null) {
@@ -2878,6 +2903,24 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     }
 
     public void selectAll() {
+        mSelectAllPending = true;
+        if (isLoadFinished()) {
+            selectAllWhenLoaded();
+        }
+    }
+
+    /**
+     * Selects all messages, after removing the page limit and reloading the list if not all
+     * messages have been loaded yet.
+     */
+    private void selectAllWhenLoaded() {
+        if (hasMoreMessages()) {
+            mListLimit = Integer.MAX_VALUE;
+            restartLoader();
+            return;
+        }
+
+        mSelectAllPending = false;
         setSelectionState(true);
     }
 
@@ -3190,10 +3233,12 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
             needConditions = false;
         } else if (mThreadedList) {
             uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + accountUuid + "/messages/threaded");
+            uri = EmailProvider.getPageUri(uri, mListLimit);
             projection = THREADED_PROJECTION;
             needConditions = true;
         } else {
             uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + accountUuid + "/messages");
+            uri = EmailProvider.getPageUri(uri, mListLimit);
             projection = PROJECTION;
             needConditions = true;
         }
@@ -3301,7 +3346,10 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         Cursor cursor;
         if (mCursors.length > 1) {
-            cursor = new MergeCursorWithUniqueId(mCursors, getComparator());
+            // Every account contributes at most mListLimit messages. Only that many rows of the
+            // merged list are known to be complete, since an account might have more messages
+            // sorting between the remaining rows.
+            cursor = new MergeCursorWithUniqueId(mCursors, getSortKeyReader(), mListLimit);
             mUniqueIdColumn = cursor.getColumnIndex("_id");
         } else {
             cursor = data;
@@ -3337,6 +3385,10 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
             }
 
             mFragmentListener.updateMenu();
+
+            if (mSelectAllPending) {
+                selectAllWhenLoaded();
+            }
         }
     }
 
@@ -0,0 +1,195 @@
+package com.fsck.k9.helper;
+
+
+import java.util.Arrays;
+
+import android.database.Cursor;
+
+
+/**
+ * Computes the order of the rows of a {@link MergeCursor}.
+ * <p>
+ * The next row of each cursor is kept in a binary heap ordered by its sort key, so finding the next merged row takes
+ * O(log k) key comparisons for k cursors. Merged rows are remembered, so moving to a row that has already been
+ * merged doesn't compare anything.
+ * </p>
+ *
+ * @param <K>
+ *         The type of the sort keys.
+ */
+class CursorMerger<K> {
+    private static final int INITIAL_CAPACITY = 64;
+
+
+    private final Cursor[] cursors;
+    private final SortKeyReader<K> keyReader;
+
+    /**
+     * The sort key of the next row of each cursor.
+     */
+    private final Object[] nextKeys;
+
+    /**
+     * The position of the next row of each cursor.
+     */
+    private final int[] nextPositions;
+
+    /**
+     * Indexes of the cursors that have rows left, ordered as a binary min-heap by their next row.
+     */
+    private final int[] heap;
+    private int heapSize = -1;
+
+    private int[] rowCursorIndexes = new int[INITIAL_CAPACITY];
+    private int[] rowPositions = new int[INITIAL_CAPACITY];
+    private int mergedCount = 0;
+
+
+    CursorMerger(Cursor[] cursors, SortKeyReader<K> keyReader) {
+        this.cursors = cursors;
+        this.keyReader = keyReader;
+
+        nextKeys = new Object[cursors.length];
+        nextPositions = new int[cursors.length];
+        heap = new int[cursors.length];
+    }
+
+    /**
+     * Merges rows until the row at {@code position} is known.
+     *
+     * <p>
+     * This moves the individual cursors. Callers have to position the cursor of the row they want to access
+     * afterwards.
+     * </p>
+     *
+     * @return {@code false} if the cursors don't contain enough rows.
+     */
+    boolean mergeUpTo(int position) {
+        if (heapSize == -1) {
+            initializeHeap();
+        }
+
+        while (mergedCount <= position) {
+            if (heapSize == 0) {
+                return false;
+            }
+
+            int cursorIndex = heap[0];
+            addMergedRow(cursorIndex, nextPositions[cursorIndex]);
+
+            nextPositions[cursorIndex]++;
+            if (nextPositions[cursorIndex] < cursors[cursorIndex].getCount()) {
+                readNextKey(cursorIndex);
+            } else {
+                nextKeys[cursorIndex] = null;
+                heapSize--;
+                heap[0] = heap[heapSize];
+            }
+
+            if (heapSize > 0) {
+                siftDown(0);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The index of the cursor containing the merged row at {@code position}. The row must have been merged
+     *         by {@link #mergeUpTo(int)}.
+     */
+    int getCursorIndex(int position) {
+        return rowCursorIndexes[position];
+    }
+
+    /**
+     * @return The position of the merged row at {@code position} within its cursor. The row must have been merged by
+     *         {@link #mergeUpTo(int)}.
+     */
+    int getCursorPosition(int position) {
+        return rowPositions[position];
+    }
+
+    private void initializeHeap() {
+        heapSize = 0;
+        for (int i = 0, len = cursors.length; i < len; i++) {
+            Cursor cursor = cursors[i];
+            if (cursor == null || cursor.getCount() == 0) {
+                continue;
+            }
+
+            nextPositions[i] = 0;
+            readNextKey(i);
+            heap[heapSize] = i;
+            siftUp(heapSize);
+            heapSize++;
+        }
+    }
+
+    private void readNextKey(int cursorIndex) {
+        Cursor cursor = cursors[cursorIndex];
+        cursor.moveToPosition(nextPositions[cursorIndex]);
+        nextKeys[cursorIndex] = keyReader.readSortKey(cursor);
+    }
+
+    private void addMergedRow(int cursorIndex, int position) {
+        if (mergedCount == rowCursorIndexes.length) {
+            int capacity = mergedCount * 2;
+            rowCursorIndexes = Arrays.copyOf(rowCursorIndexes, capacity);
+            rowPositions = Arrays.copyOf(rowPositions, capacity);
+        }
+
+        rowCursorIndexes[mergedCount] = cursorIndex;
+        rowPositions[mergedCount] = position;
+        mergedCount++;
+    }
+
+    private void siftUp(int index) {
+        int cursorIndex = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (compare(heap[parent], cursorIndex) <= 0) {
+                break;
+            }
+
+            heap[index] = heap[parent];
+            index = parent;
+        }
+
+        heap[index] = cursorIndex;
+    }
+
+    private void siftDown(int index) {
+        int cursorIndex = heap[index];
+        int half = heapSize / 2;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < heapSize && compare(heap[right], heap[child]) < 0) {
+                child = right;
+            }
+
+            if (compare(cursorIndex, heap[child]) <= 0) {
+                break;
+            }
+
+            heap[index] = heap[child];
+            index = child;
+        }
+
+        heap[index] = cursorIndex;
+    }
+
+    /**
+     * Compares the next rows of two cursors. Rows with equal keys are taken from the cursor that comes first.
+     */
+    @SuppressWarnings("unchecked")
+    private int compare(int cursorIndex, int otherCursorIndex) {
+        int result = keyReader.compare((K) nextKeys[cursorIndex], (K) nextKeys[otherCursorIndex]);
+        if (result != 0) {
+            return result;
+        }
+
+        return cursorIndex - otherCursorIndex;
+    }
+}
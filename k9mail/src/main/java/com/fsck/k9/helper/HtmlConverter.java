@@ -1323,6 +1323,39 @@ public class HtmlConverter {
         return "</pre>";
     }
 
+    /**
+     * Wrap the HTML of a message body in a document that displays properly in a {@code MessageWebView}.
+     *
+     * @param text
+     *      The message body. Assumed to be MIME type text/html.
+     *
+     * @return The HTML document. It still needs to be sanitized before it can be displayed.
+     */
+    public static String wrapMessageContent(String text) {
+        return getMessageContentHeader() + text + "</body></html>";
+    }
+
+    /**
+     * Generate the beginning of the document created by {@link #wrapMessageContent(String)}.
+     *
+     * <p>
+     * It depends on the user's message view theme and font settings.
+     * </p>
+     */
+    public static String getMessageContentHeader() {
+        // Include a meta tag so the WebView will not use a fixed viewport width of 980 px
+        String content = "<html><head><meta name=\"viewport\" content=\"width=device-width\"/>";
+        if (K9.getK9MessageViewTheme() == K9.Theme.DARK)  {
+            content += "<style type=\"text/css\">" +
+                   "* { background: black ! important; color: #F3F3F3 !important }" +
+                   ":link, :link * { color: #CCFF33 !important }" +
+                   ":visited, :visited * { color: #551A8B !important }</style> ";
+        }
+        content += cssStylePre();
+        content += "</head><body>";
+        return content;
+    }
+
     /**
      * Dynamically generate a CSS style for {@code <pre>} elements.
      *
@@ -1,54 +1,37 @@
 package com.fsck.k9.helper;
 
 
-import org.htmlcleaner.CleanerProperties;
-import org.htmlcleaner.HtmlCleaner;
-import org.htmlcleaner.HtmlSerializer;
-import org.htmlcleaner.SimpleHtmlSerializer;
-import org.htmlcleaner.TagNode;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 
 
 public class HtmlSanitizer {
-    private static final HtmlCleaner HTML_CLEANER;
-    private static final HtmlSerializer HTML_SERIALIZER;
-
-    static {
-        CleanerProperties properties = createCleanerProperties();
-        HTML_CLEANER = new HtmlCleaner(properties);
-        HTML_SERIALIZER = new SimpleHtmlSerializer(properties);
-    }
-
-
     private HtmlSanitizer() {}
 
     public static String sanitize(String html) {
-        TagNode rootNode = HTML_CLEANER.clean(html);
-
-        removeMetaRefresh(rootNode);
-
-        return HTML_SERIALIZER.getAsString(rootNode, "UTF8");
-    }
-
-    private static CleanerProperties createCleanerProperties() {
-        CleanerProperties properties = new CleanerProperties();
-
-        // See http://htmlcleaner.sourceforge.net/parameters.php for descriptions
-        properties.setNamespacesAware(false);
-        properties.setAdvancedXmlEscape(false);
-        properties.setOmitXmlDeclaration(true);
-        properties.setOmitDoctypeDeclaration(false);
-        properties.setTranslateSpecialEntities(false);
-        properties.setRecognizeUnicodeChars(false);
+        StringWriter writer = new StringWriter(html.length());
+        try {
+            sanitize(new StringReader(html), writer);
+        } catch (IOException e) {
+            // Reading from a String and writing to a StringWriter doesn't throw
+            throw new RuntimeException(e);
+        }
 
-        return properties;
+        return writer.toString();
     }
 
-    private static void removeMetaRefresh(TagNode rootNode) {
-        for (TagNode element : rootNode.getElementListByName("meta", true)) {
-            String httpEquiv = element.getAttributeByName("http-equiv");
-            if (httpEquiv != null && httpEquiv.trim().equalsIgnoreCase("refresh")) {
-                element.removeFromTree();
-            }
-        }
+    /**
+     * Sanitize HTML without holding the complete input or output in memory.
+     *
+     * <p>
+     * The output is a complete HTML document with balanced tags. {@code <meta http-equiv="refresh">} elements are
+     * removed.
+     * </p>
+     */
+    public static void sanitize(Reader reader, Writer writer) throws IOException {
+        new StreamingHtmlSanitizer(reader, writer).sanitize();
     }
 }
@@ -17,8 +17,6 @@
 
 package com.fsck.k9.helper;
 
-import java.util.Comparator;
-
 import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.database.CharArrayBuffer;
@@ -62,22 +60,41 @@ public class MergeCursor implements Cursor {
     private int mCount = -1;
 
     /**
-     * The comparator that is used to decide how the individual cursors are merged.
+     * Decides how the individual cursors are merged and remembers the merged order.
+     */
+    private final CursorMerger<?> mMerger;
+
+    /**
+     * The maximum number of rows exposed by this cursor.
      */
-    private final Comparator<Cursor> mComparator;
+    private final int mMaxCount;
 
 
     /**
      * Constructor
      *
+     * <p>
+     * The rows are merged lazily while moving through the cursor, so rows beyond
+     * {@code maxCount} are never compared. This allows combining cursors that each only contain
+     * the first page of a larger result. Only the first page of the merged result is known to
+     * be complete then.
+     * </p>
+     * <p>
+     * The sort key of each row is only read once. Merged rows are remembered, so moving back to
+     * a row doesn't compare anything.
+     * </p>
+     *
      * @param cursors
      *         The list of cursors this {@code MultiCursor} should combine.
-     * @param comparator
-     *         A comparator that is used to decide in what order the individual cursors are merged.
+     * @param keyReader
+     *         Reads the keys that decide in what order the individual cursors are merged.
+     * @param maxCount
+     *         The maximum number of rows this cursor exposes.
      */
-    public MergeCursor(Cursor[] cursors, Comparator<Cursor> comparator) {
+    public <K> MergeCursor(Cursor[] cursors, SortKeyReader<K> keyReader, int maxCount) {
         mCursors = cursors.clone();
-        mComparator = comparator;
+        mMerger = new CursorMerger<K>(mCursors, keyReader);
+        mMaxCount = maxCount;
 
         resetCursors();
     }
@@ -164,7 +181,7 @@ public class MergeCursor implements Cursor {
                 }
             }
 
-            mCount = count;
+            mCount = Math.min(count, mMaxCount);
         }
 
         return mCount;
@@ -286,50 +303,11 @@ public class MergeCursor implements Cursor {
 
     @Override
     public boolean moveToNext() {
-        int count = getCount();
-        if (mPosition == count) {
+        if (mPosition == getCount()) {
             return false;
         }
 
-        if (mPosition == count - 1) {
-            mActiveCursor.moveToNext();
-            mPosition++;
-            return false;
-        }
-
-        int smallest = -1;
-        for (int i = 0, len = mCursors.length; i < len; i++) {
-            if (mCursors[i] == null || mCursors[i].getCount() == 0 || mCursors[i].isLast()) {
-                continue;
-            }
-
-            if (smallest == -1) {
-                smallest = i;
-                mCursors[smallest].moveToNext();
-                continue;
-            }
-
-            Cursor left = mCursors[smallest];
-            Cursor right = mCursors[i];
-
-            right.moveToNext();
-
-            int result = mComparator.compare(left, right);
-            if (result > 0) {
-                smallest = i;
-                left.moveToPrevious();
-            } else {
-                right.moveToPrevious();
-            }
-        }
-
-        mPosition++;
-        if (smallest != -1) {
-            mActiveCursorIndex = smallest;
-            mActiveCursor = mCursors[mActiveCursorIndex];
-        }
-
-        return true;
+        return moveToPosition(mPosition + 1);
     }
 
     @Override
@@ -347,24 +325,16 @@ public class MergeCursor implements Cursor {
             return false;
         }
 
-        // Check for no-op moves, and skip the rest of the work for them
-        if (position == mPosition) {
-            return true;
+        // Merging moves the individual cursors, so always position the active cursor afterwards
+        if (!mMerger.mergeUpTo(position)) {
+            mPosition = count;
+            return false;
         }
 
-        if (position > mPosition) {
-            for (int i = 0, end = position - mPosition; i < end; i++) {
-                if (!moveToNext()) {
-                    return false;
-                }
-            }
-        } else {
-            for (int i = 0, end = mPosition - position; i < end; i++) {
-                if (!moveToPrevious()) {
-                    return false;
-                }
-            }
-        }
+        mActiveCursorIndex = mMerger.getCursorIndex(position);
+        mActiveCursor = mCursors[mActiveCursorIndex];
+        mActiveCursor.moveToPosition(mMerger.getCursorPosition(position));
+        mPosition = position;
 
         return true;
     }
@@ -375,40 +345,7 @@ public class MergeCursor implements Cursor {
             return false;
         }
 
-        mActiveCursor.moveToPrevious();
-
-        if (mPosition == 0) {
-            mPosition = -1;
-            return false;
-        }
-
-        int greatest = -1;
-        for (int i = 0, len = mCursors.length; i < len; i++) {
-            if (mCursors[i] == null || mCursors[i].isBeforeFirst()) {
-                continue;
-            }
-
-            if (greatest == -1) {
-                greatest = i;
-                continue;
-            }
-
-            Cursor left = mCursors[greatest];
-            Cursor right = mCursors[i];
-
-            int result = mComparator.compare(left, right);
-            if (result <= 0) {
-                greatest = i;
-            }
-        }
-
-        mPosition--;
-        if (greatest != -1) {
-            mActiveCursorIndex = greatest;
-            mActiveCursor = mCursors[mActiveCursorIndex];
-        }
-
-        return true;
+        return moveToPosition(mPosition - 1);
     }
 
     @Override
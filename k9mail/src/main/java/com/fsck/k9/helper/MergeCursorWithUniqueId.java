@@ -1,7 +1,5 @@
 package com.fsck.k9.helper;
 
-import java.util.Comparator;
-
 import android.database.Cursor;
 
 
@@ -14,8 +12,8 @@ public class MergeCursorWithUniqueId extends MergeCursor {
     private int mIdColumnIndex = -1;
 
 
-    public MergeCursorWithUniqueId(Cursor[] cursors, Comparator<Cursor> comparator) {
-        super(cursors, comparator);
+    public <K> MergeCursorWithUniqueId(Cursor[] cursors, SortKeyReader<K> keyReader, int maxCount) {
+        super(cursors, keyReader, maxCount);
 
         if (cursors.length > MAX_CURSORS) {
             throw new IllegalArgumentException("This class only supports up to " +
@@ -0,0 +1,24 @@
+package com.fsck.k9.helper;
+
+
+import java.util.Comparator;
+
+import android.database.Cursor;
+
+
+/**
+ * Defines the order in which {@link MergeCursor} merges its cursors.
+ * <p>
+ * The sort key of a row is read once when the row becomes the next candidate of its cursor. Comparing keys must not
+ * access any cursor, so the values should be copied out of the cursor into plain fields.
+ * </p>
+ *
+ * @param <K>
+ *         The type of the sort keys.
+ */
+public interface SortKeyReader<K> extends Comparator<K> {
+    /**
+     * Reads the sort key of the row the cursor is currently positioned on.
+     */
+    K readSortKey(Cursor cursor);
+}
@@ -0,0 +1,1082 @@
+package com.fsck.k9.helper;
+
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Single pass implementation of {@link HtmlSanitizer}.
+ * <p>
+ * The input is tokenized and written to the output as it is read. Apart from small buffers only the stack of open
+ * elements is kept in memory. The output follows what HtmlCleaner used to produce: a complete
+ * {@code <html><head></head><body></body></html>} document with balanced tags, lower case tag and attribute names,
+ * quoted attribute values, and without {@code <meta http-equiv="refresh">} elements.
+ * </p><p>
+ * Unlike a DOM based cleaner this can't move content back into {@code <head>} once {@code <body>} has been written.
+ * Only the attributes of a {@code <body>} element nested in the message are still merged into the document's
+ * {@code <body>}, because the start tag is held back until the first content that is displayed.
+ * </p>
+ */
+class StreamingHtmlSanitizer {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_NESTING_DEPTH = 512;
+    private static final int MAX_DEFERRED_LENGTH = 64 * 1024;
+
+    private static final Set<String> VOID_ELEMENTS = setOf("area", "base", "basefont", "bgsound", "br", "col",
+            "embed", "frame", "hr", "img", "input", "isindex", "keygen", "link", "meta", "param", "source", "track",
+            "wbr");
+    /**
+     * HTML elements whose content the WebView doesn't parse as markup. Inside SVG and MathML content these are
+     * ordinary elements.
+     */
+    private static final Set<String> RAW_TEXT_ELEMENTS = setOf("iframe", "noembed", "noframes", "script", "style",
+            "textarea", "title", "xmp");
+    private static final Set<String> FOREIGN_ROOT_ELEMENTS = setOf("math", "svg");
+    /**
+     * HTML elements that end SVG and MathML content, e.g. {@code <svg><p>} closes the {@code <svg>} element.
+     */
+    private static final Set<String> FOREIGN_CONTENT_BREAKOUT_ELEMENTS = setOf("b", "big", "blockquote", "body",
+            "br", "center", "code", "dd", "div", "dl", "dt", "em", "embed", "h1", "h2", "h3", "h4", "h5", "h6", "head",
+            "hr", "i", "img", "li", "listing", "menu", "meta", "nobr", "ol", "p", "pre", "ruby", "s", "small", "span",
+            "strong", "strike", "sub", "sup", "table", "tt", "u", "ul", "var");
+    private static final Set<String> SVG_HTML_INTEGRATION_POINTS = setOf("desc", "foreignobject", "title");
+    private static final Set<String> MATHML_HTML_INTEGRATION_POINTS = setOf("mi", "mn", "mo", "ms", "mtext");
+    private static final Set<String> HEAD_ELEMENTS = setOf("base", "link", "meta", "script", "style", "title");
+    private static final Set<String> FORMATTING_ELEMENTS = setOf("a", "b", "big", "code", "em", "font", "i", "nobr",
+            "s", "small", "strike", "strong", "tt", "u");
+    private static final Set<String> HEADING_ELEMENTS = setOf("h1", "h2", "h3", "h4", "h5", "h6");
+    private static final Set<String> CLOSES_PARAGRAPH = setOf("address", "article", "aside", "blockquote",
+            "center", "dd", "details", "dir", "div", "dl", "dt", "fieldset", "figcaption", "figure", "footer", "form",
+            "h1", "h2", "h3", "h4", "h5", "h6", "header", "hr", "li", "menu", "nav", "ol", "p", "pre", "section",
+            "table", "ul");
+    private static final Set<String> TABLE_STRUCTURE_ELEMENTS = setOf("caption", "table", "tbody", "td", "tfoot",
+            "th", "thead", "tr");
+    private static final Set<String> SCOPE_BOUNDARIES = setOf("annotation-xml", "applet", "caption", "desc",
+            "foreignobject", "marquee", "mi", "mn", "mo", "ms", "mtext", "object", "table", "td", "th");
+    private static final Set<String> TABLE_SCOPE_BOUNDARIES = setOf("table");
+
+    private static final Set<String> PARAGRAPH = setOf("p");
+    private static final Set<String> ANCHOR = setOf("a");
+    private static final Set<String> LIST_ITEM = setOf("li");
+    private static final Set<String> LIST_BOUNDARIES = union(SCOPE_BOUNDARIES, setOf("dir", "menu", "ol", "ul"));
+    private static final Set<String> DEFINITION_ITEMS = setOf("dd", "dt");
+    private static final Set<String> DEFINITION_BOUNDARIES = union(SCOPE_BOUNDARIES, setOf("dl"));
+    private static final Set<String> TABLE_CELLS = setOf("td", "th");
+    private static final Set<String> TABLE_CELL_BOUNDARIES = setOf("table", "tr");
+    private static final Set<String> TABLE_ROW = setOf("tr");
+    private static final Set<String> TABLE_ROW_BOUNDARIES = setOf("table", "tbody", "tfoot", "thead");
+    private static final Set<String> TABLE_SECTIONS = setOf("tbody", "tfoot", "thead");
+    private static final Set<String> OPTION = setOf("option");
+    private static final Set<String> OPTION_BOUNDARIES = setOf("datalist", "optgroup", "select");
+    private static final Set<String> OPTION_GROUP_ITEMS = setOf("optgroup", "option");
+    private static final Set<String> OPTION_GROUP_BOUNDARIES = setOf("datalist", "select");
+
+
+    private enum Mode {
+        INITIAL,
+        BEFORE_HEAD,
+        IN_HEAD,
+        AFTER_HEAD,
+        IN_BODY
+    }
+
+
+    private final Reader reader;
+    private final Writer writer;
+
+    private final char[] inputBuffer = new char[BUFFER_SIZE];
+    private int inputPosition = 0;
+    private int inputLimit = 0;
+    private boolean endOfInput = false;
+
+    private final char[] outputBuffer = new char[BUFFER_SIZE];
+    private int outputLength = 0;
+
+    private Mode mode = Mode.INITIAL;
+    private final List<OpenElement> openElements = new ArrayList<>();
+
+    /**
+     * Attributes of the {@code <body>} start tag that hasn't been written yet, or {@code null}.
+     */
+    private Map<String, String> pendingBodyAttributes;
+    /**
+     * Output that comes after the pending {@code <body>} start tag.
+     */
+    private StringBuilder deferredOutput;
+
+
+    StreamingHtmlSanitizer(Reader reader, Writer writer) {
+        this.reader = reader;
+        this.writer = writer;
+    }
+
+    void sanitize() throws IOException {
+        int c;
+        while ((c = peek(0)) != -1) {
+            if (c == '<') {
+                int next = peek(1);
+                if (isAsciiLetter(next)) {
+                    inputPosition++;
+                    readStartTag();
+                } else if (next == '/' && isAsciiLetter(peek(2))) {
+                    inputPosition += 2;
+                    readEndTag();
+                } else if (next == '!') {
+                    inputPosition += 2;
+                    if (peek(0) == '-' && peek(1) == '-') {
+                        inputPosition += 2;
+                        readComment();
+                    } else {
+                        readDeclaration();
+                    }
+                } else if (next == '?') {
+                    // Processing instructions aren't part of HTML
+                    inputPosition += 2;
+                    skipToEndOfTag();
+                } else {
+                    inputPosition++;
+                    handleText('<');
+                }
+            } else {
+                inputPosition++;
+                handleText((char) c);
+            }
+        }
+
+        finishDocument();
+        flushOutput();
+    }
+
+    private void readStartTag() throws IOException {
+        String name = readName();
+        Map<String, String> attributes = new LinkedHashMap<>();
+        boolean selfClosing = false;
+
+        int c;
+        while ((c = read()) != '>') {
+            if (c == -1) {
+                // Incomplete tags at the end of the input are dropped
+                return;
+            } else if (c == '/') {
+                selfClosing = peek(0) == '>';
+            } else if (!isWhitespace(c)) {
+                inputPosition--;
+                if (!readAttribute(attributes)) {
+                    return;
+                }
+            }
+        }
+
+        handleStartTag(name, attributes, selfClosing);
+    }
+
+    /**
+     * @return {@code false} if the end of the input was reached.
+     */
+    private boolean readAttribute(Map<String, String> attributes) throws IOException {
+        StringBuilder nameBuilder = new StringBuilder();
+        nameBuilder.append((char) read());
+        int c;
+        while ((c = peek(0)) != -1 && !isWhitespace(c) && c != '=' && c != '>' && c != '/') {
+            nameBuilder.append((char) c);
+            inputPosition++;
+        }
+
+        skipWhitespace();
+
+        String value = null;
+        if (peek(0) == '=') {
+            inputPosition++;
+            skipWhitespace();
+            value = readAttributeValue();
+            if (value == null) {
+                return false;
+            }
+        }
+
+        String rawName = stripNamespacePrefix(nameBuilder.toString());
+        String name = rawName.toLowerCase(Locale.US);
+        if (isValidAttributeName(name)) {
+            // Like HtmlCleaner the last occurrence of an attribute wins and attributes without a value get their
+            // name as value
+            attributes.put(name, value != null ? value : rawName);
+        }
+
+        return peek(0) != -1;
+    }
+
+    private String readAttributeValue() throws IOException {
+        StringBuilder value = new StringBuilder();
+
+        int quote = peek(0);
+        if (quote == '"' || quote == '\'') {
+            inputPosition++;
+            int c;
+            while ((c = read()) != quote) {
+                if (c == -1) {
+                    return null;
+                }
+                value.append((char) c);
+            }
+        } else {
+            int c;
+            while ((c = peek(0)) != -1 && !isWhitespace(c) && c != '>') {
+                value.append((char) c);
+                inputPosition++;
+            }
+        }
+
+        return value.toString();
+    }
+
+    private void readEndTag() throws IOException {
+        String name = readName();
+        if (skipToEndOfTag()) {
+            handleEndTag(name);
+        }
+    }
+
+    /**
+     * Reads a comment the way the HTML5 tokenizer does, i.e. it also ends at {@code <!-->}, {@code <!--->} and
+     * {@code --!>}.
+     *
+     * <p>
+     * Runs of dashes inside the comment are written as {@code =}, so the written comment can't end anywhere else
+     * when it's parsed again.
+     * </p>
+     */
+    private void readComment() throws IOException {
+        boolean write = mode != Mode.INITIAL;
+
+        // Conditional comments of Outlook messages can get large, so they're copied as they are read
+        if (write) {
+            out("<!--");
+        }
+
+        if (peek(0) == '>') {
+            inputPosition++;
+            if (write) {
+                out("-->");
+            }
+            return;
+        } else if (peek(0) == '-' && peek(1) == '>') {
+            inputPosition += 2;
+            if (write) {
+                out("-->");
+            }
+            return;
+        }
+
+        int dashes = 0;
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '-') {
+                dashes++;
+                continue;
+            }
+
+            boolean end = false;
+            if (dashes >= 2) {
+                if (c == '>') {
+                    end = true;
+                } else if (c == '!' && peek(0) == '>') {
+                    inputPosition++;
+                    end = true;
+                }
+            }
+
+            if (end) {
+                if (write) {
+                    outCommentDashes(dashes - 2);
+                    out("-->");
+                }
+                return;
+            }
+
+            if (write) {
+                outCommentDashes(dashes);
+                out((char) c);
+            }
+            dashes = 0;
+        }
+
+        // Comment wasn't terminated
+        if (write) {
+            outCommentDashes(dashes);
+            out("-->");
+        }
+    }
+
+    private void outCommentDashes(int count) throws IOException {
+        if (count == 1) {
+            out('-');
+        } else {
+            for (int i = 0; i < count; i++) {
+                out('=');
+            }
+        }
+    }
+
+    private void readDeclaration() throws IOException {
+        if (mode != Mode.INITIAL || !startsWithIgnoreCase("doctype")) {
+            // Other declarations and DOCTYPEs inside the document are dropped
+            skipToEndOfTag();
+            return;
+        }
+
+        StringBuilder declaration = new StringBuilder("<!");
+        int c;
+        while ((c = read()) != '>') {
+            if (c == -1) {
+                return;
+            }
+            declaration.append((char) c);
+        }
+        declaration.append(">\n");
+
+        out(declaration.toString());
+    }
+
+    private void handleStartTag(String name, Map<String, String> attributes, boolean selfClosing)
+            throws IOException {
+        if ("meta".equals(name) && isMetaRefresh(attributes)) {
+            return;
+        }
+
+        if (isInForeignContent()) {
+            if (!isForeignContentBreakout(name, attributes)) {
+                handleForeignStartTag(name, attributes, selfClosing);
+                return;
+            }
+            closeForeignContent();
+        }
+
+        switch (name) {
+            case "html": {
+                // Attributes of nested <html> elements are dropped
+                if (mode == Mode.INITIAL) {
+                    startHtml(attributes);
+                }
+                return;
+            }
+            case "head": {
+                if (mode == Mode.INITIAL || mode == Mode.BEFORE_HEAD) {
+                    startHead();
+                }
+                return;
+            }
+            case "body": {
+                if (mode != Mode.IN_BODY) {
+                    startBody(attributes);
+                } else if (pendingBodyAttributes != null) {
+                    // The message's own <body> is merged into the document's <body>
+                    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                        if (!pendingBodyAttributes.containsKey(attribute.getKey())) {
+                            pendingBodyAttributes.put(attribute.getKey(), attribute.getValue());
+                        }
+                    }
+                    flushPendingBody();
+                }
+                return;
+            }
+        }
+
+        boolean headElement = HEAD_ELEMENTS.contains(name);
+        switch (mode) {
+            case INITIAL:
+            case BEFORE_HEAD: {
+                if (headElement) {
+                    startHead();
+                } else {
+                    startBody(null);
+                }
+                break;
+            }
+            case IN_HEAD: {
+                if (!headElement) {
+                    startBody(null);
+                }
+                break;
+            }
+            case AFTER_HEAD: {
+                startBody(null);
+                break;
+            }
+            case IN_BODY: {
+                break;
+            }
+        }
+
+        if (pendingBodyAttributes != null && !headElement) {
+            flushPendingBody();
+        }
+
+        if (mode == Mode.IN_BODY) {
+            closeImplicitly(name);
+        }
+
+        if (FOREIGN_ROOT_ELEMENTS.contains(name)) {
+            handleForeignStartTag(name, attributes, selfClosing);
+            return;
+        }
+
+        boolean voidElement = VOID_ELEMENTS.contains(name);
+        boolean rawTextElement = RAW_TEXT_ELEMENTS.contains(name);
+        if (!voidElement && openElements.size() >= MAX_NESTING_DEPTH) {
+            if (rawTextElement) {
+                copyRawText(name, false);
+            }
+            return;
+        }
+
+        String startTag = createStartTag(name, attributes, voidElement);
+        out(startTag);
+
+        if (voidElement) {
+            return;
+        }
+
+        if (rawTextElement) {
+            copyRawText(name, true);
+            out(createEndTag(name));
+        } else if (selfClosing) {
+            out(createEndTag(name));
+        } else {
+            openElements.add(new OpenElement(name, FORMATTING_ELEMENTS.contains(name) ? startTag : null));
+        }
+    }
+
+    /**
+     * Writes an SVG or MathML element. Like in XML there are no void or raw text elements, so e.g. a
+     * {@code <style>} inside {@code <svg>} can contain tags.
+     */
+    private void handleForeignStartTag(String name, Map<String, String> attributes, boolean selfClosing)
+            throws IOException {
+        if (!selfClosing && openElements.size() >= MAX_NESTING_DEPTH) {
+            return;
+        }
+
+        out(createStartTag(name, attributes, false));
+
+        if (selfClosing) {
+            out(createEndTag(name));
+            return;
+        }
+
+        // Elements inherit the namespace of the current element, e.g. <svg><math> isn't a MathML element
+        String namespace = isInForeignContent() ? currentElement().namespace : name;
+        boolean htmlIntegrationPoint;
+        if ("svg".equals(namespace)) {
+            htmlIntegrationPoint = SVG_HTML_INTEGRATION_POINTS.contains(name);
+        } else if ("annotation-xml".equals(name)) {
+            String encoding = attributes.get("encoding");
+            htmlIntegrationPoint = encoding != null && (encoding.equalsIgnoreCase("text/html") ||
+                    encoding.equalsIgnoreCase("application/xhtml+xml"));
+        } else {
+            htmlIntegrationPoint = MATHML_HTML_INTEGRATION_POINTS.contains(name);
+        }
+
+        openElements.add(new OpenElement(name, namespace, htmlIntegrationPoint));
+    }
+
+    /**
+     * @return {@code true} if the current element is an SVG or MathML element whose children aren't parsed as HTML.
+     */
+    private boolean isInForeignContent() {
+        OpenElement element = currentElement();
+        return element != null && element.namespace != null && !element.htmlIntegrationPoint;
+    }
+
+    private static boolean isForeignContentBreakout(String name, Map<String, String> attributes) {
+        if ("font".equals(name)) {
+            return attributes.containsKey("color") || attributes.containsKey("face") || attributes.containsKey("size");
+        }
+        return FOREIGN_CONTENT_BREAKOUT_ELEMENTS.contains(name);
+    }
+
+    private void closeForeignContent() throws IOException {
+        while (isInForeignContent()) {
+            out(createEndTag(openElements.remove(openElements.size() - 1).name));
+        }
+    }
+
+    /**
+     * Closes the innermost SVG or MathML element with the given name, if the current element is one.
+     *
+     * @return {@code false} if the end tag has to be handled like an HTML end tag.
+     */
+    private boolean closeForeignElement(String name) throws IOException {
+        int index = -1;
+        for (int i = openElements.size() - 1; i >= 0 && openElements.get(i).namespace != null; i--) {
+            if (openElements.get(i).name.equals(name)) {
+                index = i;
+                break;
+            }
+        }
+
+        if (index == -1) {
+            return false;
+        }
+
+        for (int i = openElements.size() - 1; i >= index; i--) {
+            out(createEndTag(openElements.remove(i).name));
+        }
+        return true;
+    }
+
+    private OpenElement currentElement() {
+        return openElements.isEmpty() ? null : openElements.get(openElements.size() - 1);
+    }
+
+    private void handleEndTag(String name) throws IOException {
+        switch (name) {
+            case "html":
+            case "body": {
+                // Content after </body> or </html> is still displayed, so it stays in <body>
+                return;
+            }
+            case "head": {
+                if (mode == Mode.IN_HEAD) {
+                    endHead();
+                }
+                return;
+            }
+        }
+
+        if (mode == Mode.IN_BODY && closeForeignElement(name)) {
+            return;
+        }
+
+        if (mode != Mode.IN_BODY || VOID_ELEMENTS.contains(name)) {
+            return;
+        }
+
+        Set<String> boundaries;
+        if ("table".equals(name)) {
+            boundaries = Collections.emptySet();
+        } else if (TABLE_STRUCTURE_ELEMENTS.contains(name)) {
+            boundaries = TABLE_SCOPE_BOUNDARIES;
+        } else {
+            boundaries = SCOPE_BOUNDARIES;
+        }
+
+        int index = findOpenElement(Collections.singleton(name), boundaries);
+        if (index == -1) {
+            // End tags without a matching start tag are dropped
+            return;
+        }
+
+        // When a formatting element is closed, the formatting elements it overlaps with are reopened afterwards,
+        // e.g. <b>1<i>2</b>3</i> becomes <b>1<i>2</i></b><i>3</i>
+        boolean reopenFormatting = FORMATTING_ELEMENTS.contains(name);
+        List<OpenElement> elementsToReopen = null;
+        for (int i = openElements.size() - 1; i > index; i--) {
+            OpenElement element = openElements.remove(i);
+            out(createEndTag(element.name));
+            if (reopenFormatting && element.startTag != null) {
+                if (elementsToReopen == null) {
+                    elementsToReopen = new ArrayList<>();
+                }
+                elementsToReopen.add(element);
+            }
+        }
+
+        openElements.remove(index);
+        out(createEndTag(name));
+
+        if (elementsToReopen != null) {
+            for (int i = elementsToReopen.size() - 1; i >= 0; i--) {
+                OpenElement element = elementsToReopen.get(i);
+                out(element.startTag);
+                openElements.add(element);
+            }
+        }
+    }
+
+    private void handleText(char c) throws IOException {
+        boolean whitespace = isWhitespace(c);
+        if (mode != Mode.IN_BODY) {
+            if (whitespace) {
+                if (mode == Mode.IN_HEAD) {
+                    out(c);
+                }
+                return;
+            }
+            startBody(null);
+        }
+
+        if (pendingBodyAttributes != null && !whitespace) {
+            flushPendingBody();
+        }
+
+        switch (c) {
+            case '<': {
+                out("&lt;");
+                break;
+            }
+            case '>': {
+                out("&gt;");
+                break;
+            }
+            case '&': {
+                // Character references are kept as they are, a lone ampersand is escaped
+                out(isCharacterReferenceStart(peek(0)) ? "&" : "&amp;");
+                break;
+            }
+            default: {
+                out(c);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Closes the elements a start tag implicitly ends, e.g. a {@code <p>} followed by a {@code <div>}.
+     */
+    private void closeImplicitly(String name) throws IOException {
+        if (CLOSES_PARAGRAPH.contains(name)) {
+            closeOpenElement(PARAGRAPH, SCOPE_BOUNDARIES);
+        }
+
+        if (HEADING_ELEMENTS.contains(name) && !openElements.isEmpty() &&
+                HEADING_ELEMENTS.contains(openElements.get(openElements.size() - 1).name)) {
+            closeOpenElement(HEADING_ELEMENTS, SCOPE_BOUNDARIES);
+        }
+
+        switch (name) {
+            case "a": {
+                closeOpenElement(ANCHOR, SCOPE_BOUNDARIES);
+                break;
+            }
+            case "li": {
+                closeOpenElement(LIST_ITEM, LIST_BOUNDARIES);
+                break;
+            }
+            case "dd":
+            case "dt": {
+                closeOpenElement(DEFINITION_ITEMS, DEFINITION_BOUNDARIES);
+                break;
+            }
+            case "td":
+            case "th": {
+                closeOpenElement(TABLE_CELLS, TABLE_CELL_BOUNDARIES);
+                break;
+            }
+            case "tr": {
+                closeOpenElement(TABLE_ROW, TABLE_ROW_BOUNDARIES);
+                break;
+            }
+            case "tbody":
+            case "tfoot":
+            case "thead": {
+                closeOpenElement(TABLE_SECTIONS, TABLE_SCOPE_BOUNDARIES);
+                break;
+            }
+            case "option": {
+                closeOpenElement(OPTION, OPTION_BOUNDARIES);
+                break;
+            }
+            case "optgroup": {
+                closeOpenElement(OPTION_GROUP_ITEMS, OPTION_GROUP_BOUNDARIES);
+                break;
+            }
+        }
+    }
+
+    private void closeOpenElement(Set<String> names, Set<String> boundaries) throws IOException {
+        int index = findOpenElement(names, boundaries);
+        if (index == -1) {
+            return;
+        }
+
+        for (int i = openElements.size() - 1; i >= index; i--) {
+            out(createEndTag(openElements.remove(i).name));
+        }
+    }
+
+    private int findOpenElement(Set<String> names, Set<String> boundaries) {
+        for (int i = openElements.size() - 1; i >= 0; i--) {
+            String name = openElements.get(i).name;
+            if (names.contains(name)) {
+                return i;
+            } else if (boundaries.contains(name)) {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Copies the content of elements like {@code <style>} that can't contain tags up to the matching end tag.
+     * <p>
+     * Anything that would start a tag if the WebView parsed the content as markup after all is escaped, so a
+     * different opinion about which elements are raw text can't let tags through unchecked.
+     * </p>
+     */
+    private void copyRawText(String name, boolean write) throws IOException {
+        int c;
+        while ((c = peek(0)) != -1) {
+            if (c == '<' && peek(1) == '/' && isEndTagOf(name, 2)) {
+                inputPosition += 2 + name.length();
+                skipToEndOfTag();
+                return;
+            }
+
+            inputPosition++;
+            if (write) {
+                int next = peek(0);
+                if (c == '<' && (isAsciiLetter(next) || next == '/')) {
+                    out("&lt;");
+                } else {
+                    out((char) c);
+                }
+            }
+        }
+    }
+
+    private boolean isEndTagOf(String name, int offset) throws IOException {
+        int length = name.length();
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase(peek(offset + i)) != name.charAt(i)) {
+                return false;
+            }
+        }
+
+        int c = peek(offset + length);
+        return c == -1 || c == '>' || c == '/' || isWhitespace(c);
+    }
+
+    private void startHtml(Map<String, String> attributes) throws IOException {
+        out(createStartTag("html", attributes, false));
+        mode = Mode.BEFORE_HEAD;
+    }
+
+    private void startHead() throws IOException {
+        if (mode == Mode.INITIAL) {
+            startHtml(null);
+        }
+        out("<head>");
+        mode = Mode.IN_HEAD;
+    }
+
+    private void endHead() throws IOException {
+        out("</head>");
+        mode = Mode.AFTER_HEAD;
+    }
+
+    /**
+     * Moves on to the {@code <body>} element. Its start tag is only written once the first displayed content is
+     * found, so the attributes of a {@code <body>} element nested in the message can still be added.
+     */
+    private void startBody(Map<String, String> attributes) throws IOException {
+        switch (mode) {
+            case INITIAL:
+            case BEFORE_HEAD: {
+                startHead();
+                endHead();
+                break;
+            }
+            case IN_HEAD: {
+                endHead();
+                break;
+            }
+            case AFTER_HEAD: {
+                break;
+            }
+            case IN_BODY: {
+                return;
+            }
+        }
+
+        pendingBodyAttributes = new LinkedHashMap<>();
+        if (attributes != null) {
+            pendingBodyAttributes.putAll(attributes);
+        }
+        deferredOutput = new StringBuilder();
+        mode = Mode.IN_BODY;
+    }
+
+    private void flushPendingBody() throws IOException {
+        String deferred = deferredOutput.toString();
+        String startTag = createStartTag("body", pendingBodyAttributes, false);
+        pendingBodyAttributes = null;
+        deferredOutput = null;
+
+        out(startTag);
+        out(deferred);
+    }
+
+    private void finishDocument() throws IOException {
+        startBody(null);
+        if (pendingBodyAttributes != null) {
+            flushPendingBody();
+        }
+
+        for (int i = openElements.size() - 1; i >= 0; i--) {
+            out(createEndTag(openElements.get(i).name));
+        }
+        openElements.clear();
+
+        out("</body></html>");
+    }
+
+    private String readName() throws IOException {
+        StringBuilder name = new StringBuilder();
+        int c;
+        while ((c = peek(0)) != -1 && !isWhitespace(c) && c != '/' && c != '>') {
+            name.append((char) c);
+            inputPosition++;
+        }
+
+        // Namespace prefixes are dropped, e.g. Outlook's <o:p> becomes <p>
+        return stripNamespacePrefix(name.toString().toLowerCase(Locale.US));
+    }
+
+    /**
+     * @return {@code false} if the end of the input was reached before the end of the tag.
+     */
+    private boolean skipToEndOfTag() throws IOException {
+        int c;
+        while ((c = read()) != '>') {
+            if (c == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (isWhitespace(peek(0))) {
+            inputPosition++;
+        }
+    }
+
+    private boolean startsWithIgnoreCase(String prefix) throws IOException {
+        for (int i = 0, length = prefix.length(); i < length; i++) {
+            if (Character.toLowerCase(peek(i)) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int peek(int offset) throws IOException {
+        if (inputPosition + offset >= inputLimit) {
+            fillInputBuffer(offset + 1);
+        }
+        return (inputPosition + offset < inputLimit) ? inputBuffer[inputPosition + offset] : -1;
+    }
+
+    private int read() throws IOException {
+        int c = peek(0);
+        if (c != -1) {
+            inputPosition++;
+        }
+        return c;
+    }
+
+    private void fillInputBuffer(int required) throws IOException {
+        if (inputPosition > 0) {
+            System.arraycopy(inputBuffer, inputPosition, inputBuffer, 0, inputLimit - inputPosition);
+            inputLimit -= inputPosition;
+            inputPosition = 0;
+        }
+
+        while (inputLimit < required && !endOfInput) {
+            int count = reader.read(inputBuffer, inputLimit, inputBuffer.length - inputLimit);
+            if (count == -1) {
+                endOfInput = true;
+            } else {
+                inputLimit += count;
+            }
+        }
+    }
+
+    private void out(char c) throws IOException {
+        if (deferredOutput != null) {
+            deferredOutput.append(c);
+            checkDeferredOutputLength();
+            return;
+        }
+
+        if (outputLength == outputBuffer.length) {
+            flushOutput();
+        }
+        outputBuffer[outputLength++] = c;
+    }
+
+    private void out(String s) throws IOException {
+        if (deferredOutput != null) {
+            deferredOutput.append(s);
+            checkDeferredOutputLength();
+            return;
+        }
+
+        int length = s.length();
+        if (outputLength + length > outputBuffer.length) {
+            flushOutput();
+            if (length > outputBuffer.length) {
+                writer.write(s);
+                return;
+            }
+        }
+        s.getChars(0, length, outputBuffer, outputLength);
+        outputLength += length;
+    }
+
+    private void checkDeferredOutputLength() throws IOException {
+        // Give up on merging <body> attributes rather than holding on to a large <head> section of the message
+        if (deferredOutput.length() > MAX_DEFERRED_LENGTH) {
+            flushPendingBody();
+        }
+    }
+
+    private void flushOutput() throws IOException {
+        writer.write(outputBuffer, 0, outputLength);
+        outputLength = 0;
+    }
+
+    private static String createStartTag(String name, Map<String, String> attributes, boolean voidElement) {
+        StringBuilder tag = new StringBuilder();
+        tag.append('<').append(name);
+        if (attributes != null) {
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                tag.append(' ').append(attribute.getKey()).append("=\"");
+                appendAttributeValue(tag, attribute.getValue());
+                tag.append('"');
+            }
+        }
+        tag.append(voidElement ? " />" : ">");
+
+        return tag.toString();
+    }
+
+    private static String createEndTag(String name) {
+        return "</" + name + ">";
+    }
+
+    private static void appendAttributeValue(StringBuilder tag, String value) {
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': {
+                    tag.append("&quot;");
+                    break;
+                }
+                case '<': {
+                    tag.append("&lt;");
+                    break;
+                }
+                case '>': {
+                    tag.append("&gt;");
+                    break;
+                }
+                case '&': {
+                    boolean reference = i + 1 < length && isCharacterReferenceStart(value.charAt(i + 1));
+                    tag.append(reference ? "&" : "&amp;");
+                    break;
+                }
+                default: {
+                    tag.append(c);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static boolean isMetaRefresh(Map<String, String> attributes) {
+        String httpEquiv = attributes.get("http-equiv");
+        return httpEquiv != null && httpEquiv.trim().equalsIgnoreCase("refresh");
+    }
+
+    private static String stripNamespacePrefix(String name) {
+        int index = name.lastIndexOf(':');
+        return (index != -1 && index < name.length() - 1) ? name.substring(index + 1) : name;
+    }
+
+    private static boolean isValidAttributeName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+
+        char first = name.charAt(0);
+        if (!isAsciiLetter(first) && first != '_') {
+            return false;
+        }
+
+        for (int i = 1, length = name.length(); i < length; i++) {
+            char c = name.charAt(i);
+            if (!isAsciiLetter(c) && !(c >= '0' && c <= '9') && c != '-' && c != '_' && c != '.') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isCharacterReferenceStart(int c) {
+        return c == '#' || isAsciiLetter(c);
+    }
+
+    private static boolean isAsciiLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static Set<String> setOf(String... values) {
+        return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(values)));
+    }
+
+    private static Set<String> union(Set<String> first, Set<String> second) {
+        Set<String> union = new HashSet<>(first);
+        union.addAll(second);
+        return Collections.unmodifiableSet(union);
+    }
+
+
+    private static class OpenElement {
+        final String name;
+        /**
+         * The start tag of formatting elements, so they can be reopened. {@code null} for other elements.
+         */
+        final String startTag;
+        /**
+         * {@code "svg"} or {@code "math"} for SVG and MathML elements, {@code null} for HTML elements.
+         */
+        final String namespace;
+        /**
+         * Whether the children of this SVG or MathML element are parsed as HTML, e.g. {@code <foreignObject>}.
+         */
+        final boolean htmlIntegrationPoint;
+
+
+        OpenElement(String name, String startTag) {
+            this.name = name;
+            this.startTag = startTag;
+            this.namespace = null;
+            this.htmlIntegrationPoint = false;
+        }
+
+        OpenElement(String name, String namespace, boolean htmlIntegrationPoint) {
+            this.name = name;
+            this.startTag = null;
+            this.namespace = namespace;
+            this.htmlIntegrationPoint = htmlIntegrationPoint;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.fsck.k9.mailstore;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.filter.Hex;
+
+
+/**
+ * Maintains the {@code attachment_blobs} table and the files it references.
+ * <p>
+ * Message parts that are too large to be stored in the database are written to the attachment directory. The file
+ * is named after a hash of its content, which is stored in the {@code content_hash} column of the message part. That
+ * way an attachment that is part of several messages (e.g. a copied or forwarded message) is only stored once.
+ * </p><p>
+ * The table holds the number of message parts referencing each file. It is kept up to date by triggers on the
+ * {@code message_parts} table, so deleting a message via the {@code delete_message} trigger releases its files as
+ * well. Files that are no longer referenced are deleted by {@link #deleteUnreferencedBlobs(SQLiteDatabase, File)}.
+ * </p><p>
+ * Message parts written by older versions don't have a content hash. Their file is still named after the message
+ * part ID.
+ * </p>
+ */
+public class AttachmentBlobs {
+    public static final String TABLE_NAME = "attachment_blobs";
+
+    private static final String FILE_NAME_PREFIX = "blob-";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String[] TRIGGER_NAMES = {
+            "attachment_blobs_part_insert",
+            "attachment_blobs_part_update",
+            "attachment_blobs_part_delete"
+    };
+
+
+    /**
+     * Creates the table and the triggers that maintain it.
+     */
+    public static void createTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS attachment_blobs");
+        db.execSQL("CREATE TABLE attachment_blobs (" +
+                "hash TEXT PRIMARY KEY, " +
+                "ref_count INTEGER NOT NULL DEFAULT 0" +
+                ")");
+
+        for (String triggerName : TRIGGER_NAMES) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + triggerName);
+        }
+
+        db.execSQL("CREATE TRIGGER attachment_blobs_part_insert " +
+                "AFTER INSERT ON message_parts " +
+                "WHEN NEW.content_hash IS NOT NULL " +
+                "BEGIN " +
+                incrementSql("NEW.content_hash") +
+                "END");
+
+        db.execSQL("CREATE TRIGGER attachment_blobs_part_update " +
+                "AFTER UPDATE OF content_hash ON message_parts " +
+                "WHEN OLD.content_hash IS NOT NEW.content_hash " +
+                "BEGIN " +
+                decrementSql("OLD.content_hash") +
+                incrementSql("NEW.content_hash") +
+                "END");
+
+        db.execSQL("CREATE TRIGGER attachment_blobs_part_delete " +
+                "AFTER DELETE ON message_parts " +
+                "WHEN OLD.content_hash IS NOT NULL " +
+                "BEGIN " +
+                decrementSql("OLD.content_hash") +
+                "END");
+    }
+
+    private static String incrementSql(String hash) {
+        return "INSERT OR IGNORE INTO attachment_blobs (hash) SELECT " + hash + " WHERE " + hash + " IS NOT NULL; " +
+                "UPDATE attachment_blobs SET ref_count = ref_count + 1 WHERE hash = " + hash + "; ";
+    }
+
+    private static String decrementSql(String hash) {
+        return "UPDATE attachment_blobs SET ref_count = ref_count - 1 WHERE hash = " + hash + "; ";
+    }
+
+    public static File getBlobFile(File attachmentDirectory, String hash) {
+        return new File(attachmentDirectory, FILE_NAME_PREFIX + hash);
+    }
+
+    public static String computeHash(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            MessageDigest digest = createMessageDigest();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+
+            return new String(Hex.encodeHex(digest.digest()));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static MessageDigest createMessageDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Moves a newly written file into the attachment directory.
+     * <p>
+     * If a file with the same content already exists, the new file is deleted instead. Needs to be called in the
+     * same transaction that inserts the message part referencing the file, so the existing file can't be garbage
+     * collected in between.
+     * </p>
+     */
+    public static void storeBlob(File file, File attachmentDirectory, String hash) {
+        File destination = getBlobFile(attachmentDirectory, hash);
+        if (destination.exists()) {
+            if (!file.delete()) {
+                Log.w(K9.LOG_TAG, "Couldn't delete duplicate attachment file " + file.getAbsolutePath());
+            }
+        } else if (!file.renameTo(destination)) {
+            Log.w(K9.LOG_TAG, "Couldn't rename temporary file " + file.getAbsolutePath() +
+                    " to " + destination.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Deletes the files that are no longer referenced by any message part.
+     * <p>
+     * Must not be called inside a transaction that may still be rolled back. Use
+     * {@link LocalStore#deleteUnreferencedBlobs()}.
+     * </p>
+     */
+    public static void deleteUnreferencedBlobs(SQLiteDatabase db, File attachmentDirectory) {
+        Cursor cursor = db.query(TABLE_NAME, new String[] { "hash" }, "ref_count <= 0", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                File file = getBlobFile(attachmentDirectory, cursor.getString(0));
+                if (file.exists() && !file.delete() && K9.DEBUG) {
+                    Log.d(K9.LOG_TAG, "Couldn't delete attachment file: " + file.getAbsolutePath());
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        db.delete(TABLE_NAME, "ref_count <= 0", null);
+    }
+}
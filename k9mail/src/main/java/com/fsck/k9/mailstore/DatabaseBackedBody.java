@@ -0,0 +1,124 @@
+package com.fsck.k9.mailstore;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.CountingOutputStream;
+import com.fsck.k9.mail.internet.RawDataBody;
+import com.fsck.k9.mail.internet.SizeAware;
+import com.fsck.k9.mailstore.LocalFolder.DataCodec;
+import com.fsck.k9.mailstore.LockableDatabase.DbCallback;
+import com.fsck.k9.mailstore.LockableDatabase.WrappedException;
+
+
+/**
+ * A body stored in the {@code data} column of the {@code message_parts} table.
+ * <p>
+ * The data is only read from the database when the body is accessed, so loading the structure of a message doesn't
+ * pull the content of all its parts into memory.
+ * </p>
+ */
+public class DatabaseBackedBody implements Body, RawDataBody, SizeAware {
+    private final LocalStore localStore;
+    private final long messagePartId;
+    private final String encoding;
+
+
+    public DatabaseBackedBody(LocalStore localStore, long messagePartId, String encoding) {
+        this.localStore = localStore;
+        this.messagePartId = messagePartId;
+        this.encoding = encoding;
+    }
+
+    @Override
+    public String getEncoding() {
+        return encoding;
+    }
+
+    @Override
+    public InputStream getInputStream() throws MessagingException {
+        return loadBody().getInputStream();
+    }
+
+    @Override
+    public void setEncoding(String encoding) throws MessagingException {
+        throw new RuntimeException("not supported");
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        loadBody().writeTo(out);
+    }
+
+    /**
+     * Returns the size of the stored data after decompression.
+     * <p>
+     * The size is read together with the codec because the part may have been rewritten since this body was created.
+     * If the data can't be read {@code 0} is returned. Reading the body will then fail with a
+     * {@link MessagingException}.
+     * </p>
+     */
+    @Override
+    public long getSize() {
+        try {
+            CountingOutputStream countingOutputStream = new CountingOutputStream();
+            loadBody().writeTo(countingOutputStream);
+            return countingOutputStream.getCount();
+        } catch (IOException | MessagingException e) {
+            Log.e(K9.LOG_TAG, "Couldn't load data of message part " + messagePartId, e);
+            return 0;
+        }
+    }
+
+    private Body loadBody() throws MessagingException {
+        StoredData storedData = loadData();
+        if (storedData.dataCodec == DataCodec.DEFLATE) {
+            return new DeflatedMemoryBody(storedData.data, encoding);
+        }
+
+        return new BinaryMemoryBody(storedData.data, encoding);
+    }
+
+    private StoredData loadData() throws MessagingException {
+        StoredData storedData = localStore.database.execute(false, new DbCallback<StoredData>() {
+            @Override
+            public StoredData doDbWork(SQLiteDatabase db) throws WrappedException {
+                // The part may have been rewritten since this body was created. The codec must match the data.
+                Cursor cursor = db.query("message_parts", new String[] { "data", "data_codec" }, "id = ?",
+                        new String[] { Long.toString(messagePartId) }, null, null, null);
+                try {
+                    return cursor.moveToFirst() ? new StoredData(cursor.getBlob(0), cursor.getInt(1)) : null;
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+
+        if (storedData == null || storedData.data == null) {
+            throw new MessagingException("Message part data not found: " + messagePartId);
+        }
+
+        return storedData;
+    }
+
+
+    private static class StoredData {
+        final byte[] data;
+        final int dataCodec;
+
+
+        StoredData(byte[] data, int dataCodec) {
+            this.data = data;
+            this.dataCodec = dataCodec;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.fsck.k9.mailstore;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.CountingOutputStream;
+import com.fsck.k9.mail.internet.RawDataBody;
+import com.fsck.k9.mail.internet.SizeAware;
+import org.apache.commons.io.IOUtils;
+
+
+/**
+ * A body stored deflate-compressed in the {@code message_parts} table.
+ * <p>
+ * The data is only decompressed when it is read.
+ * </p>
+ */
+public class DeflatedMemoryBody implements Body, RawDataBody, SizeAware {
+    private static final int BUFFER_SIZE = 4096;
+
+
+    private final byte[] deflatedData;
+    private final String encoding;
+    private long size = -1;
+
+
+    public DeflatedMemoryBody(byte[] deflatedData, String encoding) {
+        this.deflatedData = deflatedData;
+        this.encoding = encoding;
+    }
+
+    public static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                output.write(buffer, 0, count);
+            }
+
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static InputStream inflate(InputStream deflatedInputStream) {
+        return new InflaterInputStream(deflatedInputStream);
+    }
+
+    @Override
+    public String getEncoding() {
+        return encoding;
+    }
+
+    @Override
+    public InputStream getInputStream() throws MessagingException {
+        return inflate(new ByteArrayInputStream(deflatedData));
+    }
+
+    @Override
+    public void setEncoding(String encoding) throws MessagingException {
+        throw new RuntimeException("not supported");
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        InputStream in = getInputStream();
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return The size of the uncompressed data. Only calculated on first use since that requires decompressing the
+     *         data.
+     */
+    @Override
+    public long getSize() {
+        if (size == -1) {
+            CountingOutputStream countingOutputStream = new CountingOutputStream();
+            try {
+                writeTo(countingOutputStream);
+            } catch (IOException | MessagingException e) {
+                throw new IllegalStateException("Couldn't decompress message part data", e);
+            }
+            size = countingOutputStream.getCount();
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,100 @@
+package com.fsck.k9.mailstore;
+
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Maintains the {@code folder_counters} table.
+ * <p>
+ * The table contains one row per folder with the number of unread and flagged messages that are neither empty nor
+ * deleted. Unlike {@link ThreadAggregates} the rows aren't recomputed. Triggers on the {@code messages} table add or
+ * subtract the contribution of the single message that changed, so keeping the counters exact is cheap even for
+ * folders with many messages.
+ * </p>
+ */
+public class FolderCounters {
+    public static final String TABLE_NAME = "folder_counters";
+
+    private static final String[] TRIGGER_NAMES = {
+            "folder_counters_message_insert",
+            "folder_counters_message_update",
+            "folder_counters_message_delete",
+            "folder_counters_folder_delete"
+    };
+
+
+    /**
+     * Creates the table and the triggers that maintain it. Doesn't populate the table.
+     */
+    public static void createTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS folder_counters");
+        db.execSQL("CREATE TABLE folder_counters (" +
+                "folder_id INTEGER PRIMARY KEY, " +
+                "unread_count INTEGER NOT NULL DEFAULT 0, " +
+                "flagged_count INTEGER NOT NULL DEFAULT 0" +
+                ")");
+
+        for (String triggerName : TRIGGER_NAMES) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + triggerName);
+        }
+
+        db.execSQL("CREATE TRIGGER folder_counters_message_insert " +
+                "AFTER INSERT ON messages " +
+                "BEGIN " +
+                addSql("NEW") +
+                "END");
+
+        // Subtracting the old state and adding the new state also covers messages moved to another folder
+        db.execSQL("CREATE TRIGGER folder_counters_message_update " +
+                "AFTER UPDATE OF folder_id, deleted, empty, read, flagged ON messages " +
+                "WHEN OLD.folder_id IS NOT NEW.folder_id OR OLD.deleted IS NOT NEW.deleted OR " +
+                "OLD.empty IS NOT NEW.empty OR OLD.read IS NOT NEW.read OR OLD.flagged IS NOT NEW.flagged " +
+                "BEGIN " +
+                subtractSql("OLD") +
+                addSql("NEW") +
+                "END");
+
+        db.execSQL("CREATE TRIGGER folder_counters_message_delete " +
+                "AFTER DELETE ON messages " +
+                "BEGIN " +
+                subtractSql("OLD") +
+                "END");
+
+        db.execSQL("CREATE TRIGGER folder_counters_folder_delete " +
+                "AFTER DELETE ON folders " +
+                "BEGIN " +
+                "DELETE FROM folder_counters WHERE folder_id = OLD.id; " +
+                "END");
+    }
+
+    /**
+     * Recounts the messages of all folders. Used to populate the table after it has been created for an existing
+     * database.
+     */
+    public static void rebuild(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM folder_counters");
+        db.execSQL("INSERT INTO folder_counters (folder_id, unread_count, flagged_count) " +
+                "SELECT folder_id, SUM(read IS 0), SUM(flagged IS 1) FROM messages " +
+                "WHERE empty = 0 AND deleted = 0 AND folder_id IS NOT NULL " +
+                "GROUP BY folder_id");
+    }
+
+    private static String addSql(String row) {
+        String condition = row + ".empty = 0 AND " + row + ".deleted = 0";
+        // A NULL folder_id would make SQLite assign a new rowid instead of being ignored
+        return "INSERT OR IGNORE INTO folder_counters (folder_id) SELECT " + row + ".folder_id " +
+                "WHERE " + row + ".folder_id IS NOT NULL AND " + condition + "; " +
+                "UPDATE folder_counters SET " +
+                "unread_count = unread_count + (" + row + ".read IS 0), " +
+                "flagged_count = flagged_count + (" + row + ".flagged IS 1) " +
+                "WHERE folder_id = " + row + ".folder_id AND " + condition + "; ";
+    }
+
+    private static String subtractSql(String row) {
+        return "UPDATE folder_counters SET " +
+                "unread_count = unread_count - (" + row + ".read IS 0), " +
+                "flagged_count = flagged_count - (" + row + ".flagged IS 1) " +
+                "WHERE folder_id = " + row + ".folder_id AND " + row + ".empty = 0 AND " + row + ".deleted = 0; ";
+    }
+}
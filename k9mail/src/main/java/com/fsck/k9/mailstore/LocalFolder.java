@@ -30,6 +30,7 @@ import android.util.Log;
 import com.fsck.k9.Account;
 import com.fsck.k9.K9;
 import com.fsck.k9.activity.Search;
+import com.fsck.k9.cache.RenderedMessageCache;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.Body;
@@ -68,6 +69,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
 
     private static final long serialVersionUID = -1973296520918624767L;
     private static final int MAX_BODY_SIZE_FOR_DATABASE = 16 * 1024;
+    private static final int MIN_BODY_SIZE_FOR_COMPRESSION = 256;
     static final long INVALID_MESSAGE_PART_ID = -1;
 
     private final LocalStore localStore;
@@ -87,6 +89,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
     // know whether or not an unread message added to the local folder is actually "new" or not.
     private Integer mLastUid = null;
     private MoreMessages moreMessages = MoreMessages.UNKNOWN;
+    private long highestModSeq = 0;
 
     public LocalFolder(LocalStore localStore, String name) {
         super();
@@ -198,6 +201,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         mSyncClass = Folder.FolderClass.valueOf((syncClass == null) ? noClass : syncClass);
         String moreMessagesValue = cursor.getString(LocalStore.MORE_MESSAGES_INDEX);
         moreMessages = MoreMessages.fromDatabaseName(moreMessagesValue);
+        highestModSeq = cursor.getLong(LocalStore.FOLDER_HIGHEST_MOD_SEQ_INDEX);
     }
 
     @Override
@@ -299,37 +303,18 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
 
     @Override
     public int getUnreadMessageCount() throws MessagingException {
-        if (mFolderId == -1) {
-            open(OPEN_MODE_RW);
-        }
-
-        try {
-            return this.localStore.database.execute(false, new DbCallback<Integer>() {
-                @Override
-                public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    int unreadMessageCount = 0;
-                    Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                            "folder_id = ? AND empty = 0 AND deleted = 0 AND read=0",
-                            new String[] { Long.toString(mFolderId) }, null, null, null);
-
-                    try {
-                        if (cursor.moveToFirst()) {
-                            unreadMessageCount = cursor.getInt(0);
-                        }
-                    } finally {
-                        cursor.close();
-                    }
-
-                    return unreadMessageCount;
-                }
-            });
-        } catch (WrappedException e) {
-            throw(MessagingException) e.getCause();
-        }
+        return getFolderCounter("unread_count");
     }
 
     @Override
     public int getFlaggedMessageCount() throws MessagingException {
+        return getFolderCounter("flagged_count");
+    }
+
+    /**
+     * Reads a counter maintained by the triggers created in {@link FolderCounters}.
+     */
+    private int getFolderCounter(final String column) throws MessagingException {
         if (mFolderId == -1) {
             open(OPEN_MODE_RW);
         }
@@ -338,20 +323,19 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
             return this.localStore.database.execute(false, new DbCallback<Integer>() {
                 @Override
                 public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    int flaggedMessageCount = 0;
-                    Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                            "folder_id = ? AND empty = 0 AND deleted = 0 AND flagged = 1",
+                    int count = 0;
+                    Cursor cursor = db.query(FolderCounters.TABLE_NAME, new String[] { column }, "folder_id = ?",
                             new String[] { Long.toString(mFolderId) }, null, null, null);
 
                     try {
                         if (cursor.moveToFirst()) {
-                            flaggedMessageCount = cursor.getInt(0);
+                            count = cursor.getInt(0);
                         }
                     } finally {
                         cursor.close();
                     }
 
-                    return flaggedMessageCount;
+                    return count;
                 }
             });
         } catch (WrappedException e) {
@@ -529,6 +513,19 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         updateFolderColumn("more_messages", moreMessages.getDatabaseName());
     }
 
+    /**
+     * @return The highest mod-sequence of the remote folder the local flags were last synchronized with, or
+     *         {@code 0} if unknown.
+     */
+    public long getSyncedModSeq() {
+        return highestModSeq;
+    }
+
+    public void setSyncedModSeq(long highestModSeq) throws MessagingException {
+        this.highestModSeq = highestModSeq;
+        updateFolderColumn("highest_mod_seq", highestModSeq);
+    }
+
     private String getPrefId(String name) {
         if (prefId == null) {
             prefId = this.localStore.uUid + "." + name;
@@ -686,12 +683,14 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                 "encoding",             // 7
                 "charset",              // 8
                 "data_location",        // 9
-                "data",                 // 10
+                "length(data)",         // 10
                 "preamble",             // 11
                 "epilogue",             // 12
                 "boundary",             // 13
                 "content_id",           // 14
                 "server_extra",         // 15
+                "content_hash",         // 16
+                "data_codec",           // 17
         };
         Cursor cursor = db.query("message_parts", columns, "root = ?",
                 new String[] { String.valueOf(message.getMessagePartId()) }, null, null, "seq");
@@ -757,14 +756,16 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
             multipart.setEpilogue(epilogue);
         } else if (dataLocation == DataLocation.IN_DATABASE) {
             String encoding = cursor.getString(7);
-            byte[] data = cursor.getBlob(10);
 
-            Body body = new BinaryMemoryBody(data, encoding);
+            // The data is only read from the database when the body is accessed
+            Body body = new DatabaseBackedBody(localStore, id, encoding);
             part.setBody(body);
         } else if (dataLocation == DataLocation.ON_DISK) {
             String encoding = cursor.getString(7);
 
-            File file = localStore.getAttachmentFile(Long.toString(id));
+            String contentHash = cursor.getString(16);
+
+            File file = localStore.getMessagePartFile(Long.toString(id), contentHash);
             Body body = new FileBackedBody(file, encoding);
             part.setBody(body);
         }
@@ -905,6 +906,37 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         }
     }
 
+    /**
+     * @return The {@code count} most recent unread messages of this folder, newest first.
+     */
+    public List<LocalMessage> getLatestUnreadMessages(final int count) throws MessagingException {
+        try {
+            return localStore.database.execute(false, new DbCallback<List<LocalMessage>>() {
+                @Override
+                public List<LocalMessage> doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                    try {
+                        open(OPEN_MODE_RW);
+                        // LocalStore.getMessages() adds its own LIMIT clause, so the limit goes into a subquery
+                        return LocalFolder.this.localStore.getMessages(null, LocalFolder.this,
+                                "SELECT " + LocalStore.GET_MESSAGES_COLS +
+                                "FROM messages " +
+                                "LEFT JOIN threads ON (threads.message_id = messages.id) " +
+                                "WHERE messages.id IN (" +
+                                "SELECT id FROM messages " +
+                                "WHERE empty = 0 AND deleted = 0 AND read = 0 AND folder_id = ? " +
+                                "ORDER BY date DESC LIMIT " + count +
+                                ") ORDER BY date DESC",
+                                new String[] { Long.toString(mFolderId) });
+                    } catch (MessagingException e) {
+                        throw new WrappedException(e);
+                    }
+                }
+            });
+        } catch (WrappedException e) {
+            throw(MessagingException) e.getCause();
+        }
+    }
+
     public List<LocalMessage> getMessages(String[] uids, MessageRetrievalListener<LocalMessage> listener)
             throws MessagingException {
         open(OPEN_MODE_RW);
@@ -1118,7 +1150,12 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         }
     }
 
-    private ThreadInfo getThreadInfo(SQLiteDatabase db, String messageId, boolean onlyEmpty) {
+    private ThreadInfo getThreadInfo(SQLiteDatabase db, MessageInsertBatch batch, String messageId,
+            boolean onlyEmpty) {
+        if (batch != null && batch.isKnownToBeAbsent(messageId)) {
+            return null;
+        }
+
         if (messageId == null) {
             return null;
         }
@@ -1168,19 +1205,29 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         open(OPEN_MODE_RW);
         try {
             final Map<String, String> uidMap = new HashMap<>();
-            this.localStore.database.execute(true, new DbCallback<Void>() {
-                @Override
-                public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
-                    try {
-                        for (Message message : messages) {
-                            saveMessage(db, message, copy, uidMap);
+            for (int start = 0; start < messages.size(); start += MessageInsertBatch.MAX_BATCH_SIZE) {
+                int end = Math.min(start + MessageInsertBatch.MAX_BATCH_SIZE, messages.size());
+                final List<? extends Message> batchMessages = messages.subList(start, end);
+
+                this.localStore.database.execute(true, new DbCallback<Void>() {
+                    @Override
+                    public Void doDbWork(final SQLiteDatabase db)
+                            throws WrappedException, UnavailableStorageException {
+                        MessageInsertBatch batch = MessageInsertBatch.create(db, mFolderId,
+                                collectReferencedMessageIds(batchMessages));
+                        try {
+                            for (Message message : batchMessages) {
+                                saveMessage(db, batch, message, copy, uidMap);
+                            }
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        } finally {
+                            batch.close();
                         }
-                    } catch (MessagingException e) {
-                        throw new WrappedException(e);
+                        return null;
                     }
-                    return null;
-                }
-            });
+                });
+            }
 
             this.localStore.notifyChange();
 
@@ -1190,8 +1237,8 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         }
     }
 
-    protected void saveMessage(SQLiteDatabase db, Message message, boolean copy, Map<String, String> uidMap)
-            throws MessagingException {
+    protected void saveMessage(SQLiteDatabase db, MessageInsertBatch batch, Message message, boolean copy,
+            Map<String, String> uidMap) throws MessagingException {
         if (!(message instanceof MimeMessage)) {
             throw new Error("LocalStore can only store Messages that extend MimeMessage");
         }
@@ -1229,7 +1276,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
 
         if (oldMessageId == -1) {
             // This is a new message. Do the message threading.
-            ThreadInfo threadInfo = doMessageThreading(db, message);
+            ThreadInfo threadInfo = doMessageThreading(db, batch, message);
             oldMessageId = threadInfo.msgId;
             rootId = threadInfo.rootId;
             parentId = threadInfo.parentId;
@@ -1247,7 +1294,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
             AttachmentCounter attachmentCounter = localStore.getAttachmentCounter();
             int attachmentCount = attachmentCounter.getAttachmentCount(message);
 
-            long rootMessagePartId = saveMessageParts(db, message);
+            long rootMessagePartId = saveMessageParts(db, batch, message);
 
             ContentValues cv = new ContentValues();
             cv.put("message_part_id", rootMessagePartId);
@@ -1286,38 +1333,27 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
             }
 
             if (oldMessageId == -1) {
-                msgId = db.insert("messages", "uid", cv);
+                msgId = batch.insertMessage(cv);
 
                 // Create entry in 'threads' table
-                cv.clear();
-                cv.put("message_id", msgId);
-
-                if (rootId != -1) {
-                    cv.put("root", rootId);
-                }
-                if (parentId != -1) {
-                    cv.put("parent", parentId);
-                }
-
-                db.insert("threads", null, cv);
+                batch.insertThread(msgId, rootId, parentId);
             } else {
                 msgId = oldMessageId;
                 db.update("messages", cv, "id = ?", new String[] { Long.toString(oldMessageId) });
+                batch.messageUpdated(cv);
             }
 
             if (fulltext != null) {
-                cv.clear();
-                cv.put("docid", msgId);
-                cv.put("fulltext", fulltext);
-                db.replace("messages_fulltext", null, cv);
+                batch.replaceFulltext(msgId, fulltext);
             }
         } catch (Exception e) {
             throw new MessagingException("Error appending message: " + message.getSubject(), e);
         }
     }
 
-    private long saveMessageParts(SQLiteDatabase db, Message message) throws IOException, MessagingException {
-        long rootMessagePartId = saveMessagePart(db, new PartContainer(-1, message), -1, 0);
+    private long saveMessageParts(SQLiteDatabase db, MessageInsertBatch batch, Message message)
+            throws IOException, MessagingException {
+        long rootMessagePartId = saveMessagePart(db, batch, new PartContainer(-1, message), -1, 0);
 
         Stack<PartContainer> partsToSave = new Stack<>();
         addChildrenToStack(partsToSave, message, rootMessagePartId);
@@ -1325,7 +1361,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         int order = 1;
         while (!partsToSave.isEmpty()) {
             PartContainer partContainer = partsToSave.pop();
-            long messagePartId = saveMessagePart(db, partContainer, rootMessagePartId, order);
+            long messagePartId = saveMessagePart(db, batch, partContainer, rootMessagePartId, order);
             order++;
 
             addChildrenToStack(partsToSave, partContainer.part, messagePartId);
@@ -1334,8 +1370,8 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         return rootMessagePartId;
     }
 
-    private long saveMessagePart(SQLiteDatabase db, PartContainer partContainer, long rootMessagePartId, int order)
-            throws IOException, MessagingException {
+    private long saveMessagePart(SQLiteDatabase db, MessageInsertBatch batch, PartContainer partContainer,
+            long rootMessagePartId, int order) throws IOException, MessagingException {
 
         Part part = partContainer.part;
 
@@ -1347,24 +1383,22 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         cv.put("seq", order);
         cv.put("server_extra", part.getServerExtra());
 
-        return updateOrInsertMessagePart(db, cv, part, INVALID_MESSAGE_PART_ID);
-    }
-
-    private void renameTemporaryFile(File file, String messagePartId) {
-        File destination = localStore.getAttachmentFile(messagePartId);
-        if (!file.renameTo(destination)) {
-            Log.w(K9.LOG_TAG, "Couldn't rename temporary file " + file.getAbsolutePath() +
-                    " to " + destination.getAbsolutePath());
-        }
+        return updateOrInsertMessagePart(db, batch, cv, part, INVALID_MESSAGE_PART_ID);
     }
 
-    private long updateOrInsertMessagePart(SQLiteDatabase db, ContentValues cv, Part part, long existingMessagePartId)
-            throws IOException, MessagingException {
+    /**
+     * @param batch
+     *         The batch to insert new message parts with. May be {@code null} when updating an existing message part.
+     */
+    private long updateOrInsertMessagePart(SQLiteDatabase db, MessageInsertBatch batch, ContentValues cv, Part part,
+            long existingMessagePartId) throws IOException, MessagingException {
         byte[] headerBytes = getHeaderBytes(part);
 
         cv.put("mime_type", part.getMimeType());
         cv.put("header", headerBytes);
         cv.put("type", MessagePartType.UNKNOWN);
+        cv.putNull("content_hash");
+        cv.put("data_codec", DataCodec.NONE);
 
         File file = null;
         Body body = part.getBody();
@@ -1382,12 +1416,15 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         if (existingMessagePartId != INVALID_MESSAGE_PART_ID) {
             messagePartId = existingMessagePartId;
             db.update("message_parts", cv, "id = ?", new String[] { Long.toString(messagePartId) });
+        } else if (batch != null) {
+            messagePartId = batch.insertMessagePart(cv);
         } else {
             messagePartId = db.insertOrThrow("message_parts", null, cv);
         }
 
         if (file != null) {
-            renameTemporaryFile(file, Long.toString(messagePartId));
+            String contentHash = cv.getAsString("content_hash");
+            AttachmentBlobs.storeBlob(file, localStore.getAttachmentDirectory(), contentHash);
         }
 
         return messagePartId;
@@ -1438,11 +1475,12 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
 
             long size = decodeAndCountBytes(file, encoding, fileSize);
             cv.put("decoded_body_size", size);
+            cv.put("content_hash", AttachmentBlobs.computeHash(file));
         } else {
             dataLocation = DataLocation.IN_DATABASE;
 
-            byte[] bodyData = getBodyBytes(body);
-            cv.put("data", bodyData);
+            byte[] bodyData = getBodyBytes(body, fileSize);
+            putBodyData(cv, bodyData);
 
             long size = decodeAndCountBytes(bodyData, encoding, bodyData.length);
             cv.put("decoded_body_size", size);
@@ -1454,6 +1492,23 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         return file;
     }
 
+    /**
+     * Stores the body data deflate-compressed if that saves space. Text is usually stored with a transfer encoding
+     * that compresses well. The data is kept in its original encoding so the part can be written out unchanged.
+     */
+    private void putBodyData(ContentValues cv, byte[] bodyData) {
+        if (bodyData.length >= MIN_BODY_SIZE_FOR_COMPRESSION) {
+            byte[] deflatedData = DeflatedMemoryBody.deflate(bodyData);
+            if (deflatedData.length < bodyData.length) {
+                cv.put("data", deflatedData);
+                cv.put("data_codec", DataCodec.DEFLATE);
+                return;
+            }
+        }
+
+        cv.put("data", bodyData);
+    }
+
     private File writeBodyToDiskIfNecessary(Part part) throws MessagingException, IOException {
         Body body = part.getBody();
         if (body instanceof BinaryTempFileBody) {
@@ -1514,8 +1569,26 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         return output.toByteArray();
     }
 
-    private byte[] getBodyBytes(Body body) throws IOException, MessagingException {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private byte[] getBodyBytes(Body body, long size) throws IOException, MessagingException {
+        if (body instanceof BinaryTempFileBody) {
+            // Read the temp file written by the MIME parser straight into a buffer of the final size
+            File file = ((BinaryTempFileBody) body).getFile();
+            byte[] bodyData = new byte[(int) size];
+            InputStream in = new FileInputStream(file);
+            try {
+                IOUtils.readFully(in, bodyData);
+            } finally {
+                in.close();
+            }
+
+            if (!file.delete()) {
+                Log.w(K9.LOG_TAG, "Couldn't delete temporary file " + file.getAbsolutePath());
+            }
+
+            return bodyData;
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream((int) size);
         body.writeTo(output);
         return output.toByteArray();
     }
@@ -1575,7 +1648,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                 }
 
                 try {
-                    updateOrInsertMessagePart(db, new ContentValues(), part, messagePartId);
+                    updateOrInsertMessagePart(db, null, new ContentValues(), part, messagePartId);
                 } catch (Exception e) {
                     Log.e(K9.LOG_TAG, "Error writing message part", e);
                 }
@@ -1690,11 +1763,10 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                             cursor.close();
                         }
 
-                        db.execSQL("DELETE FROM threads WHERE message_id IN " +
-                                "(SELECT id FROM messages WHERE folder_id = ?)", folderIdArg);
-                        db.execSQL("DELETE FROM messages WHERE folder_id = ?", folderIdArg);
+                        deleteMessageRows(db, mFolderId);
 
                         setMoreMessages(MoreMessages.UNKNOWN);
+                        setSyncedModSeq(0);
 
                         return null;
                     } catch (MessagingException e) {
@@ -1706,6 +1778,8 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
             throw(MessagingException) e.getCause();
         }
 
+        localStore.deleteUnreferencedBlobs();
+        removeRenderedMessages();
         this.localStore.notifyChange();
 
         setPushState(null);
@@ -1714,6 +1788,21 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         setVisibleLimit(getAccount().getDisplayCount());
     }
 
+    /**
+     * Deletes the messages of a folder and their rows in the 'threads' table.
+     */
+    static void deleteMessageRows(SQLiteDatabase db, long folderId) {
+        String[] folderIdArg = new String[] { Long.toString(folderId) };
+
+        db.execSQL("DELETE FROM threads WHERE message_id IN " +
+                "(SELECT id FROM messages WHERE folder_id = ?)", folderIdArg);
+        db.execSQL("DELETE FROM messages WHERE folder_id = ?", folderIdArg);
+
+        // The triggers recompute the aggregates of a thread from the thread rows that are left. Threads of other
+        // folders get that folder's ID, so rows that still point to this folder are stale.
+        db.delete(ThreadAggregates.TABLE_NAME, "folder_id = ?", folderIdArg);
+    }
+
     @Override
     public void delete(final boolean recurse) throws MessagingException {
         try {
@@ -1738,6 +1827,16 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         } catch (WrappedException e) {
             throw(MessagingException) e.getCause();
         }
+
+        localStore.deleteUnreferencedBlobs();
+        removeRenderedMessages();
+    }
+
+    /**
+     * Removes the cached HTML of all messages in this folder after their rows have been deleted.
+     */
+    private void removeRenderedMessages() {
+        RenderedMessageCache.getInstance(localStore.context).removeFolder(getAccount().getUuid(), mFolderId);
     }
 
     @Override
@@ -1766,6 +1865,8 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                 return null;
             }
         });
+
+        localStore.deleteUnreferencedBlobs();
     }
 
     private void deleteMessageDataFromDisk(final long rootMessagePartId) throws MessagingException {
@@ -1778,9 +1879,13 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         });
     }
 
+    /**
+     * Deletes the files of message parts written by older versions. Files named after their content hash are deleted
+     * by {@link LocalStore#deleteUnreferencedBlobs()} once no message part references them.
+     */
     private void deleteMessagePartsFromDisk(SQLiteDatabase db, long rootMessagePartId) {
         Cursor cursor = db.query("message_parts", new String[] { "id" },
-                "root = ? AND data_location = " + DataLocation.ON_DISK,
+                "root = ? AND data_location = " + DataLocation.ON_DISK + " AND content_hash IS NULL",
                 new String[] { Long.toString(rootMessagePartId) }, null, null, null);
         try {
             while (cursor.moveToNext()) {
@@ -1876,36 +1981,20 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
 
     private ThreadInfo doMessageThreading(SQLiteDatabase db, Message message)
             throws MessagingException {
+        return doMessageThreading(db, null, message);
+    }
+
+    private ThreadInfo doMessageThreading(SQLiteDatabase db, MessageInsertBatch batch, Message message)
+            throws MessagingException {
         long rootId = -1;
         long parentId = -1;
 
         String messageId = message.getMessageId();
 
         // If there's already an empty message in the database, update that
-        ThreadInfo msgThreadInfo = getThreadInfo(db, messageId, true);
-
-        // Get the message IDs from the "References" header line
-        String[] referencesArray = message.getHeader("References");
-        List<String> messageIds = null;
-        if (referencesArray.length > 0) {
-            messageIds = Utility.extractMessageIds(referencesArray[0]);
-        }
-
-        // Append the first message ID from the "In-Reply-To" header line
-        String[] inReplyToArray = message.getHeader("In-Reply-To");
-        String inReplyTo;
-        if (inReplyToArray.length > 0) {
-            inReplyTo = Utility.extractMessageId(inReplyToArray[0]);
-            if (inReplyTo != null) {
-                if (messageIds == null) {
-                    messageIds = new ArrayList<>(1);
-                    messageIds.add(inReplyTo);
-                } else if (!messageIds.contains(inReplyTo)) {
-                    messageIds.add(inReplyTo);
-                }
-            }
-        }
+        ThreadInfo msgThreadInfo = getThreadInfo(db, batch, messageId, true);
 
+        List<String> messageIds = getReferencedMessageIds(message);
         if (messageIds == null) {
             // This is not a reply, nothing to do for us.
             return (msgThreadInfo != null) ?
@@ -1913,28 +2002,34 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         }
 
         for (String reference : messageIds) {
-            ThreadInfo threadInfo = getThreadInfo(db, reference, false);
+            ThreadInfo threadInfo = getThreadInfo(db, batch, reference, false);
 
             if (threadInfo == null) {
-                // Create placeholder message in 'messages' table
-                ContentValues cv = new ContentValues();
-                cv.put("message_id", reference);
-                cv.put("folder_id", mFolderId);
-                cv.put("empty", 1);
+                if (batch != null) {
+                    // Create placeholder message in 'messages' table and an entry in the 'threads' table
+                    long newMsgId = batch.insertPlaceholderMessage(reference, mFolderId);
+                    parentId = batch.insertThread(newMsgId, rootId, parentId);
+                } else {
+                    // Create placeholder message in 'messages' table
+                    ContentValues cv = new ContentValues();
+                    cv.put("message_id", reference);
+                    cv.put("folder_id", mFolderId);
+                    cv.put("empty", 1);
 
-                long newMsgId = db.insert("messages", null, cv);
+                    long newMsgId = db.insert("messages", null, cv);
 
-                // Create entry in 'threads' table
-                cv.clear();
-                cv.put("message_id", newMsgId);
-                if (rootId != -1) {
-                    cv.put("root", rootId);
-                }
-                if (parentId != -1) {
-                    cv.put("parent", parentId);
-                }
+                    // Create entry in 'threads' table
+                    cv.clear();
+                    cv.put("message_id", newMsgId);
+                    if (rootId != -1) {
+                        cv.put("root", rootId);
+                    }
+                    if (parentId != -1) {
+                        cv.put("parent", parentId);
+                    }
 
-                parentId = db.insert("threads", null, cv);
+                    parentId = db.insert("threads", null, cv);
+                }
                 if (rootId == -1) {
                     rootId = parentId;
                 }
@@ -1977,6 +2072,53 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         return new ThreadInfo(threadId, msgId, messageId, rootId, parentId);
     }
 
+    /**
+     * @return The Message-IDs from the "References" header followed by the first one from the "In-Reply-To" header,
+     *         or {@code null} if the message is not a reply.
+     */
+    private List<String> getReferencedMessageIds(Message message) {
+        // Get the message IDs from the "References" header line
+        String[] referencesArray = message.getHeader("References");
+        List<String> messageIds = null;
+        if (referencesArray.length > 0) {
+            messageIds = Utility.extractMessageIds(referencesArray[0]);
+        }
+
+        // Append the first message ID from the "In-Reply-To" header line
+        String[] inReplyToArray = message.getHeader("In-Reply-To");
+        String inReplyTo;
+        if (inReplyToArray.length > 0) {
+            inReplyTo = Utility.extractMessageId(inReplyToArray[0]);
+            if (inReplyTo != null) {
+                if (messageIds == null) {
+                    messageIds = new ArrayList<>(1);
+                    messageIds.add(inReplyTo);
+                } else if (!messageIds.contains(inReplyTo)) {
+                    messageIds.add(inReplyTo);
+                }
+            }
+        }
+
+        return messageIds;
+    }
+
+    /**
+     * @return All Message-IDs that threading the given messages will look up.
+     */
+    private Set<String> collectReferencedMessageIds(List<? extends Message> messages) {
+        Set<String> messageIds = new HashSet<>();
+        for (Message message : messages) {
+            messageIds.add(message.getMessageId());
+
+            List<String> references = getReferencedMessageIds(message);
+            if (references != null) {
+                messageIds.addAll(references);
+            }
+        }
+
+        return messageIds;
+    }
+
     public List<Message> extractNewMessages(final List<Message> messages)
             throws MessagingException {
 
@@ -2072,6 +2214,12 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         static final int CHILD_PART_CONTAINS_DATA = 3;
     }
 
+    // Note: The contents of the 'message_parts' table depend on these values.
+    static class DataCodec {
+        static final int NONE = 0;
+        static final int DEFLATE = 1;
+    }
+
     public enum MoreMessages {
         UNKNOWN("unknown"),
         FALSE("false"),
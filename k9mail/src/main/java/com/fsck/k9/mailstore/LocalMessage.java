@@ -15,6 +15,7 @@ import com.fsck.k9.Account;
 import com.fsck.k9.BuildConfig;
 import com.fsck.k9.K9;
 import com.fsck.k9.activity.MessageReference;
+import com.fsck.k9.cache.RenderedMessageCache;
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
@@ -307,6 +308,8 @@ public class LocalMessage extends MimeMessage {
                         throw new WrappedException(e);
                     }
 
+                    removeRenderedMessage(mId);
+
                     return null;
                 }
             });
@@ -372,14 +375,8 @@ public class LocalMessage extends MimeMessage {
                         if (hasThreadChildren(db, mId)) {
                             // This message has children in the thread structure so we need to
                             // make it an empty message.
-                            ContentValues cv = new ContentValues();
-                            cv.put("id", mId);
-                            cv.put("folder_id", localFolder.getId());
-                            cv.put("deleted", 0);
-                            cv.put("message_id", getMessageId());
-                            cv.put("empty", 1);
-
-                            db.replace("messages", null, cv);
+                            replaceWithEmptyMessage(db, mId, localFolder.getId(), getMessageId());
+                            removeRenderedMessage(mId);
 
                             // Nothing else to do
                             return null;
@@ -480,6 +477,28 @@ public class LocalMessage extends MimeMessage {
         db.delete("messages_fulltext", "docid = ?", idArg);
     }
 
+    /**
+     * Replaces a message with an empty message that keeps its place in the thread structure.
+     *
+     * <p>
+     * The row is deleted and inserted again instead of using REPLACE. The implicit delete of REPLACE doesn't fire
+     * delete triggers unless recursive triggers are enabled, so {@link FolderCounters} and {@link ThreadAggregates}
+     * would still count the message.
+     * </p>
+     */
+    static void replaceWithEmptyMessage(SQLiteDatabase db, long id, long folderId, String messageId) {
+        db.delete("messages", "id = ?", new String[] { Long.toString(id) });
+
+        ContentValues cv = new ContentValues();
+        cv.put("id", id);
+        cv.put("folder_id", folderId);
+        cv.put("deleted", 0);
+        cv.put("message_id", messageId);
+        cv.put("empty", 1);
+
+        db.insert("messages", null, cv);
+    }
+
     /**
      * Delete a message from the 'messages' and 'threads' tables.
      *
@@ -497,6 +516,16 @@ public class LocalMessage extends MimeMessage {
         // Delete row in 'threads' table
         // TODO: create trigger for 'messages' table to get rid of the row in 'threads' table
         db.delete("threads", "message_id = ?", idArg);
+
+        removeRenderedMessage(messageId);
+    }
+
+    /**
+     * Removes the cached HTML of a message whose row is deleted, because SQLite may reuse its ID.
+     */
+    private void removeRenderedMessage(long messageId) {
+        RenderedMessageCache.getInstance(localStore.context).removeMessage(getAccount().getUuid(),
+                getFolder().getId(), messageId);
     }
 
     private void loadHeaders() throws MessagingException {
@@ -12,6 +12,7 @@ import android.util.Log;
 import com.fsck.k9.Account;
 import com.fsck.k9.K9;
 import com.fsck.k9.Preferences;
+import com.fsck.k9.cache.RenderedMessageCache;
 import com.fsck.k9.helper.UrlEncodingHelper;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.Flag;
@@ -19,6 +20,7 @@ import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Store;
+import com.fsck.k9.mailstore.LocalFolder.DataCodec;
 import com.fsck.k9.mailstore.LocalFolder.DataLocation;
 import com.fsck.k9.mailstore.LocalFolder.MoreMessages;
 import com.fsck.k9.mailstore.StorageManager.StorageProvider;
@@ -45,6 +47,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -90,7 +93,7 @@ public class LocalStore extends Store implements Serializable {
 
     static final String GET_FOLDER_COLS =
         "folders.id, name, visible_limit, last_updated, status, push_state, last_pushed, " +
-        "integrate, top_group, poll_class, push_class, display_class, notify_class, more_messages";
+        "integrate, top_group, poll_class, push_class, display_class, notify_class, more_messages, highest_mod_seq";
 
     static final int FOLDER_ID_INDEX = 0;
     static final int FOLDER_NAME_INDEX = 1;
@@ -106,6 +109,7 @@ public class LocalStore extends Store implements Serializable {
     static final int FOLDER_DISPLAY_CLASS_INDEX = 11;
     static final int FOLDER_NOTIFY_CLASS_INDEX = 12;
     static final int MORE_MESSAGES_INDEX = 13;
+    static final int FOLDER_HIGHEST_MOD_SEQ_INDEX = 14;
 
     static final String[] UID_CHECK_PROJECTION = { "uid" };
 
@@ -130,7 +134,7 @@ public class LocalStore extends Store implements Serializable {
      */
     private static final int THREAD_FLAG_UPDATE_BATCH_SIZE = 500;
 
-    public static final int DB_VERSION = 55;
+    public static final int DB_VERSION = 60;
 
 
     public static String getColumnNameForFlag(Flag flag) {
@@ -166,6 +170,23 @@ public class LocalStore extends Store implements Serializable {
     private final MessageFulltextCreator messageFulltextCreator;
     private final AttachmentCounter attachmentCounter;
 
+    private final Runnable unreferencedBlobsDeleter = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                database.execute(false, new DbCallback<Void>() {
+                    @Override
+                    public Void doDbWork(SQLiteDatabase db) {
+                        AttachmentBlobs.deleteUnreferencedBlobs(db, getAttachmentDirectory());
+                        return null;
+                    }
+                });
+            } catch (MessagingException e) {
+                Log.e(K9.LOG_TAG, "Unable to delete unreferenced attachment files", e);
+            }
+        }
+    };
+
     /**
      * local://localhost/path/to/database/uuid.db
      * This constructor is only used by {@link LocalStore#getInstance(Account, Context)}
@@ -308,10 +329,15 @@ public class LocalStore extends Store implements Serializable {
                 // Don't delete deleted messages. They are essentially placeholders for UIDs of messages that have
                 // been deleted locally.
                 db.delete("messages", "deleted = 0", null);
+
+                // The triggers have already removed most rows. This takes care of threads that only had
+                // deleted messages left.
+                db.delete(ThreadAggregates.TABLE_NAME, null, null);
                 return null;
             }
         });
 
+        removeRenderedMessages();
         compact();
 
         if (K9.DEBUG) {
@@ -409,6 +435,14 @@ public class LocalStore extends Store implements Serializable {
 
     public void recreate() throws UnavailableStorageException {
         database.recreate();
+        removeRenderedMessages();
+    }
+
+    /**
+     * Removes the cached HTML of all messages of this account. The message IDs are reused once the rows are gone.
+     */
+    private void removeRenderedMessages() {
+        RenderedMessageCache.getInstance(context).removeAccount(uUid);
     }
 
     private void deleteAllMessageDataFromDisk() throws MessagingException {
@@ -422,7 +456,9 @@ public class LocalStore extends Store implements Serializable {
             public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
                 ContentValues cv = new ContentValues();
                 cv.put("data_location", DataLocation.MISSING);
+                cv.putNull("content_hash");
                 db.update("message_parts", cv, null, null);
+                db.delete(AttachmentBlobs.TABLE_NAME, null, null);
 
                 return null;
             }
@@ -506,6 +542,53 @@ public class LocalStore extends Store implements Serializable {
         });
     }
 
+    /**
+     * Replaces {@code oldCommands} with {@code newCommands} in a single transaction.
+     * <p>
+     * The new commands take over the IDs of the old ones, in order. That way they keep their position relative to
+     * commands that have been queued in the meantime.
+     * </p>
+     */
+    public void replacePendingCommands(final List<PendingCommand> oldCommands,
+            final List<PendingCommand> newCommands) throws MessagingException {
+        if (newCommands.size() > oldCommands.size()) {
+            throw new IllegalArgumentException("Can't replace " + oldCommands.size() + " commands with " +
+                    newCommands.size() + " commands");
+        }
+
+        final long[] ids = new long[oldCommands.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = oldCommands.get(i).mId;
+        }
+        Arrays.sort(ids);
+
+        database.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                for (PendingCommand command : oldCommands) {
+                    db.delete("pending_commands", "id = ?", new String[] { Long.toString(command.mId) });
+                }
+
+                for (int i = 0, end = newCommands.size(); i < end; i++) {
+                    PendingCommand command = newCommands.get(i);
+                    String[] encodedArguments = new String[command.arguments.length];
+                    for (int j = 0; j < encodedArguments.length; j++) {
+                        encodedArguments[j] = UrlEncodingHelper.encodeUtf8(command.arguments[j]);
+                    }
+
+                    ContentValues cv = new ContentValues();
+                    cv.put("id", ids[i]);
+                    cv.put("command", command.command);
+                    cv.put("arguments", Utility.combine(encodedArguments, ','));
+                    db.insert("pending_commands", "command", cv);
+
+                    command.mId = ids[i];
+                }
+                return null;
+            }
+        });
+    }
+
     public void removePendingCommand(final PendingCommand command) throws MessagingException {
         database.execute(false, new DbCallback<Void>() {
             @Override
@@ -683,7 +766,7 @@ public class LocalStore extends Store implements Serializable {
             @Override
             public InputStream doDbWork(final SQLiteDatabase db) throws WrappedException {
                 Cursor cursor = db.query("message_parts",
-                        new String[] { "data_location", "data", "encoding" },
+                        new String[] { "data_location", "data", "encoding", "content_hash", "data_codec" },
                         "id = ?",
                         new String[] { attachmentId },
                         null, null, null);
@@ -708,10 +791,17 @@ public class LocalStore extends Store implements Serializable {
         switch (location) {
             case DataLocation.IN_DATABASE: {
                 byte[] data = cursor.getBlob(1);
-                return new ByteArrayInputStream(data);
+                int dataCodec = cursor.getInt(4);
+
+                InputStream inputStream = new ByteArrayInputStream(data);
+                if (dataCodec == DataCodec.DEFLATE) {
+                    return DeflatedMemoryBody.inflate(inputStream);
+                }
+                return inputStream;
             }
             case DataLocation.ON_DISK: {
-                File file = getAttachmentFile(attachmentId);
+                String contentHash = cursor.getString(3);
+                File file = getMessagePartFile(attachmentId, contentHash);
                 try {
                     return new FileInputStream(file);
                 } catch (FileNotFoundException e) {
@@ -747,10 +837,36 @@ public class LocalStore extends Store implements Serializable {
         return rawInputStream;
     }
 
+    File getAttachmentDirectory() {
+        StorageManager storageManager = StorageManager.getInstance(context);
+        return storageManager.getAttachmentDirectory(uUid, database.getStorageProviderId());
+    }
+
+    /**
+     * Deletes the attachment files that are no longer referenced by any message part.
+     * <p>
+     * If called inside a transaction the files are only deleted once it has been committed. Otherwise a rollback
+     * would bring back message parts whose files are gone.
+     * </p>
+     */
+    void deleteUnreferencedBlobs() {
+        database.runAfterCommit(unreferencedBlobsDeleter);
+    }
+
     File getAttachmentFile(String attachmentId) {
-        final StorageManager storageManager = StorageManager.getInstance(context);
-        final File attachmentDirectory = storageManager.getAttachmentDirectory(uUid, database.getStorageProviderId());
-        return new File(attachmentDirectory, attachmentId);
+        return new File(getAttachmentDirectory(), attachmentId);
+    }
+
+    /**
+     * @param contentHash
+     *         The content hash of the message part. {@code null} for message parts written by older versions.
+     */
+    File getMessagePartFile(String messagePartId, String contentHash) {
+        if (contentHash == null) {
+            return getAttachmentFile(messagePartId);
+        }
+
+        return AttachmentBlobs.getBlobFile(getAttachmentDirectory(), contentHash);
     }
 
     public static class AttachmentInfo {
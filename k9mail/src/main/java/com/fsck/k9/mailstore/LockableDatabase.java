@@ -1,6 +1,8 @@
 package com.fsck.k9.mailstore;
 
 import java.io.File;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -17,6 +19,10 @@ import com.fsck.k9.helper.FileHelper;
 import com.fsck.k9.mail.MessagingException;
 
 public class LockableDatabase {
+    /**
+     * Suffixes of the files SQLite keeps next to the database file in write-ahead logging mode.
+     */
+    private static final String[] WAL_FILE_SUFFIXES = { "-wal", "-shm" };
 
     /**
      * Callback interface for DB operations. Concept is similar to Spring
@@ -137,6 +143,13 @@ public class LockableDatabase {
      */
     private ThreadLocal<Boolean> inTransaction = new ThreadLocal<>();
 
+    /**
+     * Actions to run once the transaction of the current {@link Thread} has been committed.
+     *
+     * @see #runAfterCommit(Runnable)
+     */
+    private ThreadLocal<Set<Runnable>> afterCommitActions = new ThreadLocal<>();
+
     private SchemaDefinition mSchemaDefinition;
 
     private String uUid;
@@ -254,6 +267,14 @@ public class LockableDatabase {
      * inner transaction created).
      * </p>
      *
+     * <p>
+     * The database is opened in write-ahead logging mode. Queries of callbacks
+     * that run outside of a transaction are executed on one of the read-only
+     * connections of the platform's connection pool, so they don't have to wait
+     * for a write transaction of another thread to finish. Writes are still
+     * serialized on the single primary connection.
+     * </p>
+     *
      * @param transactional
      *            <code>true</code> the callback must be executed in a
      *            transactional context.
@@ -265,18 +286,22 @@ public class LockableDatabase {
     public <T> T execute(final boolean transactional, final DbCallback<T> callback) throws MessagingException {
         lockRead();
         final boolean doTransaction = transactional && inTransaction.get() == null;
+        boolean committed = false;
+        Set<Runnable> actions = null;
+        final T result;
         try {
             final boolean debug = K9.DEBUG;
             if (doTransaction) {
                 inTransaction.set(Boolean.TRUE);
-                mDb.beginTransaction();
+                mDb.beginTransactionNonExclusive();
             }
+            boolean successful = false;
             try {
-                final T result = callback.doDbWork(mDb);
+                result = callback.doDbWork(mDb);
                 if (doTransaction) {
                     mDb.setTransactionSuccessful();
                 }
-                return result;
+                successful = true;
             } finally {
                 if (doTransaction) {
                     final long begin;
@@ -287,6 +312,7 @@ public class LockableDatabase {
                     }
                     // not doing endTransaction in the same 'finally' block of unlockRead() because endTransaction() may throw an exception
                     mDb.endTransaction();
+                    committed = successful;
                     if (debug) {
                         Log.v(K9.LOG_TAG, "LockableDatabase: Transaction ended, took " + Long.toString(System.currentTimeMillis() - begin) + "ms / " + new Exception().getStackTrace()[1].toString());
                     }
@@ -295,9 +321,38 @@ public class LockableDatabase {
         } finally {
             if (doTransaction) {
                 inTransaction.set(null);
+                actions = afterCommitActions.get();
+                afterCommitActions.remove();
             }
             unlockRead();
         }
+
+        if (committed && actions != null) {
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Runs {@code action} once the transaction of the current thread has been committed, or right away if there is
+     * no transaction. The action is dropped if the transaction is rolled back. An action that was already added to
+     * the current transaction is only run once.
+     */
+    public void runAfterCommit(Runnable action) {
+        if (inTransaction.get() == null) {
+            action.run();
+            return;
+        }
+
+        Set<Runnable> actions = afterCommitActions.get();
+        if (actions == null) {
+            actions = new LinkedHashSet<>();
+            afterCommitActions.set(actions);
+        }
+        actions.add(action);
     }
 
     /**
@@ -329,7 +384,13 @@ public class LockableDatabase {
                 prepareStorage(newProviderId);
 
                 // move all database files
-                FileHelper.moveRecursive(oldDatabase, storageManager.getDatabase(uUid, newProviderId));
+                File newDatabase = storageManager.getDatabase(uUid, newProviderId);
+                FileHelper.moveRecursive(oldDatabase, newDatabase);
+                // closing the database should have merged the write-ahead log, but don't lose it if it didn't
+                for (String suffix : WAL_FILE_SUFFIXES) {
+                    FileHelper.moveRecursive(new File(oldDatabase.getPath() + suffix),
+                            new File(newDatabase.getPath() + suffix));
+                }
                 // move all attachment files
                 FileHelper.moveRecursive(storageManager.getAttachmentDirectory(uUid, oldProviderId),
                         storageManager.getAttachmentDirectory(uUid, newProviderId));
@@ -394,6 +455,19 @@ public class LockableDatabase {
             // external storage
             mDb = SQLiteDatabase.openOrCreateDatabase(databaseFile, null);
         }
+
+        enableWriteAheadLogging();
+    }
+
+    private void enableWriteAheadLogging() {
+        try {
+            if (!mDb.enableWriteAheadLogging()) {
+                Log.w(K9.LOG_TAG, "LockableDatabase: Unable to enable write-ahead logging for DB " + uUid);
+            }
+        } catch (RuntimeException e) {
+            // The rollback journal still works, we just lose concurrent reads
+            Log.w(K9.LOG_TAG, "LockableDatabase: Error enabling write-ahead logging for DB " + uUid, e);
+        }
     }
 
     /**
@@ -508,6 +582,9 @@ public class LockableDatabase {
         } else {
             deleted = database.delete();
             deleted |= new File(database.getPath() + "-journal").delete();
+            for (String suffix : WAL_FILE_SUFFIXES) {
+                deleted |= new File(database.getPath() + suffix).delete();
+            }
         }
         if (!deleted) {
             Log.i(K9.LOG_TAG,
@@ -0,0 +1,216 @@
+package com.fsck.k9.mailstore;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+
+/**
+ * State shared by all messages that {@link LocalFolder} stores in one transaction.
+ * <p>
+ * The insert statements are compiled once and reused for every row of the batch. The Message-IDs that the messages
+ * of the batch refer to are looked up with a single query up front, so threading only has to query the database for
+ * Message-IDs that actually exist in the folder.
+ * </p>
+ */
+class MessageInsertBatch {
+    static final int MAX_BATCH_SIZE = 100;
+
+    private static final String[] MESSAGE_COLUMNS = {
+            "message_part_id", "uid", "subject", "sender_list", "date", "flags", "deleted", "read", "flagged",
+            "answered", "forwarded", "folder_id", "to_list", "cc_list", "bcc_list", "reply_to_list",
+            "attachment_count", "internal_date", "mime_type", "empty", "preview_type", "preview", "message_id"
+    };
+
+    private static final String[] MESSAGE_PART_COLUMNS = {
+            "type", "root", "parent", "seq", "mime_type", "decoded_body_size", "display_name", "header", "encoding",
+            "charset", "data_location", "data", "preamble", "epilogue", "boundary", "content_id", "server_extra",
+            "content_hash", "data_codec"
+    };
+
+
+    private final SQLiteStatement insertMessage;
+    private final SQLiteStatement insertPlaceholderMessage;
+    private final SQLiteStatement insertThread;
+    private final SQLiteStatement replaceFulltext;
+    private final SQLiteStatement insertMessagePart;
+    private final Set<String> absentMessageIds;
+
+
+    private MessageInsertBatch(SQLiteDatabase db, Set<String> absentMessageIds) {
+        insertMessage = db.compileStatement(createInsertSql("INSERT", "messages", MESSAGE_COLUMNS));
+        insertPlaceholderMessage = db.compileStatement(
+                createInsertSql("INSERT", "messages", new String[] { "message_id", "folder_id", "empty" }));
+        insertThread = db.compileStatement(
+                createInsertSql("INSERT", "threads", new String[] { "message_id", "root", "parent" }));
+        replaceFulltext = db.compileStatement(
+                createInsertSql("INSERT OR REPLACE", "messages_fulltext", new String[] { "docid", "fulltext" }));
+        insertMessagePart = db.compileStatement(createInsertSql("INSERT", "message_parts", MESSAGE_PART_COLUMNS));
+        this.absentMessageIds = absentMessageIds;
+    }
+
+    /**
+     * Compiles the insert statements and finds out which of the given Message-IDs don't exist in the folder yet.
+     * Must be called inside the transaction that is used to store the batch.
+     */
+    static MessageInsertBatch create(SQLiteDatabase db, long folderId, Collection<String> referencedMessageIds) {
+        Set<String> absentMessageIds = new HashSet<>(referencedMessageIds);
+        absentMessageIds.remove(null);
+        absentMessageIds.removeAll(findExistingMessageIds(db, folderId, absentMessageIds));
+
+        return new MessageInsertBatch(db, absentMessageIds);
+    }
+
+    private static Set<String> findExistingMessageIds(SQLiteDatabase db, long folderId, Set<String> messageIds) {
+        Set<String> existingMessageIds = new HashSet<>();
+        List<String> pending = new ArrayList<>(messageIds);
+
+        for (int start = 0; start < pending.size(); start += LocalStore.UID_CHECK_BATCH_SIZE) {
+            int end = Math.min(start + LocalStore.UID_CHECK_BATCH_SIZE, pending.size());
+
+            StringBuilder sql = new StringBuilder("SELECT message_id FROM messages WHERE folder_id = ? AND " +
+                    "message_id IN (");
+            String[] selectionArgs = new String[end - start + 1];
+            selectionArgs[0] = Long.toString(folderId);
+            for (int i = start; i < end; i++) {
+                sql.append(i > start ? ",?" : "?");
+                selectionArgs[i - start + 1] = pending.get(i);
+            }
+            sql.append(")");
+
+            Cursor cursor = db.rawQuery(sql.toString(), selectionArgs);
+            try {
+                while (cursor.moveToNext()) {
+                    existingMessageIds.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return existingMessageIds;
+    }
+
+    /**
+     * @return {@code true} if it's certain that no message with the given Message-ID exists in the folder, i.e. it
+     *         was absent when the batch was started and no message with that Message-ID has been stored since.
+     */
+    boolean isKnownToBeAbsent(String messageId) {
+        return messageId != null && absentMessageIds.contains(messageId);
+    }
+
+    long insertMessage(ContentValues values) {
+        String messageId = values.getAsString("message_id");
+        absentMessageIds.remove(messageId);
+
+        return executeInsert(insertMessage, MESSAGE_COLUMNS, values);
+    }
+
+    /**
+     * Must be called when an existing message row is updated, since that might change its Message-ID.
+     */
+    void messageUpdated(ContentValues values) {
+        absentMessageIds.remove(values.getAsString("message_id"));
+    }
+
+    long insertPlaceholderMessage(String messageId, long folderId) {
+        absentMessageIds.remove(messageId);
+
+        insertPlaceholderMessage.clearBindings();
+        insertPlaceholderMessage.bindString(1, messageId);
+        insertPlaceholderMessage.bindLong(2, folderId);
+        insertPlaceholderMessage.bindLong(3, 1);
+        return insertPlaceholderMessage.executeInsert();
+    }
+
+    long insertThread(long messageId, long rootId, long parentId) {
+        insertThread.clearBindings();
+        insertThread.bindLong(1, messageId);
+        if (rootId != -1) {
+            insertThread.bindLong(2, rootId);
+        }
+        if (parentId != -1) {
+            insertThread.bindLong(3, parentId);
+        }
+        return insertThread.executeInsert();
+    }
+
+    void replaceFulltext(long messageId, String fulltext) {
+        replaceFulltext.clearBindings();
+        replaceFulltext.bindLong(1, messageId);
+        replaceFulltext.bindString(2, fulltext);
+        replaceFulltext.executeInsert();
+    }
+
+    long insertMessagePart(ContentValues values) {
+        return executeInsert(insertMessagePart, MESSAGE_PART_COLUMNS, values);
+    }
+
+    void close() {
+        insertMessage.close();
+        insertPlaceholderMessage.close();
+        insertThread.close();
+        replaceFulltext.close();
+        insertMessagePart.close();
+    }
+
+    private static String createInsertSql(String verb, String table, String[] columns) {
+        StringBuilder sql = new StringBuilder(verb).append(" INTO ").append(table).append(" (");
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+                placeholders.append(", ");
+            }
+            sql.append(columns[i]);
+            placeholders.append('?');
+        }
+
+        return sql.append(") VALUES (").append(placeholders).append(')').toString();
+    }
+
+    /**
+     * Binds {@code values} to {@code statement} and executes it. Columns without a value are bound to {@code NULL},
+     * so callers have to provide a value for every column that has a different default.
+     */
+    private static long executeInsert(SQLiteStatement statement, String[] columns, ContentValues values) {
+        List<String> columnList = Arrays.asList(columns);
+
+        statement.clearBindings();
+        for (Entry<String, Object> entry : values.valueSet()) {
+            int index = columnList.indexOf(entry.getKey()) + 1;
+            if (index == 0) {
+                throw new IllegalArgumentException("Column " + entry.getKey() + " is not part of the insert statement");
+            }
+            bindValue(statement, index, entry.getValue());
+        }
+
+        return statement.executeInsert();
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else if (value instanceof Float || value instanceof Double) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+}
@@ -20,14 +20,19 @@ public class MessageViewInfo {
 
     public static class MessageViewContainer {
         public final String text;
+        /**
+         * The complete, sanitized document to display {@link #text}. May be {@code null}.
+         */
+        public final String sanitizedHtml;
         public final Part rootPart;
         public final List<AttachmentViewInfo> attachments;
         public final CryptoResultAnnotation cryptoAnnotation;
 
 
-        MessageViewContainer(String text, Part rootPart, List<AttachmentViewInfo> attachments,
+        MessageViewContainer(String text, String sanitizedHtml, Part rootPart, List<AttachmentViewInfo> attachments,
                 CryptoResultAnnotation cryptoAnnotation) {
             this.text = text;
+            this.sanitizedHtml = sanitizedHtml;
             this.rootPart = rootPart;
             this.attachments = attachments;
             this.cryptoAnnotation = cryptoAnnotation;
@@ -4,12 +4,17 @@ package com.fsck.k9.mailstore;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 import android.content.Context;
 import android.support.annotation.VisibleForTesting;
 
 import com.fsck.k9.R;
+import com.fsck.k9.cache.RenderedMessageCache;
+import com.fsck.k9.cache.RenderedMessageCache.RenderedHtml;
+import com.fsck.k9.crypto.MessageDecryptVerifier;
 import com.fsck.k9.helper.HtmlConverter;
+import com.fsck.k9.helper.HtmlSanitizer;
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.Body;
 import com.fsck.k9.mail.BodyPart;
@@ -45,6 +50,16 @@ public class MessageViewInfoExtractor {
 
     public static MessageViewInfo extractMessageForView(Context context,
             Message message, MessageCryptoAnnotations annotations) throws MessagingException {
+        return extractMessageForView(context, message, annotations, null);
+    }
+
+    /**
+     * @param renderedMessageCache
+     *         Used to look up and store the rendered HTML of local messages. May be {@code null}.
+     */
+    public static MessageViewInfo extractMessageForView(Context context,
+            Message message, MessageCryptoAnnotations annotations, RenderedMessageCache renderedMessageCache)
+            throws MessagingException {
         // TODO note that we will move away from ViewableContainers, so this method is subject to changes!
 
         // 1. break mime structure on encryption/signature boundaries
@@ -52,12 +67,17 @@ public class MessageViewInfoExtractor {
 
         // 2. extract viewables/attachments of parts
         ArrayList<MessageViewContainer> containers = new ArrayList<>();
-        for (Part part : parts) {
+        for (int i = 0, len = parts.size(); i < len; i++) {
+            Part part = parts.get(i);
             CryptoResultAnnotation pgpAnnotation = annotations.get(part);
 
+            // Never write decrypted content to the disk cache
+            RenderedMessageCache cache = renderedMessageCache;
+
             // TODO properly handle decrypted data part - this just replaces the part
             if (pgpAnnotation != NO_ANNOTATIONS && pgpAnnotation.hasReplacementData()) {
                 part = pgpAnnotation.getReplacementData();
+                cache = null;
             }
 
             ArrayList<Viewable> viewableParts = new ArrayList<>();
@@ -65,11 +85,11 @@ public class MessageViewInfoExtractor {
             MessageExtractor.findViewablesAndAttachments(part, viewableParts, attachments);
 
             // 3. parse viewables into html string
-            ViewableExtractedText viewable = MessageViewInfoExtractor.extractTextFromViewables(context, viewableParts);
+            RenderedHtml renderedHtml = renderHtml(context, message, i, part, viewableParts, cache);
             List<AttachmentViewInfo> attachmentInfos = AttachmentInfoExtractor.extractAttachmentInfos(context, attachments);
 
-            MessageViewContainer messageViewContainer =
-                    new MessageViewContainer(viewable.html, part, attachmentInfos, pgpAnnotation);
+            MessageViewContainer messageViewContainer = new MessageViewContainer(renderedHtml.html,
+                    renderedHtml.sanitizedHtml, part, attachmentInfos, pgpAnnotation);
 
             containers.add(messageViewContainer);
         }
@@ -77,6 +97,107 @@ public class MessageViewInfoExtractor {
         return new MessageViewInfo(containers, message);
     }
 
+    /**
+     * Renders a message that was just downloaded into the cache, so it displays quickly when it is opened.
+     *
+     * <p>
+     * Messages with encrypted or signed parts are skipped. Their containers depend on the result of the crypto
+     * operations performed when they are displayed.
+     * </p>
+     */
+    public static void prewarmRenderedMessage(Context context, LocalMessage message,
+            RenderedMessageCache renderedMessageCache) throws MessagingException {
+        if (!MessageDecryptVerifier.findEncryptedParts(message).isEmpty() ||
+                !MessageDecryptVerifier.findSignedParts(message).isEmpty() ||
+                !MessageDecryptVerifier.findPgpInlineParts(message).isEmpty()) {
+            return;
+        }
+
+        // Without crypto annotations the whole message is the only container
+        ArrayList<Viewable> viewableParts = new ArrayList<>();
+        ArrayList<Part> attachments = new ArrayList<>();
+        MessageExtractor.findViewablesAndAttachments(message, viewableParts, attachments);
+
+        renderHtml(context, message, 0, message, viewableParts, renderedMessageCache);
+    }
+
+    private static RenderedHtml renderHtml(Context context, Message message, int containerIndex, Part part,
+            List<Viewable> viewableParts, RenderedMessageCache renderedMessageCache) throws MessagingException {
+        String key = null;
+        String contentVersion = null;
+        if (renderedMessageCache != null && message instanceof LocalMessage) {
+            LocalMessage localMessage = (LocalMessage) message;
+            key = RenderedMessageCache.createKey(localMessage.getAccount().getUuid(),
+                    localMessage.getFolder().getId(), localMessage.getId(), containerIndex);
+            contentVersion = getContentVersion(part, viewableParts);
+
+            RenderedHtml cachedHtml = renderedMessageCache.get(key, contentVersion);
+            if (cachedHtml != null) {
+                return cachedHtml;
+            }
+        }
+
+        ViewableExtractedText viewable = extractTextFromViewables(context, viewableParts);
+        String sanitizedHtml = HtmlSanitizer.sanitize(HtmlConverter.wrapMessageContent(viewable.html));
+        RenderedHtml renderedHtml = new RenderedHtml(viewable.html, sanitizedHtml);
+
+        if (key != null) {
+            renderedMessageCache.put(key, contentVersion, renderedHtml);
+        }
+
+        return renderedHtml;
+    }
+
+    /**
+     * Describes everything the rendered HTML of a container depends on.
+     *
+     * <p>
+     * Stored message parts are never modified, only replaced by new parts. While a message exists the IDs of the
+     * viewable parts and whether their data has been downloaded identify the content. The display settings and the
+     * locale change the generated document. SQLite hands out the IDs of deleted rows again, so this only holds
+     * because the cache entries of a message are removed when it is deleted.
+     * </p>
+     */
+    private static String getContentVersion(Part rootPart, List<Viewable> viewables) {
+        StringBuilder version = new StringBuilder();
+        version.append(Locale.getDefault()).append('|');
+        version.append(HtmlConverter.getMessageContentHeader()).append('|');
+        appendPartVersion(version, rootPart);
+        appendViewablesVersion(version, viewables);
+
+        return version.toString();
+    }
+
+    private static void appendViewablesVersion(StringBuilder version, List<Viewable> viewables) {
+        for (Viewable viewable : viewables) {
+            if (viewable instanceof Textual) {
+                version.append(viewable instanceof Html ? 'h' : 't');
+                appendPartVersion(version, ((Textual) viewable).getPart());
+            } else if (viewable instanceof MessageHeader) {
+                version.append('m');
+                appendPartVersion(version, ((MessageHeader) viewable).getContainerPart());
+            } else if (viewable instanceof Alternative) {
+                Alternative alternative = (Alternative) viewable;
+                version.append("a(");
+                appendViewablesVersion(version, alternative.getText());
+                version.append(")(");
+                appendViewablesVersion(version, alternative.getHtml());
+                version.append(')');
+            }
+        }
+    }
+
+    private static void appendPartVersion(StringBuilder version, Part part) {
+        if (part instanceof LocalPart) {
+            version.append(((LocalPart) part).getId());
+        } else if (part instanceof LocalMessage) {
+            version.append(((LocalMessage) part).getMessagePartId());
+        } else {
+            version.append('?');
+        }
+        version.append(part.getBody() != null ? '+' : '-').append(';');
+    }
+
     public static List<Part> getCryptPieces(Message message, MessageCryptoAnnotations annotations) throws MessagingException {
 
         // TODO make sure this method does what it is supposed to
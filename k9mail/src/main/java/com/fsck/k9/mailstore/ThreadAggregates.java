@@ -0,0 +1,121 @@
+package com.fsck.k9.mailstore;
+
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Maintains the {@code thread_aggregates} table.
+ * <p>
+ * The table contains one row per thread with at least one message that is neither empty nor deleted. The row holds
+ * the values the threaded message list displays for the thread, so that list doesn't have to aggregate all messages
+ * of a folder with {@code GROUP BY} every time it is loaded.
+ * </p><p>
+ * The rows are kept up to date by triggers on the {@code messages} and {@code threads} tables. Whenever a message or
+ * its thread membership changes, the row of the affected thread is recomputed from the messages of that thread only.
+ * </p>
+ */
+public class ThreadAggregates {
+    public static final String TABLE_NAME = "thread_aggregates";
+
+    private static final String[] TRIGGER_NAMES = {
+            "thread_aggregates_thread_insert",
+            "thread_aggregates_thread_update",
+            "thread_aggregates_thread_delete",
+            "thread_aggregates_message_update",
+            "thread_aggregates_message_delete"
+    };
+
+
+    /**
+     * Creates the table and the triggers that maintain it. Doesn't populate the table.
+     */
+    public static void createTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS thread_aggregates");
+        db.execSQL("CREATE TABLE thread_aggregates (" +
+                "root INTEGER PRIMARY KEY, " +
+                "folder_id INTEGER, " +
+                "message_count INTEGER, " +
+                "unread_count INTEGER, " +
+                "flagged_count INTEGER, " +
+                "attachment_count INTEGER, " +
+                "answered INTEGER, " +
+                "forwarded INTEGER, " +
+                "date INTEGER, " +
+                "internal_date INTEGER, " +
+                "latest_message_id INTEGER" +
+                ")");
+
+        db.execSQL("DROP INDEX IF EXISTS thread_aggregates_folder_id_date");
+        db.execSQL("CREATE INDEX IF NOT EXISTS thread_aggregates_folder_id_date " +
+                "ON thread_aggregates (folder_id, date)");
+
+        for (String triggerName : TRIGGER_NAMES) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + triggerName);
+        }
+
+        // The root of a new thread is only set by the set_thread_root trigger, i.e. in an update.
+        db.execSQL("CREATE TRIGGER thread_aggregates_thread_insert " +
+                "AFTER INSERT ON threads " +
+                "WHEN NEW.root IS NOT NULL " +
+                "BEGIN " +
+                recomputeSql("NEW.root") +
+                "END");
+
+        db.execSQL("CREATE TRIGGER thread_aggregates_thread_update " +
+                "AFTER UPDATE OF root, message_id ON threads " +
+                "BEGIN " +
+                recomputeSql("OLD.root") +
+                recomputeSql("NEW.root") +
+                "END");
+
+        db.execSQL("CREATE TRIGGER thread_aggregates_thread_delete " +
+                "AFTER DELETE ON threads " +
+                "BEGIN " +
+                recomputeSql("OLD.root") +
+                "END");
+
+        db.execSQL("CREATE TRIGGER thread_aggregates_message_update " +
+                "AFTER UPDATE OF folder_id, deleted, empty, read, flagged, answered, forwarded, attachment_count, " +
+                "date, internal_date ON messages " +
+                "WHEN OLD.folder_id IS NOT NEW.folder_id OR OLD.deleted IS NOT NEW.deleted OR " +
+                "OLD.empty IS NOT NEW.empty OR OLD.read IS NOT NEW.read OR OLD.flagged IS NOT NEW.flagged OR " +
+                "OLD.answered IS NOT NEW.answered OR OLD.forwarded IS NOT NEW.forwarded OR " +
+                "OLD.attachment_count IS NOT NEW.attachment_count OR OLD.date IS NOT NEW.date OR " +
+                "OLD.internal_date IS NOT NEW.internal_date " +
+                "BEGIN " +
+                recomputeSql("(SELECT root FROM threads WHERE message_id = NEW.id)") +
+                "END");
+
+        db.execSQL("CREATE TRIGGER thread_aggregates_message_delete " +
+                "AFTER DELETE ON messages " +
+                "BEGIN " +
+                recomputeSql("(SELECT root FROM threads WHERE message_id = OLD.id)") +
+                "END");
+    }
+
+    /**
+     * Recomputes the rows of all threads. Used to populate the table after it has been created for an existing
+     * database.
+     */
+    public static void rebuild(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM thread_aggregates");
+        db.execSQL("INSERT INTO thread_aggregates " + aggregateSelectSql("t.root IS NOT NULL"));
+    }
+
+    private static String recomputeSql(String root) {
+        return "DELETE FROM thread_aggregates WHERE root = " + root + "; " +
+                "INSERT INTO thread_aggregates " + aggregateSelectSql("t.root = " + root) + "; ";
+    }
+
+    private static String aggregateSelectSql(String condition) {
+        return "SELECT t.root, MAX(m.folder_id), COUNT(*), SUM(m.read = 0), SUM(m.flagged = 1), " +
+                "SUM(m.attachment_count), MIN(m.answered), MIN(m.forwarded), MAX(m.date), MAX(m.internal_date), " +
+                "(SELECT lm.id FROM threads lt JOIN messages lm ON (lm.id = lt.message_id) " +
+                "WHERE lt.root = t.root AND lm.empty = 0 AND lm.deleted = 0 " +
+                "ORDER BY lm.date DESC, lm.id DESC LIMIT 1) " +
+                "FROM threads t JOIN messages m ON (m.id = t.message_id) " +
+                "WHERE " + condition + " AND m.empty = 0 AND m.deleted = 0 " +
+                "GROUP BY t.root";
+    }
+}
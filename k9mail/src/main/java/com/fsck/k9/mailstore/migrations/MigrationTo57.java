@@ -0,0 +1,17 @@
+package com.fsck.k9.mailstore.migrations;
+
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.fsck.k9.mailstore.ThreadAggregates;
+
+
+class MigrationTo57 {
+    public static void createThreadAggregatesTable(SQLiteDatabase db) {
+        // Threading looks up messages by Message-ID within a folder
+        db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_message_id ON messages (folder_id, message_id)");
+
+        ThreadAggregates.createTable(db);
+        ThreadAggregates.rebuild(db);
+    }
+}
@@ -0,0 +1,16 @@
+package com.fsck.k9.mailstore.migrations;
+
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.fsck.k9.mailstore.AttachmentBlobs;
+
+
+class MigrationTo58 {
+    public static void addContentHashColumn(SQLiteDatabase db) {
+        // Existing files keep their old name. The content hash is only set for message parts written from now on.
+        db.execSQL("ALTER TABLE message_parts ADD content_hash TEXT");
+
+        AttachmentBlobs.createTable(db);
+    }
+}
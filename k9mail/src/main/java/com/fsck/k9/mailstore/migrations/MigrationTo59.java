@@ -0,0 +1,12 @@
+package com.fsck.k9.mailstore.migrations;
+
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+class MigrationTo59 {
+    public static void addDataCodecColumn(SQLiteDatabase db) {
+        // Existing message parts stay uncompressed. Only message parts written from now on are compressed.
+        db.execSQL("ALTER TABLE message_parts ADD data_codec INTEGER DEFAULT 0");
+    }
+}
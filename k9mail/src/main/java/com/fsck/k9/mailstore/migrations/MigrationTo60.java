@@ -0,0 +1,14 @@
+package com.fsck.k9.mailstore.migrations;
+
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.fsck.k9.mailstore.FolderCounters;
+
+
+class MigrationTo60 {
+    public static void createFolderCountersTable(SQLiteDatabase db) {
+        FolderCounters.createTable(db);
+        FolderCounters.rebuild(db);
+    }
+}
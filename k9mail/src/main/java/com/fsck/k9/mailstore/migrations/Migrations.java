@@ -64,6 +64,16 @@ public class Migrations {
                 MigrationTo54.addPreviewTypeColumn(db);
             case 54:
                 MigrationTo55.createFtsSearchTable(db, migrationsHelper);
+            case 55:
+                MigrationTo56.addHighestModSeqColumnToFoldersTable(db);
+            case 56:
+                MigrationTo57.createThreadAggregatesTable(db);
+            case 57:
+                MigrationTo58.addContentHashColumn(db);
+            case 58:
+                MigrationTo59.addDataCodecColumn(db);
+            case 59:
+                MigrationTo60.createFolderCountersTable(db);
         }
     }
 }
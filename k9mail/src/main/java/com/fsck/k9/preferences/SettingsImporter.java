@@ -195,7 +195,7 @@ public class SettingsImporter {
                     } else {
                         Log.w(K9.LOG_TAG, "Was asked to import global settings but none found.");
                     }
-                    if (editor.commit()) {
+                    if (editor.commitAndWait()) {
                         if (K9.DEBUG) {
                             Log.v(K9.LOG_TAG, "Committed global settings to the preference " +
                                     "storage.");
@@ -223,7 +223,7 @@ public class SettingsImporter {
                                 AccountDescriptionPair importResult = importAccount(context,
                                         editor, imported.contentVersion, account, overwrite);
 
-                                if (editor.commit()) {
+                                if (editor.commitAndWait()) {
                                     if (K9.DEBUG) {
                                         Log.v(K9.LOG_TAG, "Committed settings for account \"" +
                                                 importResult.imported.name +
@@ -242,7 +242,7 @@ public class SettingsImporter {
 
                                         putString(editor, "accountUuids", newAccountUuids);
 
-                                        if (!editor.commit()) {
+                                        if (!editor.commitAndWait()) {
                                             throw new SettingsImportExportException("Failed to set account UUID list");
                                         }
                                     }
@@ -283,7 +283,7 @@ public class SettingsImporter {
                         putString(editor, "defaultAccountUuid", accountUuids.get(0));
                     }
 
-                    if (!editor.commit()) {
+                    if (!editor.commitAndWait()) {
                         throw new SettingsImportExportException("Failed to set default account");
                     }
                 } else {
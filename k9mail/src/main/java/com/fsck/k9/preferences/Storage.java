@@ -12,27 +12,64 @@ import com.fsck.k9.helper.UrlEncodingHelper;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.filter.Base64;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key/value store for all settings.
+ * <p>
+ * The {@code preferences_storage} database is the authoritative copy. A {@link StorageSnapshot} of it is kept next to
+ * it, so a cold start only has to map that file; values are decoded when they're first read. All values are only
+ * loaded into memory when they are edited or enumerated.
+ * </p><p>
+ * Changes are applied to the in-memory values right away and written to the database in the background. Commits
+ * that arrive while a write is in progress are combined into a single transaction. Changes that couldn't be written
+ * are retried together with the next write.
+ * </p>
+ */
 public class Storage {
     private static ConcurrentMap<Context, Storage> storages =
         new ConcurrentHashMap<Context, Storage>();
 
-    private volatile ConcurrentMap<String, String> storage = new ConcurrentHashMap<String, String>();
+    /**
+     * All values. {@code null} until they are needed; until then values are read from {@link #snapshot}.
+     */
+    private volatile ConcurrentMap<String, String> storage;
+    private volatile StorageSnapshot snapshot;
 
     private int DB_VERSION = 2;
     private String DB_NAME = "preferences_storage";
+    private String SNAPSHOT_FILE_NAME = "preferences_storage.snapshot";
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    private final ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final long retryDelayMillis;
+
+    /**
+     * Changes that haven't been written to the database yet. A {@code null} value means the key was removed.
+     */
+    private Map<String, String> pendingChanges = new HashMap<String, String>();
 
-    private ThreadLocal<ConcurrentMap<String, String>> workingStorage
-    = new ThreadLocal<ConcurrentMap<String, String>>();
-    private ThreadLocal<SQLiteDatabase> workingDB =
-        new ThreadLocal<SQLiteDatabase>();
-    private ThreadLocal<List<String>> workingChangedKeys = new ThreadLocal<List<String>>();
+    /**
+     * The write that will store {@link #pendingChanges}, or {@code null} if none has been scheduled.
+     */
+    private Future<Boolean> pendingWrite;
+
+    /**
+     * The values as stored in the database. Only accessed by {@link #writeExecutor}.
+     */
+    private Map<String, String> persistedValues;
 
 
     private Context context = null;
@@ -165,9 +202,40 @@ public class Storage {
         }
     }
 
+    private Storage(Context context) {
+        this(context, RETRY_DELAY_MILLIS);
+    }
+
+    Storage(Context context, long retryDelayMillis) {
+        this.context = context;
+        this.retryDelayMillis = retryDelayMillis;
+        if (!loadSnapshot()) {
+            loadValues();
+        }
+    }
+
+    private boolean loadSnapshot() {
+        long startTime = System.currentTimeMillis();
+        try {
+            snapshot = StorageSnapshot.open(getSnapshotFile());
+        } catch (IOException e) {
+            Log.w(K9.LOG_TAG, "Couldn't open preferences snapshot", e);
+        }
+
+        if (snapshot == null) {
+            return false;
+        }
+
+        long endTime = System.currentTimeMillis();
+        Log.i(K9.LOG_TAG, "Preferences snapshot with " + snapshot.size() + " values opened in " +
+                (endTime - startTime) + "ms");
+        return true;
+    }
+
     private void loadValues() {
         long startTime = System.currentTimeMillis();
         Log.i(K9.LOG_TAG, "Loading preferences from DB into Storage");
+        ConcurrentMap<String, String> values = new ConcurrentHashMap<String, String>();
         Cursor cursor = null;
         SQLiteDatabase mDb = null;
         try {
@@ -175,12 +243,7 @@ public class Storage {
 
             cursor = mDb.rawQuery("SELECT primkey, value FROM preferences_storage", null);
             while (cursor.moveToNext()) {
-                String key = cursor.getString(0);
-                String value = cursor.getString(1);
-                if (K9.DEBUG) {
-                    Log.d(K9.LOG_TAG, "Loading key '" + key + "', value = '" + value + "'");
-                }
-                storage.put(key, value);
+                values.put(cursor.getString(0), cursor.getString(1));
             }
         } finally {
             Utility.closeQuietly(cursor);
@@ -190,76 +253,173 @@ public class Storage {
             long endTime = System.currentTimeMillis();
             Log.i(K9.LOG_TAG, "Preferences load took " + (endTime - startTime) + "ms");
         }
-    }
 
-    private Storage(Context context) {
-        this.context = context;
-        loadValues();
+        storage = values;
+
+        // Create the snapshot used by the next start
+        final Map<String, String> loadedValues = new HashMap<String, String>(values);
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                persistedValues = loadedValues;
+                writeSnapshot();
+            }
+        });
     }
 
-    private void keyChange(String key) {
-        List<String> changedKeys = workingChangedKeys.get();
-        if (!changedKeys.contains(key)) {
-            changedKeys.add(key);
+    /**
+     * Makes sure all values are loaded into memory, e.g. before they are changed.
+     */
+    private synchronized ConcurrentMap<String, String> loadAllValues() {
+        if (storage == null) {
+            storage = new ConcurrentHashMap<String, String>(snapshot.readAll());
         }
+        return storage;
     }
 
-    void put(Map<String, String> insertables) {
-        String sql = "INSERT INTO preferences_storage (primkey, value) VALUES (?, ?)";
-        SQLiteStatement stmt = workingDB.get().compileStatement(sql);
-
-        for (Map.Entry<String, String> entry : insertables.entrySet()) {
-            String key = entry.getKey();
-            String value = entry.getValue();
-            stmt.bindString(1, key);
-            stmt.bindString(2, value);
-            stmt.execute();
-            stmt.clearBindings();
-            liveUpdate(key, value);
-        }
-        stmt.close();
+    private String getValue(String key) {
+        ConcurrentMap<String, String> values = storage;
+        return (values != null) ? values.get(key) : snapshot.get(key);
     }
 
-    private void liveUpdate(String key, String value) {
-        workingStorage.get().put(key, value);
+    /**
+     * Applies changes to the in-memory values right away and schedules writing them to the database.
+     *
+     * @return The write that will store the changes. Its result is {@code false} if the changes couldn't be written;
+     *         they are retried with the next write then.
+     */
+    synchronized Future<Boolean> commit(Collection<String> removals, Map<String, String> insertables) {
+        ConcurrentMap<String, String> newStorage = new ConcurrentHashMap<String, String>(loadAllValues());
+        for (String key : removals) {
+            newStorage.remove(key);
+            pendingChanges.put(key, null);
+        }
+        newStorage.putAll(insertables);
+        pendingChanges.putAll(insertables);
+        storage = newStorage;
+
+        if (pendingWrite == null) {
+            scheduleWrite(0);
+        }
 
-        keyChange(key);
+        return pendingWrite;
     }
 
-    void remove(String key) {
-        workingDB.get().delete("preferences_storage", "primkey = ?", new String[] { key });
-        workingStorage.get().remove(key);
-
-        keyChange(key);
+    private void scheduleWrite(long delayMillis) {
+        // Called while holding the lock, so the write can't take pendingChanges before pendingWrite has been set
+        pendingWrite = writeExecutor.schedule(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return writePendingChanges();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
     }
 
-    void doInTransaction(Runnable dbWork) {
-        ConcurrentMap<String, String> newStorage = new ConcurrentHashMap<String, String>();
-        newStorage.putAll(storage);
-        workingStorage.set(newStorage);
+    private boolean writePendingChanges() {
+        Map<String, String> changes;
+        synchronized (this) {
+            changes = pendingChanges;
+            pendingChanges = new HashMap<String, String>();
+            pendingWrite = null;
+        }
 
-        SQLiteDatabase mDb = openDB();
-        workingDB.set(mDb);
+        long startTime = System.currentTimeMillis();
+        try {
+            if (persistedValues == null) {
+                persistedValues = snapshot.readAll();
+            }
+
+            // The snapshot must never be newer or older than the database. Without it the next start reads the
+            // database.
+            deleteSnapshot();
+
+            writeChanges(changes);
+        } catch (Exception e) {
+            Log.e(K9.LOG_TAG, "Failed to save preferences, retrying in " + retryDelayMillis + "ms", e);
+            retryChanges(changes);
+            return false;
+        }
+
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                persistedValues.remove(change.getKey());
+            } else {
+                persistedValues.put(change.getKey(), change.getValue());
+            }
+        }
+        writeSnapshot();
+
+        long endTime = System.currentTimeMillis();
+        Log.i(K9.LOG_TAG, "Writing " + changes.size() + " preference changes took " + (endTime - startTime) + "ms");
+        return true;
+    }
+
+    private synchronized void retryChanges(Map<String, String> failedChanges) {
+        // Changes committed since the failed write was started are newer
+        for (Map.Entry<String, String> change : failedChanges.entrySet()) {
+            if (!pendingChanges.containsKey(change.getKey())) {
+                pendingChanges.put(change.getKey(), change.getValue());
+            }
+        }
 
-        List<String> changedKeys = new ArrayList<String>();
-        workingChangedKeys.set(changedKeys);
+        if (pendingWrite == null) {
+            scheduleWrite(retryDelayMillis);
+        }
+    }
 
-        mDb.beginTransaction();
+    void writeChanges(Map<String, String> changes) {
+        SQLiteDatabase mDb = openDB();
         try {
-            dbWork.run();
-            mDb.setTransactionSuccessful();
-            storage = newStorage;
+            mDb.beginTransaction();
+            try {
+                SQLiteStatement stmt = mDb.compileStatement(
+                        "INSERT INTO preferences_storage (primkey, value) VALUES (?, ?)");
+                for (Map.Entry<String, String> change : changes.entrySet()) {
+                    String key = change.getKey();
+                    String value = change.getValue();
+                    if (value == null) {
+                        mDb.delete("preferences_storage", "primkey = ?", new String[] { key });
+                    } else {
+                        stmt.bindString(1, key);
+                        stmt.bindString(2, value);
+                        stmt.execute();
+                        stmt.clearBindings();
+                    }
+                }
+                stmt.close();
+
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
         } finally {
-            workingDB.remove();
-            workingStorage.remove();
-            workingChangedKeys.remove();
-            mDb.endTransaction();
             mDb.close();
         }
     }
 
+    private void writeSnapshot() {
+        try {
+            StorageSnapshot.write(getSnapshotFile(), persistedValues);
+        } catch (IOException e) {
+            Log.w(K9.LOG_TAG, "Couldn't write preferences snapshot", e);
+            deleteSnapshot();
+        }
+    }
+
+    private void deleteSnapshot() {
+        File snapshotFile = getSnapshotFile();
+        if (snapshotFile.exists() && !snapshotFile.delete()) {
+            throw new IllegalStateException("Couldn't delete " + snapshotFile.getPath());
+        }
+    }
+
+    private File getSnapshotFile() {
+        return new File(context.getFilesDir(), SNAPSHOT_FILE_NAME);
+    }
+
     public boolean isEmpty() {
-        return storage.isEmpty();
+        ConcurrentMap<String, String> values = storage;
+        return (values != null) ? values.isEmpty() : snapshot.size() == 0;
     }
 
     public boolean contains(String key) {
@@ -267,7 +427,7 @@ public class Storage {
         // actually containsValue. But looking at the usage of this method,
         // it's clear that containsKey is what's intended. Investigate if this
         // was a bug previously. Looks like it was only used once, when upgrading
-        return storage.containsKey(key);
+        return getValue(key) != null;
     }
 
     public StorageEditor edit() {
@@ -275,11 +435,11 @@ public class Storage {
     }
 
     public Map<String, String> getAll() {
-        return storage;
+        return loadAllValues();
     }
 
     public boolean getBoolean(String key, boolean defValue) {
-        String val = storage.get(key);
+        String val = getValue(key);
         if (val == null) {
             return defValue;
         }
@@ -287,7 +447,7 @@ public class Storage {
     }
 
     public int getInt(String key, int defValue) {
-        String val = storage.get(key);
+        String val = getValue(key);
         if (val == null) {
             return defValue;
         }
@@ -300,7 +460,7 @@ public class Storage {
     }
 
     public long getLong(String key, long defValue) {
-        String val = storage.get(key);
+        String val = getValue(key);
         if (val == null) {
             return defValue;
         }
@@ -313,7 +473,7 @@ public class Storage {
     }
 
     public String getString(String key, String defValue) {
-        String val = storage.get(key);
+        String val = getValue(key);
         if (val == null) {
             return defValue;
         }
@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Future;
 
 
 public class StorageEditor {
@@ -41,6 +42,9 @@ public class StorageEditor {
         }
     }
 
+    /**
+     * Applies the changes. They are written to the database in the background.
+     */
     public boolean commit() {
         try {
             commitChanges();
@@ -51,29 +55,38 @@ public class StorageEditor {
         }
     }
 
-    private void commitChanges() {
+    /**
+     * Applies the changes and waits until they have been written to the database.
+     *
+     * @return {@code true} if the changes have been written. Changes that couldn't be written are still applied and
+     *         will be retried.
+     */
+    public boolean commitAndWait() {
+        try {
+            return commitChanges().get();
+        } catch (Exception e) {
+            Log.e(K9.LOG_TAG, "Failed to save preferences", e);
+            return false;
+        }
+    }
+
+    private Future<Boolean> commitChanges() {
         long startTime = System.currentTimeMillis();
         Log.i(K9.LOG_TAG, "Committing preference changes");
-        Runnable committer = new Runnable() {
-            public void run() {
-                for (String removeKey : removals) {
-                    storage.remove(removeKey);
-                }
-                Map<String, String> insertables = new HashMap<String, String>();
-                for (Entry<String, String> entry : changes.entrySet()) {
-                    String key = entry.getKey();
-                    String newValue = entry.getValue();
-                    String oldValue = snapshot.get(key);
-                    if (removals.contains(key) || !newValue.equals(oldValue)) {
-                        insertables.put(key, newValue);
-                    }
-                }
-                storage.put(insertables);
+        Map<String, String> insertables = new HashMap<String, String>();
+        for (Entry<String, String> entry : changes.entrySet()) {
+            String key = entry.getKey();
+            String newValue = entry.getValue();
+            String oldValue = snapshot.get(key);
+            if (removals.contains(key) || !newValue.equals(oldValue)) {
+                insertables.put(key, newValue);
             }
-        };
-        storage.doInTransaction(committer);
+        }
+        // Only updates the in-memory values. The database is written in the background.
+        Future<Boolean> write = storage.commit(removals, insertables);
         long endTime = System.currentTimeMillis();
         Log.i(K9.LOG_TAG, "Preferences commit took " + (endTime - startTime) + "ms");
+        return write;
 
     }
 
@@ -0,0 +1,253 @@
+package com.fsck.k9.preferences;
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Read-only copy of the {@link Storage} values in a compact binary file.
+ * <p>
+ * The file is memory-mapped and values are only decoded when they are looked up. Opening it walks the entry table
+ * once to check that all entries lie within the file, so a corrupt snapshot is rejected up front; that reads three
+ * integers per entry but doesn't decode or copy any keys or values. Entries are sorted by the UTF-8 bytes of their
+ * keys and found by binary search.
+ * </p><p>
+ * File format (all integers are big-endian):
+ * <pre>
+ * int     magic
+ * int     format version
+ * int     file length
+ * int     entry count
+ * int[]   offset of each entry, in key order
+ * entries int key length, key bytes (UTF-8), int value length, value bytes (UTF-8)
+ * </pre>
+ * Files are written to a temporary file first and then renamed, so a crash never leaves a partially written snapshot
+ * behind.
+ * </p>
+ */
+class StorageSnapshot {
+    private static final int MAGIC = 0x4b395053;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Comparator<byte[]> KEY_COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] lhs, byte[] rhs) {
+            int length = Math.min(lhs.length, rhs.length);
+            for (int i = 0; i < length; i++) {
+                int difference = (lhs[i] & 0xff) - (rhs[i] & 0xff);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return lhs.length - rhs.length;
+        }
+    };
+
+
+    private final ByteBuffer buffer;
+    private final int count;
+
+
+    private StorageSnapshot(ByteBuffer buffer, int count) {
+        this.buffer = buffer;
+        this.count = count;
+    }
+
+    /**
+     * @return The snapshot stored in {@code file}, or {@code null} if there is none or it can't be used.
+     */
+    static StorageSnapshot open(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        ByteBuffer buffer;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            // The mapping stays valid after the channel has been closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        return fromBuffer(buffer);
+    }
+
+    static StorageSnapshot fromBuffer(ByteBuffer buffer) {
+        try {
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION ||
+                    buffer.getInt(8) != buffer.limit()) {
+                return null;
+            }
+
+            int count = buffer.getInt(12);
+            if (count < 0 || HEADER_SIZE + 4L * count > buffer.limit()) {
+                return null;
+            }
+
+            // Only check that all entries are within bounds. Decoding them is left to the lookups.
+            int end = HEADER_SIZE + 4 * count;
+            for (int i = 0; i < count; i++) {
+                int offset = buffer.getInt(HEADER_SIZE + 4 * i);
+                if (offset != end) {
+                    return null;
+                }
+                int keyLength = buffer.getInt(offset);
+                int valueOffset = offset + 4 + keyLength;
+                int valueLength = buffer.getInt(valueOffset);
+                if (keyLength < 0 || valueLength < 0) {
+                    return null;
+                }
+                end = valueOffset + 4 + valueLength;
+            }
+
+            if (end != buffer.limit()) {
+                return null;
+            }
+
+            return new StorageSnapshot(buffer, count);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot of {@code values} to {@code file}, replacing an existing snapshot.
+     */
+    static void write(File file, Map<String, String> values) throws IOException {
+        List<byte[][]> entries = new ArrayList<>(values.size());
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            entries.add(new byte[][] { value.getKey().getBytes(UTF_8), value.getValue().getBytes(UTF_8) });
+        }
+        Collections.sort(entries, new Comparator<byte[][]>() {
+            @Override
+            public int compare(byte[][] lhs, byte[][] rhs) {
+                return KEY_COMPARATOR.compare(lhs[0], rhs[0]);
+            }
+        });
+
+        int[] offsets = new int[entries.size()];
+        int length = HEADER_SIZE + 4 * entries.size();
+        for (int i = 0; i < offsets.length; i++) {
+            byte[][] entry = entries.get(i);
+            offsets[i] = length;
+            length += 8 + entry[0].length + entry[1].length;
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(length);
+            out.writeInt(entries.size());
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            for (byte[][] entry : entries) {
+                out.writeInt(entry[0].length);
+                out.write(entry[0]);
+                out.writeInt(entry[1].length);
+                out.write(entry[1]);
+            }
+            out.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Couldn't rename " + tempFile.getPath());
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return The value stored for {@code key}, or {@code null} if there is none.
+     */
+    String get(String key) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int offset = getEntryOffset(middle);
+            int comparison = compareKey(offset, keyBytes);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return readString(offset + 4 + buffer.getInt(offset));
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Decodes all values.
+     */
+    Map<String, String> readAll() {
+        Map<String, String> values = new HashMap<>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            int offset = getEntryOffset(i);
+            String key = readString(offset);
+            String value = readString(offset + 4 + buffer.getInt(offset));
+            values.put(key, value);
+        }
+
+        return values;
+    }
+
+    private int getEntryOffset(int index) {
+        return buffer.getInt(HEADER_SIZE + 4 * index);
+    }
+
+    private int compareKey(int offset, byte[] key) {
+        int keyLength = buffer.getInt(offset);
+        int start = offset + 4;
+        int length = Math.min(keyLength, key.length);
+        for (int i = 0; i < length; i++) {
+            int difference = (buffer.get(start + i) & 0xff) - (key[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return keyLength - key.length;
+    }
+
+    private String readString(int offset) {
+        int length = buffer.getInt(offset);
+        byte[] bytes = new byte[length];
+        // Lookups may happen on several threads, so the shared buffer's position must not be changed
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset + 4);
+        duplicate.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -1,9 +1,15 @@
 package com.fsck.k9.provider;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.fsck.k9.Account;
 import com.fsck.k9.BuildConfig;
@@ -11,11 +17,13 @@ import com.fsck.k9.Preferences;
 import com.fsck.k9.cache.EmailProviderCacheCursor;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mailstore.FolderCounters;
 import com.fsck.k9.mailstore.LockableDatabase;
 import com.fsck.k9.mailstore.LockableDatabase.DbCallback;
 import com.fsck.k9.mailstore.LockableDatabase.WrappedException;
 import com.fsck.k9.mailstore.UnavailableStorageException;
 import com.fsck.k9.mailstore.LocalStore;
+import com.fsck.k9.mailstore.ThreadAggregates;
 import com.fsck.k9.search.SqlQueryBuilder;
 
 import android.content.ContentProvider;
@@ -48,6 +56,12 @@ public class EmailProvider extends ContentProvider {
 
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
+    /**
+     * Query parameter that limits the number of rows returned for the {@code messages} and
+     * {@code messages/threaded} URIs.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
 
     /*
      * Constants that are used for the URI matching.
@@ -109,6 +123,25 @@ public class EmailProvider extends ContentProvider {
 
     private static final String THREADS_TABLE = "threads";
 
+    /**
+     * Words that may appear in a selection for it to be evaluated against
+     * {@link ThreadAggregates#TABLE_NAME} or {@link FolderCounters#TABLE_NAME}.
+     *
+     * @see #isFolderOnlySelection(String)
+     */
+    private static final Set<String> FOLDER_ONLY_SELECTION_TOKENS = new HashSet<String>(Arrays.asList(
+            MessageColumns.FOLDER_ID,
+            FolderColumns.NAME,
+            FolderColumns.INTEGRATE,
+            FolderColumns.DISPLAY_CLASS,
+            "and", "or", "not", "like", "in", "is", "null"
+    ));
+
+    private static final Pattern STRING_LITERAL_PATTERN = Pattern.compile("'[^']*'");
+    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_.]*");
+    private static final Pattern FOLDER_ID_PATTERN =
+            Pattern.compile("(?<=^|[^\\.])\\b" + MessageColumns.FOLDER_ID + "\\b");
+
     static {
         UriMatcher matcher = sUriMatcher;
 
@@ -235,12 +268,14 @@ public class EmailProvider extends ContentProvider {
 
                 String[] dbProjection = dbColumnNames.toArray(new String[0]);
 
+                String limit = getLimit(uri);
+
                 if (match == MESSAGES) {
                     cursor = getMessages(accountUuid, dbProjection, selection, selectionArgs,
-                            sortOrder);
+                            sortOrder, limit);
                 } else if (match == MESSAGES_THREADED) {
                     cursor = getThreadedMessages(accountUuid, dbProjection, selection,
-                            selectionArgs, sortOrder);
+                            selectionArgs, sortOrder, limit);
                 } else if (match == MESSAGES_THREAD) {
                     String threadId = segments.get(3);
                     cursor = getThread(accountUuid, dbProjection, threadId, sortOrder);
@@ -275,6 +310,32 @@ public class EmailProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Returns a URI that only returns {@code limit} rows of the message list at {@code uri}.
+     */
+    public static Uri getPageUri(Uri uri, int limit) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, Integer.toString(limit))
+                .build();
+    }
+
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+
+        return Long.toString(parseNumber(QUERY_PARAMETER_LIMIT, limit));
+    }
+
+    private static long parseNumber(String parameterName, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + parameterName + ": " + value, e);
+        }
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         throw new RuntimeException("not implemented yet");
@@ -291,7 +352,8 @@ public class EmailProvider extends ContentProvider {
     }
 
     protected Cursor getMessages(String accountUuid, final String[] projection,
-            final String selection, final String[] selectionArgs, final String sortOrder) {
+            final String selection, final String[] selectionArgs, final String sortOrder,
+            final String limit) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
@@ -343,11 +405,15 @@ public class EmailProvider extends ContentProvider {
                         query.append(" ORDER BY ");
                         query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
                                 "m.", sortOrder));
+                        if (limit != null) {
+                            query.append(" LIMIT ");
+                            query.append(limit);
+                        }
 
                         cursor = db.rawQuery(query.toString(), selectionArgs);
                     } else {
                         cursor = db.query(MESSAGES_TABLE, projection, where, selectionArgs, null,
-                                null, sortOrder);
+                                null, sortOrder, limit);
                     }
 
                     return cursor;
@@ -361,7 +427,8 @@ public class EmailProvider extends ContentProvider {
     }
 
     protected Cursor getThreadedMessages(String accountUuid, final String[] projection,
-            final String selection, final String[] selectionArgs, final String sortOrder) {
+            final String selection, final String[] selectionArgs, final String sortOrder,
+            final String limit) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
@@ -397,35 +464,23 @@ public class EmailProvider extends ContentProvider {
                         }
                     }
 
-                    query.append(" FROM (");
-
-                    createThreadedSubQuery(projection, selection, selectionArgs, query);
-
-                    query.append(") a ");
-
-                    query.append("JOIN " + THREADS_TABLE + " t " +
-                            "ON (t." + ThreadColumns.ROOT + " = a.thread_root) " +
-                            "JOIN " + MESSAGES_TABLE + " m " +
-                            "ON (m." + MessageColumns.ID + " = t." + ThreadColumns.MESSAGE_ID + " AND " +
-                            "m." + InternalMessageColumns.EMPTY + "=0 AND " +
-                            "m." + InternalMessageColumns.DELETED + "=0 AND " +
-                            "m." + MessageColumns.DATE + " = a." + MessageColumns.DATE +
-                            ") ");
-
-                    if (Utility.arrayContainsAny(projection, (Object[]) FOLDERS_COLUMNS)) {
-                        query.append("JOIN " + FOLDERS_TABLE + " f " +
-                                "ON (m." + MessageColumns.FOLDER_ID + " = f." + FolderColumns.ID +
-                                ") ");
+                    if (isFolderOnlySelection(selection)) {
+                        appendThreadAggregatesQuery(selection, query);
+                    } else {
+                        appendGroupedThreadsQuery(projection, selection, selectionArgs, query);
                     }
 
-                    query.append(" GROUP BY " + ThreadColumns.ROOT);
-
                     if (!TextUtils.isEmpty(sortOrder)) {
                         query.append(" ORDER BY ");
                         query.append(SqlQueryBuilder.addPrefixToSelection(
                                 FIXUP_AGGREGATED_MESSAGES_COLUMNS, "a.", sortOrder));
                     }
 
+                    if (limit != null) {
+                        query.append(" LIMIT ");
+                        query.append(limit);
+                    }
+
                     return db.rawQuery(query.toString(), selectionArgs);
                 }
             });
@@ -436,6 +491,97 @@ public class EmailProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Checks whether {@code selection} only refers to properties of the folder a message is in.
+     *
+     * <p>
+     * Such a selection matches either all messages of a folder or none of them. All messages of
+     * a thread are in the same folder, so the precomputed values in the {@code thread_aggregates}
+     * table can be used instead of aggregating the matching messages. Likewise the counters in
+     * the {@code folder_counters} table can be used instead of counting them.
+     * </p>
+     */
+    private static boolean isFolderOnlySelection(String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            return true;
+        }
+
+        String selectionWithoutLiterals = STRING_LITERAL_PATTERN.matcher(selection).replaceAll("");
+        Matcher matcher = IDENTIFIER_PATTERN.matcher(selectionWithoutLiterals);
+        while (matcher.find()) {
+            String identifier = matcher.group().toLowerCase(Locale.US);
+            if (!FOLDER_ONLY_SELECTION_TOKENS.contains(identifier)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads one precomputed row per thread from the {@code thread_aggregates} table and joins it
+     * with the most recent message of the thread.
+     */
+    private void appendThreadAggregatesQuery(String selection, StringBuilder query) {
+
+        query.append(" FROM (" +
+                "SELECT root AS thread_root, " +
+                "folder_id AS thread_folder_id, " +
+                "message_count AS " + SpecialColumns.THREAD_COUNT + ", " +
+                MessageColumns.DATE + ", " +
+                MessageColumns.INTERNAL_DATE + ", " +
+                MessageColumns.ATTACHMENT_COUNT + ", " +
+                "(unread_count = 0) AS " + MessageColumns.READ + ", " +
+                "(flagged_count > 0) AS " + MessageColumns.FLAGGED + ", " +
+                MessageColumns.ANSWERED + ", " +
+                MessageColumns.FORWARDED + ", " +
+                "latest_message_id " +
+                "FROM " + ThreadAggregates.TABLE_NAME + ") a " +
+                "JOIN " + MESSAGES_TABLE + " m " +
+                "ON (m." + MessageColumns.ID + " = a.latest_message_id) " +
+                "JOIN " + THREADS_TABLE + " t " +
+                "ON (t." + ThreadColumns.MESSAGE_ID + " = m." + MessageColumns.ID + ") " +
+                "JOIN " + FOLDERS_TABLE + " f " +
+                "ON (m." + MessageColumns.FOLDER_ID + " = f." + FolderColumns.ID + ")");
+
+        // Filter on the folder ID of the thread so the index of the thread_aggregates table can be
+        // used.
+        query.append(" WHERE (");
+        if (TextUtils.isEmpty(selection)) {
+            query.append("1");
+        } else {
+            query.append(FOLDER_ID_PATTERN.matcher(selection).replaceAll("a.thread_folder_id"));
+        }
+        query.append(")");
+    }
+
+    private void appendGroupedThreadsQuery(String[] projection, String selection,
+            String[] selectionArgs, StringBuilder query) {
+
+        query.append(" FROM (");
+
+        createThreadedSubQuery(projection, selection, selectionArgs, query);
+
+        query.append(") a ");
+
+        query.append("JOIN " + THREADS_TABLE + " t " +
+                "ON (t." + ThreadColumns.ROOT + " = a.thread_root) " +
+                "JOIN " + MESSAGES_TABLE + " m " +
+                "ON (m." + MessageColumns.ID + " = t." + ThreadColumns.MESSAGE_ID + " AND " +
+                "m." + InternalMessageColumns.EMPTY + "=0 AND " +
+                "m." + InternalMessageColumns.DELETED + "=0 AND " +
+                "m." + MessageColumns.DATE + " = a." + MessageColumns.DATE +
+                ") ");
+
+        if (Utility.arrayContainsAny(projection, (Object[]) FOLDERS_COLUMNS)) {
+            query.append("JOIN " + FOLDERS_TABLE + " f " +
+                    "ON (m." + MessageColumns.FOLDER_ID + " = f." + FolderColumns.ID +
+                    ") ");
+        }
+
+        query.append(" GROUP BY " + ThreadColumns.ROOT);
+    }
+
     private void createThreadedSubQuery(String[] projection, String selection,
             String[] selectionArgs, StringBuilder query) {
 
@@ -561,6 +707,70 @@ public class EmailProvider extends ContentProvider {
         // Use default projection if none was given
         String[] sourceProjection = (columns == null) ? STATS_DEFAULT_PROJECTION : columns;
 
+        final String sql;
+        if (isFolderOnlySelection(selection)) {
+            sql = buildFolderCountersStatsQuery(sourceProjection, selection);
+        } else {
+            sql = buildMessagesStatsQuery(sourceProjection, selection);
+        }
+
+        // Query the database and return the result cursor
+        try {
+            return database.execute(false, new DbCallback<Cursor>() {
+                @Override
+                public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
+                        UnavailableStorageException {
+
+                    return db.rawQuery(sql, selectionArgs);
+                }
+            });
+        }  catch (UnavailableStorageException e) {
+            throw new RuntimeException("Storage not available", e);
+        } catch (MessagingException e) {
+            throw new RuntimeException("messaging exception", e);
+        }
+
+    }
+
+    /**
+     * Sums up the counters maintained by the triggers in {@link FolderCounters} for all folders
+     * matching {@code selection}.
+     */
+    private static String buildFolderCountersStatsQuery(String[] projection, String selection) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT ");
+
+        boolean first = true;
+        for (String columnName : projection) {
+            if (!first) {
+                sql.append(',');
+            } else {
+                first = false;
+            }
+
+            // The folders table has columns with the same names, so qualify them
+            if (StatsColumns.UNREAD_COUNT.equals(columnName)) {
+                sql.append("SUM(c.unread_count) AS " + StatsColumns.UNREAD_COUNT);
+            } else if (StatsColumns.FLAGGED_COUNT.equals(columnName)) {
+                sql.append("SUM(c.flagged_count) AS " + StatsColumns.FLAGGED_COUNT);
+            } else {
+                throw new IllegalArgumentException("Column name not allowed: " + columnName);
+            }
+        }
+
+        sql.append(" FROM " + FolderCounters.TABLE_NAME + " c JOIN " + FOLDERS_TABLE + " ON (" +
+                FOLDERS_TABLE + "." + FolderColumns.ID + " = c." + MessageColumns.FOLDER_ID + ")");
+
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" WHERE (");
+            sql.append(selection);
+            sql.append(")");
+        }
+
+        return sql.toString();
+    }
+
+    private static String buildMessagesStatsQuery(String[] projection, String selection) {
         // Create SQL query string
         final StringBuilder sql = new StringBuilder();
         sql.append("SELECT ");
@@ -568,7 +778,7 @@ public class EmailProvider extends ContentProvider {
         // Append projection for the database query
         // e.g. "SUM(read=0) AS unread_count, SUM(flagged) AS flagged_count"
         boolean first = true;
-        for (String columnName : sourceProjection) {
+        for (String columnName : projection) {
             if (!first) {
                 sql.append(',');
             } else {
@@ -599,22 +809,7 @@ public class EmailProvider extends ContentProvider {
             sql.append(")");
         }
 
-        // Query the database and return the result cursor
-        try {
-            return database.execute(false, new DbCallback<Cursor>() {
-                @Override
-                public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
-                        UnavailableStorageException {
-
-                    return db.rawQuery(sql.toString(), selectionArgs);
-                }
-            });
-        }  catch (UnavailableStorageException e) {
-            throw new RuntimeException("Storage not available", e);
-        } catch (MessagingException e) {
-            throw new RuntimeException("messaging exception", e);
-        }
-
+        return sql.toString();
     }
 
     private Account getAccount(String accountUuid) {
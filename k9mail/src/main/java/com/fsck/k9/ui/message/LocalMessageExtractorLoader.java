@@ -8,6 +8,7 @@ import android.widget.Toast;
 
 import com.fsck.k9.K9;
 import com.fsck.k9.R;
+import com.fsck.k9.cache.RenderedMessageCache;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mailstore.MessageViewInfoExtractor;
 import com.fsck.k9.mailstore.MessageViewInfo;
@@ -47,7 +48,8 @@ public class LocalMessageExtractorLoader extends AsyncTaskLoader<MessageViewInfo
     @Override
     public MessageViewInfo loadInBackground() {
         try {
-            return MessageViewInfoExtractor.extractMessageForView(getContext(), message, annotations);
+            return MessageViewInfoExtractor.extractMessageForView(getContext(), message, annotations,
+                    RenderedMessageCache.getInstance(getContext()));
         } catch (Exception e) {
             Log.e(K9.LOG_TAG, "Error while decoding message", e);
             return null;
@@ -75,6 +75,7 @@ public class MessageContainerView extends LinearLayout implements OnClickListene
     private SavedState mSavedState;
     private ClipboardManager mClipboardManager;
     private String mText;
+    private String mSanitizedHtml;
     private Map<AttachmentViewInfo, AttachmentView> attachments = new HashMap<AttachmentViewInfo, AttachmentView>();
 
 
@@ -380,7 +381,7 @@ public class MessageContainerView extends LinearLayout implements OnClickListene
 
     public void showPictures() {
         setLoadPictures(true);
-        loadBodyFromText(mText);
+        loadBody();
     }
 
     public void enableAttachmentButtons() {
@@ -428,7 +429,14 @@ public class MessageContainerView extends LinearLayout implements OnClickListene
             mSavedState = null;
         }
 
-        mText = getTextToDisplay(messageViewContainer);
+        String cryptoStatusMessage = getCryptoStatusMessage(messageViewContainer);
+        if (cryptoStatusMessage != null) {
+            mText = cryptoStatusMessage;
+        } else {
+            mText = messageViewContainer.text;
+            mSanitizedHtml = messageViewContainer.sanitizedHtml;
+        }
+
         if (mText != null && lookForImages) {
             if (Utility.hasExternalImages(mText) && !isShowingPictures()) {
                 if (automaticallyLoadPictures) {
@@ -451,20 +459,21 @@ public class MessageContainerView extends LinearLayout implements OnClickListene
             mSidebar.setVisibility(View.GONE);
         }
 
-        String text;
-        if (mText != null) {
-            text = mText;
-        } else {
-            text = wrapStatusMessage(getContext().getString(R.string.webview_empty_message));
+        if (mText == null) {
+            mText = wrapStatusMessage(getContext().getString(R.string.webview_empty_message));
         }
 
-        loadBodyFromText(text);
+        loadBody();
     }
 
-    private String getTextToDisplay(MessageViewContainer messageViewContainer) {
+    /**
+     * @return The message to display instead of the text of the container, or {@code null} if the text should be
+     *         displayed.
+     */
+    private String getCryptoStatusMessage(MessageViewContainer messageViewContainer) {
         CryptoResultAnnotation cryptoAnnotation = messageViewContainer.cryptoAnnotation;
         if (cryptoAnnotation == null) {
-            return messageViewContainer.text;
+            return null;
         }
 
         CryptoError errorType = cryptoAnnotation.getErrorType();
@@ -478,7 +487,7 @@ public class MessageContainerView extends LinearLayout implements OnClickListene
             }
             case NONE:
             case SIGNED_BUT_INCOMPLETE: {
-                return messageViewContainer.text;
+                return null;
             }
         }
 
@@ -489,6 +498,15 @@ public class MessageContainerView extends LinearLayout implements OnClickListene
         return "<div style=\"text-align:center; color: grey;\">" + status + "</div>";
     }
 
+    private void loadBody() {
+        if (mSanitizedHtml != null) {
+            // Rendered and sanitized when the message was loaded, so there's nothing left to do on the UI thread
+            mMessageContentView.setSanitizedHtml(mSanitizedHtml);
+        } else {
+            loadBodyFromText(mText);
+        }
+    }
+
     private void loadBodyFromText(String emailText) {
         mMessageContentView.setText(emailText);
     }
@@ -519,6 +537,7 @@ public class MessageContainerView extends LinearLayout implements OnClickListene
 
     public void resetView() {
         setLoadPictures(false);
+        mSanitizedHtml = null;
         mAttachments.removeAllViews();
         mHiddenAttachments.removeAllViews();
 
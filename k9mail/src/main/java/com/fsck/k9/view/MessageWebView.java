@@ -114,19 +114,20 @@ public class MessageWebView extends RigidWebView {
      *      The message body to display.  Assumed to be MIME type text/html.
      */
     public void setText(String text) {
-     // Include a meta tag so the WebView will not use a fixed viewport width of 980 px
-        String content = "<html><head><meta name=\"viewport\" content=\"width=device-width\"/>";
-        if (K9.getK9MessageViewTheme() == K9.Theme.DARK)  {
-            content += "<style type=\"text/css\">" +
-                   "* { background: black ! important; color: #F3F3F3 !important }" +
-                   ":link, :link * { color: #CCFF33 !important }" +
-                   ":visited, :visited * { color: #551A8B !important }</style> ";
-        }
-        content += HtmlConverter.cssStylePre();
-        content += "</head><body>" + text + "</body></html>";
-        //TODO: Do this in the background
+        String content = HtmlConverter.wrapMessageContent(text);
         String sanitizedContent = HtmlSanitizer.sanitize(content);
-        loadDataWithBaseURL("about:blank", sanitizedContent, "text/html", "utf-8", null);
+        setSanitizedHtml(sanitizedContent);
+    }
+
+    /**
+     * Load an HTML document into a {@code MessageWebView} as it is.
+     *
+     * @param sanitizedHtml
+     *      A document created by {@link HtmlConverter#wrapMessageContent(String)} and sanitized with
+     *      {@link HtmlSanitizer#sanitize(String)}.
+     */
+    public void setSanitizedHtml(String sanitizedHtml) {
+        loadDataWithBaseURL("about:blank", sanitizedHtml, "text/html", "utf-8", null);
         resumeTimers();
     }
 
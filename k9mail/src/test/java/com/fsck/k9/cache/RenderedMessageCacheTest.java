@@ -0,0 +1,143 @@
+package com.fsck.k9.cache;
+
+
+import java.io.File;
+
+import com.fsck.k9.cache.RenderedMessageCache.RenderedHtml;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = "src/main/AndroidManifest.xml", sdk = 21)
+public class RenderedMessageCacheTest {
+    private static final String KEY = RenderedMessageCache.createKey("uuid", 1, 1, 0);
+    private static final String OTHER_KEY = RenderedMessageCache.createKey("uuid", 1, 2, 0);
+    private static final String OTHER_FOLDER_KEY = RenderedMessageCache.createKey("uuid", 2, 1, 0);
+    private static final String VERSION = "version";
+
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+    private RenderedMessageCache cache;
+
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(temporaryFolder.getRoot(), "rendered");
+        cache = new RenderedMessageCache(directory, 1024 * 1024);
+    }
+
+    @Test
+    public void get_withoutEntry_shouldReturnNull() throws Exception {
+        assertNull(cache.get(KEY, VERSION));
+    }
+
+    @Test
+    public void get_afterPut_shouldReturnEntry() throws Exception {
+        cache.put(KEY, VERSION, new RenderedHtml("<p>text</p>", "<html><p>text</p></html>"));
+
+        RenderedHtml renderedHtml = cache.get(KEY, VERSION);
+
+        assertNotNull(renderedHtml);
+        assertEquals("<p>text</p>", renderedHtml.html);
+        assertEquals("<html><p>text</p></html>", renderedHtml.sanitizedHtml);
+    }
+
+    @Test
+    public void get_withDifferentContentVersion_shouldReturnNull() throws Exception {
+        cache.put(KEY, VERSION, new RenderedHtml("html", "sanitized"));
+
+        assertNull(cache.get(KEY, "other version"));
+    }
+
+    @Test
+    public void put_withExistingEntry_shouldReplaceEntry() throws Exception {
+        cache.put(KEY, VERSION, new RenderedHtml("old", "old"));
+        cache.put(KEY, "new version", new RenderedHtml("new", "new"));
+
+        assertNull(cache.get(KEY, VERSION));
+        assertEquals("new", cache.get(KEY, "new version").html);
+    }
+
+    @Test
+    public void put_beyondMaximumSize_shouldRemoveLeastRecentlyUsedEntry() throws Exception {
+        String html = createString(400);
+        cache = new RenderedMessageCache(directory, 1500);
+        cache.put(KEY, VERSION, new RenderedHtml(html, html));
+        new File(directory, KEY).setLastModified(System.currentTimeMillis() - 10000);
+
+        cache.put(OTHER_KEY, VERSION, new RenderedHtml(html, html));
+
+        assertNull(cache.get(KEY, VERSION));
+        assertNotNull(cache.get(OTHER_KEY, VERSION));
+    }
+
+    @Test
+    public void get_withCorruptFile_shouldReturnNull() throws Exception {
+        directory.mkdirs();
+        new File(directory, KEY).createNewFile();
+
+        assertNull(cache.get(KEY, VERSION));
+    }
+
+    @Test
+    public void removeMessage_shouldRemoveAllContainersOfMessage() throws Exception {
+        String secondContainerKey = RenderedMessageCache.createKey("uuid", 1, 1, 1);
+        cache.put(KEY, VERSION, new RenderedHtml("html", "sanitized"));
+        cache.put(secondContainerKey, VERSION, new RenderedHtml("html", "sanitized"));
+        cache.put(OTHER_KEY, VERSION, new RenderedHtml("html", "sanitized"));
+
+        cache.removeMessage("uuid", 1, 1);
+
+        assertNull(cache.get(KEY, VERSION));
+        assertNull(cache.get(secondContainerKey, VERSION));
+        assertNotNull(cache.get(OTHER_KEY, VERSION));
+    }
+
+    @Test
+    public void removeFolder_shouldOnlyRemoveMessagesInFolder() throws Exception {
+        cache.put(KEY, VERSION, new RenderedHtml("html", "sanitized"));
+        cache.put(OTHER_KEY, VERSION, new RenderedHtml("html", "sanitized"));
+        cache.put(OTHER_FOLDER_KEY, VERSION, new RenderedHtml("html", "sanitized"));
+
+        cache.removeFolder("uuid", 1);
+
+        assertNull(cache.get(KEY, VERSION));
+        assertNull(cache.get(OTHER_KEY, VERSION));
+        assertNotNull(cache.get(OTHER_FOLDER_KEY, VERSION));
+    }
+
+    @Test
+    public void removeAccount_shouldRemoveAllMessagesOfAccount() throws Exception {
+        String otherAccountKey = RenderedMessageCache.createKey("other", 1, 1, 0);
+        cache.put(KEY, VERSION, new RenderedHtml("html", "sanitized"));
+        cache.put(OTHER_FOLDER_KEY, VERSION, new RenderedHtml("html", "sanitized"));
+        cache.put(otherAccountKey, VERSION, new RenderedHtml("html", "sanitized"));
+
+        cache.removeAccount("uuid");
+
+        assertNull(cache.get(KEY, VERSION));
+        assertNull(cache.get(OTHER_FOLDER_KEY, VERSION));
+        assertNotNull(cache.get(otherAccountKey, VERSION));
+    }
+
+    private String createString(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+}
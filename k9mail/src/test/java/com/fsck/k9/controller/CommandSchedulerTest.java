@@ -0,0 +1,253 @@
+package com.fsck.k9.controller;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.fsck.k9.controller.MessagingController.Command;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = "src/main/AndroidManifest.xml", sdk = 21)
+public class CommandSchedulerTest {
+    private static final String ACCOUNT_A = "account-a";
+    private static final String ACCOUNT_B = "account-b";
+    private static final long TIMEOUT_SECONDS = 5;
+
+
+    private CommandScheduler scheduler;
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+
+
+    @Before
+    public void setUp() {
+        scheduler = new CommandScheduler(2, 10L, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.shutdown(1000L);
+    }
+
+    @Test
+    public void put_withBusyLane_shouldRunForegroundCommandsFirst() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        scheduler.put(blockingCommand(ACCOUNT_A, "blocker", release));
+
+        scheduler.put(command(ACCOUNT_A, "background", false, done));
+        scheduler.put(command(ACCOUNT_A, "foreground", true, done));
+        release.countDown();
+        scheduler.put(command(ACCOUNT_A, "last", false, done));
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(asList("blocker", "foreground", "background", "last"), executed);
+    }
+
+    @Test
+    public void put_withBlockedAccount_shouldStillRunCommandsOfOtherAccount() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.put(blockingCommand(ACCOUNT_A, "blocker", release));
+
+        scheduler.put(command(ACCOUNT_B, "other account", false, done));
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getQueueDepth(ACCOUNT_A));
+        release.countDown();
+    }
+
+    @Test
+    public void cancelPendingCommands_shouldDropQueuedCommandsOfAccountOnly() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.put(blockingCommand(ACCOUNT_A, "blocker", release));
+        scheduler.put(command(ACCOUNT_A, "cancelled 1", false, null));
+        scheduler.put(command(ACCOUNT_A, "cancelled 2", true, null));
+
+        int cancelled = scheduler.cancelPendingCommands(ACCOUNT_A);
+        release.countDown();
+        scheduler.put(command(ACCOUNT_A, "after cancel", false, done));
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, cancelled);
+        assertEquals(asList("blocker", "after cancel"), executed);
+    }
+
+    @Test
+    public void putAfterPendingCommands_shouldWaitForAllLanes() throws Exception {
+        CountDownLatch releaseA = new CountDownLatch(1);
+        CountDownLatch releaseB = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.put(blockingCommand(ACCOUNT_A, "a", releaseA));
+        scheduler.put(blockingCommand(ACCOUNT_B, "b", releaseB));
+
+        scheduler.putAfterPendingCommands(command(null, "finalize", false, done));
+        releaseB.countDown();
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        releaseA.countDown();
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("finalize", executed.get(2));
+    }
+
+    @Test
+    public void put_withUnavailableAccount_shouldRetryCommand() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        Command command = createCommand(ACCOUNT_A, "retry", false);
+        command.runnable = new Runnable() {
+            private int attempts = 0;
+
+            @Override
+            public void run() {
+                if (attempts++ == 0) {
+                    throw new UnavailableAccountException();
+                }
+                done.countDown();
+            }
+        };
+
+        scheduler.put(command);
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void put_withConcurrentCommands_shouldRunThemAtTheSameTime() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.put(concurrentCommand(ACCOUNT_A, "sync 1", 2, started, release));
+        scheduler.put(concurrentCommand(ACCOUNT_A, "sync 2", 2, started, release));
+
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, scheduler.getQueueDepth(ACCOUNT_A));
+        release.countDown();
+    }
+
+    @Test
+    public void put_withConcurrentCommandsBeyondLimit_shouldQueueTheRest() throws Exception {
+        scheduler = restartScheduler(3);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.put(concurrentCommand(ACCOUNT_A, "sync 1", 2, started, release));
+        scheduler.put(concurrentCommand(ACCOUNT_A, "sync 2", 2, started, release));
+        scheduler.put(concurrentCommand(ACCOUNT_A, "sync 3", 2, done, null));
+
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void put_withExclusiveCommandAfterConcurrentOnes_shouldWaitForThem() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.put(concurrentCommand(ACCOUNT_A, "sync 1", 2, started, release));
+        scheduler.put(concurrentCommand(ACCOUNT_A, "sync 2", 2, started, release));
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        scheduler.put(command(ACCOUNT_A, "foreground", true, done));
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("foreground", executed.get(2));
+    }
+
+    @Test
+    public void put_withConcurrentCommandAfterExclusiveOne_shouldWaitForIt() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.put(blockingCommand(ACCOUNT_A, "blocker", release));
+
+        scheduler.put(concurrentCommand(ACCOUNT_A, "sync", 2, done, null));
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(asList("blocker", "sync"), executed);
+    }
+
+    private CommandScheduler restartScheduler(int workerThreads) throws InterruptedException {
+        scheduler.shutdown(1000L);
+        return new CommandScheduler(workerThreads, 10L, null);
+    }
+
+    private Command concurrentCommand(String accountUuid, final String name, int maxConcurrentCommands,
+            final CountDownLatch started, final CountDownLatch release) {
+        Command command = createCommand(accountUuid, name, false);
+        command.maxConcurrentCommands = maxConcurrentCommands;
+        command.runnable = new Runnable() {
+            @Override
+            public void run() {
+                executed.add(name);
+                started.countDown();
+                if (release == null) {
+                    return;
+                }
+                try {
+                    release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        return command;
+    }
+
+    private Command blockingCommand(String accountUuid, final String name, final CountDownLatch release) {
+        Command command = createCommand(accountUuid, name, false);
+        command.runnable = new Runnable() {
+            @Override
+            public void run() {
+                executed.add(name);
+                try {
+                    release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        return command;
+    }
+
+    private Command command(String accountUuid, final String name, boolean isForeground, final CountDownLatch done) {
+        Command command = createCommand(accountUuid, name, isForeground);
+        command.runnable = new Runnable() {
+            @Override
+            public void run() {
+                executed.add(name);
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        };
+        return command;
+    }
+
+    private Command createCommand(String accountUuid, String description, boolean isForeground) {
+        Command command = new Command();
+        command.accountUuid = accountUuid;
+        command.description = description;
+        command.isForeground = isForeground;
+        return command;
+    }
+}
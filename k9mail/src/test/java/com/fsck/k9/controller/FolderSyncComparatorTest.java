@@ -0,0 +1,66 @@
+package com.fsck.k9.controller;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Folder.FolderClass;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class FolderSyncComparatorTest {
+    private final FolderSyncComparator comparator = new FolderSyncComparator("INBOX");
+
+
+    @Test
+    public void sort_shouldPutInboxFirstAndOrderByFolderClass() throws Exception {
+        Folder other = createFolder("Other", FolderClass.NO_CLASS, 0);
+        Folder secondClass = createFolder("Second", FolderClass.SECOND_CLASS, 0);
+        Folder firstClass = createFolder("First", FolderClass.FIRST_CLASS, 0);
+        Folder inbox = createFolder("INBOX", FolderClass.SECOND_CLASS, 1000);
+
+        List<Folder> folders = sort(other, secondClass, firstClass, inbox);
+
+        assertEquals(asList(inbox, firstClass, secondClass, other), folders);
+    }
+
+    @Test
+    public void sort_withSameFolderClass_shouldPutLeastRecentlyCheckedFirst() throws Exception {
+        Folder recent = createFolder("Recent", FolderClass.FIRST_CLASS, 2000);
+        Folder stale = createFolder("Stale", FolderClass.FIRST_CLASS, 1000);
+        Folder never = createFolder("Never", FolderClass.FIRST_CLASS, 0);
+
+        List<Folder> folders = sort(recent, stale, never);
+
+        assertEquals(asList(never, stale, recent), folders);
+    }
+
+    @Test
+    public void compare_withSameClassAndLastChecked_shouldOrderByName() throws Exception {
+        Folder a = createFolder("A", FolderClass.FIRST_CLASS, 0);
+        Folder b = createFolder("B", FolderClass.FIRST_CLASS, 0);
+
+        assertEquals(asList(a, b), sort(b, a));
+    }
+
+    private List<Folder> sort(Folder... folders) {
+        List<Folder> list = new ArrayList<Folder>(asList(folders));
+        Collections.sort(list, comparator);
+        return list;
+    }
+
+    private Folder createFolder(String name, FolderClass displayClass, long lastChecked) {
+        Folder folder = mock(Folder.class);
+        when(folder.getName()).thenReturn(name);
+        when(folder.getDisplayClass()).thenReturn(displayClass);
+        when(folder.getLastChecked()).thenReturn(lastChecked);
+        return folder;
+    }
+}
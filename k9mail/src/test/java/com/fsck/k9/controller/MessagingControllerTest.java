@@ -46,6 +46,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anySet;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
@@ -657,6 +658,25 @@ public class MessagingControllerTest {
         assertTrue(fetchProfileCaptor.getAllValues().get(0).contains(FetchProfile.Item.ENVELOPE));
     }
 
+    @Test
+    public void synchronizeMailboxSynchronous_withHighestModSeqLowerThanSyncedModSeq_shouldSyncAllFlags()
+            throws Exception {
+        messageCountInRemoteFolder(1);
+        hasSyncedRemoteMessage();
+        when(remoteFolder.supportsFetchingFlags()).thenReturn(true);
+        when(localFolder.getSyncedModSeq()).thenReturn(10L);
+        when(remoteFolder.getHighestModSeq()).thenReturn(5L);
+
+        controller.synchronizeMailboxSynchronous(account, FOLDER_NAME, listener, remoteFolder);
+
+        verify(remoteFolder, never()).getMessagesWithChangedFlags(anyLong());
+        verify(remoteFolder, atLeastOnce()).fetch(any(List.class), fetchProfileCaptor.capture(),
+                any(MessageRetrievalListener.class));
+        assertEquals(1, fetchProfileCaptor.getValue().size());
+        assertTrue(fetchProfileCaptor.getValue().contains(FetchProfile.Item.FLAGS));
+        verify(localFolder).setSyncedModSeq(5L);
+    }
+
     @Test
     public void synchronizeMailboxSynchronous_withUnsyncedNewSmallMessage_shouldFetchBodyOfSmallMessage()
             throws Exception {
@@ -750,6 +770,17 @@ public class MessagingControllerTest {
                 .thenReturn(Collections.singletonList(remoteMessage));
     }
 
+    private void hasSyncedRemoteMessage() throws MessagingException {
+        String messageUid = "UID";
+        Message remoteMessage = mock(Message.class);
+        LocalMessage localMessage = mock(LocalMessage.class);
+        when(remoteMessage.getUid()).thenReturn(messageUid);
+        when(localMessage.isSet(Flag.X_DOWNLOADED_FULL)).thenReturn(true);
+        when(localFolder.getMessage(messageUid)).thenReturn(localMessage);
+        when(remoteFolder.getMessages(anyInt(), anyInt(), any(Date.class), any(MessageRetrievalListener.class)))
+                .thenReturn(Collections.singletonList(remoteMessage));
+    }
+
     private void configureAccount() throws MessagingException {
         when(account.isAvailable(appContext)).thenReturn(true);
         when(account.getLocalStore()).thenReturn(localStore);
@@ -0,0 +1,175 @@
+package com.fsck.k9.controller;
+
+
+import java.util.List;
+
+import com.fsck.k9.mailstore.LocalStore.PendingCommand;
+import org.junit.Test;
+
+import static com.fsck.k9.controller.MessagingController.PENDING_COMMAND_EXPUNGE;
+import static com.fsck.k9.controller.MessagingController.PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW;
+import static com.fsck.k9.controller.MessagingController.PENDING_COMMAND_SET_FLAG_BULK;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+public class PendingCommandCompactorTest {
+
+    @Test
+    public void compact_withoutCombinableCommands_shouldReturnInput() throws Exception {
+        List<PendingCommand> commands = asList(
+                setFlag("Inbox", true, "SEEN", "1"),
+                setFlag("Inbox", true, "FLAGGED", "2"),
+                expunge("Inbox"));
+
+        List<PendingCommand> result = PendingCommandCompactor.compact(commands);
+
+        assertSame(commands, result);
+    }
+
+    @Test
+    public void compact_withFlagCommandsForSameFolderAndFlag_shouldCombineThem() throws Exception {
+        List<PendingCommand> commands = asList(
+                setFlag("Inbox", true, "SEEN", "1"),
+                setFlag("Inbox", true, "SEEN", "2", "3"),
+                setFlag("Inbox", true, "SEEN", "4"));
+
+        List<PendingCommand> result = PendingCommandCompactor.compact(commands);
+
+        assertEquals(1, result.size());
+        assertArguments(result.get(0), "Inbox", "true", "SEEN", "1", "2", "3", "4");
+    }
+
+    @Test
+    public void compact_withFlagSetAndCleared_shouldOnlyKeepLastState() throws Exception {
+        List<PendingCommand> commands = asList(
+                setFlag("Inbox", true, "SEEN", "1", "2"),
+                setFlag("Inbox", false, "SEEN", "1"),
+                setFlag("Inbox", false, "SEEN", "3"),
+                setFlag("Inbox", true, "SEEN", "3"));
+
+        List<PendingCommand> result = PendingCommandCompactor.compact(commands);
+
+        assertEquals(2, result.size());
+        assertArguments(result.get(0), "Inbox", "true", "SEEN", "2", "3");
+        assertArguments(result.get(1), "Inbox", "false", "SEEN", "1");
+    }
+
+    @Test
+    public void compact_withFlagCommandsInterleavedWithOtherFlagAndFolder_shouldCombinePerFolderAndFlag()
+            throws Exception {
+        List<PendingCommand> commands = asList(
+                setFlag("Inbox", true, "SEEN", "1"),
+                setFlag("Inbox", true, "FLAGGED", "1"),
+                setFlag("Archive", true, "SEEN", "7"),
+                setFlag("Inbox", true, "SEEN", "2"),
+                setFlag("Inbox", true, "FLAGGED", "2"));
+
+        List<PendingCommand> result = PendingCommandCompactor.compact(commands);
+
+        assertEquals(3, result.size());
+        assertArguments(result.get(0), "Inbox", "true", "SEEN", "1", "2");
+        assertArguments(result.get(1), "Inbox", "true", "FLAGGED", "1", "2");
+        assertArguments(result.get(2), "Archive", "true", "SEEN", "7");
+    }
+
+    @Test
+    public void compact_withCommandTouchingFolderInBetween_shouldNotCombineAcrossIt() throws Exception {
+        List<PendingCommand> commands = asList(
+                setFlag("Inbox", true, "SEEN", "1"),
+                expunge("Inbox"),
+                setFlag("Inbox", true, "SEEN", "2"),
+                setFlag("Inbox", true, "SEEN", "3"));
+
+        List<PendingCommand> result = PendingCommandCompactor.compact(commands);
+
+        assertEquals(3, result.size());
+        assertSame(commands.get(0), result.get(0));
+        assertSame(commands.get(1), result.get(1));
+        assertArguments(result.get(2), "Inbox", "true", "SEEN", "2", "3");
+    }
+
+    @Test
+    public void compact_withCommandTouchingOtherFolderInBetween_shouldCombine() throws Exception {
+        List<PendingCommand> commands = asList(
+                setFlag("Inbox", true, "SEEN", "1"),
+                expunge("Archive"),
+                setFlag("Inbox", true, "SEEN", "2"));
+
+        List<PendingCommand> result = PendingCommandCompactor.compact(commands);
+
+        assertEquals(2, result.size());
+        assertArguments(result.get(0), "Inbox", "true", "SEEN", "1", "2");
+        assertSame(commands.get(1), result.get(1));
+    }
+
+    @Test
+    public void compact_withMovesBetweenSameFolders_shouldCombineThem() throws Exception {
+        List<PendingCommand> commands = asList(
+                move("Inbox", "Archive", "1", "K9LOCAL:a"),
+                move("Inbox", "Archive", "2", "K9LOCAL:b", "3", "K9LOCAL:c"));
+
+        List<PendingCommand> result = PendingCommandCompactor.compact(commands);
+
+        assertEquals(1, result.size());
+        assertEquals(PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW, result.get(0).command);
+        assertArguments(result.get(0), "Inbox", "Archive", "false", "true",
+                "1", "2", "3", "K9LOCAL:a", "K9LOCAL:b", "K9LOCAL:c");
+    }
+
+    @Test
+    public void compact_withFlagChangeBetweenMoves_shouldNotCombineMoves() throws Exception {
+        List<PendingCommand> commands = asList(
+                move("Inbox", "Archive", "1", "K9LOCAL:a"),
+                setFlag("Inbox", true, "SEEN", "2"),
+                move("Inbox", "Archive", "2", "K9LOCAL:b"));
+
+        List<PendingCommand> result = PendingCommandCompactor.compact(commands);
+
+        assertSame(commands, result);
+    }
+
+    private PendingCommand setFlag(String folder, boolean newState, String flag, String... uids) {
+        PendingCommand command = new PendingCommand();
+        command.command = PENDING_COMMAND_SET_FLAG_BULK;
+        command.arguments = new String[3 + uids.length];
+        command.arguments[0] = folder;
+        command.arguments[1] = Boolean.toString(newState);
+        command.arguments[2] = flag;
+        System.arraycopy(uids, 0, command.arguments, 3, uids.length);
+        return command;
+    }
+
+    /**
+     * @param uidPairs remote UID in source folder, local UID in destination folder, ...
+     */
+    private PendingCommand move(String srcFolder, String destFolder, String... uidPairs) {
+        int count = uidPairs.length / 2;
+
+        PendingCommand command = new PendingCommand();
+        command.command = PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW;
+        command.arguments = new String[4 + uidPairs.length];
+        command.arguments[0] = srcFolder;
+        command.arguments[1] = destFolder;
+        command.arguments[2] = Boolean.toString(false);
+        command.arguments[3] = Boolean.toString(true);
+        for (int i = 0; i < count; i++) {
+            command.arguments[4 + i] = uidPairs[2 * i];
+            command.arguments[4 + count + i] = uidPairs[2 * i + 1];
+        }
+        return command;
+    }
+
+    private PendingCommand expunge(String folder) {
+        PendingCommand command = new PendingCommand();
+        command.command = PENDING_COMMAND_EXPUNGE;
+        command.arguments = new String[] { folder };
+        return command;
+    }
+
+    private void assertArguments(PendingCommand command, String... expectedArguments) {
+        assertArrayEquals(expectedArguments, command.arguments);
+    }
+}
@@ -0,0 +1,91 @@
+package com.fsck.k9.helper;
+
+
+import java.util.Locale;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Compares the time {@link HtmlSanitizer} and the DOM based {@link HtmlCleanerSanitizer} take for large messages.
+ * <p>
+ * The messages are built by repeating the bodies of the corpus used by {@link HtmlSanitizerDifferentialTest} until
+ * they reach the size of typical large marketing messages. Not run by default. Remove the {@link Ignore} annotation
+ * to run it. It fails if the streaming sanitizer is slower than {@link HtmlCleanerSanitizer}.
+ * </p>
+ */
+@Ignore("Benchmark")
+public class HtmlSanitizerBenchmark {
+    private static final int[] MESSAGE_SIZES = { 256 * 1024, 1024 * 1024, 3 * 1024 * 1024 };
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int ITERATIONS = 10;
+
+
+    @Test
+    public void benchmark() throws Exception {
+        for (String fileName : HtmlSanitizerDifferentialTest.CORPUS) {
+            String text = HtmlSanitizerDifferentialTest.readCorpusFile(fileName);
+            for (int size : MESSAGE_SIZES) {
+                String html = HtmlSanitizerDifferentialTest.wrapMessageContent(repeat(text, size));
+
+                long referenceNanos = measure(new HtmlCleanerRun(html));
+                long streamingNanos = measure(new StreamingRun(html));
+
+                assertTrue(String.format(Locale.US, "%s, %d KiB: HtmlCleaner %.1f ms, streaming %.1f ms",
+                        fileName, html.length() / 1024, referenceNanos / 1e6, streamingNanos / 1e6),
+                        streamingNanos < referenceNanos);
+            }
+        }
+    }
+
+    private static long measure(Runnable run) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            run.run();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            run.run();
+        }
+
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static String repeat(String text, int size) {
+        StringBuilder sb = new StringBuilder(size + text.length());
+        while (sb.length() < size) {
+            sb.append(text);
+        }
+        return sb.toString();
+    }
+
+
+    private static class HtmlCleanerRun implements Runnable {
+        private final String html;
+
+        HtmlCleanerRun(String html) {
+            this.html = html;
+        }
+
+        @Override
+        public void run() {
+            HtmlCleanerSanitizer.sanitize(html);
+        }
+    }
+
+    private static class StreamingRun implements Runnable {
+        private final String html;
+
+        StreamingRun(String html) {
+            this.html = html;
+        }
+
+        @Override
+        public void run() {
+            HtmlSanitizer.sanitize(html);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.fsck.k9.helper;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.io.IOUtils;
+import org.htmlcleaner.CleanerProperties;
+import org.htmlcleaner.ContentNode;
+import org.htmlcleaner.HtmlCleaner;
+import org.htmlcleaner.TagNode;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+/**
+ * Compares the output of {@link HtmlSanitizer} with the output of the DOM based {@link HtmlCleanerSanitizer} it
+ * replaced.
+ * <p>
+ * Both outputs are parsed again and reduced to what is displayed: the text, the links and images, and the distinct
+ * elements with their attributes. The markup itself isn't compared. HtmlCleaner moves some elements around, e.g.
+ * {@code <title>} into {@code <head>}, and inserts elements like {@code <tbody>}. The WebView parses the output again
+ * anyway.
+ * </p><p>
+ * Known differences that are not covered by the corpus: HtmlCleaner nests block elements in inline elements (e.g.
+ * {@code <span>a<p>b}) and reopens headings after a nested heading, where the streaming sanitizer closes elements
+ * like a browser does. It also leaves character references without a trailing semicolon to the WebView.
+ * </p>
+ */
+public class HtmlSanitizerDifferentialTest {
+    static final String[] CORPUS = {
+            "newsletter.html",
+            "outlook.html",
+            "reply.html",
+            "legacy.html"
+    };
+
+    private static final String[] SNIPPETS = {
+            "Plain text with <b>bold</b> and <i>italic</i> words",
+            "<p>one<p>two<br>three<img src=\"a.png\">",
+            "<div><b>bold<i>both</b>italic</i></div>",
+            "<ul><li>a<li>b</ul><table><tr><td>1<td>2<tr><td>3</table>",
+            "<dl><dt>term<dd>definition<dt>term<dd>definition</dl>",
+            "<script>if (a < b && c) x();</script><style>p > a { color: red; }</style>",
+            "<center><font face=Arial><p>a</font>b</p></center>",
+            "<p>a</div></span>b</p>",
+            "<o:p>namespaced</o:p><div/>after empty div",
+            "<select><option>1<option selected>2</select>",
+            "<!--[if mso]><table><tr><td><![endif]-->conditional<!--[if mso]></td></tr></table><![endif]-->",
+            "<p title=\"a &amp; b\" data-x='single \"quoted\"'>attributes</p>",
+            "unclosed <b>bold <i>italic <u>underline",
+            "<html><head><meta http-equiv=\"refresh\" content=\"0; URL=http://example.com/\"><title>t</title>" +
+                    "</head><body bgcolor=\"red\"><p>nested document</p></body></html>",
+            "text after document</body></html><p>more text"
+    };
+
+
+    @Test
+    public void sanitize_withCorpus_shouldDisplayLikeHtmlCleanerSanitizer() throws Exception {
+        for (String fileName : CORPUS) {
+            assertSameAsReference(fileName, readCorpusFile(fileName));
+        }
+    }
+
+    @Test
+    public void sanitize_withSnippets_shouldDisplayLikeHtmlCleanerSanitizer() throws Exception {
+        for (String snippet : SNIPPETS) {
+            assertSameAsReference(snippet, snippet);
+        }
+    }
+
+    @Test
+    public void sanitize_withCorpus_shouldRemoveMetaRefresh() throws Exception {
+        for (String fileName : CORPUS) {
+            String sanitizedHtml = HtmlSanitizer.sanitize(wrapMessageContent(readCorpusFile(fileName)));
+
+            assertFalse(fileName, hasMetaRefresh(sanitizedHtml));
+        }
+    }
+
+    @Test
+    public void sanitize_withSanitizedHtml_shouldNotChangeOutput() throws Exception {
+        for (String fileName : CORPUS) {
+            String sanitizedHtml = HtmlSanitizer.sanitize(wrapMessageContent(readCorpusFile(fileName)));
+
+            assertEquals(fileName, sanitizedHtml, HtmlSanitizer.sanitize(sanitizedHtml));
+        }
+    }
+
+    static String readCorpusFile(String fileName) throws IOException {
+        InputStream inputStream = HtmlSanitizerDifferentialTest.class.getResourceAsStream("/html_corpus/" + fileName);
+        try {
+            return IOUtils.toString(inputStream, "UTF-8");
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Same structure as {@link HtmlConverter#wrapMessageContent(String)}, without depending on the settings.
+     */
+    static String wrapMessageContent(String text) {
+        return "<html><head><meta name=\"viewport\" content=\"width=device-width\"/>" +
+                "<style type=\"text/css\"> pre.k9mail {white-space: pre-wrap; word-wrap:break-word; }</style>" +
+                "</head><body>" + text + "</body></html>";
+    }
+
+    private void assertSameAsReference(String description, String text) {
+        String html = wrapMessageContent(text);
+
+        String expected = DisplaySignature.of(HtmlCleanerSanitizer.sanitize(html));
+        String actual = DisplaySignature.of(HtmlSanitizer.sanitize(html));
+
+        assertEquals(description, expected, actual);
+    }
+
+    private boolean hasMetaRefresh(String html) {
+        for (TagNode element : DisplaySignature.HTML_CLEANER.clean(html).getElementListByName("meta", true)) {
+            String httpEquiv = element.getAttributeByName("http-equiv");
+            if (httpEquiv != null && httpEquiv.trim().equalsIgnoreCase("refresh")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private static class DisplaySignature {
+        static final HtmlCleaner HTML_CLEANER;
+
+        static {
+            CleanerProperties properties = new CleanerProperties();
+            properties.setTranslateSpecialEntities(true);
+            properties.setRecognizeUnicodeChars(true);
+            properties.setAdvancedXmlEscape(true);
+            properties.setDeserializeEntities(true);
+            HTML_CLEANER = new HtmlCleaner(properties);
+        }
+
+
+        private final StringBuilder text = new StringBuilder();
+        private final List<String> resources = new ArrayList<>();
+        private final Set<String> elements = new TreeSet<>();
+
+
+        static String of(String html) {
+            DisplaySignature signature = new DisplaySignature();
+            signature.add(HTML_CLEANER.clean(html));
+
+            return signature.text.toString().replaceAll("\\s+", " ").trim() + "\n" +
+                    signature.resources + "\n" +
+                    signature.elements;
+        }
+
+        private void add(TagNode element) {
+            String name = element.getName();
+
+            // HtmlCleaner moves the attributes of nested <html> elements, and inserts <tbody>
+            if (!name.equals("html") && !name.equals("head") && !name.equals("tbody")) {
+                Map<String, String> attributes = new TreeMap<>();
+                for (Map.Entry<String, String> attribute : element.getAttributes().entrySet()) {
+                    attributes.put(attribute.getKey(), decodeAttributeValue(attribute.getValue()));
+                }
+                elements.add(name + attributes);
+            }
+
+            String href = element.getAttributeByName("href");
+            if (href != null) {
+                resources.add(decodeAttributeValue(href));
+            }
+            String src = element.getAttributeByName("src");
+            if (src != null) {
+                resources.add(decodeAttributeValue(src));
+            }
+
+            boolean displayedText = !name.equals("script") && !name.equals("style") && !name.equals("title");
+            for (Object child : element.getAllChildren()) {
+                if (child instanceof TagNode) {
+                    add((TagNode) child);
+                } else if (child instanceof ContentNode && displayedText) {
+                    text.append(((ContentNode) child).getContent()).append(' ');
+                }
+            }
+        }
+
+        private static String decodeAttributeValue(String value) {
+            return value.replace("&quot;", "\"").replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+        }
+    }
+}
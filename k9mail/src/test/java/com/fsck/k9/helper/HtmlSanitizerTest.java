@@ -1,6 +1,9 @@
 package com.fsck.k9.helper;
 
 
+import java.io.StringReader;
+import java.io.StringWriter;
+
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
@@ -91,4 +94,117 @@ public class HtmlSanitizerTest {
         assertEquals("<html><head><meta http-equiv=\"content-type\" content=\"text/html; charset=UTF-8\" /></head>" +
                 "<body>Message</body></html>", HtmlSanitizer.sanitize(html));
     }
+
+    @Test
+    public void shouldMergeAttributesOfNestedBodyIntoBody() {
+        String html = "<html><head></head><body>" +
+                "<html><head><style>p { color: red; }</style></head><body bgcolor=\"#EEEEEE\">Message</body></html>" +
+                "</body></html>";
+        assertEquals("<html><head></head><body bgcolor=\"#EEEEEE\"><style>p { color: red; }</style>Message</body></html>",
+                HtmlSanitizer.sanitize(html));
+    }
+
+    @Test
+    public void shouldCloseUnclosedElementsAndDropUnmatchedEndTags() {
+        String html = "<html><head></head><body><div><p>one<p>two</span></div>three <b>bold</body></html>";
+        assertEquals("<html><head></head><body><div><p>one</p><p>two</p></div>three <b>bold</b></body></html>",
+                HtmlSanitizer.sanitize(html));
+    }
+
+    @Test
+    public void shouldReopenOverlappingFormattingElements() {
+        String html = "<html><head></head><body><b>bold<i>both</b>italic</i></body></html>";
+        assertEquals("<html><head></head><body><b>bold<i>both</i></b><i>italic</i></body></html>",
+                HtmlSanitizer.sanitize(html));
+    }
+
+    @Test
+    public void shouldKeepContentOfScriptAndStyleElementsUnchanged() {
+        String html = "<html><head><style>a > b { }</style></head><body><script>if (a < b) {}</script></body></html>";
+        assertEquals(html, HtmlSanitizer.sanitize(html));
+    }
+
+    @Test
+    public void shouldNotParseRawTextElementsInsideIframe() {
+        String html = "<html><head></head><body><iframe><style></iframe>" +
+                "<meta http-equiv=\"refresh\" content=\"0;url=http://example.com/\"></style>Message</body></html>";
+        assertEquals("<html><head></head><body><iframe>&lt;style></iframe>Message</body></html>",
+                HtmlSanitizer.sanitize(html));
+    }
+
+    @Test
+    public void shouldParseStyleElementInsideSvgAsMarkup() {
+        String html = "<html><head></head><body><svg><style>" +
+                "<meta http-equiv=refresh content=\"0;url=http://example.com/\"></style></svg>Message</body></html>";
+        assertEquals("<html><head></head><body><svg><style></style></svg>Message</body></html>",
+                HtmlSanitizer.sanitize(html));
+    }
+
+    @Test
+    public void shouldCloseSvgBeforeHtmlElement() {
+        String html = "<html><head></head><body><svg><g><p>Message</p></body></html>";
+        assertEquals("<html><head></head><body><svg><g></g></svg><p>Message</p></body></html>",
+                HtmlSanitizer.sanitize(html));
+    }
+
+    @Test
+    public void shouldEscapeTagsInsideRawTextElements() {
+        String html = "<html><head></head><body><textarea>a<b>c</b></textarea></body></html>";
+        assertEquals("<html><head></head><body><textarea>a&lt;b>c&lt;/b></textarea></body></html>",
+                HtmlSanitizer.sanitize(html));
+    }
+
+    @Test
+    public void shouldEscapeTextAndQuoteAttributeValues() {
+        String html = "<html><head></head><body><p title='\"x\"' class=a>1 < 2 & 3 &amp; 4</p></body></html>";
+        assertEquals("<html><head></head><body><p title=\"&quot;x&quot;\" class=\"a\">1 &lt; 2 &amp; 3 &amp; 4</p>" +
+                "</body></html>", HtmlSanitizer.sanitize(html));
+    }
+
+    @Test
+    public void shouldKeepConditionalComments() {
+        String html = "<html><head></head><body><!--[if mso]><p>Outlook</p><![endif]-->Message</body></html>";
+        assertEquals(html, HtmlSanitizer.sanitize(html));
+    }
+
+    @Test
+    public void shouldEndCommentAtDashDashBangGreaterThan() {
+        String html = "<html><head></head><body>" +
+                "<!-- a --!><meta http-equiv=\"refresh\" content=\"0;url=http://example.com/\"> -->Message" +
+                "</body></html>";
+        assertEquals("<html><head></head><body><!-- a --> --&gt;Message</body></html>",
+                HtmlSanitizer.sanitize(html));
+    }
+
+    @Test
+    public void shouldEndAbruptlyClosedComments() {
+        String html = "<html><head></head><body>" +
+                "<!--><meta http-equiv=\"refresh\" content=\"0;url=http://example.com/\"> -->" +
+                "<!---><meta http-equiv=\"refresh\" content=\"0;url=http://example.com/\"> -->Message" +
+                "</body></html>";
+        assertEquals("<html><head></head><body><!----> --&gt;<!----> --&gt;Message</body></html>",
+                HtmlSanitizer.sanitize(html));
+    }
+
+    @Test
+    public void shouldReplaceDashesInsideComments() {
+        String html = "<html><head></head><body><!-- a -- b ---- c - d -->Message</body></html>";
+        assertEquals("<html><head></head><body><!-- a == b ==== c - d -->Message</body></html>",
+                HtmlSanitizer.sanitize(html));
+    }
+
+    @Test
+    public void shouldCreateDocumentForFragment() {
+        assertEquals("<html><head></head><body>Message <br /></body></html>", HtmlSanitizer.sanitize("Message <br>"));
+    }
+
+    @Test
+    public void sanitize_withReaderAndWriter_shouldWriteSanitizedHtml() throws Exception {
+        String html = "<html><head><meta http-equiv=\"refresh\" content=\"1\"></head><body>Message</body></html>";
+        StringWriter writer = new StringWriter();
+
+        HtmlSanitizer.sanitize(new StringReader(html), writer);
+
+        assertEquals("<html><head></head><body>Message</body></html>", writer.toString());
+    }
 }
@@ -0,0 +1,145 @@
+package com.fsck.k9.helper;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 21)
+public class MergeCursorTest {
+    private static final SortKeyReader<Long> DATE_DESCENDING = new DateDescendingKeyReader();
+
+
+    @Test
+    public void moveToNext_shouldMergeCursorsInSortKeyOrder() throws Exception {
+        MergeCursor cursor = new MergeCursor(
+                new Cursor[] { createCursor(90, 70, 10), createCursor(80, 60) }, DATE_DESCENDING,
+                Integer.MAX_VALUE);
+
+        assertEquals(asList(90L, 80L, 70L, 60L, 10L), readDates(cursor));
+    }
+
+    @Test
+    public void getCount_withMaxCount_shouldNotExceedMaxCount() throws Exception {
+        MergeCursor cursor = new MergeCursor(
+                new Cursor[] { createCursor(90, 70, 10), createCursor(80, 60) }, DATE_DESCENDING, 3);
+
+        assertEquals(3, cursor.getCount());
+        assertEquals(asList(90L, 80L, 70L), readDates(cursor));
+    }
+
+    @Test
+    public void moveToPrevious_afterReachingMaxCount_shouldReturnRowsInReverseOrder() throws Exception {
+        MergeCursor cursor = new MergeCursor(
+                new Cursor[] { createCursor(90, 70, 10), createCursor(80, 60) }, DATE_DESCENDING, 3);
+        assertTrue(cursor.moveToLast());
+        assertFalse(cursor.moveToNext());
+
+        assertTrue(cursor.moveToPrevious());
+        assertEquals(70L, cursor.getLong(1));
+        assertTrue(cursor.moveToPrevious());
+        assertEquals(80L, cursor.getLong(1));
+        assertTrue(cursor.moveToPrevious());
+        assertEquals(90L, cursor.getLong(1));
+        assertFalse(cursor.moveToPrevious());
+    }
+
+    @Test
+    public void moveToNext_withSortKeyReader_shouldReadEachKeyOnce() throws Exception {
+        CountingDateKeyReader keyReader = new CountingDateKeyReader();
+        MergeCursor cursor = new MergeCursor(
+                new Cursor[] { createCursor(90, 70, 10), createCursor(80, 60), createCursor(75) }, keyReader,
+                Integer.MAX_VALUE);
+
+        assertEquals(asList(90L, 80L, 75L, 70L, 60L, 10L), readDates(cursor));
+        assertEquals(asList(90L, 80L, 75L, 70L, 60L, 10L), readDates(cursor));
+        assertEquals(6, keyReader.readCount);
+    }
+
+    @Test
+    public void moveToPosition_shouldAllowRandomAccess() throws Exception {
+        MergeCursor cursor = new MergeCursor(
+                new Cursor[] { createCursor(90, 70, 10), null, createCursor(80, 60) }, DATE_DESCENDING,
+                Integer.MAX_VALUE);
+
+        assertTrue(cursor.moveToPosition(3));
+        assertEquals(60L, cursor.getLong(1));
+        assertTrue(cursor.moveToPosition(0));
+        assertEquals(90L, cursor.getLong(1));
+        assertTrue(cursor.moveToPosition(4));
+        assertEquals(10L, cursor.getLong(1));
+        assertTrue(cursor.moveToPosition(2));
+        assertEquals(70L, cursor.getLong(1));
+        assertFalse(cursor.moveToPosition(5));
+        assertTrue(cursor.isAfterLast());
+    }
+
+    @Test
+    public void moveToNext_withEqualKeys_shouldKeepOrderOfCursors() throws Exception {
+        MergeCursor cursor = new MergeCursor(
+                new Cursor[] { createCursor(50), createCursor(50), createCursor(50) }, DATE_DESCENDING,
+                Integer.MAX_VALUE);
+        List<Integer> cursorIndexes = new ArrayList<Integer>();
+
+        while (cursor.moveToNext()) {
+            cursorIndexes.add(cursor.mActiveCursorIndex);
+        }
+
+        assertEquals(asList(0, 1, 2), cursorIndexes);
+    }
+
+    private Cursor createCursor(long... dates) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { "_id", "date" });
+        for (long date : dates) {
+            cursor.addRow(new Object[] { date, date });
+        }
+
+        return cursor;
+    }
+
+    private static class DateDescendingKeyReader implements SortKeyReader<Long> {
+        @Override
+        public Long readSortKey(Cursor cursor) {
+            return cursor.getLong(1);
+        }
+
+        @Override
+        public int compare(Long date, Long otherDate) {
+            return otherDate.compareTo(date);
+        }
+    }
+
+    private static class CountingDateKeyReader extends DateDescendingKeyReader {
+        int readCount = 0;
+
+        @Override
+        public Long readSortKey(Cursor cursor) {
+            readCount++;
+            return super.readSortKey(cursor);
+        }
+    }
+
+    private List<Long> readDates(Cursor cursor) {
+        List<Long> dates = new ArrayList<Long>();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            dates.add(cursor.getLong(1));
+        }
+
+        return dates;
+    }
+}
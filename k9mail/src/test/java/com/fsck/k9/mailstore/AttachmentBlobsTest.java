@@ -0,0 +1,160 @@
+package com.fsck.k9.mailstore;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = "src/main/AndroidManifest.xml", sdk = 21)
+public class AttachmentBlobsTest {
+    private static final String HASH = "0123";
+    private static final String OTHER_HASH = "4567";
+
+
+    private SQLiteDatabase db;
+    private File attachmentDirectory;
+
+
+    @Before
+    public void setUp() throws Exception {
+        db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE message_parts (id INTEGER PRIMARY KEY, root INTEGER, content_hash TEXT)");
+
+        AttachmentBlobs.createTable(db);
+
+        attachmentDirectory = new File(System.getProperty("java.io.tmpdir"), "attachment-blobs-test");
+        attachmentDirectory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void insertingMessageParts_shouldCountReferences() throws Exception {
+        insertMessagePart(1, HASH);
+        insertMessagePart(2, HASH);
+        insertMessagePart(3, null);
+
+        assertEquals(2, queryRefCount(HASH));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM attachment_blobs"));
+    }
+
+    @Test
+    public void changingContentHash_shouldMoveReference() throws Exception {
+        long id = insertMessagePart(1, HASH);
+        insertMessagePart(2, HASH);
+
+        db.execSQL("UPDATE message_parts SET content_hash = '" + OTHER_HASH + "' WHERE id = " + id);
+
+        assertEquals(1, queryRefCount(HASH));
+        assertEquals(1, queryRefCount(OTHER_HASH));
+    }
+
+    @Test
+    public void deletingMessageParts_shouldReleaseReferences() throws Exception {
+        insertMessagePart(1, HASH);
+        insertMessagePart(2, HASH);
+
+        db.delete("message_parts", "root = 1", null);
+
+        assertEquals(1, queryRefCount(HASH));
+    }
+
+    @Test
+    public void deleteUnreferencedBlobs_shouldOnlyDeleteFilesWithoutReferences() throws Exception {
+        insertMessagePart(1, HASH);
+        insertMessagePart(2, OTHER_HASH);
+        File file = createBlobFile(HASH);
+        File otherFile = createBlobFile(OTHER_HASH);
+
+        db.delete("message_parts", "root = 1", null);
+        AttachmentBlobs.deleteUnreferencedBlobs(db, attachmentDirectory);
+
+        assertFalse(file.exists());
+        assertTrue(otherFile.exists());
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM attachment_blobs WHERE hash = '" + HASH + "'"));
+    }
+
+    @Test
+    public void storeBlob_withExistingBlob_shouldDeleteNewFile() throws Exception {
+        File existingFile = createBlobFile(HASH);
+        File newFile = createFile(new File(attachmentDirectory, "new"));
+
+        AttachmentBlobs.storeBlob(newFile, attachmentDirectory, HASH);
+
+        assertFalse(newFile.exists());
+        assertTrue(existingFile.exists());
+    }
+
+    @Test
+    public void computeHash_shouldDependOnContent() throws Exception {
+        File file = createFile(new File(attachmentDirectory, "a"), "content");
+        File sameContent = createFile(new File(attachmentDirectory, "b"), "content");
+        File otherContent = createFile(new File(attachmentDirectory, "c"), "other content");
+
+        String hash = AttachmentBlobs.computeHash(file);
+
+        assertEquals(64, hash.length());
+        assertEquals(hash, AttachmentBlobs.computeHash(sameContent));
+        assertNotEquals(hash, AttachmentBlobs.computeHash(otherContent));
+    }
+
+    private long insertMessagePart(long root, String contentHash) {
+        ContentValues cv = new ContentValues();
+        cv.put("root", root);
+        cv.put("content_hash", contentHash);
+        return db.insert("message_parts", null, cv);
+    }
+
+    private File createBlobFile(String hash) throws IOException {
+        return createFile(AttachmentBlobs.getBlobFile(attachmentDirectory, hash));
+    }
+
+    private File createFile(File file) throws IOException {
+        return createFile(file, "data");
+    }
+
+    private File createFile(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private long queryRefCount(String hash) {
+        return queryLong("SELECT ref_count FROM attachment_blobs WHERE hash = '" + hash + "'");
+    }
+
+    private long queryLong(String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.fsck.k9.mailstore;
+
+
+import java.io.ByteArrayOutputStream;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mailstore.LocalFolder.DataCodec;
+import com.fsck.k9.mailstore.LockableDatabase.DbCallback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = "src/main/AndroidManifest.xml", sdk = 21)
+public class DatabaseBackedBodyTest {
+    private static final long PART_ID = 1;
+    private static final String ENCODING = "quoted-printable";
+    private static final byte[] DATA = "Hello, this is the message part data. Hello, this is the message part data."
+            .getBytes();
+
+
+    private SQLiteDatabase db;
+    private LocalStore localStore;
+
+
+    @Before
+    public void setUp() throws Exception {
+        db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE message_parts (id INTEGER PRIMARY KEY, data BLOB, data_codec INTEGER DEFAULT 0)");
+
+        localStore = mock(LocalStore.class);
+        localStore.database = mock(LockableDatabase.class);
+        when(localStore.database.execute(anyBoolean(), any(DbCallback.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                DbCallback<?> callback = (DbCallback<?>) invocation.getArguments()[1];
+                return callback.doDbWork(db);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void writeTo_withUncompressedData_shouldWriteData() throws Exception {
+        storePart(DATA, DataCodec.NONE);
+        DatabaseBackedBody body = new DatabaseBackedBody(localStore, PART_ID, ENCODING);
+
+        assertArrayEquals(DATA, readBody(body));
+    }
+
+    @Test
+    public void writeTo_withCompressedData_shouldWriteUncompressedData() throws Exception {
+        byte[] deflatedData = DeflatedMemoryBody.deflate(DATA);
+        storePart(deflatedData, DataCodec.DEFLATE);
+        DatabaseBackedBody body = new DatabaseBackedBody(localStore, PART_ID, ENCODING);
+
+        assertArrayEquals(DATA, readBody(body));
+        assertEquals(DATA.length, body.getSize());
+    }
+
+    @Test
+    public void writeTo_afterPartWasRewrittenWithOtherCodec_shouldUseCodecOfStoredData() throws Exception {
+        storePart(DATA, DataCodec.NONE);
+        DatabaseBackedBody body = new DatabaseBackedBody(localStore, PART_ID, ENCODING);
+
+        storePart(DeflatedMemoryBody.deflate(DATA), DataCodec.DEFLATE);
+
+        assertArrayEquals(DATA, readBody(body));
+    }
+
+    @Test(expected = MessagingException.class)
+    public void writeTo_withMissingPart_shouldThrow() throws Exception {
+        DatabaseBackedBody body = new DatabaseBackedBody(localStore, PART_ID, ENCODING);
+
+        readBody(body);
+    }
+
+    @Test
+    public void getSize_afterPartWasRewrittenWithOtherCodec_shouldReturnUncompressedSize() throws Exception {
+        storePart(DATA, DataCodec.NONE);
+        DatabaseBackedBody body = new DatabaseBackedBody(localStore, PART_ID, ENCODING);
+
+        storePart(DeflatedMemoryBody.deflate(DATA), DataCodec.DEFLATE);
+
+        assertEquals(DATA.length, body.getSize());
+    }
+
+    @Test
+    public void getSize_withMissingPart_shouldReturnZero() throws Exception {
+        DatabaseBackedBody body = new DatabaseBackedBody(localStore, PART_ID, ENCODING);
+
+        assertEquals(0, body.getSize());
+    }
+
+    private void storePart(byte[] data, int dataCodec) {
+        ContentValues cv = new ContentValues();
+        cv.put("id", PART_ID);
+        cv.put("data", data);
+        cv.put("data_codec", dataCodec);
+        db.replace("message_parts", null, cv);
+    }
+
+    private static byte[] readBody(DatabaseBackedBody body) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        body.writeTo(output);
+        return output.toByteArray();
+    }
+}
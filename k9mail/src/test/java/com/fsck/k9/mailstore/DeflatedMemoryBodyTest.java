@@ -0,0 +1,74 @@
+package com.fsck.k9.mailstore;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class DeflatedMemoryBodyTest {
+    private static final String ENCODING = "quoted-printable";
+
+
+    @Test
+    public void deflate_withRepetitiveText_shouldShrinkData() throws Exception {
+        byte[] data = createText(100);
+
+        byte[] deflatedData = DeflatedMemoryBody.deflate(data);
+
+        assertTrue(deflatedData.length * 3 < data.length);
+    }
+
+    @Test
+    public void getInputStream_shouldReturnOriginalData() throws Exception {
+        byte[] data = createText(50);
+        DeflatedMemoryBody body = new DeflatedMemoryBody(DeflatedMemoryBody.deflate(data), ENCODING);
+
+        InputStream inputStream = body.getInputStream();
+        try {
+            assertArrayEquals(data, IOUtils.toByteArray(inputStream));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Test
+    public void writeTo_shouldWriteOriginalData() throws Exception {
+        byte[] data = createText(50);
+        DeflatedMemoryBody body = new DeflatedMemoryBody(DeflatedMemoryBody.deflate(data), ENCODING);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        body.writeTo(output);
+
+        assertArrayEquals(data, output.toByteArray());
+    }
+
+    @Test
+    public void getSize_shouldReturnSizeOfOriginalData() throws Exception {
+        byte[] data = createText(50);
+        DeflatedMemoryBody body = new DeflatedMemoryBody(DeflatedMemoryBody.deflate(data), ENCODING);
+
+        assertEquals(data.length, body.getSize());
+    }
+
+    @Test
+    public void deflate_withEmptyData_shouldRoundTrip() throws Exception {
+        DeflatedMemoryBody body = new DeflatedMemoryBody(DeflatedMemoryBody.deflate(new byte[0]), ENCODING);
+
+        assertEquals(0, body.getSize());
+    }
+
+    private byte[] createText(int lines) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append("Line ").append(i).append(": The quick brown fox jumps over the lazy dog=\r\n");
+        }
+        return sb.toString().getBytes("US-ASCII");
+    }
+}
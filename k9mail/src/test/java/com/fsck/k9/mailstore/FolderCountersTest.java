@@ -0,0 +1,179 @@
+package com.fsck.k9.mailstore;
+
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = "src/main/AndroidManifest.xml", sdk = 21)
+public class FolderCountersTest {
+    private static final long FOLDER_ID = 1;
+    private static final long OTHER_FOLDER_ID = 2;
+
+
+    private SQLiteDatabase db;
+
+
+    @Before
+    public void setUp() throws Exception {
+        db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE folders (id INTEGER PRIMARY KEY, name TEXT)");
+        db.execSQL("CREATE TABLE messages (id INTEGER PRIMARY KEY, deleted INTEGER default 0, folder_id INTEGER, " +
+                "empty INTEGER default 0, read INTEGER default 0, flagged INTEGER default 0, message_id TEXT)");
+
+        FolderCounters.createTable(db);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void insertingMessages_shouldCountUnreadAndFlaggedMessages() throws Exception {
+        insertMessage(FOLDER_ID, 0, 0);
+        insertMessage(FOLDER_ID, 1, 1);
+        insertMessage(FOLDER_ID, 0, 1);
+
+        assertEquals("2|2", queryCounters(FOLDER_ID));
+    }
+
+    @Test
+    public void insertingEmptyMessage_shouldNotCountMessage() throws Exception {
+        insertMessage(FOLDER_ID, 0, 0);
+        ContentValues values = new ContentValues();
+        values.put("folder_id", FOLDER_ID);
+        values.put("empty", 1);
+        db.insert("messages", null, values);
+
+        assertEquals("1|0", queryCounters(FOLDER_ID));
+    }
+
+    @Test
+    public void changingFlags_shouldUpdateCounters() throws Exception {
+        long messageId = insertMessage(FOLDER_ID, 0, 0);
+
+        db.execSQL("UPDATE messages SET read = 1, flagged = 1 WHERE id = " + messageId);
+
+        assertEquals("0|1", queryCounters(FOLDER_ID));
+    }
+
+    @Test
+    public void markingMessageAsDeleted_shouldRemoveItFromCounters() throws Exception {
+        long messageId = insertMessage(FOLDER_ID, 0, 1);
+
+        db.execSQL("UPDATE messages SET deleted = 1 WHERE id = " + messageId);
+
+        assertEquals("0|0", queryCounters(FOLDER_ID));
+    }
+
+    @Test
+    public void convertingEmptyMessageToRealMessage_shouldCountIt() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put("folder_id", FOLDER_ID);
+        values.put("empty", 1);
+        long messageId = db.insert("messages", null, values);
+
+        db.execSQL("UPDATE messages SET empty = 0 WHERE id = " + messageId);
+
+        assertEquals("1|0", queryCounters(FOLDER_ID));
+    }
+
+    @Test
+    public void movingMessage_shouldUpdateBothFolders() throws Exception {
+        long messageId = insertMessage(FOLDER_ID, 0, 1);
+        insertMessage(OTHER_FOLDER_ID, 0, 0);
+
+        db.execSQL("UPDATE messages SET folder_id = " + OTHER_FOLDER_ID + " WHERE id = " + messageId);
+
+        assertEquals("0|0", queryCounters(FOLDER_ID));
+        assertEquals("2|1", queryCounters(OTHER_FOLDER_ID));
+    }
+
+    @Test
+    public void deletingMessage_shouldUpdateCounters() throws Exception {
+        long messageId = insertMessage(FOLDER_ID, 0, 1);
+        insertMessage(FOLDER_ID, 0, 0);
+
+        db.execSQL("DELETE FROM messages WHERE id = " + messageId);
+
+        assertEquals("1|0", queryCounters(FOLDER_ID));
+    }
+
+    @Test
+    public void replacingMessageWithEmptyMessage_shouldRemoveItFromCounters() throws Exception {
+        long messageId = insertMessage(FOLDER_ID, 0, 1);
+        insertMessage(FOLDER_ID, 0, 0);
+
+        LocalMessage.replaceWithEmptyMessage(db, messageId, FOLDER_ID, "<message@example.com>");
+
+        assertEquals("1|0", queryCounters(FOLDER_ID));
+    }
+
+    @Test
+    public void deletingFolder_shouldRemoveCounters() throws Exception {
+        db.execSQL("INSERT INTO folders (id, name) VALUES (" + FOLDER_ID + ", 'INBOX')");
+        insertMessage(FOLDER_ID, 0, 0);
+
+        db.execSQL("DELETE FROM folders WHERE id = " + FOLDER_ID);
+
+        assertFalse(hasCounters(FOLDER_ID));
+    }
+
+    @Test
+    public void rebuild_shouldRestoreCountersMaintainedByTriggers() throws Exception {
+        insertMessage(FOLDER_ID, 0, 0);
+        insertMessage(FOLDER_ID, 1, 1);
+        long deletedMessageId = insertMessage(FOLDER_ID, 0, 1);
+        db.execSQL("UPDATE messages SET deleted = 1 WHERE id = " + deletedMessageId);
+        String expected = queryCounters(FOLDER_ID);
+        db.execSQL("DELETE FROM folder_counters");
+
+        FolderCounters.rebuild(db);
+
+        assertEquals(expected, queryCounters(FOLDER_ID));
+        assertEquals("1|1", expected);
+    }
+
+    private long insertMessage(long folderId, int read, int flagged) {
+        ContentValues values = new ContentValues();
+        values.put("folder_id", folderId);
+        values.put("read", read);
+        values.put("flagged", flagged);
+        return db.insert("messages", null, values);
+    }
+
+    private boolean hasCounters(long folderId) {
+        Cursor cursor = db.rawQuery("SELECT folder_id FROM folder_counters WHERE folder_id = " + folderId, null);
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String queryCounters(long folderId) {
+        Cursor cursor = db.rawQuery("SELECT unread_count, flagged_count FROM folder_counters " +
+                "WHERE folder_id = " + folderId, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return "none";
+            }
+            return cursor.getLong(0) + "|" + cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.fsck.k9.mailstore;
+
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.fsck.k9.mailstore.LocalFolder.DataLocation;
+import com.fsck.k9.mailstore.LocalFolder.MessagePartType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = "src/main/AndroidManifest.xml", sdk = 21)
+public class MessageInsertBatchTest {
+    private static final long FOLDER_ID = 1;
+    private static final long OTHER_FOLDER_ID = 2;
+
+
+    private SQLiteDatabase db;
+
+
+    @Before
+    public void setUp() throws Exception {
+        db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE messages (id INTEGER PRIMARY KEY, deleted INTEGER default 0, folder_id INTEGER, " +
+                "uid TEXT, subject TEXT, date INTEGER, flags TEXT, sender_list TEXT, to_list TEXT, cc_list TEXT, " +
+                "bcc_list TEXT, reply_to_list TEXT, attachment_count INTEGER, internal_date INTEGER, " +
+                "message_id TEXT, preview_type TEXT default \"none\", preview TEXT, mime_type TEXT, " +
+                "normalized_subject_hash INTEGER, empty INTEGER default 0, read INTEGER default 0, " +
+                "flagged INTEGER default 0, answered INTEGER default 0, forwarded INTEGER default 0, " +
+                "message_part_id INTEGER)");
+        db.execSQL("CREATE TABLE threads (id INTEGER PRIMARY KEY, message_id INTEGER, root INTEGER, parent INTEGER)");
+        db.execSQL("CREATE TABLE message_parts (id INTEGER PRIMARY KEY, type INTEGER NOT NULL, root INTEGER, " +
+                "parent INTEGER NOT NULL, seq INTEGER NOT NULL, mime_type TEXT, decoded_body_size INTEGER, " +
+                "display_name TEXT, header TEXT, encoding TEXT, charset TEXT, data_location INTEGER NOT NULL, " +
+                "data BLOB, preamble TEXT, epilogue TEXT, boundary TEXT, content_id TEXT, server_extra TEXT, " +
+                "content_hash TEXT, data_codec INTEGER DEFAULT 0)");
+        db.execSQL("CREATE VIRTUAL TABLE messages_fulltext USING fts4 (fulltext)");
+
+        insertMessageRow(FOLDER_ID, "<existing@example.org>");
+        insertMessageRow(OTHER_FOLDER_ID, "<other-folder@example.org>");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void create_shouldOnlyReportMessageIdsMissingFromFolderAsAbsent() throws Exception {
+        MessageInsertBatch batch = MessageInsertBatch.create(db, FOLDER_ID,
+                asList("<existing@example.org>", "<other-folder@example.org>", "<new@example.org>", null));
+
+        assertFalse(batch.isKnownToBeAbsent("<existing@example.org>"));
+        assertTrue(batch.isKnownToBeAbsent("<other-folder@example.org>"));
+        assertTrue(batch.isKnownToBeAbsent("<new@example.org>"));
+        assertFalse(batch.isKnownToBeAbsent(null));
+        batch.close();
+    }
+
+    @Test
+    public void insertPlaceholderMessage_shouldNoLongerReportMessageIdAsAbsent() throws Exception {
+        MessageInsertBatch batch = MessageInsertBatch.create(db, FOLDER_ID, asList("<new@example.org>"));
+
+        long messageId = batch.insertPlaceholderMessage("<new@example.org>", FOLDER_ID);
+
+        assertFalse(batch.isKnownToBeAbsent("<new@example.org>"));
+        assertEquals("1", queryString("SELECT empty FROM messages WHERE id = " + messageId));
+        batch.close();
+    }
+
+    @Test
+    public void insertMessage_shouldStoreValuesAndMarkMessageIdAsPresent() throws Exception {
+        MessageInsertBatch batch = MessageInsertBatch.create(db, FOLDER_ID, asList("<new@example.org>"));
+        ContentValues values = new ContentValues();
+        values.put("uid", "uid1");
+        values.put("folder_id", FOLDER_ID);
+        values.put("message_id", "<new@example.org>");
+        values.put("preview_type", "text");
+        values.putNull("preview");
+
+        long messageId = batch.insertMessage(values);
+
+        assertFalse(batch.isKnownToBeAbsent("<new@example.org>"));
+        assertEquals("uid1", queryString("SELECT uid FROM messages WHERE id = " + messageId));
+        assertEquals("text", queryString("SELECT preview_type FROM messages WHERE id = " + messageId));
+        batch.close();
+    }
+
+    @Test
+    public void insertThread_withoutRootAndParent_shouldStoreNull() throws Exception {
+        MessageInsertBatch batch = MessageInsertBatch.create(db, FOLDER_ID, asList("<new@example.org>"));
+
+        long threadId = batch.insertThread(5, -1, -1);
+
+        assertEquals("5", queryString("SELECT message_id FROM threads WHERE id = " + threadId));
+        assertEquals(null, queryString("SELECT root FROM threads WHERE id = " + threadId));
+        batch.close();
+    }
+
+    @Test
+    public void insertMessagePart_withStatementReused_shouldNotLeakBindingsIntoNextRow() throws Exception {
+        MessageInsertBatch batch = MessageInsertBatch.create(db, FOLDER_ID, asList("<new@example.org>"));
+        ContentValues first = createMessagePartValues();
+        first.put("boundary", "----boundary");
+        batch.insertMessagePart(first);
+
+        long secondId = batch.insertMessagePart(createMessagePartValues());
+
+        assertEquals(null, queryString("SELECT boundary FROM message_parts WHERE id = " + secondId));
+        batch.close();
+    }
+
+    @Test
+    public void insertMessagePart_withUnknownColumn_shouldThrow() throws Exception {
+        MessageInsertBatch batch = MessageInsertBatch.create(db, FOLDER_ID, asList("<new@example.org>"));
+        ContentValues values = createMessagePartValues();
+        values.put("unknown_column", 1);
+
+        try {
+            batch.insertMessagePart(values);
+            fail("Expected exception");
+        } catch (IllegalArgumentException expected) {
+        } finally {
+            batch.close();
+        }
+    }
+
+    private ContentValues createMessagePartValues() {
+        ContentValues values = new ContentValues();
+        values.put("type", MessagePartType.UNKNOWN);
+        values.put("parent", -1);
+        values.put("seq", 0);
+        values.put("data_location", DataLocation.IN_DATABASE);
+        values.put("header", new byte[] { 'a' });
+        return values;
+    }
+
+    private void insertMessageRow(long folderId, String messageId) {
+        ContentValues values = new ContentValues();
+        values.put("folder_id", folderId);
+        values.put("message_id", messageId);
+        db.insert("messages", null, values);
+    }
+
+    private String queryString(String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
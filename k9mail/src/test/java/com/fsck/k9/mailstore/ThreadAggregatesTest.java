@@ -0,0 +1,206 @@
+package com.fsck.k9.mailstore;
+
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = "src/main/AndroidManifest.xml", sdk = 21)
+public class ThreadAggregatesTest {
+    private static final long FOLDER_ID = 1;
+    private static final long OTHER_FOLDER_ID = 2;
+
+
+    private SQLiteDatabase db;
+
+
+    @Before
+    public void setUp() throws Exception {
+        db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE messages (id INTEGER PRIMARY KEY, deleted INTEGER default 0, folder_id INTEGER, " +
+                "date INTEGER, attachment_count INTEGER, internal_date INTEGER, message_id TEXT, " +
+                "empty INTEGER default 0, read INTEGER default 0, flagged INTEGER default 0, " +
+                "answered INTEGER default 0, forwarded INTEGER default 0)");
+        db.execSQL("CREATE TABLE threads (id INTEGER PRIMARY KEY, message_id INTEGER, root INTEGER, parent INTEGER)");
+        db.execSQL("CREATE TRIGGER set_thread_root AFTER INSERT ON threads BEGIN " +
+                "UPDATE threads SET root=id WHERE root IS NULL AND ROWID = NEW.ROWID; END");
+
+        ThreadAggregates.createTable(db);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void insertingThread_shouldAggregateMessagesOfThread() throws Exception {
+        long rootThreadId = insertMessageWithThread(100, 0, -1);
+        long replyMessageId = insertMessage(200, 0);
+        insertThread(replyMessageId, rootThreadId);
+
+        assertEquals("2|2|0|200|" + replyMessageId, queryAggregates(rootThreadId));
+    }
+
+    @Test
+    public void changingReadFlag_shouldUpdateUnreadCount() throws Exception {
+        long rootThreadId = insertMessageWithThread(100, 0, -1);
+        long replyMessageId = insertMessage(200, 0);
+        insertThread(replyMessageId, rootThreadId);
+
+        db.execSQL("UPDATE messages SET read = 1 WHERE id = " + replyMessageId);
+
+        assertEquals("2|1|0|200|" + replyMessageId, queryAggregates(rootThreadId));
+    }
+
+    @Test
+    public void markingLatestMessageAsDeleted_shouldUseNextMessageAsLatest() throws Exception {
+        long rootThreadId = insertMessageWithThread(100, 0, -1);
+        long rootMessageId = queryLong("SELECT message_id FROM threads WHERE id = " + rootThreadId);
+        long replyMessageId = insertMessage(200, 1);
+        insertThread(replyMessageId, rootThreadId);
+
+        db.execSQL("UPDATE messages SET deleted = 1 WHERE id = " + replyMessageId);
+
+        assertEquals("1|1|0|100|" + rootMessageId, queryAggregates(rootThreadId));
+    }
+
+    @Test
+    public void threadWithOnlyEmptyMessages_shouldNotHaveAggregates() throws Exception {
+        long placeholderId = insertMessage(0, 0);
+        db.execSQL("UPDATE messages SET empty = 1 WHERE id = " + placeholderId);
+
+        long threadId = insertThread(placeholderId, -1);
+
+        assertFalse(hasAggregates(threadId));
+    }
+
+    @Test
+    public void deletingMessage_shouldRemoveAggregatesOfThread() throws Exception {
+        long threadId = insertMessageWithThread(100, 0, -1);
+        long messageId = queryLong("SELECT message_id FROM threads WHERE id = " + threadId);
+
+        db.execSQL("DELETE FROM messages WHERE id = " + messageId);
+
+        assertFalse(hasAggregates(threadId));
+    }
+
+    @Test
+    public void movingThreadToNewRoot_shouldMergeAggregates() throws Exception {
+        long firstThreadId = insertMessageWithThread(100, 0, -1);
+        long secondThreadId = insertMessageWithThread(300, 0, -1);
+        long secondMessageId = queryLong("SELECT message_id FROM threads WHERE id = " + secondThreadId);
+
+        db.execSQL("UPDATE threads SET root = " + firstThreadId + " WHERE root = " + secondThreadId);
+
+        assertFalse(hasAggregates(secondThreadId));
+        assertEquals("2|2|0|300|" + secondMessageId, queryAggregates(firstThreadId));
+    }
+
+    @Test
+    public void rebuild_shouldRestoreAggregatesMaintainedByTriggers() throws Exception {
+        long rootThreadId = insertMessageWithThread(100, 0, -1);
+        long replyMessageId = insertMessage(200, 0);
+        insertThread(replyMessageId, rootThreadId);
+        db.execSQL("UPDATE messages SET flagged = 1 WHERE id = " + replyMessageId);
+        String expected = queryAggregates(rootThreadId);
+        db.execSQL("DELETE FROM thread_aggregates");
+
+        ThreadAggregates.rebuild(db);
+
+        assertEquals(expected, queryAggregates(rootThreadId));
+        assertEquals("2|2|1|200|" + replyMessageId, expected);
+    }
+
+    @Test
+    public void deletingMessageRowsOfFolder_shouldRemoveAggregatesOfItsThreads() throws Exception {
+        long rootThreadId = insertMessageWithThread(100, 0, -1);
+        long replyMessageId = insertMessage(200, 0);
+        insertThread(replyMessageId, rootThreadId);
+        long placeholderId = insertMessage(0, 0);
+        db.execSQL("UPDATE messages SET empty = 1 WHERE id = " + placeholderId);
+        insertThread(placeholderId, rootThreadId);
+        long otherFolderMessageId = insertMessage(OTHER_FOLDER_ID, 300, 0);
+        long otherFolderThreadId = insertThread(otherFolderMessageId, -1);
+
+        LocalFolder.deleteMessageRows(db, FOLDER_ID);
+
+        assertFalse(hasAggregates(rootThreadId));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM thread_aggregates WHERE folder_id = " + FOLDER_ID));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM threads WHERE root = " + rootThreadId));
+        assertEquals("1|1|0|300|" + otherFolderMessageId, queryAggregates(otherFolderThreadId));
+    }
+
+    private long insertMessageWithThread(long date, int read, long rootThreadId) {
+        long messageId = insertMessage(date, read);
+        return insertThread(messageId, rootThreadId);
+    }
+
+    private long insertMessage(long date, int read) {
+        return insertMessage(FOLDER_ID, date, read);
+    }
+
+    private long insertMessage(long folderId, long date, int read) {
+        ContentValues values = new ContentValues();
+        values.put("folder_id", folderId);
+        values.put("date", date);
+        values.put("internal_date", date);
+        values.put("attachment_count", 0);
+        values.put("read", read);
+        return db.insert("messages", null, values);
+    }
+
+    private long insertThread(long messageId, long rootThreadId) {
+        ContentValues values = new ContentValues();
+        values.put("message_id", messageId);
+        if (rootThreadId != -1) {
+            values.put("root", rootThreadId);
+            values.put("parent", rootThreadId);
+        }
+        return db.insert("threads", null, values);
+    }
+
+    private boolean hasAggregates(long rootThreadId) {
+        Cursor cursor = db.rawQuery("SELECT root FROM thread_aggregates WHERE root = " + rootThreadId, null);
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String queryAggregates(long rootThreadId) {
+        Cursor cursor = db.rawQuery("SELECT message_count, unread_count, flagged_count, date, latest_message_id " +
+                "FROM thread_aggregates WHERE root = " + rootThreadId, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0) + "|" + cursor.getLong(1) + "|" + cursor.getLong(2) + "|" +
+                    cursor.getLong(3) + "|" + cursor.getLong(4);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long queryLong(String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
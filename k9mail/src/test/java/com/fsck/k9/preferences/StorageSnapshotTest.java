@@ -0,0 +1,131 @@
+package com.fsck.k9.preferences;
+
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = "src/main/AndroidManifest.xml", sdk = 21)
+public class StorageSnapshotTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+    private Map<String, String> values;
+
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(temporaryFolder.getRoot(), "snapshot");
+
+        values = new HashMap<String, String>();
+        values.put("accountUuids", "uuid1,uuid2");
+        values.put("uuid1.description", "Work");
+        values.put("uuid2.description", "Grüße ✉");
+        values.put("uuid1.signature", "");
+        values.put("ä", "non-ASCII key");
+        values.put("z", "after non-ASCII key in UTF-16 order, before it in UTF-8 order");
+    }
+
+    @Test
+    public void open_withoutFile_shouldReturnNull() throws Exception {
+        assertNull(StorageSnapshot.open(file));
+    }
+
+    @Test
+    public void get_afterWrite_shouldReturnAllValues() throws Exception {
+        StorageSnapshot.write(file, values);
+
+        StorageSnapshot snapshot = StorageSnapshot.open(file);
+
+        assertNotNull(snapshot);
+        assertEquals(values.size(), snapshot.size());
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void get_withUnknownKey_shouldReturnNull() throws Exception {
+        StorageSnapshot.write(file, values);
+
+        StorageSnapshot snapshot = StorageSnapshot.open(file);
+
+        assertNull(snapshot.get("uuid1"));
+        assertNull(snapshot.get("uuid3.description"));
+        assertNull(snapshot.get(""));
+    }
+
+    @Test
+    public void readAll_shouldReturnAllValues() throws Exception {
+        StorageSnapshot.write(file, values);
+
+        StorageSnapshot snapshot = StorageSnapshot.open(file);
+
+        assertEquals(values, snapshot.readAll());
+    }
+
+    @Test
+    public void open_withEmptySnapshot_shouldReturnEmptySnapshot() throws Exception {
+        StorageSnapshot.write(file, new HashMap<String, String>());
+
+        StorageSnapshot snapshot = StorageSnapshot.open(file);
+
+        assertEquals(0, snapshot.size());
+        assertNull(snapshot.get("accountUuids"));
+    }
+
+    @Test
+    public void write_withExistingSnapshot_shouldReplaceIt() throws Exception {
+        StorageSnapshot.write(file, values);
+        Map<String, String> newValues = new HashMap<String, String>();
+        newValues.put("accountUuids", "uuid1");
+
+        StorageSnapshot.write(file, newValues);
+
+        assertEquals(newValues, StorageSnapshot.open(file).readAll());
+    }
+
+    @Test
+    public void open_withTruncatedFile_shouldReturnNull() throws Exception {
+        StorageSnapshot.write(file, values);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(file.length() - 1);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        assertNull(StorageSnapshot.open(file));
+    }
+
+    @Test
+    public void open_withCorruptEntry_shouldReturnNull() throws Exception {
+        StorageSnapshot.write(file, values);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // Length of the first key
+            randomAccessFile.seek(16 + 4 * values.size());
+            randomAccessFile.writeInt(Integer.MAX_VALUE);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        assertNull(StorageSnapshot.open(file));
+    }
+}
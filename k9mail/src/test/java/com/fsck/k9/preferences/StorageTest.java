@@ -0,0 +1,230 @@
+package com.fsck.k9.preferences;
+
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = "src/main/AndroidManifest.xml", sdk = 21)
+public class StorageTest {
+    private static final List<String> NO_REMOVALS = Collections.emptyList();
+
+
+    private Context context;
+    private File snapshotFile;
+
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.application;
+        context.deleteDatabase("preferences_storage");
+        snapshotFile = new File(context.getFilesDir(), "preferences_storage.snapshot");
+        snapshotFile.delete();
+    }
+
+    @Test
+    public void commit_shouldWriteChangesToDatabaseAndSnapshot() throws Exception {
+        Storage storage = new Storage(context, 0);
+
+        assertTrue(storage.commit(NO_REMOVALS, values("a", "1", "b", "2")).get());
+        assertTrue(storage.commit(Collections.singletonList("b"), values("c", "3")).get());
+
+        assertEquals(values("a", "1", "c", "3"), StorageSnapshot.open(snapshotFile).readAll());
+        assertEquals(values("a", "1", "c", "3"), readDatabase());
+    }
+
+    @Test
+    public void commit_shouldApplyChangesBeforeTheyAreWritten() throws Exception {
+        BlockingStorage storage = new BlockingStorage(context, false);
+
+        Future<Boolean> write = storage.commit(NO_REMOVALS, values("a", "1"));
+
+        assertEquals("1", storage.getString("a", null));
+        storage.release();
+        assertTrue(write.get());
+    }
+
+    @Test
+    public void commit_whileWriteIsInProgress_shouldCombineChangesIntoOneWrite() throws Exception {
+        BlockingStorage storage = new BlockingStorage(context, false);
+        storage.commit(NO_REMOVALS, values("a", "1"));
+        storage.awaitWriteStarted();
+
+        Future<Boolean> firstWrite = storage.commit(NO_REMOVALS, values("b", "2"));
+        Future<Boolean> secondWrite = storage.commit(NO_REMOVALS, values("c", "3"));
+        storage.release();
+
+        assertSame(firstWrite, secondWrite);
+        assertTrue(secondWrite.get());
+        assertEquals(values("a", "1", "b", "2", "c", "3"), readDatabase());
+    }
+
+    @Test
+    public void commit_withFailingWrite_shouldDeleteSnapshotAndRetry() throws Exception {
+        FailingStorage storage = new FailingStorage(context, snapshotFile);
+        assertTrue(storage.commit(NO_REMOVALS, values("a", "1")).get());
+        assertTrue(snapshotFile.exists());
+
+        storage.failures = 1;
+        Future<Boolean> failedWrite = storage.commit(NO_REMOVALS, values("a", "2", "b", "2"));
+
+        assertFalse(failedWrite.get());
+        assertFalse(storage.snapshotExistedDuringWrite);
+        assertEquals("2", storage.getString("a", null));
+
+        waitForWrites(storage);
+        assertEquals(values("a", "2", "b", "2"), StorageSnapshot.open(snapshotFile).readAll());
+        assertEquals(values("a", "2", "b", "2"), readDatabase());
+    }
+
+    @Test
+    public void commit_withFailingWrite_shouldNotOverwriteNewerChanges() throws Exception {
+        BlockingStorage storage = new BlockingStorage(context, true);
+        Future<Boolean> failedWrite = storage.commit(NO_REMOVALS, values("a", "1", "b", "1", "c", "1"));
+        storage.awaitWriteStarted();
+
+        storage.commit(Collections.singletonList("b"), values("a", "2"));
+        storage.release();
+
+        assertFalse(failedWrite.get());
+        waitForWrites(storage);
+        assertEquals(values("a", "2", "c", "1"), readDatabase());
+    }
+
+    @Test
+    public void new_withSnapshot_shouldReadValuesFromSnapshot() throws Exception {
+        Storage storage = new Storage(context, 0);
+        assertTrue(storage.commit(NO_REMOVALS, values("a", "1")).get());
+        context.deleteDatabase("preferences_storage");
+
+        Storage newStorage = new Storage(context, 0);
+
+        assertEquals("1", newStorage.getString("a", null));
+    }
+
+    @Test
+    public void new_withoutSnapshot_shouldReadValuesFromDatabase() throws Exception {
+        Storage storage = new Storage(context, 0);
+        assertTrue(storage.commit(NO_REMOVALS, values("a", "1")).get());
+        assertTrue(snapshotFile.delete());
+
+        Storage newStorage = new Storage(context, 0);
+
+        assertEquals("1", newStorage.getString("a", null));
+        assertNull(newStorage.getString("b", null));
+    }
+
+    /**
+     * Waits until all earlier writes, including retries, have finished.
+     */
+    private void waitForWrites(Storage storage) throws Exception {
+        assertTrue(storage.commit(NO_REMOVALS, values()).get());
+    }
+
+    /**
+     * Reads the values from the database. Deletes the snapshot, so it must be checked before.
+     */
+    private Map<String, String> readDatabase() {
+        snapshotFile.delete();
+        return new Storage(context, 0).getAll();
+    }
+
+    private static Map<String, String> values(String... keysAndValues) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            values.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return values;
+    }
+
+
+    /**
+     * Fails the given number of writes. Retries happen right away.
+     */
+    private static class FailingStorage extends Storage {
+        private final File snapshotFile;
+        volatile int failures = 0;
+        volatile boolean snapshotExistedDuringWrite = false;
+
+
+        FailingStorage(Context context, File snapshotFile) {
+            super(context, 0);
+            this.snapshotFile = snapshotFile;
+        }
+
+        @Override
+        void writeChanges(Map<String, String> changes) {
+            if (snapshotFile.exists()) {
+                snapshotExistedDuringWrite = true;
+            }
+            if (failures > 0) {
+                failures--;
+                throw new IllegalStateException("disk full");
+            }
+            super.writeChanges(changes);
+        }
+    }
+
+    /**
+     * Blocks the first write until {@link #release()} is called.
+     */
+    private static class BlockingStorage extends Storage {
+        private final CountDownLatch writeStarted = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final boolean failFirstWrite;
+        private boolean firstWrite = true;
+
+
+        BlockingStorage(Context context, boolean failFirstWrite) {
+            super(context, 0);
+            this.failFirstWrite = failFirstWrite;
+        }
+
+        @Override
+        void writeChanges(Map<String, String> changes) {
+            if (firstWrite) {
+                firstWrite = false;
+                writeStarted.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                if (failFirstWrite) {
+                    throw new IllegalStateException("disk full");
+                }
+            }
+            super.writeChanges(changes);
+        }
+
+        void awaitWriteStarted() throws InterruptedException {
+            assertTrue(writeStarted.await(5, TimeUnit.SECONDS));
+        }
+
+        void release() {
+            released.countDown();
+        }
+    }
+}